@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.exifinterface.media;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The library reads orientation through the AndroidX backport of {@code ExifInterface}, which is
+ * only published as an Android archive. The framework class it backports has the same constants
+ * and constructors.
+ */
+public class ExifInterface extends android.media.ExifInterface {
+  public ExifInterface(String filename) throws IOException {
+    super(filename);
+  }
+
+  public ExifInterface(InputStream inputStream) throws IOException {
+    super(inputStream);
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+
+/**
+ * An application context for the few calls Picasso makes on one when it is set up: it holds no
+ * permissions and drops broadcast registrations, as no broadcasts are sent.
+ */
+final class BenchmarkContext extends ContextWrapper {
+  BenchmarkContext() {
+    super(null);
+  }
+
+  @Override public Context getApplicationContext() {
+    return this;
+  }
+
+  /** None: reading settings such as airplane mode fails, and Picasso assumes their defaults. */
+  @Override public ContentResolver getContentResolver() {
+    return null;
+  }
+
+  @Override public int checkCallingOrSelfPermission(String permission) {
+    return PackageManager.PERMISSION_DENIED;
+  }
+
+  @Override public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+    return null;
+  }
+
+  @Override public void unregisterReceiver(BroadcastReceiver receiver) {
+  }
+
+  @Override public void registerComponentCallbacks(ComponentCallbacks callback) {
+  }
+
+  @Override public void unregisterComponentCallbacks(ComponentCallbacks callback) {
+  }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.graphics.Bitmap;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.telephony.TelephonyManager;
+import androidx.annotation.NonNull;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A grid of images fetched through Picasso from a throttled {@link MockWebServer}, comparing the
+ * executor thread count of the network type table with the one adapted by
+ * {@link ConcurrencyController}.
+ * <p>
+ * Each response waits one round trip for its headers and is throttled to the per-connection rate.
+ * The bodies share the link through a client interceptor: once more transfers are open than the
+ * link has room for, its goodput degrades as losses and retransmissions set in.
+ * {@link Network#MISREPORTED} is a congested Wi-Fi hotspot that the table treats as Wi-Fi. Time
+ * runs {@link #SPEEDUP} times faster than on a device: rates are multiplied and round trips
+ * divided, so a load keeps its shape.
+ * <p>
+ * Every invocation starts again from the table's thread count and fetches images that are in
+ * neither cache, so the measured time is how long the whole grid takes to load.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 2)
+@Fork(1)
+public class ConcurrencyBenchmark {
+  public enum Network {
+    WIFI(ConnectivityManager.TYPE_WIFI, 0, 2500, 1000, 20, 6),
+    LTE(ConnectivityManager.TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_LTE, 1200, 400, 60, 4),
+    UMTS(ConnectivityManager.TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UMTS, 200, 100, 150, 2),
+    EDGE(ConnectivityManager.TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_EDGE, 30, 30, 500, 1),
+    MISREPORTED(ConnectivityManager.TYPE_WIFI, 0, 200, 100, 100, 2);
+
+    final int type;
+    final int subtype;
+    final double bytesPerSecond;
+    final int connectionBytesPerSecond;
+    final long roundTripMillis;
+    /** Transfers the link carries before goodput starts to degrade. */
+    final int room;
+
+    Network(int type, int subtype, int kilobytesPerSecond, int connectionKilobytesPerSecond,
+        int roundTripMillis, int room) {
+      this.type = type;
+      this.subtype = subtype;
+      this.bytesPerSecond = kilobytesPerSecond * 1024d * SPEEDUP;
+      this.connectionBytesPerSecond = connectionKilobytesPerSecond * 1024 * SPEEDUP;
+      this.roundTripMillis = roundTripMillis / SPEEDUP;
+      this.room = room;
+    }
+
+    /** The combined rate of {@code transfers} open transfers. */
+    double goodput(int transfers) {
+      return bytesPerSecond * Math.pow(LOSS_FACTOR, Math.max(0, transfers - room));
+    }
+
+    NetworkInfo info() {
+      NetworkInfo info = new NetworkInfo(type, subtype, name(), null);
+      info.setDetailedState(NetworkInfo.DetailedState.CONNECTED, null, null);
+      return info;
+    }
+  }
+
+  public enum Policy {
+    STATIC,
+    ADAPTIVE
+  }
+
+  static final int SPEEDUP = 10;
+  private static final int IMAGES = 160;
+  private static final int IMAGE_BYTES = 40 * 1024;
+  private static final int IMAGE_SIZE = 64;
+  /** Goodput lost per transfer beyond the link's room. */
+  private static final double LOSS_FACTOR = 0.85;
+  private static final long THROTTLE_PERIOD_MILLIS = 10;
+
+  private static final Executor DIRECT = new Executor() {
+    @Override public void execute(@NonNull Runnable command) {
+      command.run();
+    }
+  };
+
+  @Param
+  public Network network;
+
+  @Param
+  public Policy policy;
+
+  private MockWebServer server;
+  private PicassoExecutorService service;
+  private Picasso picasso;
+  private int invocation;
+  private long totalNanos;
+  private long latencyNanos;
+
+  @Setup public void setUp() throws IOException {
+    MainThread.start();
+    final Buffer body = new Buffer()
+        .writeInt(IMAGE_SIZE)
+        .writeInt(IMAGE_SIZE)
+        .write(new byte[IMAGE_BYTES - 8]);
+    server = new MockWebServer();
+    server.setDispatcher(new Dispatcher() {
+      @Override public MockResponse dispatch(RecordedRequest request) {
+        return new MockResponse()
+            .setBody(body.clone())
+            .setHeadersDelay(network.roundTripMillis, TimeUnit.MILLISECONDS)
+            .throttleBody(network.connectionBytesPerSecond * THROTTLE_PERIOD_MILLIS / 1000,
+                THROTTLE_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+      }
+    });
+    server.start();
+
+    OkHttpClient client = new OkHttpClient.Builder()
+        .addNetworkInterceptor(new Link(network))
+        .build();
+    BenchmarkContext context = new BenchmarkContext();
+    LruCache cache = new LruCache(IMAGE_SIZE * IMAGE_SIZE * 4);
+    Stats stats = new Stats(cache);
+    service = policy == Policy.ADAPTIVE
+        ? new PicassoExecutorService(stats)
+        : new StaticExecutorService(stats);
+    com.squareup.picasso.Dispatcher dispatcher = new com.squareup.picasso.Dispatcher(context,
+        service, Picasso.HANDLER, new OkHttp3Downloader(client), cache, stats);
+    picasso = new Picasso(context, dispatcher, cache, null, Picasso.RequestTransformer.IDENTITY,
+        Collections.<RequestHandler>emptyList(), stats, null, false, false);
+  }
+
+  @Setup(Level.Invocation) public void seedThreadCount() {
+    service.adjustThreadCount(network.info());
+  }
+
+  @TearDown public void tearDown() throws IOException {
+    System.out.println(policy + " on " + network + ": " + IMAGES + " images in "
+        + TimeUnit.NANOSECONDS.toMillis(totalNanos / invocation) + "ms, "
+        + TimeUnit.NANOSECONDS.toMillis(latencyNanos / invocation / IMAGES)
+        + "ms per image on average, " + service.getThreadCountLimit() + " threads at the end ("
+        + service.getThreadCountReason() + ")");
+    picasso.shutdown();
+    server.shutdown();
+  }
+
+  @Benchmark public List<Bitmap> load() throws Exception {
+    invocation++;
+    final long start = System.nanoTime();
+    List<PicassoFuture<Bitmap>> futures = new ArrayList<>(IMAGES);
+    for (int i = 0; i < IMAGES; i++) {
+      PicassoFuture<Bitmap> future = picasso.load(server.url("/" + invocation + "/" + i).toString())
+          .memoryPolicy(MemoryPolicy.NO_CACHE, MemoryPolicy.NO_STORE)
+          .submit();
+      future.addListener(new PicassoFuture.Listener<Bitmap>() {
+        @Override public void onSuccess(Bitmap result) {
+          addLatency(System.nanoTime() - start);
+        }
+
+        @Override public void onError(@NonNull Exception e) {
+          throw new AssertionError(e);
+        }
+      }, DIRECT);
+      futures.add(future);
+    }
+    List<Bitmap> bitmaps = PicassoFuture.allOf(futures).get();
+    totalNanos += System.nanoTime() - start;
+    return bitmaps;
+  }
+
+  synchronized void addLatency(long nanos) {
+    latencyNanos += nanos;
+  }
+
+  /** The thread count of the network type table, as before {@link ConcurrencyController}. */
+  static final class StaticExecutorService extends PicassoExecutorService {
+    StaticExecutorService(Stats stats) {
+      super(stats);
+    }
+
+    @Override protected void afterExecute(Runnable r, Throwable t) {
+    }
+  }
+
+  /** Shares the link's goodput between the response bodies being read. */
+  static final class Link implements Interceptor {
+    private final Network network;
+    private int transfers;
+    private long freeAtNanos;
+
+    Link(Network network) {
+      this.network = network;
+    }
+
+    @Override public Response intercept(Chain chain) throws IOException {
+      Response response = chain.proceed(chain.request());
+      return response.newBuilder().body(new LinkBody(response.body())).build();
+    }
+
+    synchronized void open() {
+      transfers++;
+    }
+
+    synchronized void close() {
+      transfers--;
+    }
+
+    /** Wait until {@code byteCount} bytes got through the link behind the ones already sent. */
+    void transfer(long byteCount) throws InterruptedIOException {
+      long doneNanos;
+      synchronized (this) {
+        long now = System.nanoTime();
+        long nanos = (long) (byteCount * TimeUnit.SECONDS.toNanos(1) / network.goodput(transfers));
+        freeAtNanos = Math.max(now, freeAtNanos) + nanos;
+        doneNanos = freeAtNanos;
+      }
+      try {
+        long wait = doneNanos - System.nanoTime();
+        while (wait > 0) {
+          TimeUnit.NANOSECONDS.sleep(wait);
+          wait = doneNanos - System.nanoTime();
+        }
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+    }
+
+    final class LinkBody extends ResponseBody {
+      private final ResponseBody delegate;
+      private final BufferedSource source;
+      boolean open;
+
+      LinkBody(ResponseBody delegate) {
+        this.delegate = delegate;
+        this.source = Okio.buffer(new ForwardingSource(delegate.source()) {
+          @Override public long read(Buffer sink, long byteCount) throws IOException {
+            if (!open) {
+              open = true;
+              open();
+            }
+            long read = super.read(sink, byteCount);
+            if (read == -1) {
+              finish();
+            } else {
+              transfer(read);
+            }
+            return read;
+          }
+
+          @Override public void close() throws IOException {
+            finish();
+            super.close();
+          }
+        });
+      }
+
+      void finish() {
+        if (open) {
+          open = false;
+          Link.this.close();
+        }
+      }
+
+      @Override public MediaType contentType() {
+        return delegate.contentType();
+      }
+
+      @Override public long contentLength() {
+        return delegate.contentLength();
+      }
+
+      @Override public BufferedSource source() {
+        return source;
+      }
+    }
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/** Counts the bytes copied out of the wrapped stream into callers' arrays. */
+final class CountingInputStream extends FilterInputStream {
+  private final long[] counter;
+
+  /** Adds to {@code counter[0]} so that several layers can share one count. */
+  CountingInputStream(InputStream in, long[] counter) {
+    super(in);
+    this.counter = counter;
+  }
+
+  @Override public int read() throws IOException {
+    int b = in.read();
+    if (b != -1) {
+      counter[0]++;
+    }
+    return b;
+  }
+
+  @Override public int read(byte[] buffer, int offset, int count) throws IOException {
+    int read = in.read(buffer, offset, count);
+    if (read > 0) {
+      counter[0] += read;
+    }
+    return read;
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.Okio;
+import okio.Source;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The bounds-then-decode path of {@code BitmapHunter.decodeStream} for a resized request, with
+ * the previous {@link MarkableInputStream} rewind and the current {@code BufferedSource.peek()}.
+ * <p>
+ * Run with {@code -prof gc}: {@code gc.alloc.rate.norm} is the bytes allocated per decode. The
+ * bytes moved between Java arrays by a single decode are printed at the end of each trial.
+ * Copies out of the network into Okio segments are the same for both and are not counted.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+  public enum Strategy {
+    MARKABLE {
+      @Override long decode(BufferedSource source, long[] copied) throws IOException {
+        FakeBitmapFactory.Options options = new FakeBitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        InputStream stream = new CountingInputStream(source.inputStream(), copied);
+        MarkableInputStream markStream = new MarkableInputStream(stream);
+        markStream.allowMarksToExpire(false);
+        long mark = markStream.savePosition(1024);
+        FakeBitmapFactory.decodeStream(new CountingInputStream(markStream, copied), options);
+        options.inJustDecodeBounds = false;
+        markStream.reset(mark);
+        markStream.allowMarksToExpire(true);
+        return FakeBitmapFactory.decodeStream(new CountingInputStream(markStream, copied),
+            options);
+      }
+    },
+    PEEK {
+      @Override long decode(BufferedSource source, long[] copied) throws IOException {
+        FakeBitmapFactory.Options options = new FakeBitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        FakeBitmapFactory.decodeStream(new CountingInputStream(source.peek().inputStream(), copied),
+            options);
+        options.inJustDecodeBounds = false;
+        return FakeBitmapFactory.decodeStream(new CountingInputStream(source.inputStream(), copied),
+            options);
+      }
+    };
+
+    abstract long decode(BufferedSource source, long[] copied) throws IOException;
+  }
+
+  private static final ByteString RIFF = ByteString.encodeUtf8("RIFF");
+  private static final ByteString WEBP = ByteString.encodeUtf8("WEBP");
+
+  @Param({"JPEG", "PNG", "WEBP"})
+  public String format;
+
+  @Param
+  public Strategy strategy;
+
+  private byte[] image;
+  private final long[] copied = new long[1];
+
+  @Setup public void setUp() {
+    // Typical sizes for 640px album art.
+    Images images = Images.valueOf(format);
+    image = images.create(640, 640, images == Images.PNG ? 400 * 1024 : 80 * 1024);
+  }
+
+  @TearDown public void printCopies() {
+    // Every decode of the same input copies the same amount.
+    System.out.println(format + " " + strategy + ": " + copied[0] + " bytes copied per decode");
+  }
+
+  @Benchmark public long decode() throws IOException {
+    copied[0] = 0;
+    BufferedSource source = Okio.buffer(network());
+    long result;
+    if (source.rangeEquals(0, RIFF) && source.rangeEquals(8, WEBP)) {
+      // WebP is always decoded from a byte array, see BitmapHunter.decodeStream.
+      byte[] bytes = source.readByteArray();
+      copied[0] += bytes.length;
+      FakeBitmapFactory.Options options = new FakeBitmapFactory.Options();
+      options.inJustDecodeBounds = true;
+      FakeBitmapFactory.decodeByteArray(bytes, options);
+      options.inJustDecodeBounds = false;
+      result = FakeBitmapFactory.decodeByteArray(bytes, options);
+    } else {
+      result = strategy.decode(source, copied);
+    }
+    return result;
+  }
+
+  private Source network() {
+    return Okio.source(new ByteArrayInputStream(image));
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A center-cropped decode of a 4:3 photo into a square target, with the {@code BitmapFactory}
+ * path of {@code BitmapHunter} and the single-pass {@code ImageDecoderEngine} path. The sample
+ * size and decode scale are the library's.
+ * <p>
+ * {@code BitmapFactory} decodes at the largest power-of-two sample size that still covers the
+ * target, and the matrix transform then scales and crops that into a second bitmap.
+ * {@code ImageDecoder} decodes straight to the size that covers the target, leaving only the
+ * crop. Neither decoder is available on the JVM, so decoding is modelled as a box filter that
+ * reads every source pixel once, the part of a real decode whose cost both paths share.
+ * <p>
+ * Run with {@code -prof gc}: {@code gc.alloc.rate.norm} is the bytes allocated per decode. The
+ * peak bitmap memory held at once by a single decode is printed at the end of each trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx1g")
+public class DecodeEngineBenchmark {
+  public enum Engine {
+    BITMAP_FACTORY {
+      @Override Bitmap decode(Bitmap source, Request request, long[] peak) {
+        return sampleThenScale(source, request, bounds(source, request).inSampleSize, peak);
+      }
+    },
+    IMAGE_DECODER {
+      @Override Bitmap decode(Bitmap source, Request request, long[] peak) {
+        float scale = ImageDecoderEngine.decodeScale(request, source.width, source.height);
+        Bitmap decoded = scale(source, Math.max(1, Math.round(source.width * scale)),
+            Math.max(1, Math.round(source.height * scale)));
+        Bitmap result = cropScaled(decoded, request.targetWidth);
+        peak[0] = Math.max(peak[0], decoded.bytes() + result.bytes());
+        return result;
+      }
+    };
+
+    abstract Bitmap decode(Bitmap source, Request request, long[] peak);
+  }
+
+  @Param({"1600", "4032"})
+  public int sourceWidth;
+
+  @Param({"320", "1080"})
+  public int target;
+
+  @Param
+  public Engine engine;
+
+  private Bitmap source;
+  private Request request;
+  private final long[] peak = new long[2];
+
+  @Setup public void setUp() {
+    request = new Request.Builder(Uri.parse("file:///photo.jpg"))
+        .resize(target, target)
+        .centerCrop()
+        .build();
+    Random random = new Random(0);
+    source = new Bitmap(sourceWidth, sourceWidth * 3 / 4);
+    for (int i = 0; i < source.pixels.length; i++) {
+      source.pixels[i] = random.nextInt();
+    }
+  }
+
+  @TearDown public void printPeak() {
+    System.out.println(engine + " " + sourceWidth + "x" + source.height + " to " + target + "x"
+        + target + ": peak " + peak[0] / 1024 + " KiB of bitmaps");
+  }
+
+  @Benchmark public Bitmap decode() {
+    return engine.decode(source, request, peak);
+  }
+
+  static final class Bitmap {
+    final int width;
+    final int height;
+    final int[] pixels;
+
+    Bitmap(int width, int height) {
+      this.width = width;
+      this.height = height;
+      this.pixels = new int[width * height];
+    }
+
+    long bytes() {
+      return pixels.length * 4L;
+    }
+  }
+
+  /** The options after the bounds decode, with the sample size for {@code request}. */
+  static BitmapFactory.Options bounds(Bitmap source, Request request) {
+    BitmapFactory.Options options = RequestHandler.createBitmapOptions(request);
+    options.outWidth = source.width;
+    options.outHeight = source.height;
+    RequestHandler.calculateInSampleSize(request.targetWidth, request.targetHeight, options,
+        request);
+    return options;
+  }
+
+  /**
+   * A decode sampled by {@code sampleSize}, which the decoder rounds down to a power of two, then
+   * scaled or center-cropped by the matrix transform. {@code peak} receives the Java heap and the
+   * total bitmap memory held at once.
+   */
+  static Bitmap sampleThenScale(Bitmap source, Request request, int sampleSize, long[] peak) {
+    sampleSize = Integer.highestOneBit(Math.max(1, sampleSize));
+    Bitmap sampled = scale(source, ceil(source.width, sampleSize),
+        ceil(source.height, sampleSize));
+    Bitmap result = request.centerCrop
+        ? cropScaled(sampled, request.targetWidth)
+        : scale(sampled, request.targetWidth, request.targetHeight);
+    peak[0] = Math.max(peak[0], sampled.bytes() + result.bytes());
+    peak[1] = Math.max(peak[1], sampled.bytes() + result.bytes());
+    return result;
+  }
+
+  static int ceil(int dimension, int sampleSize) {
+    return (dimension + sampleSize - 1) / sampleSize;
+  }
+
+  /** Box-filters every pixel of {@code source} into a new {@code width} by {@code height}. */
+  static Bitmap scale(Bitmap source, int width, int height) {
+    Bitmap result = new Bitmap(width, height);
+    int[] red = new int[width];
+    int[] green = new int[width];
+    int[] blue = new int[width];
+    int[] count = new int[width];
+    int row = 0;
+    for (int y = 0; y < source.height; y++) {
+      int outY = (int) ((long) y * height / source.height);
+      if (outY != row) {
+        flush(result, row, red, green, blue, count);
+        row = outY;
+      }
+      for (int x = 0, offset = y * source.width; x < source.width; x++) {
+        int outX = (int) ((long) x * width / source.width);
+        int pixel = source.pixels[offset + x];
+        red[outX] += (pixel >> 16) & 0xff;
+        green[outX] += (pixel >> 8) & 0xff;
+        blue[outX] += pixel & 0xff;
+        count[outX]++;
+      }
+    }
+    flush(result, row, red, green, blue, count);
+    return result;
+  }
+
+  private static void flush(Bitmap result, int row, int[] red, int[] green, int[] blue,
+      int[] count) {
+    for (int x = 0, offset = row * result.width; x < result.width; x++) {
+      int n = Math.max(1, count[x]);
+      result.pixels[offset + x] =
+          0xff000000 | red[x] / n << 16 | green[x] / n << 8 | blue[x] / n;
+      red[x] = green[x] = blue[x] = count[x] = 0;
+    }
+  }
+
+  /**
+   * As the center crop of {@code BitmapHunter.transformResult}: the middle square of
+   * {@code source}, scaled with nearest-neighbour sampling to {@code target} on each side.
+   */
+  static Bitmap cropScaled(Bitmap source, int target) {
+    Bitmap result = new Bitmap(target, target);
+    int size = Math.min(source.width, source.height);
+    int left = (source.width - size) / 2;
+    int top = (source.height - size) / 2;
+    for (int y = 0; y < target; y++) {
+      int offset = (top + y * size / target) * source.width + left;
+      for (int x = 0; x < target; x++) {
+        result.pixels[y * target + x] = source.pixels[offset + x * size / target];
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import com.squareup.picasso.DecodeEngineBenchmark.Bitmap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static com.squareup.picasso.DecodeEngineBenchmark.bounds;
+import static com.squareup.picasso.DecodeEngineBenchmark.ceil;
+import static com.squareup.picasso.DecodeEngineBenchmark.sampleThenScale;
+import static com.squareup.picasso.DecodeEngineBenchmark.scale;
+
+/**
+ * A {@code BitmapFactory} decode of a resized request, with the sampled bitmap scaled by the
+ * matrix transform afterwards and with {@code RequestHandler.calculateDensityScale} having the
+ * decoder scale it to the target size itself.
+ * <p>
+ * Both paths sample by the same power of two and scale the rest of the way once, so the pixel
+ * work is close to equal. What differs is where the sampled image lives: as a second
+ * {@code Bitmap} held until the transform has drawn it, or as the decoder's native scratch,
+ * freed before the decode returns. Below API 26 bitmap pixels are on the Java heap, so the
+ * printed Java heap peak is what a decode costs there; the total peak counts both.
+ * <p>
+ * {@code calculateDensityScale} leaves center crops to the transform, which scales just the part
+ * it keeps, so both paths decode the cropped request the same way.
+ * <p>
+ * The sample size and density scale are the library's; decoding is modelled as in
+ * {@link DecodeEngineBenchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx1g")
+public class DensityScaleBenchmark {
+  public enum Path {
+    SAMPLE_THEN_SCALE {
+      @Override Bitmap decode(Bitmap source, Request request, long[] peak) {
+        BitmapFactory.Options options = bounds(source, request);
+        return sampleThenScale(source, request, options.inSampleSize, peak);
+      }
+    },
+    DENSITY_SCALED {
+      @Override Bitmap decode(Bitmap source, Request request, long[] peak) {
+        BitmapFactory.Options options = bounds(source, request);
+        if (!RequestHandler.calculateDensityScale(request, options)) {
+          return sampleThenScale(source, request, options.inSampleSize, peak);
+        }
+        int sampleSize = options.inSampleSize;
+        Bitmap sampled = scale(source, ceil(source.width, sampleSize),
+            ceil(source.height, sampleSize));
+        float ratio = options.inTargetDensity / (float) options.inDensity;
+        Bitmap result = scale(sampled, (int) (sampled.width * ratio + 0.5f),
+            (int) (sampled.height * ratio + 0.5f));
+        peak[0] = Math.max(peak[0], result.bytes());
+        peak[1] = Math.max(peak[1], sampled.bytes() + result.bytes());
+        return result;
+      }
+    };
+
+    abstract Bitmap decode(Bitmap source, Request request, long[] peak);
+  }
+
+  /**
+   * Source width and height, then target width and height and 1 for a center crop. The first is
+   * a 640 pixel image shown 300 wide, which samples to 320 and is then scaled again.
+   */
+  @Param({"640x480:300x225", "1024x768:300x300:crop", "4032x3024:1080x810"})
+  public String size;
+
+  @Param
+  public Path path;
+
+  private Bitmap source;
+  private Request request;
+  private final long[] peak = new long[2];
+
+  @Setup public void setUp() {
+    String[] parts = size.split(":");
+    String[] sourceSize = parts[0].split("x");
+    String[] targetSize = parts[1].split("x");
+    Request.Builder builder = new Request.Builder(Uri.parse("file:///image.jpg"))
+        .resize(Integer.parseInt(targetSize[0]), Integer.parseInt(targetSize[1]));
+    if (parts.length > 2) {
+      builder.centerCrop();
+    }
+    request = builder.build();
+    Random random = new Random(0);
+    source = new Bitmap(Integer.parseInt(sourceSize[0]), Integer.parseInt(sourceSize[1]));
+    for (int i = 0; i < source.pixels.length; i++) {
+      source.pixels[i] = random.nextInt();
+    }
+  }
+
+  @TearDown public void printPeak() {
+    System.out.println(path + " " + size + ": Java heap peak " + peak[0] / 1024
+        + " KiB, total peak " + peak[1] / 1024 + " KiB of bitmaps");
+  }
+
+  @Benchmark public Bitmap decode() {
+    return path.decode(source, request, peak);
+  }
+}
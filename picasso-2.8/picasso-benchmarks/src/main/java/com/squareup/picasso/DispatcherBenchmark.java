@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static com.squareup.picasso.Picasso.LoadedFrom.DISK;
+
+/**
+ * {@link Dispatcher} submit and complete cycles: each operation submits {@code inFlight} fetches
+ * from the main thread and waits until all of them were delivered back to it. Hunters load an
+ * already decoded bitmap, so what is measured is the dispatcher's bookkeeping, the executor and
+ * the four thread hops of each request: main to dispatcher, dispatcher to executor, executor to
+ * dispatcher and dispatcher to main.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatcherBenchmark {
+  private static final int IMAGES = 1024;
+  private static final int SIZE = 160;
+
+  /** Requests submitted together, as a screen of list items binding at once. */
+  @Param({"1", "32"})
+  public int inFlight;
+
+  private final List<Request> requests = new ArrayList<>(IMAGES);
+  private Picasso picasso;
+  private Dispatcher dispatcher;
+  private int wave;
+
+  @Setup public void setUp() {
+    MainThread.start();
+    BenchmarkContext context = new BenchmarkContext();
+    LruCache cache = new LruCache(IMAGES * SIZE * SIZE * 4);
+    Stats stats = new Stats(cache);
+    dispatcher = new Dispatcher(context, new PicassoExecutorService(stats), Picasso.HANDLER,
+        new UnusedDownloader(), cache, stats);
+    RequestHandler handler =
+        new DecodedRequestHandler(Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888));
+    picasso = new Picasso(context, dispatcher, cache, null, Picasso.RequestTransformer.IDENTITY,
+        Collections.singletonList(handler), stats, null, false, false);
+    for (int i = 0; i < IMAGES; i++) {
+      requests.add(new Request.Builder(Uri.parse("decoded://image/" + i)).build());
+    }
+  }
+
+  @TearDown public void tearDown() {
+    dispatcher.shutdown();
+  }
+
+  @Benchmark public int submitAndComplete() throws InterruptedException {
+    final CountDownLatch delivered = new CountDownLatch(inFlight);
+    final Exception[] failure = new Exception[1];
+    Callback callback = new Callback() {
+      @Override public void onSuccess() {
+        delivered.countDown();
+      }
+
+      @Override public void onError(Exception e) {
+        failure[0] = e;
+        delivered.countDown();
+      }
+    };
+    final List<Action> actions = new ArrayList<>(inFlight);
+    for (int i = 0; i < inFlight; i++) {
+      Request request = requests.get(wave++ & (IMAGES - 1));
+      // Hunters skip the memory cache, like a request that was not in it when submitted.
+      actions.add(new FetchAction(picasso, request, MemoryPolicy.NO_CACHE.index, 0, null,
+          RequestKey.of(request), callback));
+    }
+    Picasso.HANDLER.post(new Runnable() {
+      @Override public void run() {
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0, size = actions.size(); i < size; i++) {
+          dispatcher.dispatchSubmit(actions.get(i));
+        }
+      }
+    });
+    delivered.await();
+    if (failure[0] != null) {
+      throw new AssertionError(failure[0]);
+    }
+    return dispatcher.cache.size();
+  }
+
+  /** Loads the same decoded bitmap for every request. */
+  static final class DecodedRequestHandler extends RequestHandler {
+    private final Bitmap bitmap;
+
+    DecodedRequestHandler(Bitmap bitmap) {
+      this.bitmap = bitmap;
+    }
+
+    @Override public boolean canHandleRequest(Request data) {
+      return "decoded".equals(data.uri.getScheme());
+    }
+
+    @Override public Result load(Request request, int networkPolicy) {
+      return new Result(bitmap, DISK);
+    }
+  }
+
+  static final class UnusedDownloader implements Downloader {
+    @Override public Response load(okhttp3.Request request) throws IOException {
+      throw new IOException("No network in benchmarks.");
+    }
+
+    @Override public void shutdown() {
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static com.squareup.picasso.Dispatcher.REQUEST_SUBMIT;
+
+/**
+ * Commands sent to the dispatcher's thread through its {@link DispatcherLoop}, comparing the
+ * {@code Handler} loop with {@link MpscDispatcherLoop}. {@link #submitToExecute} sends one command
+ * and waits until the loop ran it, which is the latency a {@code dispatchSubmit} adds before the
+ * hunter reaches the executor. {@link #heavySubmission} has four threads each send bursts of
+ * {@value #BURST} commands, as when several screens of list items bind at once together with
+ * completing hunters.
+ * <p>
+ * The dispatcher only counts commands down instead of performing them. The {@code Handler} runs
+ * on the benchmark's {@code Looper} and {@code MessageQueue}, which wake the loop's thread through
+ * a monitor as the native queue does through a pipe.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatcherQueueBenchmark {
+  static final int BURST = 64;
+
+  @Param({"handler", "mpsc"})
+  public String queue;
+
+  private Dispatcher dispatcher;
+
+  @Setup public void setUp() {
+    MainThread.start();
+    BenchmarkContext context = new BenchmarkContext();
+    LruCache cache = new LruCache(1);
+    Stats stats = new Stats(cache);
+    dispatcher = new CountingDispatcher(context, stats, queue.equals("mpsc"));
+  }
+
+  @TearDown public void tearDown() {
+    dispatcher.shutdown();
+  }
+
+  @Benchmark @BenchmarkMode(Mode.SampleTime)
+  public void submitToExecute() throws InterruptedException {
+    CountDownLatch executed = new CountDownLatch(1);
+    dispatcher.loop.send(REQUEST_SUBMIT, executed, 0);
+    executed.await();
+  }
+
+  @Benchmark @BenchmarkMode(Mode.Throughput) @Threads(4)
+  public void heavySubmission() throws InterruptedException {
+    for (int i = 0; i < BURST - 1; i++) {
+      dispatcher.loop.send(REQUEST_SUBMIT, null, 0);
+    }
+    // Commands from one thread run in order, so the last one running means the burst ran.
+    CountDownLatch executed = new CountDownLatch(1);
+    dispatcher.loop.send(REQUEST_SUBMIT, executed, 0);
+    executed.await();
+  }
+
+  /** Counts down the latch a command carries, in place of performing it. */
+  static final class CountingDispatcher extends Dispatcher {
+    CountingDispatcher(BenchmarkContext context, Stats stats, boolean lockFreeQueue) {
+      super(context, new PicassoExecutorService(stats), Picasso.HANDLER,
+          new DispatcherBenchmark.UnusedDownloader(), stats.cache, null,
+          new MemoryGovernor(stats.cache), stats, true, DEFAULT_MAX_BATCH_SIZE,
+          DEFAULT_BATCH_DELAY, lockFreeQueue, true);
+    }
+
+    @Override void handle(int what, Object obj, int arg1) {
+      if (obj != null) {
+        ((CountDownLatch) obj).countDown();
+      }
+    }
+  }
+}
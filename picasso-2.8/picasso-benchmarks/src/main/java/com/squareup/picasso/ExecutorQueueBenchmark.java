@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.net.Uri;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static com.squareup.picasso.Picasso.Priority.HIGH;
+import static com.squareup.picasso.PicassoExecutorService.PicassoFutureTask;
+
+/**
+ * The cost the {@link PicassoExecutorService} work queue adds to each hunter: with {@code depth}
+ * hunters waiting, as under a steady backlog, one submission, one waiting hunter whose target is
+ * attached or detached, and one removal. Compares plain submission order, a
+ * {@link PriorityBlockingQueue} that ranks each task once as it is inserted, and
+ * {@link HunterQueue}, which moves the task whose target changed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExecutorQueueBenchmark {
+  public enum Ordering {
+    FIFO {
+      @Override BlockingQueue<Runnable> create() {
+        return new LinkedBlockingQueue<>();
+      }
+    },
+    PRIORITY {
+      @Override BlockingQueue<Runnable> create() {
+        return new PriorityBlockingQueue<>();
+      }
+    },
+    RANKED {
+      @Override BlockingQueue<Runnable> create() {
+        return new HunterQueue();
+      }
+    };
+
+    abstract BlockingQueue<Runnable> create();
+  }
+
+  @Param({"8", "64", "256"})
+  public int depth;
+
+  @Param
+  public Ordering ordering;
+
+  private final Random random = new Random(0);
+  private BlockingQueue<Runnable> queue;
+  private PicassoFutureTask[] tasks;
+  private PicassoFutureTask taken;
+  private int recency;
+
+  @Setup public void setUp() {
+    queue = ordering.create();
+    tasks = new PicassoFutureTask[depth + 1];
+    for (int i = 0; i < tasks.length; i++) {
+      Request.Builder request = new Request.Builder(Uri.parse("https://example.com/" + i));
+      if (random.nextInt(8) == 0) {
+        request.priority(HIGH);
+      }
+      ListItemAction action = new ListItemAction(request.build(), null);
+      action.detached = random.nextInt(4) == 0;
+      tasks[i] = action.newTask();
+    }
+    for (int i = 0; i < depth; i++) {
+      submit(tasks[i]);
+    }
+    taken = tasks[depth];
+  }
+
+  @Benchmark public Runnable submitAndTake() {
+    // The last task taken stands in for a new hunter.
+    submit(taken);
+    // Views scroll away and back while their hunters wait. The dispatcher re-ranks the hunter.
+    PicassoFutureTask moved = tasks[random.nextInt(tasks.length)];
+    ((ListItemAction) moved.hunter.getAction()).detached = random.nextInt(4) == 0;
+    moved.rerank();
+    taken = (PicassoFutureTask) queue.poll();
+    return taken;
+  }
+
+  private void submit(PicassoFutureTask task) {
+    task.hunter.recency = ++recency;
+    if (ordering == Ordering.PRIORITY) {
+      // A heap compares a task only as it is inserted.
+      task.rank();
+    }
+    queue.offer(task);
+  }
+}
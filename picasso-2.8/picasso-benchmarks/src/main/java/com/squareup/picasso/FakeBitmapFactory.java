@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stands in for {@code android.graphics.BitmapFactory} on the JVM. Streams are consumed the way
+ * the platform does it, through a fresh 16 KiB temp buffer per call, and only enough of a JPEG,
+ * PNG or WebP is parsed to find its bounds. Pixels are not decoded; the remaining bytes are
+ * checksummed instead.
+ */
+final class FakeBitmapFactory {
+  /** Matches {@code BitmapFactory.DECODE_BUFFER_SIZE}. */
+  static final int DECODE_BUFFER_SIZE = 16 * 1024;
+
+  /** Outputs of a decode. Mirrors the fields of {@code BitmapFactory.Options} that we use. */
+  static final class Options {
+    boolean inJustDecodeBounds;
+    int inSampleSize = 1;
+    int outWidth;
+    int outHeight;
+  }
+
+  /** Returns a checksum of the pixels or 0 if {@code options.inJustDecodeBounds}. */
+  static long decodeStream(InputStream in, Options options) throws IOException {
+    return decode(new Reader(in, new byte[DECODE_BUFFER_SIZE]), options);
+  }
+
+  static long decodeByteArray(byte[] data, Options options) throws IOException {
+    return decode(new Reader(data), options);
+  }
+
+  private static long decode(Reader reader, Options options) throws IOException {
+    readBounds(reader, options);
+    if (options.inJustDecodeBounds) {
+      return 0;
+    }
+    long checksum = 1;
+    int b;
+    while ((b = reader.read()) != -1) {
+      checksum = 31 * checksum + b;
+    }
+    return checksum + options.outWidth / options.inSampleSize;
+  }
+
+  private static void readBounds(Reader reader, Options options) throws IOException {
+    int b0 = reader.readByte();
+    int b1 = reader.readByte();
+    if (b0 == 0xff && b1 == 0xd8) {
+      readJpegBounds(reader, options);
+    } else if (b0 == 0x89 && b1 == 'P') {
+      reader.skip(14); // Rest of the signature, IHDR length and type.
+      options.outWidth = reader.readInt();
+      options.outHeight = reader.readInt();
+    } else if (b0 == 'R' && b1 == 'I') {
+      reader.skip(24); // RIFF size, WEBP, VP8 chunk header, frame tag and start code.
+      options.outWidth = reader.readShortLe() & 0x3fff;
+      options.outHeight = reader.readShortLe() & 0x3fff;
+    } else {
+      throw new IOException("Unknown image format");
+    }
+  }
+
+  private static void readJpegBounds(Reader reader, Options options) throws IOException {
+    while (true) {
+      if (reader.readByte() != 0xff) {
+        throw new IOException("Expected JPEG marker");
+      }
+      int marker = reader.readByte();
+      int length = reader.readShort();
+      if (marker >= 0xc0 && marker <= 0xc2) {
+        reader.skip(1); // Sample precision.
+        options.outHeight = reader.readShort();
+        options.outWidth = reader.readShort();
+        reader.skip(length - 7);
+        return;
+      }
+      reader.skip(length - 2);
+    }
+  }
+
+  private static final class Reader {
+    private final InputStream in;
+    private final byte[] buffer;
+    private int pos;
+    private int limit;
+
+    Reader(InputStream in, byte[] buffer) {
+      this.in = in;
+      this.buffer = buffer;
+    }
+
+    Reader(byte[] data) {
+      this.in = null;
+      this.buffer = data;
+      this.limit = data.length;
+    }
+
+    int read() throws IOException {
+      if (pos == limit) {
+        if (in == null) {
+          return -1;
+        }
+        int read = in.read(buffer, 0, buffer.length);
+        if (read <= 0) {
+          return -1;
+        }
+        pos = 0;
+        limit = read;
+      }
+      return buffer[pos++] & 0xff;
+    }
+
+    int readByte() throws IOException {
+      int b = read();
+      if (b == -1) {
+        throw new EOFException();
+      }
+      return b;
+    }
+
+    int readShort() throws IOException {
+      return readByte() << 8 | readByte();
+    }
+
+    int readShortLe() throws IOException {
+      return readByte() | readByte() << 8;
+    }
+
+    int readInt() throws IOException {
+      return readShort() << 16 | readShort();
+    }
+
+    void skip(long count) throws IOException {
+      while (count > 0) {
+        if (pos == limit) {
+          readByte();
+          count--;
+          continue;
+        }
+        int step = (int) Math.min(count, limit - pos);
+        pos += step;
+        count -= step;
+      }
+    }
+  }
+
+  private FakeBitmapFactory() {
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.net.Uri;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static com.squareup.picasso.PicassoExecutorService.PicassoFutureTask;
+
+/**
+ * A synthetic fling through a recycling list, simulated in virtual time to compare the order in
+ * which the executor's work queue hands out queued hunters.
+ * <p>
+ * Rows scroll past quickly and then decelerate to a stop. Each row that comes on screen binds a
+ * recycled view and requests its image; binding a view cancels the request it previously made,
+ * as {@code Picasso.cancelExistingRequest} does. A row that leaves the screen detaches its
+ * action's target, and the hunter is re-ranked, as the dispatcher does. Every load occupies an
+ * executor thread for the same time. A load is wasted if its row has left the screen by the time
+ * it finishes.
+ * <p>
+ * The simulation is deterministic, so the printed results are the same for every invocation. The
+ * measured time is only the cost of the simulation itself.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 2, time = 1)
+@Fork(1)
+public class FlingBenchmark {
+  /** The work queue of the executor. */
+  public enum Policy {
+    /** Submission order, as the previous {@code PriorityBlockingQueue} ran equal priorities. */
+    FIFO {
+      @Override BlockingQueue<Runnable> create() {
+        return new LinkedBlockingQueue<>();
+      }
+    },
+    /** Attached targets first, then the most recently requested. */
+    RANKED {
+      @Override BlockingQueue<Runnable> create() {
+        return new HunterQueue();
+      }
+    };
+
+    abstract BlockingQueue<Runnable> create();
+  }
+
+  static final class View {
+    boolean attached;
+    Load load;
+  }
+
+  static final class Load {
+    final long requested;
+    final View view;
+    final ListItemAction action;
+    final PicassoFutureTask task;
+
+    Load(int sequence, long requested, View view) {
+      this.requested = requested;
+      this.view = view;
+      this.action = new ListItemAction(
+          new Request.Builder(Uri.parse("https://example.com/row/" + sequence)).build(), this);
+      this.task = action.newTask();
+    }
+  }
+
+  private static final int VISIBLE_ROWS = 10;
+  /** RecyclerView keeps two detached views cached and five more in its pool by default. */
+  private static final int RECYCLED_VIEWS = 7;
+  private static final long LOAD_MICROS = 40000;
+  private static final long FIRST_ROW_MICROS = 4000;
+  private static final double DECELERATION = 1.03;
+  private static final long LAST_ROW_MICROS = 200000;
+
+  @Param
+  public Policy policy;
+
+  @Param({"2", "3", "4"})
+  public int threads;
+
+  private Result result;
+
+  static final class Result {
+    int loads;
+    int wastedLoads;
+    int cancelledBeforeStart;
+    int shown;
+    long shownMicros;
+    long settleMicros;
+  }
+
+  @TearDown public void printResult() {
+    System.out.println(policy + " with " + threads + " threads: " + result.loads + " loads, "
+        + result.wastedLoads + " wasted (" + result.wastedLoads * LOAD_MICROS / 1000 + "ms of "
+        + "thread time), " + result.cancelledBeforeStart + " cancelled before starting, "
+        + result.shown + " shown after " + result.shownMicros / result.shown / 1000
+        + "ms on average, final screen complete " + result.settleMicros / 1000
+        + "ms after the fling stopped");
+  }
+
+  @Benchmark public int fling() {
+    result = simulate(policy, threads);
+    return result.wastedLoads;
+  }
+
+  static Result simulate(Policy policy, int threads) {
+    Result result = new Result();
+    BlockingQueue<Runnable> queue = policy.create();
+    Load[] running = new Load[threads];
+    long[] finishes = new long[threads];
+    Deque<View> recycled = new ArrayDeque<>();
+    Deque<View> onScreen = new ArrayDeque<>();
+    int sequence = 0;
+
+    long now = 0;
+    long rowMicros = FIRST_ROW_MICROS;
+    long nextScroll = rowMicros;
+    long stopped = -1;
+    for (int i = 0; i < VISIBLE_ROWS; i++) {
+      onScreen.addLast(bind(++sequence, now, recycled, queue, result));
+    }
+
+    while (true) {
+      // Hand queued loads to idle threads.
+      for (int i = 0; i < threads; i++) {
+        PicassoFutureTask next;
+        if (running[i] == null && (next = (PicassoFutureTask) queue.poll()) != null) {
+          running[i] = (Load) next.hunter.getAction().getTag();
+          finishes[i] = now + LOAD_MICROS;
+        }
+      }
+
+      long nextFinish = Long.MAX_VALUE;
+      for (int i = 0; i < threads; i++) {
+        if (running[i] != null) {
+          nextFinish = Math.min(nextFinish, finishes[i]);
+        }
+      }
+      if (stopped != -1 && nextFinish == Long.MAX_VALUE) {
+        break;
+      }
+
+      if (stopped == -1 && nextScroll <= nextFinish) {
+        now = nextScroll;
+        View gone = onScreen.removeFirst();
+        gone.attached = false;
+        gone.load.action.detached = true;
+        gone.load.task.rerank();
+        recycled.addLast(gone);
+        if (recycled.size() > RECYCLED_VIEWS) {
+          // Dropped from the pool; its request is left to the reference queue.
+          recycled.removeFirst().load = null;
+        }
+        onScreen.addLast(bind(++sequence, now, recycled, queue, result));
+        rowMicros = (long) (rowMicros * DECELERATION);
+        if (rowMicros > LAST_ROW_MICROS) {
+          stopped = now;
+        } else {
+          nextScroll = now + rowMicros;
+        }
+        continue;
+      }
+
+      now = nextFinish;
+      for (int i = 0; i < threads; i++) {
+        Load load = running[i];
+        if (load == null || finishes[i] != now) {
+          continue;
+        }
+        running[i] = null;
+        result.loads++;
+        if (load.task.isCancelled() || !load.view.attached || load.view.load != load) {
+          result.wastedLoads++;
+        } else {
+          result.shown++;
+          result.shownMicros += now - load.requested;
+          if (stopped != -1) {
+            result.settleMicros = now - stopped;
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  private static View bind(int sequence, long now, Deque<View> recycled,
+      BlockingQueue<Runnable> queue, Result result) {
+    View view = recycled.isEmpty() ? new View() : recycled.removeLast();
+    Load previous = view.load;
+    if (previous != null) {
+      if (queue.contains(previous.task)) {
+        result.cancelledBeforeStart++;
+      }
+      // Leaves a HunterQueue. A plain queue would hand it to a thread that skips it.
+      previous.task.cancel(false);
+      queue.remove(previous.task);
+    }
+    view.attached = true;
+    view.load = new Load(sequence, now, view);
+    queue.offer(view.load.task);
+    return view;
+  }
+}
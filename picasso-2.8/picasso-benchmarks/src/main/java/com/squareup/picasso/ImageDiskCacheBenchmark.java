@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Cache;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Okio;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookup and read of a cached image, comparing {@link ImageDiskCache} with OkHttp's HTTP cache.
+ * <p>
+ * OkHttp serves a response with a long {@code max-age} from disk, and revalidates an expired one
+ * with a conditional request answered by a local {@link MockWebServer} with a 304, so that the
+ * round trip costs only the loopback. {@code coldStart} opens the cache, reads one image and
+ * closes it again, as the first load after a process start does. {@code read} reads a random
+ * image from a cache that is already open.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageDiskCacheBenchmark {
+  public enum Store {
+    IMAGE_DISK_CACHE, OKHTTP_FRESH, OKHTTP_REVALIDATE
+  }
+
+  private static final int IMAGES = 500;
+  private static final int IMAGE_SIZE = 16 * 1024;
+  private static final long MAX_SIZE = 64 * 1024 * 1024;
+
+  @Param
+  public Store store;
+
+  private final Random random = new Random(0);
+  private final MockWebServer server = new MockWebServer();
+  private File directory;
+  private String[] urls;
+  private OkHttpClient baseClient;
+  private ImageDiskCache imageCache;
+  private Cache httpCache;
+  private OkHttpClient client;
+
+  @Setup public void setUp() throws IOException {
+    final byte[] image = new byte[IMAGE_SIZE];
+    random.nextBytes(image);
+    server.setDispatcher(new Dispatcher() {
+      @Override public MockResponse dispatch(RecordedRequest request) {
+        if (request.getHeader("If-None-Match") != null) {
+          return new MockResponse().setResponseCode(304);
+        }
+        return new MockResponse()
+            .setBody(new Buffer().write(image))
+            .addHeader("ETag", "\"1\"")
+            .addHeader("Cache-Control",
+                store == Store.OKHTTP_FRESH ? "max-age=31536000" : "no-cache");
+      }
+    });
+    server.start();
+    baseClient = new OkHttpClient();
+
+    directory = File.createTempFile("image-disk-cache", "");
+    if (!directory.delete() || !directory.mkdir()) {
+      throw new IOException("Unable to create " + directory);
+    }
+    urls = new String[IMAGES];
+    for (int i = 0; i < IMAGES; i++) {
+      urls[i] = server.url("/image/" + Integer.toHexString(i * 0x9e3779b1)).toString();
+    }
+
+    if (store == Store.IMAGE_DISK_CACHE) {
+      imageCache = ImageDiskCache.open(directory, MAX_SIZE);
+      Buffer buffer = new Buffer().write(image);
+      for (String url : urls) {
+        ImageDiskCache.Editor editor = imageCache.edit(url);
+        editor.write(buffer, 0, buffer.size());
+        editor.commit();
+      }
+    } else {
+      httpCache = new Cache(directory, MAX_SIZE);
+      client = baseClient.newBuilder().cache(httpCache).build();
+      for (String url : urls) {
+        readHttp(client, url);
+      }
+    }
+  }
+
+  @TearDown public void tearDown() throws IOException {
+    if (imageCache != null) {
+      imageCache.close();
+    }
+    if (httpCache != null) {
+      httpCache.delete();
+    }
+    server.shutdown();
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+      }
+    }
+    //noinspection ResultOfMethodCallIgnored
+    directory.delete();
+  }
+
+  @Benchmark public long coldStart() throws IOException {
+    String url = urls[random.nextInt(IMAGES)];
+    if (store == Store.IMAGE_DISK_CACHE) {
+      ImageDiskCache cache = ImageDiskCache.open(directory, MAX_SIZE);
+      try {
+        return readImage(cache, url);
+      } finally {
+        cache.close();
+      }
+    }
+    Cache cache = new Cache(directory, MAX_SIZE);
+    try {
+      return readHttp(baseClient.newBuilder().cache(cache).build(), url);
+    } finally {
+      cache.close();
+    }
+  }
+
+  @Benchmark public long read() throws IOException {
+    String url = urls[random.nextInt(IMAGES)];
+    return store == Store.IMAGE_DISK_CACHE ? readImage(imageCache, url) : readHttp(client, url);
+  }
+
+  private static long readImage(ImageDiskCache cache, String url) throws IOException {
+    ImageDiskCache.Snapshot snapshot = cache.get(url);
+    if (snapshot == null) {
+      throw new AssertionError("Missing " + url);
+    }
+    try {
+      return snapshot.source.readAll(Okio.blackhole());
+    } finally {
+      snapshot.source.close();
+    }
+  }
+
+  private static long readHttp(OkHttpClient client, String url) throws IOException {
+    Response response = client.newCall(new Request.Builder().url(url).build()).execute();
+    try {
+      BufferedSource source = response.body().source();
+      return source.readAll(Okio.blackhole());
+    } finally {
+      response.close();
+    }
+  }
+}
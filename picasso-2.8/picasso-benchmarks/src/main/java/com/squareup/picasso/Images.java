@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import java.util.Random;
+import okio.Buffer;
+
+/** Synthetic encoded images with realistic headers and payload sizes. */
+enum Images {
+  /** Camera-style JPEG: an Exif segment with a thumbnail pushes the frame header past 16 KiB. */
+  JPEG {
+    @Override byte[] create(int width, int height, int size) {
+      Buffer buffer = new Buffer();
+      buffer.writeShort(0xffd8);
+      buffer.writeShort(0xffe0).writeShort(16).writeUtf8("JFIF\0").write(new byte[9]);
+      int exifLength = 20 * 1024;
+      buffer.writeShort(0xffe1).writeShort(exifLength).writeUtf8("Exif\0\0");
+      buffer.write(random(exifLength - 8));
+      buffer.writeShort(0xffc0).writeShort(17).writeByte(8).writeShort(height).writeShort(width);
+      buffer.write(new byte[10]);
+      buffer.write(random(size - (int) buffer.size() - 2));
+      buffer.writeShort(0xffd9);
+      return buffer.readByteArray();
+    }
+  },
+  PNG {
+    @Override byte[] create(int width, int height, int size) {
+      Buffer buffer = new Buffer();
+      buffer.write(new byte[] {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'});
+      buffer.writeInt(13).writeUtf8("IHDR").writeInt(width).writeInt(height);
+      buffer.write(new byte[] {8, 6, 0, 0, 0}).writeInt(0);
+      int idatLength = size - (int) buffer.size() - 24;
+      buffer.writeInt(idatLength).writeUtf8("IDAT").write(random(idatLength)).writeInt(0);
+      buffer.writeInt(0).writeUtf8("IEND").writeInt(0);
+      return buffer.readByteArray();
+    }
+  },
+  WEBP {
+    @Override byte[] create(int width, int height, int size) {
+      Buffer buffer = new Buffer();
+      buffer.writeUtf8("RIFF").writeIntLe(size - 8).writeUtf8("WEBP");
+      buffer.writeUtf8("VP8 ").writeIntLe(size - 20);
+      buffer.write(new byte[] {0, 0, 0, (byte) 0x9d, 0x01, 0x2a});
+      buffer.writeShortLe(width).writeShortLe(height);
+      buffer.write(random(size - (int) buffer.size()));
+      return buffer.readByteArray();
+    }
+  };
+
+  abstract byte[] create(int width, int height, int size);
+
+  private static byte[] random(int size) {
+    byte[] bytes = new byte[size];
+    new Random(size).nextBytes(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@code Picasso.invalidate} against a full {@link LruCache}, with the previous snapshot-and-scan
+ * of every key and the cache's per-source key index. Each operation invalidates one image and
+ * caches its variants again, as the next bind of its views would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InvalidationBenchmark {
+  /** Sizes each image is cached at, as a list thumbnail and a detail view would. */
+  private static final int[] VARIANTS = {160, 1080};
+
+  public enum Strategy {
+    SNAPSHOT {
+      @Override void clearKeyUri(LruCache cache, String uri) {
+        synchronized (cache) {
+          for (RequestKey key : cache.cache.snapshot().keySet()) {
+            String string = key.toString();
+            if (string.startsWith(uri)
+                && string.length() > uri.length()
+                && string.charAt(uri.length()) == '\n') {
+              cache.cache.remove(key);
+            }
+          }
+        }
+      }
+    },
+    INDEXED {
+      @Override void clearKeyUri(LruCache cache, String uri) {
+        cache.clearKeyUri(uri);
+      }
+    };
+
+    abstract void clearKeyUri(LruCache cache, String uri);
+  }
+
+  @Param({"1000", "10000"})
+  public int entries;
+
+  @Param
+  public Strategy strategy;
+
+  private final Bitmap bitmap = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+  private LruCache cache;
+  private String[] uris;
+  private RequestKey[][] keys;
+  private int next;
+
+  @Setup public void setUp() {
+    cache = new LruCache(2 * entries * bitmap.getAllocationByteCount());
+    uris = new String[entries / VARIANTS.length];
+    keys = new RequestKey[uris.length][VARIANTS.length];
+    for (int i = 0; i < uris.length; i++) {
+      uris[i] = "https://i.example-cdn.com/image/" + String.format("%040x", i);
+      for (int j = 0; j < VARIANTS.length; j++) {
+        keys[i][j] = RequestKey.of(new Request.Builder(Uri.parse(uris[i]))
+            .resize(VARIANTS[j], VARIANTS[j])
+            .build());
+      }
+      put(i);
+    }
+  }
+
+  @Benchmark public int invalidate() {
+    int i = next;
+    next = (next + 7919) % uris.length; // Prime stride, so invalidations spread over the cache.
+    strategy.clearKeyUri(cache, uris[i]);
+    put(i);
+    return cache.size();
+  }
+
+  private void put(int i) {
+    for (RequestKey key : keys[i]) {
+      cache.set(key, bitmap);
+    }
+  }
+}
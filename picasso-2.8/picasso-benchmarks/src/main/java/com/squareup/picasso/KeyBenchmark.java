@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.net.Uri;
+import android.util.LruCache;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The key work of {@code RequestCreator.into}: build the request's key and look it up in a warm
+ * memory cache, with the string {@link Utils#createKey(Request, StringBuilder)} builds, as every
+ * lookup did before keys were hashed, and with a {@link RequestKey}.
+ * <p>
+ * Run with {@code -prof gc}: {@code gc.alloc.rate.norm} is the bytes allocated per call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyBenchmark {
+  private static final int CACHED = 1000;
+
+  public enum Shape {
+    /** A bare URL into a view that sizes itself. */
+    PLAIN,
+    /** {@code fit().centerCrop()} into a grid cell. */
+    RESIZED,
+    /** A resized avatar with two transformations. */
+    TRANSFORMED
+  }
+
+  public enum Strategy {
+    STRING {
+      @Override Object key(Request request) {
+        String key = Utils.createKey(request, MAIN_THREAD_KEY_BUILDER);
+        MAIN_THREAD_KEY_BUILDER.setLength(0);
+        return key;
+      }
+    },
+    HASHED {
+      @Override Object key(Request request) {
+        return RequestKey.of(request);
+      }
+    };
+
+    static final StringBuilder MAIN_THREAD_KEY_BUILDER = new StringBuilder();
+
+    abstract Object key(Request request);
+  }
+
+  @Param
+  public Shape shape;
+
+  @Param
+  public Strategy strategy;
+
+  private final LruCache<Object, Object> cache = new LruCache<>(CACHED);
+  private final List<Request> requests = new ArrayList<>();
+  private int next;
+
+  @Setup public void setUp() {
+    for (int i = 0; i < CACHED; i++) {
+      requests.add(request(shape, i));
+      // A separate but equal request fills the cache so lookups compare rather than hit identity.
+      cache.put(strategy.key(request(shape, i)), Boolean.TRUE);
+    }
+  }
+
+  @Benchmark public Object into() {
+    Request request = requests.get(next);
+    next = (next + 1) % CACHED;
+    return cache.get(strategy.key(request));
+  }
+
+  /** The {@code i}th of a set of distinct images, requested as {@code shape}. */
+  static Request request(Shape shape, int i) {
+    Request.Builder builder = new Request.Builder(Uri.parse(url(i)));
+    switch (shape) {
+      case PLAIN:
+        break;
+      case RESIZED:
+        builder.resize(320, 320).centerCrop();
+        break;
+      default:
+        builder.resize(96, 96).centerCrop()
+            .transform(new RoundedCornersTransformation(12))
+            .transform(new GrayscaleTransformation());
+        break;
+    }
+    return builder.build();
+  }
+
+  /** A typical CDN URL of about a hundred characters. */
+  static String url(int i) {
+    return "https://i.example-cdn.com/image/ab67616d0000b273" + String.format("%040x", i)
+        + "?w=640&q=80";
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.graphics.Bitmap;
+
+import static com.squareup.picasso.PicassoExecutorService.PicassoFutureTask;
+
+/**
+ * An action whose target's attachment to its window a benchmark sets, as the main thread keeps it
+ * for an {@link ImageViewAction} of a list item.
+ */
+final class ListItemAction extends Action<Object> {
+  private static final RequestHandler UNUSED_HANDLER = new RequestHandler() {
+    @Override public boolean canHandleRequest(Request data) {
+      return true;
+    }
+
+    @Override public Result load(Request request, int networkPolicy) {
+      throw new AssertionError();
+    }
+  };
+
+  volatile boolean detached;
+
+  ListItemAction(Request request, Object tag) {
+    super(null, null, request, 0, 0, 0, null, RequestKey.of(request), tag, false);
+  }
+
+  /** The task of a new hunter for this action, as {@link PicassoExecutorService} submits it. */
+  PicassoFutureTask newTask() {
+    return new PicassoFutureTask(
+        new BitmapHunter(null, null, null, null, null, null, this, UNUSED_HANDLER));
+  }
+
+  @Override void complete(Bitmap result, Picasso.LoadedFrom from) {
+  }
+
+  @Override void error(Exception e) {
+  }
+
+  @Override boolean isDetached() {
+    return detached;
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.graphics.Bitmap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link LruCache} get and set under contention: three threads look up images while a fourth
+ * stores decoded ones, as the main thread and the dispatcher do during a fling. The key space is
+ * larger than the cache so that sets evict and some gets miss.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LruCacheBenchmark {
+  private static final int SIZE = 160;
+
+  /** The number of entries that fit in the cache. */
+  @Param({"100", "1000"})
+  public int capacity;
+
+  /** Distinct keys requested, relative to {@link #capacity}. */
+  @Param({"2"})
+  public int keySpace;
+
+  private final List<RequestKey> keys = new ArrayList<>();
+  private Bitmap bitmap;
+  private LruCache cache;
+
+  @Setup public void setUp() {
+    bitmap = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+    cache = new LruCache(capacity * bitmap.getAllocationByteCount());
+    for (int i = 0, count = capacity * keySpace; i < count; i++) {
+      RequestKey key = RequestKey.of(KeyBenchmark.request(KeyBenchmark.Shape.RESIZED, i));
+      keys.add(key);
+      if (i < capacity) {
+        cache.set(key, bitmap);
+      }
+    }
+  }
+
+  @Benchmark @Group("contended") @GroupThreads(3) public Object get() {
+    return cache.get(nextKey());
+  }
+
+  @Benchmark @Group("contended") @GroupThreads(1) public void set() {
+    cache.set(nextKey(), bitmap);
+  }
+
+  private RequestKey nextKey() {
+    return keys.get(ThreadLocalRandom.current().nextInt(keys.size()));
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.os.Looper;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A thread that loops as the application's main thread, for {@link Picasso#HANDLER} and the
+ * {@code Choreographer} to post to. Started once per JVM, before anything touches {@link Picasso}.
+ */
+final class MainThread {
+  private static Thread thread;
+
+  static synchronized void start() {
+    if (thread != null) {
+      return;
+    }
+    final CountDownLatch prepared = new CountDownLatch(1);
+    thread = new Thread("main") {
+      @Override public void run() {
+        Looper.prepareMainLooper();
+        prepared.countDown();
+        Looper.loop();
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+    try {
+      prepared.await();
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /** Run {@code task} on the main thread and wait for its result. */
+  static <T> T call(Callable<T> task) {
+    FutureTask<T> future = new FutureTask<>(task);
+    Picasso.HANDLER.post(future);
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    } catch (ExecutionException e) {
+      throw new AssertionError(e.getCause());
+    }
+  }
+
+  private MainThread() {
+    throw new AssertionError("No instances.");
+  }
+}
@@ -23,6 +23,9 @@ import java.io.InputStream;
  * An input stream wrapper that supports unlimited independent cursors for
  * marking and resetting. Each cursor is a token, and it's the caller's
  * responsibility to keep track of these.
+ * <p>
+ * Picasso rewound through this after reading image bounds until it switched to
+ * {@code BufferedSource.peek()}. It is kept as the baseline for {@link DecodeBenchmark}.
  */
 final class MarkableInputStream extends InputStream {
   private static final int DEFAULT_BUFFER_SIZE = 4096;
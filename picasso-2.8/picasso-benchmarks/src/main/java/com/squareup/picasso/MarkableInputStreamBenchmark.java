@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Read throughput of {@link MarkableInputStream}: read a header under a mark, rewind and read the
+ * whole stream in the chunk size a decoder asks for, compared with reading the raw stream once.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MarkableInputStreamBenchmark {
+  private static final int HEADER = 1024;
+
+  public enum Stream {
+    RAW, MARKABLE
+  }
+
+  @Param({"81920", "409600"})
+  public int size;
+
+  /** {@code BitmapFactory} reads in 16 KiB chunks; small reads model byte-at-a-time parsers. */
+  @Param({"64", "16384"})
+  public int chunk;
+
+  @Param
+  public Stream stream;
+
+  private byte[] data;
+  private byte[] buffer;
+
+  @Setup public void setUp() {
+    data = new byte[size];
+    new Random(0).nextBytes(data);
+    buffer = new byte[chunk];
+  }
+
+  @Benchmark public long read() throws IOException {
+    InputStream in = new ByteArrayInputStream(data);
+    long total = 0;
+    if (stream == Stream.MARKABLE) {
+      MarkableInputStream markable = new MarkableInputStream(in);
+      markable.allowMarksToExpire(false);
+      long mark = markable.savePosition(HEADER);
+      total += drain(markable, HEADER);
+      markable.reset(mark);
+      markable.allowMarksToExpire(true);
+      in = markable;
+    }
+    return total + drain(in, Integer.MAX_VALUE);
+  }
+
+  private long drain(InputStream in, int limit) throws IOException {
+    long total = 0;
+    int count;
+    while (total < limit
+        && (count = in.read(buffer, 0, (int) Math.min(buffer.length, limit - total))) != -1) {
+      total += count;
+    }
+    return total;
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.graphics.Bitmap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the built-in pixel {@link Transformations} on a 2048x1536 image.
+ * <p>
+ * {@code WHOLE_IMAGE} reads the image into a new {@code int[]} per transformation and filters it
+ * on the calling thread, as custom transformations usually do. {@code CHUNKED} and
+ * {@code PARALLEL} run the library's transformations, which read chunks of rows into reused
+ * buffers, with {@code PixelTransformation.parallelism} at 1 and at {@code threads}. Blurring
+ * needs every row for its column passes, so it always reads the whole image and only chunks its
+ * passes. All three use the library's filters.
+ * <p>
+ * Run with {@code -prof gc}: {@code gc.alloc.rate.norm} is the bytes allocated per image.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx1g")
+public class PixelTransformationBenchmark {
+  private static final int WIDTH = 2048;
+  private static final int HEIGHT = 1536;
+  private static final int BLUR_RADIUS = 8;
+  private static final int DOWNSCALE_SIZE = 256;
+
+  public enum Filter {
+    GRAYSCALE {
+      @Override Transformation transformation() {
+        return Transformations.grayscale();
+      }
+    },
+    BLUR {
+      @Override Transformation transformation() {
+        return Transformations.blur(BLUR_RADIUS);
+      }
+    },
+    DOWNSCALE {
+      @Override Transformation transformation() {
+        return Transformations.downscale(DOWNSCALE_SIZE);
+      }
+    };
+
+    abstract Transformation transformation();
+  }
+
+  public enum Strategy {
+    WHOLE_IMAGE, CHUNKED, PARALLEL
+  }
+
+  @Param
+  public Filter filter;
+
+  @Param
+  public Strategy strategy;
+
+  @Param({"4"})
+  public int threads;
+
+  private Transformation transformation;
+  private Bitmap original;
+  private Bitmap bitmap;
+
+  @Setup public void setUp() {
+    // The executor takes its size from the first parallel transformation.
+    PixelTransformation.parallelism = strategy == Strategy.PARALLEL ? threads : 1;
+    transformation = filter.transformation();
+    Random random = new Random(0);
+    int[] pixels = new int[WIDTH * HEIGHT];
+    for (int i = 0; i < pixels.length; i++) {
+      pixels[i] = random.nextInt();
+    }
+    original = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+    original.setPixels(pixels, 0, WIDTH, 0, 0, WIDTH, HEIGHT);
+    bitmap = original.copy(Bitmap.Config.ARGB_8888, true);
+  }
+
+  /** Downscaling recycles its source, like every transformation that returns a new bitmap. */
+  @Setup(Level.Invocation) public void replaceRecycled() {
+    if (bitmap.isRecycled()) {
+      bitmap = original.copy(Bitmap.Config.ARGB_8888, true);
+    }
+  }
+
+  @Benchmark public Bitmap transform() {
+    if (strategy != Strategy.WHOLE_IMAGE) {
+      return transformation.transform(bitmap);
+    }
+    int[] pixels = new int[WIDTH * HEIGHT];
+    bitmap.getPixels(pixels, 0, WIDTH, 0, 0, WIDTH, HEIGHT);
+    switch (filter) {
+      case GRAYSCALE:
+        ((PixelTransformation) transformation).filter(pixels, WIDTH, 0, HEIGHT, HEIGHT);
+        bitmap.setPixels(pixels, 0, WIDTH, 0, 0, WIDTH, HEIGHT);
+        return bitmap;
+      case BLUR:
+        blur(pixels);
+        bitmap.setPixels(pixels, 0, WIDTH, 0, 0, WIDTH, HEIGHT);
+        return bitmap;
+      case DOWNSCALE:
+        return downscale(pixels);
+      default:
+        throw new AssertionError();
+    }
+  }
+
+  /** One scratch row or column at a time, allocated per image. */
+  private static void blur(int[] pixels) {
+    int[] row = new int[WIDTH];
+    int[] column = new int[HEIGHT];
+    for (int pass = 0; pass < 3; pass++) {
+      for (int y = 0; y < HEIGHT; y++) {
+        System.arraycopy(pixels, y * WIDTH, row, 0, WIDTH);
+        BlurTransformation.box(row, 0, 1, WIDTH, pixels, y * WIDTH, 1, BLUR_RADIUS);
+      }
+      for (int x = 0; x < WIDTH; x++) {
+        for (int y = 0; y < HEIGHT; y++) {
+          column[y] = pixels[y * WIDTH + x];
+        }
+        BlurTransformation.box(column, 0, 1, HEIGHT, pixels, x, WIDTH, BLUR_RADIUS);
+      }
+    }
+  }
+
+  private static Bitmap downscale(int[] pixels) {
+    int outWidth = DOWNSCALE_SIZE;
+    int outHeight = DOWNSCALE_SIZE * HEIGHT / WIDTH;
+    int[] out = new int[outWidth * outHeight];
+    for (int outY = 0; outY < outHeight; outY++) {
+      int top = outY * HEIGHT / outHeight;
+      int rows = (outY + 1) * HEIGHT / outHeight - top;
+      for (int outX = 0; outX < outWidth; outX++) {
+        int left = outX * WIDTH / outWidth;
+        int columns = (outX + 1) * WIDTH / outWidth - left;
+        out[outY * outWidth + outX] =
+            DownscaleTransformation.average(pixels, WIDTH, top * WIDTH + left, columns, rows);
+      }
+    }
+    return Bitmap.createBitmap(out, outWidth, outHeight, Bitmap.Config.ARGB_8888);
+  }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static com.squareup.picasso.Picasso.LoadedFrom.NETWORK;
+import static com.squareup.picasso.Picasso.Priority.NORMAL;
+
+/**
+ * A grid scrolled through a fixed sequence of flings, simulated frame by frame in virtual time to
+ * compare prefetch policies.
+ * <p>
+ * The prefetcher, {@link Picasso} and its memory cache are the library's; only the network is
+ * simulated, by a {@link Dispatcher} that hands submitted requests to a small pool of connections.
+ * Visible items fetch at normal priority and cancel when they scroll away, as an image view's
+ * request does; prefetches are fetches at low priority. Every image takes the same time to load
+ * and then goes into the memory cache. A frame shows a placeholder for each visible item whose
+ * image has not loaded yet.
+ * <p>
+ * The simulation runs on the main thread with the clocks stopped, so the printed results are the
+ * same for every invocation. The measured time is that of the simulation and the library calls.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 2, time = 1)
+@Fork(1)
+public class PrefetchBenchmark {
+  public enum Policy {
+    /** Only visible items load. */
+    NONE,
+    /** Always the maximum number of rows ahead, never cancelled, without a byte cap. */
+    FIXED,
+    /** {@link ScrollPrefetcher}: velocity-scaled lookahead, byte cap, cancellation. */
+    VELOCITY
+  }
+
+  private static final int COLUMNS = 3;
+  private static final int VISIBLE_ROWS = 4;
+  private static final int ITEMS = 600;
+  private static final int SIZE = 360;
+  private static final int CONNECTIONS = 3;
+  private static final long FRAME_MICROS = 16667;
+  private static final long LOAD_MICROS = 80000;
+  /** Start velocity in rows per second of each fling; negative scrolls up. */
+  private static final float[] FLINGS = {12, 30, 8, -20, 25, -6, 40, 10};
+  private static final float FLING_SECONDS = 1.5f;
+  private static final float FRICTION_SECONDS = 0.5f;
+
+  @Param
+  public Policy policy;
+
+  private SimulatedNetwork network;
+  private Picasso picasso;
+  private Result result;
+
+  static final class Result {
+    long placeholderFrames;
+    int downloads;
+    int prefetches;
+    int hits;
+    int wasted;
+  }
+
+  @Setup public void setUp() {
+    MainThread.start();
+    BenchmarkContext context = new BenchmarkContext();
+    LruCache cache = new LruCache(ITEMS * SIZE * SIZE * 4);
+    Stats stats = new Stats(cache);
+    network = new SimulatedNetwork(context, cache, stats,
+        Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888));
+    picasso = new Picasso(context, network, cache, null, Picasso.RequestTransformer.IDENTITY,
+        Collections.<RequestHandler>emptyList(), stats, null, false, false);
+  }
+
+  @TearDown public void tearDown() {
+    System.out.println(policy + ": " + result.placeholderFrames + " placeholder frames, "
+        + result.downloads + " downloads, " + result.prefetches + " prefetches, "
+        + (result.prefetches == 0 ? 0 : result.hits * 100 / result.prefetches) + "% hit rate, "
+        + result.wasted + " wasted downloads");
+    network.shutdown();
+  }
+
+  @Benchmark public long scroll() {
+    result = MainThread.call(new Callable<Result>() {
+      @Override public Result call() {
+        try {
+          return simulate();
+        } finally {
+          SystemClock.setCurrentTimeMillis(-1);
+        }
+      }
+    });
+    return result.placeholderFrames;
+  }
+
+  static String url(int position) {
+    return "https://images.example.com/" + position;
+  }
+
+  private Result simulate() {
+    Result result = new Result();
+    picasso.cache.clear();
+    network.reset(result);
+    ScrollPrefetcher prefetcher = null;
+    if (policy == Policy.VELOCITY) {
+      prefetcher = new ScrollPrefetcher.Builder(picasso, new ScrollPrefetcher.Source() {
+        @Override public int getCount() {
+          return ITEMS;
+        }
+
+        @Override public RequestCreator getRequest(int position) {
+          return picasso.load(url(position));
+        }
+      }).build();
+      prefetcher.setItemLayout(COLUMNS, SIZE, SIZE);
+    }
+    Action[] bindings = new Action[ITEMS];
+    boolean[] shown = new boolean[ITEMS];
+
+    long start = SystemClock.uptimeMillis();
+    float position = 0; // In rows.
+    int lastFirst = -1;
+    int[] visibleBefore = new int[0];
+    long now = 0;
+    for (int fling = 0; fling < FLINGS.length; fling++) {
+      for (long t = 0; t < FLING_SECONDS * 1000000; t += FRAME_MICROS, now += FRAME_MICROS) {
+        SystemClock.setCurrentTimeMillis(start + now / 1000);
+        float rowsPerSecond =
+            FLINGS[fling] * (float) Math.exp(-t / (FRICTION_SECONDS * 1000000));
+        position += rowsPerSecond * FRAME_MICROS / 1000000f;
+        position = Math.max(0, Math.min(ITEMS / COLUMNS - VISIBLE_ROWS - 1, position));
+
+        network.finishLoads(now);
+
+        // Bind the visible items; items that scrolled away cancel their unfinished request.
+        int first = (int) position * COLUMNS;
+        int count = (VISIBLE_ROWS + 1) * COLUMNS;
+        for (int p : visibleBefore) {
+          if ((p < first || p >= first + count) && bindings[p] != null) {
+            if (!network.loaded[p]) {
+              picasso.cancelAction(bindings[p]);
+            }
+            bindings[p] = null;
+          }
+        }
+        visibleBefore = new int[count];
+        for (int i = 0; i < count; i++) {
+          int p = first + i;
+          visibleBefore[i] = p;
+          if (!shown[p]) {
+            shown[p] = true;
+            if (network.prefetched[p]) {
+              result.hits++;
+            }
+          }
+          if (!network.loaded[p]) {
+            result.placeholderFrames++;
+            if (bindings[p] == null) {
+              bindings[p] =
+                  picasso.load(url(p)).resize(SIZE, SIZE).priority(NORMAL).fetchAction(null);
+            }
+          }
+        }
+
+        if (prefetcher != null) {
+          prefetcher.onScroll(first, count);
+        } else if (policy == Policy.FIXED && first != lastFirst) {
+          if (lastFirst != -1) {
+            int direction = first > lastFirst ? 1 : -1;
+            for (int i = 1; i <= ScrollPrefetcher.DEFAULT_MAX_ROWS * COLUMNS; i++) {
+              int p = direction > 0 ? first + count - 1 + i : first - i;
+              if (p < 0 || p >= ITEMS) {
+                break;
+              }
+              if (!network.loaded[p] && !network.loads.containsKey(p)) {
+                picasso.load(url(p)).resize(SIZE, SIZE).fetchAction(null);
+              }
+            }
+          }
+          lastFirst = first;
+        }
+
+        network.startLoads(now);
+      }
+    }
+
+    for (int p = 0; p < ITEMS; p++) {
+      if (network.prefetched[p] && network.started[p] && !shown[p]) {
+        result.wasted++;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Takes the dispatcher's place on the main thread. Requests for the same image join one load and
+   * raise its priority, as they join a hunter. Free connections take the queued load of the
+   * highest priority, then the most recently joined, as {@code HunterQueue} does. A finished load
+   * puts its image in the memory cache and delivers it to the requests still attached.
+   */
+  static final class SimulatedNetwork extends Dispatcher {
+    private final Bitmap bitmap;
+    /** Queued and running loads by position. */
+    final Map<Integer, Load> loads = new HashMap<>();
+    private final List<Load> queue = new ArrayList<>();
+    private final List<Load> running = new ArrayList<>();
+    private int sequence;
+    private Result result;
+    boolean[] loaded;
+    boolean[] prefetched;
+    boolean[] started;
+
+    SimulatedNetwork(BenchmarkContext context, Cache cache, Stats stats, Bitmap bitmap) {
+      super(context, new PicassoExecutorService(stats), Picasso.HANDLER,
+          new DispatcherBenchmark.UnusedDownloader(), cache, stats);
+      this.bitmap = bitmap;
+    }
+
+    void reset(Result result) {
+      this.result = result;
+      loads.clear();
+      queue.clear();
+      running.clear();
+      loaded = new boolean[ITEMS];
+      prefetched = new boolean[ITEMS];
+      started = new boolean[ITEMS];
+    }
+
+    @Override void dispatchSubmit(Action action) {
+      int position = Integer.parseInt(action.getRequest().uri.getLastPathSegment());
+      if (action.getPriority() == Picasso.Priority.LOW) {
+        prefetched[position] = true;
+        result.prefetches++;
+      }
+      Load load = loads.get(position);
+      if (load == null) {
+        load = new Load(position, action.getKey());
+        loads.put(position, load);
+        queue.add(load);
+      }
+      load.actions.add(action);
+      load.recency = ++sequence;
+      if (action.getPriority().ordinal() > load.priority.ordinal()) {
+        load.priority = action.getPriority();
+      }
+    }
+
+    @Override void dispatchCancel(Action action) {
+      int position = Integer.parseInt(action.getRequest().uri.getLastPathSegment());
+      Load load = loads.get(position);
+      if (load == null || !load.actions.remove(action)) {
+        return;
+      }
+      if (load.actions.isEmpty()) {
+        if (queue.remove(load)) {
+          loads.remove(position);
+        }
+        return;
+      }
+      load.priority = Picasso.Priority.LOW;
+      for (Action remaining : load.actions) {
+        if (remaining.getPriority().ordinal() > load.priority.ordinal()) {
+          load.priority = remaining.getPriority();
+        }
+      }
+    }
+
+    void finishLoads(long now) {
+      for (int i = running.size() - 1; i >= 0; i--) {
+        Load load = running.get(i);
+        if (load.finish <= now) {
+          running.remove(i);
+          loads.remove(load.position);
+          loaded[load.position] = true;
+          Utils.putInCache(cache, load.key, bitmap);
+          for (Action action : load.actions) {
+            action.getPicasso().deliverAction(bitmap, NETWORK, action, null);
+          }
+        }
+      }
+    }
+
+    void startLoads(long now) {
+      while (running.size() < CONNECTIONS && !queue.isEmpty()) {
+        Load next = queue.get(0);
+        for (int i = 1, n = queue.size(); i < n; i++) {
+          Load load = queue.get(i);
+          if (load.priority != next.priority ? load.priority.ordinal() > next.priority.ordinal()
+              : load.recency > next.recency) {
+            next = load;
+          }
+        }
+        queue.remove(next);
+        next.finish = now + LOAD_MICROS;
+        started[next.position] = true;
+        running.add(next);
+        result.downloads++;
+      }
+    }
+  }
+
+  static final class Load {
+    final int position;
+    final RequestKey key;
+    final List<Action> actions = new ArrayList<>(2);
+    Picasso.Priority priority = Picasso.Priority.LOW;
+    int recency;
+    long finish;
+
+    Load(int position, RequestKey key) {
+      this.position = position;
+      this.key = key;
+    }
+  }
+}
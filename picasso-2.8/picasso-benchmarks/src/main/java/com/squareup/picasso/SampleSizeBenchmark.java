@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link RequestHandler#calculateInSampleSize} over a mix of source and target sizes: camera
+ * photos into thumbnails, album art into list rows and sizes that need no sampling at all.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SampleSizeBenchmark {
+  /** Source width and height followed by target width and height, 0 for unconstrained. */
+  private static final int[][] SIZES = {
+      {4032, 3024, 320, 320},
+      {4032, 3024, 1080, 0},
+      {640, 640, 96, 96},
+      {640, 640, 0, 160},
+      {1920, 1080, 1920, 1080},
+      {300, 300, 600, 600},
+      {12000, 9000, 720, 1280},
+      {1024, 768, 100, 75},
+  };
+
+  private final BitmapFactory.Options options = new BitmapFactory.Options();
+  /** Only whether the request is center inside matters; the target size is passed on its own. */
+  private final Request[] requests = {
+      new Request.Builder(Uri.parse("https://example.com/image.jpg")).resize(1, 1).centerInside()
+          .build(),
+      new Request.Builder(Uri.parse("https://example.com/image.jpg")).resize(1, 1).centerCrop()
+          .build(),
+  };
+
+  @OperationsPerInvocation(8)
+  @Benchmark public int calculate() {
+    int sum = 0;
+    //noinspection ForLoopReplaceableByForEach
+    for (int i = 0; i < SIZES.length; i++) {
+      int[] size = SIZES[i];
+      RequestHandler.calculateInSampleSize(size[2], size[3], size[0], size[1], options,
+          requests[i & 1]);
+      sum += options.inSampleSize;
+    }
+    return sum;
+  }
+}
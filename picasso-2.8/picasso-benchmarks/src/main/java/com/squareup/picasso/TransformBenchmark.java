@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.net.Uri;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A resized, center-cropped and rotated request with one or two color transformations (grayscale,
+ * then a sepia tint), through the library's {@code BitmapHunter} transform steps.
+ * <p>
+ * {@code CHAINED} draws the matrix with {@code transformResult} and then runs every
+ * {@code Transformation} on the result, as for transformations that can not be fused; the
+ * built-in color transformations filter that mutable result in place.
+ * {@code FUSED} draws the matrix and the color matrices of the {@code FusedTransformation}s in a
+ * single {@code DrawPass}. The JVM has no native canvas, so drawing runs on the benchmark's Java
+ * {@code Canvas}, which samples the nearest pixel through the inverse matrix.
+ * <p>
+ * Run with {@code -prof gc}: {@code gc.alloc.rate.norm} is the bytes allocated per request. The
+ * peak memory of transformed bitmaps held at once by a single request, on top of the decoded
+ * source, is printed at the end of each trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx1g")
+public class TransformBenchmark {
+  private static final int SEPIA = 0x60704214;
+
+  public enum Pipeline {
+    CHAINED {
+      @Override Bitmap transform(Request request, Bitmap source, long[] peak) {
+        Bitmap result = BitmapHunter.transformResult(request, source, 0, false);
+        long held = result.getAllocationByteCount();
+        for (Transformation transformation : request.transformations) {
+          Bitmap input = result;
+          result = BitmapHunter.applyCustomTransformations(
+              Collections.singletonList(transformation), input);
+          if (result == null) {
+            throw new AssertionError(transformation.key() + " failed.");
+          }
+          if (result != input) {
+            held = Math.max(held,
+                input.getAllocationByteCount() + result.getAllocationByteCount());
+          }
+        }
+        peak[0] = Math.max(peak[0], held);
+        return result;
+      }
+    },
+    FUSED {
+      @Override Bitmap transform(Request request, Bitmap source, long[] peak) {
+        Matrix matrix = new Matrix();
+        Rect bounds = BitmapHunter.computeTransform(request, source.getWidth(),
+            source.getHeight(), 0, matrix);
+        DrawPass pass = new DrawPass(source, bounds, matrix);
+        if (BitmapHunter.fuseTransformations(request.transformations, pass)
+            != request.transformations.size()) {
+          throw new AssertionError("Not every transformation was fused.");
+        }
+        Bitmap result = pass.draw();
+        peak[0] = Math.max(peak[0], result.getAllocationByteCount());
+        return result;
+      }
+    };
+
+    abstract Bitmap transform(Request request, Bitmap source, long[] peak);
+  }
+
+  @Param({"540", "1080"})
+  public int target;
+
+  @Param({"1", "2"})
+  public int transformations;
+
+  @Param
+  public Pipeline pipeline;
+
+  private Bitmap source;
+  private Request request;
+  private final long[] peak = new long[1];
+
+  @Setup public void setUp() {
+    // Failing transformations report to the main thread.
+    MainThread.start();
+    Random random = new Random(0);
+    int[] pixels = new int[1600 * 1200];
+    for (int i = 0; i < pixels.length; i++) {
+      pixels[i] = random.nextInt();
+    }
+    source = Bitmap.createBitmap(pixels, 1600, 1200, Bitmap.Config.ARGB_8888);
+    List<Transformation> colors = new ArrayList<>(2);
+    colors.add(Transformations.grayscale());
+    if (transformations == 2) {
+      colors.add(Transformations.tint(SEPIA));
+    }
+    request = new Request.Builder(Uri.parse("file:///photo.jpg"))
+        .resize(target, target)
+        .centerCrop()
+        .rotate(90)
+        .transform(colors)
+        .build();
+  }
+
+  @TearDown public void printPeak() {
+    System.out.println(pipeline + " " + transformations + " transformation(s) to " + target
+        + "x" + target + ": peak " + peak[0] / 1024 + " KiB of bitmaps besides the source");
+  }
+
+  @Benchmark public Bitmap transform() {
+    return pipeline.transform(request, source, peak);
+  }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.graphics;
+
+/**
+ * A bitmap whose pixels are a Java {@code int[]} of ARGB colors rather than native memory. Byte
+ * counts are those of the bitmap's config, so that caches and memory budgets see real sizes.
+ */
+public final class Bitmap {
+  public enum Config {
+    ALPHA_8(1),
+    RGB_565(2),
+    @Deprecated ARGB_4444(2),
+    ARGB_8888(4),
+    RGBA_F16(8),
+    HARDWARE(4);
+
+    final int bytesPerPixel;
+
+    Config(int bytesPerPixel) {
+      this.bytesPerPixel = bytesPerPixel;
+    }
+  }
+
+  private final int width;
+  private final int height;
+  private final Config config;
+  private final boolean mutable;
+  final int[] pixels;
+  private boolean hasAlpha;
+  private int density = DENSITY_NONE;
+  private boolean recycled;
+
+  public static final int DENSITY_NONE = 0;
+
+  Bitmap(int width, int height, Config config, boolean mutable) {
+    if (width <= 0 || height <= 0) {
+      throw new IllegalArgumentException("width and height must be > 0");
+    }
+    this.width = width;
+    this.height = height;
+    this.config = config;
+    this.mutable = mutable;
+    this.pixels = new int[width * height];
+    this.hasAlpha = config != Config.RGB_565;
+  }
+
+  public static Bitmap createBitmap(int width, int height, Config config) {
+    return new Bitmap(width, height, config, true);
+  }
+
+  public static Bitmap createBitmap(int[] colors, int width, int height, Config config) {
+    Bitmap bitmap = new Bitmap(width, height, config, false);
+    System.arraycopy(colors, 0, bitmap.pixels, 0, width * height);
+    return bitmap;
+  }
+
+  public static Bitmap createBitmap(Bitmap source, int x, int y, int width, int height) {
+    return createBitmap(source, x, y, width, height, null, false);
+  }
+
+  /** Draws the part of {@code source} through {@code m} with a {@link Canvas}, as Android does. */
+  public static Bitmap createBitmap(Bitmap source, int x, int y, int width, int height, Matrix m,
+      boolean filter) {
+    source.checkRecycled();
+    if (x + width > source.width || y + height > source.height) {
+      throw new IllegalArgumentException("x + width must be <= bitmap.width()");
+    }
+    if (!source.mutable && x == 0 && y == 0 && width == source.width
+        && height == source.height && (m == null || m.isIdentity())) {
+      return source;
+    }
+    Config config = source.config == null || source.config == Config.HARDWARE
+        ? Config.ARGB_8888
+        : source.config;
+    Rect srcR = new Rect(x, y, x + width, y + height);
+    RectF dstR = new RectF(0, 0, width, height);
+    Bitmap bitmap;
+    Canvas canvas;
+    boolean transformed = false;
+    if (m == null || m.isIdentity()) {
+      bitmap = createBitmap(width, height, config);
+      canvas = new Canvas(bitmap);
+    } else {
+      transformed = !m.rectStaysRect();
+      RectF deviceR = new RectF();
+      m.mapRect(deviceR, dstR);
+      bitmap = createBitmap(Math.round(deviceR.width()), Math.round(deviceR.height()),
+          transformed ? Config.ARGB_8888 : config);
+      canvas = new Canvas(bitmap);
+      canvas.translate(-deviceR.left, -deviceR.top);
+      canvas.concat(m);
+    }
+    canvas.drawBitmap(source, srcR, dstR, new Paint(filter ? Paint.FILTER_BITMAP_FLAG : 0));
+    bitmap.hasAlpha = transformed || source.hasAlpha;
+    bitmap.density = source.density;
+    return bitmap;
+  }
+
+  public Bitmap copy(Config config, boolean isMutable) {
+    checkRecycled();
+    Bitmap copy = new Bitmap(width, height, config, isMutable);
+    System.arraycopy(pixels, 0, copy.pixels, 0, pixels.length);
+    copy.hasAlpha = hasAlpha;
+    copy.density = density;
+    return copy;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public Config getConfig() {
+    return config;
+  }
+
+  public boolean isMutable() {
+    return mutable;
+  }
+
+  public boolean hasAlpha() {
+    return hasAlpha;
+  }
+
+  public void setHasAlpha(boolean hasAlpha) {
+    this.hasAlpha = hasAlpha;
+  }
+
+  public int getDensity() {
+    return density;
+  }
+
+  public void setDensity(int density) {
+    this.density = density;
+  }
+
+  public int getRowBytes() {
+    return width * config.bytesPerPixel;
+  }
+
+  public int getByteCount() {
+    return getRowBytes() * height;
+  }
+
+  public int getAllocationByteCount() {
+    return getByteCount();
+  }
+
+  public void prepareToDraw() {
+  }
+
+  public boolean isRecycled() {
+    return recycled;
+  }
+
+  public void recycle() {
+    recycled = true;
+  }
+
+  public int getPixel(int x, int y) {
+    checkRecycled();
+    return pixels[y * width + x];
+  }
+
+  public void setPixel(int x, int y, int color) {
+    checkMutable();
+    pixels[y * width + x] = color;
+  }
+
+  public void getPixels(int[] pixels, int offset, int stride, int x, int y, int width,
+      int height) {
+    checkRecycled();
+    for (int row = 0; row < height; row++) {
+      System.arraycopy(this.pixels, (y + row) * this.width + x, pixels, offset + row * stride,
+          width);
+    }
+  }
+
+  public void setPixels(int[] pixels, int offset, int stride, int x, int y, int width,
+      int height) {
+    checkMutable();
+    for (int row = 0; row < height; row++) {
+      System.arraycopy(pixels, offset + row * stride, this.pixels, (y + row) * this.width + x,
+          width);
+    }
+  }
+
+  public void eraseColor(int color) {
+    checkMutable();
+    java.util.Arrays.fill(pixels, color);
+  }
+
+  private void checkRecycled() {
+    if (recycled) {
+      throw new IllegalStateException("Can't call on a recycled bitmap");
+    }
+  }
+
+  private void checkMutable() {
+    checkRecycled();
+    if (!mutable) {
+      throw new IllegalStateException("Bitmap is immutable");
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.graphics;
+
+import android.content.res.Resources;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes the stand-in image format that benchmarks serve: a big-endian width and height followed
+ * by an opaque payload. Like a real decoder, a full decode reads the stream to its end, and it
+ * honors the sample size, density scaling and config of its {@link Options}.
+ */
+public class BitmapFactory {
+  public static class Options {
+    public boolean inJustDecodeBounds;
+    public boolean inMutable;
+    public int inSampleSize;
+    public Bitmap.Config inPreferredConfig = Bitmap.Config.ARGB_8888;
+    public boolean inScaled = true;
+    public int inDensity;
+    public int inTargetDensity;
+    @Deprecated public boolean inPurgeable;
+    @Deprecated public boolean inInputShareable;
+    public int outWidth;
+    public int outHeight;
+    public String outMimeType;
+  }
+
+  public static Bitmap decodeStream(InputStream is) {
+    return decodeStream(is, null, null);
+  }
+
+  public static Bitmap decodeStream(InputStream is, Rect outPadding, Options opts) {
+    Options options = opts != null ? opts : new Options();
+    try {
+      DataInputStream in = new DataInputStream(is);
+      int width = in.readInt();
+      int height = in.readInt();
+      options.outMimeType = "image/x-benchmark";
+      if (options.inJustDecodeBounds) {
+        options.outWidth = width;
+        options.outHeight = height;
+        return null;
+      }
+      byte[] skip = new byte[8192];
+      while (in.read(skip) != -1) {
+        // The payload only costs the time it takes to arrive.
+      }
+
+      int sampleSize = Math.max(1, options.inSampleSize);
+      float scale = 1f;
+      if (options.inScaled && options.inDensity != 0 && options.inTargetDensity != 0) {
+        scale = options.inTargetDensity / (float) options.inDensity;
+      }
+      int outWidth = Math.max(1, (int) (width / sampleSize * scale + 0.5f));
+      int outHeight = Math.max(1, (int) (height / sampleSize * scale + 0.5f));
+      Bitmap.Config config =
+          options.inPreferredConfig != null ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+      Bitmap bitmap = new Bitmap(outWidth, outHeight, config, options.inMutable);
+      if (scale != 1f) {
+        bitmap.setDensity(options.inTargetDensity);
+      }
+      options.outWidth = outWidth;
+      options.outHeight = outHeight;
+      return bitmap;
+    } catch (IOException e) {
+      options.outWidth = -1;
+      options.outHeight = -1;
+      return null;
+    }
+  }
+
+  public static Bitmap decodeByteArray(byte[] data, int offset, int length) {
+    return decodeByteArray(data, offset, length, null);
+  }
+
+  public static Bitmap decodeByteArray(byte[] data, int offset, int length, Options opts) {
+    return decodeStream(new ByteArrayInputStream(data, offset, length), null, opts);
+  }
+
+  public static Bitmap decodeResource(Resources res, int id, Options opts) {
+    throw new UnsupportedOperationException("Resources are not available to benchmarks.");
+  }
+}
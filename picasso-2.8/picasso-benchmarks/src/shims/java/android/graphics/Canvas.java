@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.graphics;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Draws bitmaps into a {@link Bitmap} in Java. Each destination pixel samples the nearest source
+ * pixel through the inverse of the current matrix, is filtered by the paint's
+ * {@link ColorMatrixColorFilter} if it has one and replaces what was there. Clips, paths and
+ * shaders are not supported.
+ */
+public class Canvas {
+  private final Bitmap bitmap;
+  private final Deque<Matrix> saved = new ArrayDeque<>();
+  private Matrix matrix = new Matrix();
+
+  public Canvas(Bitmap bitmap) {
+    if (!bitmap.isMutable()) {
+      throw new IllegalStateException("Immutable bitmap passed to Canvas constructor");
+    }
+    this.bitmap = bitmap;
+  }
+
+  public int getWidth() {
+    return bitmap.getWidth();
+  }
+
+  public int getHeight() {
+    return bitmap.getHeight();
+  }
+
+  public int save() {
+    saved.push(new Matrix(matrix));
+    return saved.size();
+  }
+
+  public void restore() {
+    if (saved.isEmpty()) {
+      throw new IllegalStateException("Underflow in restore - more restores than saves");
+    }
+    matrix = saved.pop();
+  }
+
+  public void translate(float dx, float dy) {
+    matrix.preTranslate(dx, dy);
+  }
+
+  public void scale(float sx, float sy) {
+    matrix.preScale(sx, sy);
+  }
+
+  public void concat(Matrix matrix) {
+    if (matrix != null) {
+      this.matrix.preConcat(matrix);
+    }
+  }
+
+  public void drawBitmap(Bitmap bitmap, float left, float top, Paint paint) {
+    drawBitmap(bitmap, null, new RectF(left, top, left + bitmap.getWidth(),
+        top + bitmap.getHeight()), paint);
+  }
+
+  public void drawBitmap(Bitmap bitmap, Rect src, Rect dst, Paint paint) {
+    drawBitmap(bitmap, src, new RectF(dst), paint);
+  }
+
+  public void drawBitmap(Bitmap bitmap, Rect src, RectF dst, Paint paint) {
+    Rect source = src != null ? src : new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight());
+    Matrix toDevice = new Matrix();
+    toDevice.setTranslate(-source.left, -source.top);
+    toDevice.postScale(dst.width() / source.width(), dst.height() / source.height());
+    toDevice.postTranslate(dst.left, dst.top);
+    toDevice.postConcat(matrix);
+    drawBitmap(bitmap, source, toDevice, paint);
+  }
+
+  public void drawBitmap(Bitmap bitmap, Matrix matrix, Paint paint) {
+    Matrix toDevice = new Matrix(matrix);
+    toDevice.postConcat(this.matrix);
+    drawBitmap(bitmap, new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight()), toDevice, paint);
+  }
+
+  private void drawBitmap(Bitmap source, Rect src, Matrix toDevice, Paint paint) {
+    Matrix inverse = new Matrix();
+    if (!toDevice.invert(inverse)) {
+      return;
+    }
+    RectF bounds = new RectF(src);
+    toDevice.mapRect(bounds);
+    int left = Math.max(0, (int) Math.floor(bounds.left));
+    int top = Math.max(0, (int) Math.floor(bounds.top));
+    int right = Math.min(bitmap.getWidth(), (int) Math.ceil(bounds.right));
+    int bottom = Math.min(bitmap.getHeight(), (int) Math.ceil(bounds.bottom));
+    int[] color = null;
+    if (paint != null && paint.getColorFilter() instanceof ColorMatrixColorFilter) {
+      ColorMatrix colorMatrix = new ColorMatrix();
+      ((ColorMatrixColorFilter) paint.getColorFilter()).getColorMatrix(colorMatrix);
+      float[] array = colorMatrix.getArray();
+      // In 16.16 fixed point.
+      color = new int[20];
+      for (int i = 0; i < 20; i++) {
+        color[i] = Math.round(array[i] * (1 << 16));
+      }
+    }
+
+    float[] m = inverse.values;
+    int[] in = source.pixels;
+    int[] out = bitmap.pixels;
+    int inWidth = source.getWidth();
+    int outWidth = bitmap.getWidth();
+    for (int y = top; y < bottom; y++) {
+      float sourceX = m[Matrix.MSCALE_X] * (left + 0.5f) + m[Matrix.MSKEW_X] * (y + 0.5f)
+          + m[Matrix.MTRANS_X];
+      float sourceY = m[Matrix.MSKEW_Y] * (left + 0.5f) + m[Matrix.MSCALE_Y] * (y + 0.5f)
+          + m[Matrix.MTRANS_Y];
+      for (int x = left; x < right; x++) {
+        if (sourceX >= src.left && sourceX < src.right && sourceY >= src.top
+            && sourceY < src.bottom) {
+          int pixel = in[(int) sourceY * inWidth + (int) sourceX];
+          out[y * outWidth + x] = color != null ? filter(color, pixel) : pixel;
+        }
+        sourceX += m[Matrix.MSCALE_X];
+        sourceY += m[Matrix.MSKEW_Y];
+      }
+    }
+  }
+
+  public boolean clipRect(float left, float top, float right, float bottom) {
+    throw new UnsupportedOperationException("Clips are not supported on the JVM.");
+  }
+
+  public void drawPath(Path path, Paint paint) {
+    throw new UnsupportedOperationException("Paths are not supported on the JVM.");
+  }
+
+  public void drawRect(float left, float top, float right, float bottom, Paint paint) {
+    throw new UnsupportedOperationException("Shapes are not supported on the JVM.");
+  }
+
+  private static int filter(int[] m, int pixel) {
+    int a = pixel >>> 24;
+    int r = (pixel >> 16) & 0xff;
+    int g = (pixel >> 8) & 0xff;
+    int b = pixel & 0xff;
+    int newR = clamp(m[0] * r + m[1] * g + m[2] * b + m[3] * a + m[4]);
+    int newG = clamp(m[5] * r + m[6] * g + m[7] * b + m[8] * a + m[9]);
+    int newB = clamp(m[10] * r + m[11] * g + m[12] * b + m[13] * a + m[14]);
+    int newA = clamp(m[15] * r + m[16] * g + m[17] * b + m[18] * a + m[19]);
+    return newA << 24 | newR << 16 | newG << 8 | newB;
+  }
+
+  /** A 16.16 fixed point channel, clamped to a byte. */
+  private static int clamp(int value) {
+    return value < 0 ? 0 : value >= 255 << 16 ? 255 : value >> 16;
+  }
+}
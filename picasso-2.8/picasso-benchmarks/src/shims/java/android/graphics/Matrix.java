@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.graphics;
+
+import java.util.Arrays;
+
+/** An affine 3x3 matrix in Java, without the perspective the native one supports. */
+public class Matrix {
+  public static final int MSCALE_X = 0;
+  public static final int MSKEW_X = 1;
+  public static final int MTRANS_X = 2;
+  public static final int MSKEW_Y = 3;
+  public static final int MSCALE_Y = 4;
+  public static final int MTRANS_Y = 5;
+  public static final int MPERSP_0 = 6;
+  public static final int MPERSP_1 = 7;
+  public static final int MPERSP_2 = 8;
+
+  /** Sines and cosines closer to zero than this are zero, so right angles stay exact. */
+  private static final float NEARLY_ZERO = 1f / (1 << 12);
+
+  final float[] values = new float[9];
+
+  public Matrix() {
+    reset();
+  }
+
+  public Matrix(Matrix src) {
+    set(src);
+  }
+
+  public boolean isIdentity() {
+    return values[MSCALE_X] == 1 && values[MSKEW_X] == 0 && values[MTRANS_X] == 0
+        && values[MSKEW_Y] == 0 && values[MSCALE_Y] == 1 && values[MTRANS_Y] == 0;
+  }
+
+  public boolean isAffine() {
+    return true;
+  }
+
+  /** Whether rectangles map to rectangles: no rotation other than by right angles, no skew. */
+  public boolean rectStaysRect() {
+    return values[MSKEW_X] == 0 && values[MSKEW_Y] == 0
+        || values[MSCALE_X] == 0 && values[MSCALE_Y] == 0;
+  }
+
+  public void set(Matrix src) {
+    if (src == null) {
+      reset();
+    } else {
+      System.arraycopy(src.values, 0, values, 0, 9);
+    }
+  }
+
+  public void reset() {
+    setValues(1, 0, 0, 0, 1, 0);
+  }
+
+  public void setTranslate(float dx, float dy) {
+    setValues(1, 0, dx, 0, 1, dy);
+  }
+
+  public void setScale(float sx, float sy) {
+    setValues(sx, 0, 0, 0, sy, 0);
+  }
+
+  public void setScale(float sx, float sy, float px, float py) {
+    setValues(sx, 0, px - sx * px, 0, sy, py - sy * py);
+  }
+
+  public void setRotate(float degrees) {
+    setRotate(degrees, 0, 0);
+  }
+
+  public void setRotate(float degrees, float px, float py) {
+    double radians = Math.toRadians(degrees);
+    float sin = snap((float) Math.sin(radians));
+    float cos = snap((float) Math.cos(radians));
+    setValues(cos, -sin, px - cos * px + sin * py, sin, cos, py - sin * px - cos * py);
+  }
+
+  public boolean setConcat(Matrix a, Matrix b) {
+    float[] result = multiply(a.values, b.values);
+    System.arraycopy(result, 0, values, 0, 9);
+    return true;
+  }
+
+  public boolean preTranslate(float dx, float dy) {
+    return preConcat(translate(dx, dy));
+  }
+
+  public boolean preScale(float sx, float sy) {
+    return preConcat(scale(sx, sy));
+  }
+
+  public boolean preScale(float sx, float sy, float px, float py) {
+    Matrix scale = new Matrix();
+    scale.setScale(sx, sy, px, py);
+    return preConcat(scale);
+  }
+
+  public boolean preRotate(float degrees) {
+    Matrix rotate = new Matrix();
+    rotate.setRotate(degrees);
+    return preConcat(rotate);
+  }
+
+  public boolean preRotate(float degrees, float px, float py) {
+    Matrix rotate = new Matrix();
+    rotate.setRotate(degrees, px, py);
+    return preConcat(rotate);
+  }
+
+  public boolean preConcat(Matrix other) {
+    return setConcat(this, other);
+  }
+
+  public boolean postTranslate(float dx, float dy) {
+    return postConcat(translate(dx, dy));
+  }
+
+  public boolean postScale(float sx, float sy) {
+    return postConcat(scale(sx, sy));
+  }
+
+  public boolean postScale(float sx, float sy, float px, float py) {
+    Matrix scale = new Matrix();
+    scale.setScale(sx, sy, px, py);
+    return postConcat(scale);
+  }
+
+  public boolean postRotate(float degrees) {
+    Matrix rotate = new Matrix();
+    rotate.setRotate(degrees);
+    return postConcat(rotate);
+  }
+
+  public boolean postRotate(float degrees, float px, float py) {
+    Matrix rotate = new Matrix();
+    rotate.setRotate(degrees, px, py);
+    return postConcat(rotate);
+  }
+
+  public boolean postConcat(Matrix other) {
+    return setConcat(other, this);
+  }
+
+  public boolean invert(Matrix inverse) {
+    float a = values[MSCALE_X];
+    float b = values[MSKEW_X];
+    float c = values[MTRANS_X];
+    float d = values[MSKEW_Y];
+    float e = values[MSCALE_Y];
+    float f = values[MTRANS_Y];
+    double determinant = (double) a * e - (double) b * d;
+    if (determinant == 0) {
+      return false;
+    }
+    if (inverse != null) {
+      inverse.setValues((float) (e / determinant), (float) (-b / determinant),
+          (float) ((b * f - c * e) / determinant), (float) (-d / determinant),
+          (float) (a / determinant), (float) ((c * d - a * f) / determinant));
+    }
+    return true;
+  }
+
+  public void mapPoints(float[] pts) {
+    mapPoints(pts, 0, pts, 0, pts.length / 2);
+  }
+
+  public void mapPoints(float[] dst, float[] src) {
+    mapPoints(dst, 0, src, 0, src.length / 2);
+  }
+
+  public void mapPoints(float[] dst, int dstIndex, float[] src, int srcIndex, int pointCount) {
+    for (int i = 0; i < pointCount; i++) {
+      float x = src[srcIndex + 2 * i];
+      float y = src[srcIndex + 2 * i + 1];
+      dst[dstIndex + 2 * i] = values[MSCALE_X] * x + values[MSKEW_X] * y + values[MTRANS_X];
+      dst[dstIndex + 2 * i + 1] = values[MSKEW_Y] * x + values[MSCALE_Y] * y + values[MTRANS_Y];
+    }
+  }
+
+  public boolean mapRect(RectF rect) {
+    return mapRect(rect, rect);
+  }
+
+  /** Map the corners of {@code src} and store their bounds in {@code dst}. */
+  public boolean mapRect(RectF dst, RectF src) {
+    float[] corners = {
+        src.left, src.top, src.right, src.top, src.right, src.bottom, src.left, src.bottom
+    };
+    mapPoints(corners);
+    dst.set(Math.min(Math.min(corners[0], corners[2]), Math.min(corners[4], corners[6])),
+        Math.min(Math.min(corners[1], corners[3]), Math.min(corners[5], corners[7])),
+        Math.max(Math.max(corners[0], corners[2]), Math.max(corners[4], corners[6])),
+        Math.max(Math.max(corners[1], corners[3]), Math.max(corners[5], corners[7])));
+    return rectStaysRect();
+  }
+
+  public void getValues(float[] values) {
+    System.arraycopy(this.values, 0, values, 0, 9);
+  }
+
+  public void setValues(float[] values) {
+    System.arraycopy(values, 0, this.values, 0, 9);
+  }
+
+  @Override public boolean equals(Object obj) {
+    return obj instanceof Matrix && Arrays.equals(values, ((Matrix) obj).values);
+  }
+
+  @Override public int hashCode() {
+    return Arrays.hashCode(values);
+  }
+
+  @Override public String toString() {
+    return "Matrix{" + Arrays.toString(values) + "}";
+  }
+
+  private void setValues(float a, float b, float c, float d, float e, float f) {
+    values[MSCALE_X] = a;
+    values[MSKEW_X] = b;
+    values[MTRANS_X] = c;
+    values[MSKEW_Y] = d;
+    values[MSCALE_Y] = e;
+    values[MTRANS_Y] = f;
+    values[MPERSP_0] = 0;
+    values[MPERSP_1] = 0;
+    values[MPERSP_2] = 1;
+  }
+
+  private static Matrix translate(float dx, float dy) {
+    Matrix matrix = new Matrix();
+    matrix.setTranslate(dx, dy);
+    return matrix;
+  }
+
+  private static Matrix scale(float sx, float sy) {
+    Matrix matrix = new Matrix();
+    matrix.setScale(sx, sy);
+    return matrix;
+  }
+
+  private static float snap(float value) {
+    return Math.abs(value) < NEARLY_ZERO ? 0 : value;
+  }
+
+  /** {@code a} times {@code b}: {@code b} applied first. */
+  private static float[] multiply(float[] a, float[] b) {
+    float[] result = new float[9];
+    for (int row = 0; row < 3; row++) {
+      for (int column = 0; column < 3; column++) {
+        float sum = 0;
+        for (int k = 0; k < 3; k++) {
+          sum += a[row * 3 + k] * b[k * 3 + column];
+        }
+        result[row * 3 + column] = sum;
+      }
+    }
+    return result;
+  }
+}
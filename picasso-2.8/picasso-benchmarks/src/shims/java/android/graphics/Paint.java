@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.graphics;
+
+/** The drawing state that {@link Canvas} reads, without the native paint behind it. */
+public class Paint {
+  public static final int ANTI_ALIAS_FLAG = 0x01;
+  public static final int FILTER_BITMAP_FLAG = 0x02;
+  public static final int DITHER_FLAG = 0x04;
+
+  private int flags;
+  private int color = 0xff000000;
+  private ColorFilter colorFilter;
+  private Shader shader;
+
+  public Paint() {
+    this(0);
+  }
+
+  public Paint(int flags) {
+    this.flags = flags;
+  }
+
+  public Paint(Paint paint) {
+    set(paint);
+  }
+
+  public void set(Paint src) {
+    flags = src.flags;
+    color = src.color;
+    colorFilter = src.colorFilter;
+    shader = src.shader;
+  }
+
+  public int getFlags() {
+    return flags;
+  }
+
+  public void setFlags(int flags) {
+    this.flags = flags;
+  }
+
+  public boolean isAntiAlias() {
+    return (flags & ANTI_ALIAS_FLAG) != 0;
+  }
+
+  public void setAntiAlias(boolean aa) {
+    flags = aa ? flags | ANTI_ALIAS_FLAG : flags & ~ANTI_ALIAS_FLAG;
+  }
+
+  public boolean isFilterBitmap() {
+    return (flags & FILTER_BITMAP_FLAG) != 0;
+  }
+
+  public void setFilterBitmap(boolean filter) {
+    flags = filter ? flags | FILTER_BITMAP_FLAG : flags & ~FILTER_BITMAP_FLAG;
+  }
+
+  public int getColor() {
+    return color;
+  }
+
+  public void setColor(int color) {
+    this.color = color;
+  }
+
+  public int getAlpha() {
+    return color >>> 24;
+  }
+
+  public void setAlpha(int a) {
+    color = (a & 0xff) << 24 | (color & 0xffffff);
+  }
+
+  public ColorFilter getColorFilter() {
+    return colorFilter;
+  }
+
+  public ColorFilter setColorFilter(ColorFilter filter) {
+    colorFilter = filter;
+    return filter;
+  }
+
+  public Shader getShader() {
+    return shader;
+  }
+
+  public Shader setShader(Shader shader) {
+    this.shader = shader;
+    return shader;
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.net;
+
+/**
+ * The state of a network, without the {@link ConnectivityManager} constants whose static
+ * initializer needs the runtime of a device.
+ */
+public class NetworkInfo {
+  public enum State {
+    CONNECTING, CONNECTED, SUSPENDED, DISCONNECTING, DISCONNECTED, UNKNOWN
+  }
+
+  public enum DetailedState {
+    IDLE, SCANNING, CONNECTING, AUTHENTICATING, OBTAINING_IPADDR, CONNECTED, SUSPENDED,
+    DISCONNECTING, DISCONNECTED, FAILED, BLOCKED, VERIFYING_POOR_LINK, CAPTIVE_PORTAL_CHECK
+  }
+
+  private final int type;
+  private final int subtype;
+  private final String typeName;
+  private final String subtypeName;
+  private DetailedState detailedState = DetailedState.IDLE;
+  private State state = State.UNKNOWN;
+
+  public NetworkInfo(int type, int subtype, String typeName, String subtypeName) {
+    this.type = type;
+    this.subtype = subtype;
+    this.typeName = typeName;
+    this.subtypeName = subtypeName;
+  }
+
+  public int getType() {
+    return type;
+  }
+
+  public int getSubtype() {
+    return subtype;
+  }
+
+  public String getTypeName() {
+    return typeName;
+  }
+
+  public String getSubtypeName() {
+    return subtypeName;
+  }
+
+  public boolean isConnectedOrConnecting() {
+    return state == State.CONNECTED || state == State.CONNECTING;
+  }
+
+  public boolean isConnected() {
+    return state == State.CONNECTED;
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  public DetailedState getDetailedState() {
+    return detailedState;
+  }
+
+  public void setDetailedState(DetailedState detailedState, String reason, String extraInfo) {
+    this.detailedState = detailedState;
+    switch (detailedState) {
+      case CONNECTING:
+      case AUTHENTICATING:
+      case OBTAINING_IPADDR:
+      case VERIFYING_POOR_LINK:
+      case CAPTIVE_PORTAL_CHECK:
+        state = State.CONNECTING;
+        break;
+      case CONNECTED:
+        state = State.CONNECTED;
+        break;
+      case SUSPENDED:
+        state = State.SUSPENDED;
+        break;
+      case DISCONNECTING:
+        state = State.DISCONNECTING;
+        break;
+      default:
+        state = State.DISCONNECTED;
+        break;
+    }
+  }
+
+  @Override public String toString() {
+    return "[type: " + typeName + "[" + subtypeName + "], state: " + state + "/" + detailedState
+        + "]";
+  }
+}
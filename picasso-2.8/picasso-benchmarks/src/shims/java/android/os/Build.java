@@ -0,0 +1,26 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.os;
+
+/**
+ * Reports the API level of the framework classes the benchmarks run against, or the one set by
+ * the {@code android.sdk} system property, without reading the properties of a device.
+ */
+public class Build {
+  public static class VERSION {
+    public static final int SDK_INT = Integer.getInteger("android.sdk", 28);
+  }
+}
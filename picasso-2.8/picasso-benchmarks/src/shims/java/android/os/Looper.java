@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.os;
+
+/** Runs a thread's {@link MessageQueue}, as the framework's looper does. */
+public final class Looper {
+  private static final ThreadLocal<Looper> threadLocal = new ThreadLocal<>();
+  private static Looper mainLooper;
+
+  final MessageQueue mQueue;
+  final Thread mThread;
+
+  private Looper(boolean quitAllowed) {
+    mQueue = new MessageQueue(quitAllowed);
+    mThread = Thread.currentThread();
+  }
+
+  public static void prepare() {
+    prepare(true);
+  }
+
+  private static void prepare(boolean quitAllowed) {
+    if (threadLocal.get() != null) {
+      throw new RuntimeException("Only one Looper may be created per thread");
+    }
+    threadLocal.set(new Looper(quitAllowed));
+  }
+
+  public static void prepareMainLooper() {
+    prepare(false);
+    synchronized (Looper.class) {
+      if (mainLooper != null) {
+        throw new IllegalStateException("The main Looper has already been prepared.");
+      }
+      mainLooper = myLooper();
+    }
+  }
+
+  public static Looper getMainLooper() {
+    synchronized (Looper.class) {
+      return mainLooper;
+    }
+  }
+
+  public static Looper myLooper() {
+    return threadLocal.get();
+  }
+
+  public static MessageQueue myQueue() {
+    return myLooper().mQueue;
+  }
+
+  public static void loop() {
+    Looper me = myLooper();
+    if (me == null) {
+      throw new RuntimeException("No Looper; Looper.prepare() wasn't called on this thread.");
+    }
+    for (Message message; (message = me.mQueue.next()) != null;) {
+      message.target.dispatchMessage(message);
+      message.recycleUnchecked();
+    }
+  }
+
+  public boolean isCurrentThread() {
+    return Thread.currentThread() == mThread;
+  }
+
+  public void quit() {
+    mQueue.quit(false);
+  }
+
+  public void quitSafely() {
+    mQueue.quit(true);
+  }
+
+  public Thread getThread() {
+    return mThread;
+  }
+
+  public MessageQueue getQueue() {
+    return mQueue;
+  }
+}
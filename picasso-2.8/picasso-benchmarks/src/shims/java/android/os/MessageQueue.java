@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.os;
+
+/**
+ * Messages ordered by their time, as the framework's queue keeps them, with threads blocking on a
+ * monitor instead of in native code.
+ */
+public final class MessageQueue {
+  private final boolean quitAllowed;
+  private Message messages;
+  private boolean quitting;
+
+  MessageQueue(boolean quitAllowed) {
+    this.quitAllowed = quitAllowed;
+  }
+
+  public synchronized boolean isIdle() {
+    return messages == null || SystemClock.uptimeMillis() < messages.when;
+  }
+
+  synchronized Message next() {
+    while (true) {
+      if (quitting) {
+        return null;
+      }
+      Message message = messages;
+      if (message != null) {
+        long wait = message.when - SystemClock.uptimeMillis();
+        if (wait <= 0) {
+          messages = message.next;
+          message.next = null;
+          message.markInUse();
+          return message;
+        }
+        waitFor(wait);
+      } else {
+        waitFor(0);
+      }
+    }
+  }
+
+  synchronized void quit(boolean safe) {
+    if (!quitAllowed) {
+      throw new IllegalStateException("Main thread not allowed to quit.");
+    }
+    quitting = true;
+    Message message = messages;
+    messages = null;
+    while (message != null) {
+      Message next = message.next;
+      message.recycleUnchecked();
+      message = next;
+    }
+    notifyAll();
+  }
+
+  synchronized boolean enqueueMessage(Message message, long when) {
+    if (message.target == null) {
+      throw new IllegalArgumentException("Message must have a target.");
+    }
+    if (quitting) {
+      message.recycle();
+      return false;
+    }
+    message.markInUse();
+    message.when = when;
+    Message previous = null;
+    Message current = messages;
+    while (current != null && current.when <= when) {
+      previous = current;
+      current = current.next;
+    }
+    message.next = current;
+    if (previous == null) {
+      messages = message;
+      notifyAll();
+    } else {
+      previous.next = message;
+    }
+    return true;
+  }
+
+  synchronized boolean hasMessages(Handler handler, int what, Object object) {
+    for (Message message = messages; message != null; message = message.next) {
+      if (message.target == handler && message.what == what
+          && (object == null || message.obj == object)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  synchronized boolean hasMessages(Handler handler, Runnable runnable, Object object) {
+    for (Message message = messages; message != null; message = message.next) {
+      if (message.target == handler && message.callback == runnable
+          && (object == null || message.obj == object)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  synchronized void removeMessages(Handler handler, int what, Object object) {
+    Message previous = null;
+    Message message = messages;
+    while (message != null) {
+      Message next = message.next;
+      if (message.target == handler && message.what == what
+          && (object == null || message.obj == object)) {
+        unlink(previous, message);
+      } else {
+        previous = message;
+      }
+      message = next;
+    }
+  }
+
+  synchronized void removeMessages(Handler handler, Runnable runnable, Object object) {
+    Message previous = null;
+    Message message = messages;
+    while (message != null) {
+      Message next = message.next;
+      if (message.target == handler && message.callback == runnable
+          && (object == null || message.obj == object)) {
+        unlink(previous, message);
+      } else {
+        previous = message;
+      }
+      message = next;
+    }
+  }
+
+  synchronized void removeCallbacksAndMessages(Handler handler, Object object) {
+    Message previous = null;
+    Message message = messages;
+    while (message != null) {
+      Message next = message.next;
+      if (message.target == handler && (object == null || message.obj == object)) {
+        unlink(previous, message);
+      } else {
+        previous = message;
+      }
+      message = next;
+    }
+  }
+
+  private void unlink(Message previous, Message message) {
+    if (previous == null) {
+      messages = message.next;
+    } else {
+      previous.next = message.next;
+    }
+    message.recycleUnchecked();
+  }
+
+  private void waitFor(long millis) {
+    try {
+      wait(millis);
+    } catch (InterruptedException e) {
+      quitting = true;
+    }
+  }
+}
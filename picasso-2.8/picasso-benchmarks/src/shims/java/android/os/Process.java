@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.os;
+
+/**
+ * Thread IDs and priorities of the JVM. Priorities are recorded but not applied, since the JVM's
+ * thread priorities do not map onto Linux nice values.
+ */
+public final class Process {
+  private static final ThreadLocal<Integer> priority = new ThreadLocal<Integer>() {
+    @Override protected Integer initialValue() {
+      return 0;
+    }
+  };
+
+  public static int myPid() {
+    return 1;
+  }
+
+  public static int myTid() {
+    return (int) Thread.currentThread().getId();
+  }
+
+  public static int myUid() {
+    return 10000;
+  }
+
+  public static void setThreadPriority(int priority) {
+    Process.priority.set(priority);
+  }
+
+  public static void setThreadPriority(int tid, int priority) {
+    if (tid == myTid()) {
+      setThreadPriority(priority);
+    }
+  }
+
+  public static int getThreadPriority(int tid) {
+    return priority.get();
+  }
+
+  private Process() {
+    throw new AssertionError("No instances.");
+  }
+}
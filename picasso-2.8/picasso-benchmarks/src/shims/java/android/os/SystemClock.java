@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.os;
+
+/**
+ * The clocks of the JVM, which has no deep sleep to leave out of {@link #uptimeMillis}. As under
+ * Robolectric, {@link #setCurrentTimeMillis} stops them for simulations in virtual time.
+ */
+public final class SystemClock {
+  private static volatile long stoppedNanos = -1;
+
+  /**
+   * Stop the clocks at {@code millis}; they then only move when set again. A negative time lets
+   * them run again.
+   */
+  public static boolean setCurrentTimeMillis(long millis) {
+    stoppedNanos = millis < 0 ? -1 : millis * 1000000;
+    return true;
+  }
+
+  public static long uptimeMillis() {
+    return nanos() / 1000000;
+  }
+
+  public static long elapsedRealtime() {
+    return nanos() / 1000000;
+  }
+
+  public static long elapsedRealtimeNanos() {
+    return nanos();
+  }
+
+  private static long nanos() {
+    long stopped = stoppedNanos;
+    return stopped != -1 ? stopped : System.nanoTime();
+  }
+
+  public static void sleep(long ms) {
+    long end = uptimeMillis() + ms;
+    boolean interrupted = false;
+    for (long left = ms; left > 0; left = end - uptimeMillis()) {
+      try {
+        Thread.sleep(left);
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private SystemClock() {
+    throw new AssertionError("No instances.");
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.view;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Runs frame callbacks on the looper's next turn, as for a display that is always ready to draw,
+ * so that what benchmarks measure is the work between frames rather than the refresh rate.
+ */
+public final class Choreographer {
+  private static final ThreadLocal<Choreographer> threadLocal = new ThreadLocal<Choreographer>() {
+    @Override protected Choreographer initialValue() {
+      Looper looper = Looper.myLooper();
+      if (looper == null) {
+        throw new IllegalStateException("The current thread must have a looper!");
+      }
+      return new Choreographer(looper);
+    }
+  };
+
+  private final Handler handler;
+
+  private Choreographer(Looper looper) {
+    handler = new Handler(looper);
+  }
+
+  public static Choreographer getInstance() {
+    return threadLocal.get();
+  }
+
+  public void postFrameCallback(FrameCallback callback) {
+    postFrameCallbackDelayed(callback, 0);
+  }
+
+  public void postFrameCallbackDelayed(FrameCallback callback, long delayMillis) {
+    handler.postAtTime(new Frame(callback), callback, SystemClock.uptimeMillis() + delayMillis);
+  }
+
+  public void removeFrameCallback(FrameCallback callback) {
+    handler.removeCallbacksAndMessages(callback);
+  }
+
+  public interface FrameCallback {
+    void doFrame(long frameTimeNanos);
+  }
+
+  private final class Frame implements Runnable {
+    private final FrameCallback callback;
+
+    Frame(FrameCallback callback) {
+      this.callback = callback;
+    }
+
+    @Override public void run() {
+      callback.doFrame(System.nanoTime());
+    }
+  }
+}
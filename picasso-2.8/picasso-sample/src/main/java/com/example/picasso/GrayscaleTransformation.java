@@ -23,15 +23,16 @@ import android.graphics.ColorMatrixColorFilter;
 import android.graphics.Paint;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
+import com.squareup.picasso.DrawPass;
+import com.squareup.picasso.FusedTransformation;
 import com.squareup.picasso.Picasso;
-import com.squareup.picasso.Transformation;
 import java.io.IOException;
 
 import static android.graphics.Bitmap.createBitmap;
 import static android.graphics.Paint.ANTI_ALIAS_FLAG;
 import static android.graphics.Shader.TileMode.REPEAT;
 
-public class GrayscaleTransformation implements Transformation {
+public class GrayscaleTransformation implements FusedTransformation {
 
   private final Picasso picasso;
 
@@ -39,14 +40,21 @@ public class GrayscaleTransformation implements Transformation {
     this.picasso = picasso;
   }
 
+  @Override public boolean fuse(DrawPass pass) {
+    ColorMatrix colorMatrix = new ColorMatrix();
+    colorMatrix.setSaturation(0);
+    pass.concatColorMatrix(colorMatrix);
+
+    Paint paint = new Paint(ANTI_ALIAS_FLAG);
+    paint.setShader(new BitmapShader(loadNoise(), REPEAT, REPEAT));
+    paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.MULTIPLY));
+    pass.addOverlay(paint);
+    return true;
+  }
+
   @Override public Bitmap transform(Bitmap source) {
     Bitmap result = createBitmap(source.getWidth(), source.getHeight(), source.getConfig());
-    Bitmap noise;
-    try {
-      noise = picasso.load(R.drawable.noise).get();
-    } catch (IOException e) {
-      throw new RuntimeException("Failed to apply transformation! Missing resource.");
-    }
+    Bitmap noise = loadNoise();
 
     BitmapShader shader = new BitmapShader(noise, REPEAT, REPEAT);
 
@@ -72,6 +80,14 @@ public class GrayscaleTransformation implements Transformation {
     return result;
   }
 
+  private Bitmap loadNoise() {
+    try {
+      return picasso.load(R.drawable.noise).get();
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to apply transformation! Missing resource.");
+    }
+  }
+
   @Override public String key() {
     return "grayscaleTransformation()";
   }
@@ -2,14 +2,27 @@ package com.example.picasso;
 
 import android.os.Bundle;
 import android.widget.GridView;
+import com.squareup.picasso.Picasso;
+import com.squareup.picasso.ScrollPrefetcher;
 
 public class SampleGridViewActivity extends PicassoSampleActivity {
+  private ScrollPrefetcher prefetcher;
+
   @Override protected void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
     setContentView(R.layout.sample_gridview_activity);
 
     GridView gv = findViewById(R.id.grid_view);
-    gv.setAdapter(new SampleGridViewAdapter(this));
-    gv.setOnScrollListener(new SampleScrollListener(this));
+    SampleGridViewAdapter adapter = new SampleGridViewAdapter(this);
+    gv.setAdapter(adapter);
+
+    // Fetch the rows the grid is scrolling towards so they show without a placeholder.
+    prefetcher = new ScrollPrefetcher.Builder(Picasso.get(), adapter).build();
+    gv.setOnScrollListener(new SampleScrollListener(this, prefetcher));
+  }
+
+  @Override protected void onDestroy() {
+    super.onDestroy();
+    prefetcher.cancel();
   }
 }
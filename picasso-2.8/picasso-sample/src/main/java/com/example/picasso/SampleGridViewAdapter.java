@@ -5,13 +5,15 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.BaseAdapter;
 import com.squareup.picasso.Picasso;
+import com.squareup.picasso.RequestCreator;
+import com.squareup.picasso.ScrollPrefetcher;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
 import static android.widget.ImageView.ScaleType.CENTER_CROP;
 
-final class SampleGridViewAdapter extends BaseAdapter {
+final class SampleGridViewAdapter extends BaseAdapter implements ScrollPrefetcher.Source {
   private final Context context;
   private final List<String> urls = new ArrayList<>();
 
@@ -50,6 +52,11 @@ final class SampleGridViewAdapter extends BaseAdapter {
     return view;
   }
 
+  @Override public RequestCreator getRequest(int position) {
+    // Must match the request in getView(), which fit() resizes to the view.
+    return Picasso.get().load(getItem(position));
+  }
+
   @Override public int getCount() {
     return urls.size();
   }
@@ -1,15 +1,24 @@
 package com.example.picasso;
 
 import android.content.Context;
+import android.view.View;
 import android.widget.AbsListView;
+import android.widget.GridView;
 
 import com.squareup.picasso.Picasso;
+import com.squareup.picasso.ScrollPrefetcher;
 
 public class SampleScrollListener implements AbsListView.OnScrollListener {
   private final Context context;
+  private final ScrollPrefetcher prefetcher;
 
   public SampleScrollListener(Context context) {
+    this(context, null);
+  }
+
+  public SampleScrollListener(Context context, ScrollPrefetcher prefetcher) {
     this.context = context;
+    this.prefetcher = prefetcher;
   }
 
   @Override
@@ -25,6 +34,14 @@ public class SampleScrollListener implements AbsListView.OnScrollListener {
   @Override
   public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
                        int totalItemCount) {
-    // Do nothing.
+    if (prefetcher == null || visibleItemCount == 0) {
+      return;
+    }
+    View item = view.getChildAt(0);
+    int columns = view instanceof GridView ? ((GridView) view).getNumColumns() : 1;
+    if (item != null && columns > 0) {
+      prefetcher.setItemLayout(columns, item.getWidth(), item.getHeight());
+    }
+    prefetcher.onScroll(firstVisibleItem, visibleItemCount);
   }
 }
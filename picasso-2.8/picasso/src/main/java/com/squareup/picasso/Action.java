@@ -40,14 +40,15 @@ abstract class Action<T> {
   final int networkPolicy;
   final int errorResId;
   final Drawable errorDrawable;
-  final String key;
+  final RequestKey key;
   final Object tag;
 
   boolean willReplay;
   boolean cancelled;
+  long deadlineNanos; // The System.nanoTime() after which the result is unwanted, or 0.
 
   Action(Picasso picasso, T target, Request request, int memoryPolicy, int networkPolicy,
-      int errorResId, Drawable errorDrawable, String key, Object tag, boolean noFade) {
+      int errorResId, Drawable errorDrawable, RequestKey key, Object tag, boolean noFade) {
     this.picasso = picasso;
     this.request = request;
     this.target =
@@ -65,6 +66,10 @@ abstract class Action<T> {
 
   abstract void error(Exception e);
 
+  /** Show a low-resolution preview ahead of {@link #complete}. Ignored by default. */
+  void preview(Bitmap preview, Picasso.LoadedFrom from) {
+  }
+
   void cancel() {
     cancelled = true;
   }
@@ -77,7 +82,7 @@ abstract class Action<T> {
     return target == null ? null : target.get();
   }
 
-  String getKey() {
+  RequestKey getKey() {
     return key;
   }
 
@@ -85,6 +90,15 @@ abstract class Action<T> {
     return cancelled;
   }
 
+  /**
+   * Whether the target is no longer in a position to show the result, for example because it was
+   * scrolled off screen. Called off the main thread to rank queued hunters, so subclasses answer
+   * from state the main thread keeps, and call {@link Picasso#attachStateChanged} when it changes.
+   */
+  boolean isDetached() {
+    return false;
+  }
+
   boolean willReplay() {
     return willReplay;
   }
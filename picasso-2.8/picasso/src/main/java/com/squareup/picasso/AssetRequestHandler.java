@@ -52,8 +52,10 @@ class AssetRequestHandler extends RequestHandler {
         }
       }
     }
-    Source source = Okio.source(assetManager.open(getFilePath(request)));
-    return new Result(source, DISK);
+    String path = getFilePath(request);
+    Source source = Okio.source(assetManager.open(path));
+    return new Result(null, source, DISK, 0, null,
+        ImageDecoderEngine.source(assetManager, path));
   }
 
   static String getFilePath(Request request) {
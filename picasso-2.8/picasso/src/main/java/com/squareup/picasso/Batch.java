@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.widget.ImageView;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.squareup.picasso.Utils.checkMain;
+
+/**
+ * Loads many requests together, for example the images of a page of a grid or the artwork of a
+ * playlist to precache. All requests of a batch reach the dispatcher in a single message, where
+ * requests for the same image share one download, and the {@link Listener} is notified once every
+ * one of them finished.
+ * <pre><code>
+ * new Batch.Builder(picasso)
+ *     .add(picasso.load(url1), imageView1)
+ *     .add(picasso.load(url2))
+ *     .tag(page)
+ *     .listener(listener)
+ *     .submit();
+ * </code></pre>
+ * All methods must be called from the main thread.
+ */
+public final class Batch {
+  /** Notified on the main thread once every item of a batch succeeded, failed or was cancelled. */
+  public interface Listener {
+    void onBatchComplete(@NonNull Batch batch);
+  }
+
+  /** One request of a batch. */
+  public static final class Item implements Callback {
+    final Batch batch;
+    final ImageView target;
+    Action action;
+    boolean done;
+    boolean cancelled;
+    Exception error;
+
+    Item(Batch batch, ImageView target) {
+      this.batch = batch;
+      this.target = target;
+    }
+
+    /** Whether the image was loaded. */
+    public boolean isSuccessful() {
+      return done && !cancelled && error == null;
+    }
+
+    /** Whether the request was cancelled, for example because its view was reused. */
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    /** The reason the image failed to load, or {@code null}. */
+    @Nullable public Exception getError() {
+      return error;
+    }
+
+    @Override public void onSuccess() {
+      finish();
+    }
+
+    @Override public void onError(@NonNull Exception e) {
+      error = e;
+      finish();
+    }
+
+    void onCancelled() {
+      cancelled = true;
+      finish();
+    }
+
+    private void finish() {
+      if (!done) {
+        done = true;
+        batch.onItemFinished();
+      }
+    }
+  }
+
+  private final Picasso picasso;
+  private final List<Item> items;
+  private Listener listener;
+  private int remaining;
+
+  Batch(Picasso picasso, int size, Listener listener) {
+    this.picasso = picasso;
+    this.items = new ArrayList<>(size);
+    this.listener = listener;
+    this.remaining = size;
+  }
+
+  /** The items in the order they were added, finished or not. */
+  @NonNull public List<Item> getItems() {
+    return Collections.unmodifiableList(items);
+  }
+
+  /** Whether every item succeeded, failed or was cancelled. */
+  public boolean isDone() {
+    return remaining == 0;
+  }
+
+  /** Cancel every unfinished item. The {@link Listener} will not be notified. */
+  public void cancel() {
+    checkMain();
+    listener = null;
+    //noinspection ForLoopReplaceableByForEach
+    for (int i = 0, n = items.size(); i < n; i++) {
+      Item item = items.get(i);
+      Action action = item.action;
+      if (item.done || action == null) {
+        continue;
+      }
+      if (item.target != null) {
+        if (picasso.targetToAction.get(item.target) == action) {
+          picasso.cancelExistingRequest(item.target);
+        }
+      } else {
+        picasso.cancelAction(action);
+      }
+    }
+  }
+
+  void onItemFinished() {
+    if (--remaining == 0 && listener != null) {
+      Listener listener = this.listener;
+      this.listener = null;
+      listener.onBatchComplete(this);
+    }
+  }
+
+  /** Fluent API for creating {@link Batch} instances. */
+  public static class Builder {
+    private final Picasso picasso;
+    private final List<RequestCreator> requests = new ArrayList<>();
+    private final List<ImageView> targets = new ArrayList<>();
+    private Object tag;
+    private Picasso.Priority priority;
+    private Listener listener;
+
+    public Builder(@NonNull Picasso picasso) {
+      if (picasso == null) {
+        throw new IllegalArgumentException("Picasso must not be null.");
+      }
+      this.picasso = picasso;
+    }
+
+    /** Fetch {@code request} into the cache, like {@link RequestCreator#fetch()}. */
+    public Builder add(@NonNull RequestCreator request) {
+      return add(request, null);
+    }
+
+    /** Load {@code request} into {@code target}, like {@link RequestCreator#into(ImageView)}. */
+    public Builder add(@NonNull RequestCreator request, @Nullable ImageView target) {
+      if (request == null) {
+        throw new IllegalArgumentException("Request must not be null.");
+      }
+      if (request.isDeferred()) {
+        throw new IllegalStateException("Fit cannot be used in a batch.");
+      }
+      requests.add(request);
+      targets.add(target);
+      return this;
+    }
+
+    /** Tag every request that has no tag of its own, for example to pause or cancel them. */
+    public Builder tag(@NonNull Object tag) {
+      if (tag == null) {
+        throw new IllegalArgumentException("Tag must not be null.");
+      }
+      this.tag = tag;
+      return this;
+    }
+
+    /** Load every request that has no priority of its own at {@code priority}. */
+    public Builder priority(@NonNull Picasso.Priority priority) {
+      if (priority == null) {
+        throw new IllegalArgumentException("Priority must not be null.");
+      }
+      this.priority = priority;
+      return this;
+    }
+
+    /** Be notified once every request finished. */
+    public Builder listener(@NonNull Listener listener) {
+      if (listener == null) {
+        throw new IllegalArgumentException("Listener must not be null.");
+      }
+      this.listener = listener;
+      return this;
+    }
+
+    /**
+     * Start loading every request. Requests that are in the memory cache complete right away, so
+     * the {@link Listener} may be notified before this returns.
+     */
+    public Batch submit() {
+      checkMain();
+      int size = requests.size();
+      Batch batch = new Batch(picasso, size, listener);
+      List<Action> actions = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        RequestCreator request = requests.get(i);
+        ImageView target = targets.get(i);
+        if (tag != null && request.getTag() == null) {
+          request.tag(tag);
+        }
+        if (priority != null && !request.hasPriority()) {
+          request.priority(priority);
+        }
+        Item item = new Item(batch, target);
+        batch.items.add(item);
+        Action action = target != null
+            ? request.prepareInto(target, item)
+            : request.prepareFetch(item);
+        if (action != null) {
+          item.action = action;
+          if (target != null) {
+            picasso.enqueue(action);
+          }
+          actions.add(action);
+        } else if (!item.done) {
+          // Nothing to load, for example a null uri that only shows the placeholder.
+          item.onSuccess();
+        }
+      }
+      if (size == 0 && listener != null) {
+        listener.onBatchComplete(batch);
+      } else if (!actions.isEmpty()) {
+        picasso.submit(actions);
+      }
+      return batch;
+    }
+  }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import java.io.IOException;
+import java.util.List;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+
+import static android.os.Build.VERSION.SDK_INT;
+import static android.os.Build.VERSION_CODES.O;
+
+/**
+ * Picks the {@link Bitmap.Config} of requests that did not ask for one, when
+ * {@link Picasso.Builder#automaticBitmapConfig(boolean)} is enabled.
+ * <ul>
+ * <li>Images whose header says they have no alpha channel (every JPEG, and PNGs and WebPs
+ * without alpha) decode as {@link Bitmap.Config#RGB_565}, half the memory of
+ * {@code ARGB_8888}.</li>
+ * <li>On API 26 and newer, requests into an {@link android.widget.ImageView} only display their
+ * result, so it is kept in a {@link Bitmap.Config#HARDWARE} bitmap, which lives in graphics
+ * memory instead of the app's heap. If nothing has to be drawn after decoding, the image is
+ * decoded into one directly; otherwise it is decoded and transformed in software and uploaded at
+ * the end.</li>
+ * </ul>
+ * Hardware bitmaps can not be read or drawn in software, so their requests have keys of their
+ * own and never meet a {@link Target}, a {@link PicassoFuture} or a transformation.
+ */
+final class BitmapConfigPolicy {
+  private static final ByteString JPEG_HEADER = ByteString.decodeHex("ffd8ff");
+  private static final ByteString PNG_HEADER = ByteString.decodeHex("89504e470d0a1a0a");
+  private static final ByteString RIFF = ByteString.encodeUtf8("RIFF");
+  private static final ByteString WEBP = ByteString.encodeUtf8("WEBP");
+  private static final ByteString VP8_LOSSY = ByteString.encodeUtf8("VP8 ");
+  private static final ByteString VP8_LOSSLESS = ByteString.encodeUtf8("VP8L");
+  private static final ByteString VP8_EXTENDED = ByteString.encodeUtf8("VP8X");
+  private static final int PNG_IHDR_COLOR_TYPE = 25;
+  private static final int PNG_FIRST_CHUNK_AFTER_IHDR = 33;
+  private static final int PNG_COLOR_TYPE_ALPHA = 4; // Set for gray and truecolor with alpha.
+  private static final int PNG_CHUNK_TRNS = 0x74524e53; // Transparency of palette or color key.
+  private static final int PNG_CHUNK_IDAT = 0x49444154; // Pixel data, after every tRNS.
+  /** How far into a PNG to look for a {@code tRNS} chunk before assuming it has alpha. */
+  private static final long PNG_MAX_HEADER_BYTES = 64 * 1024;
+  private static final int WEBP_CHUNK_TYPE = 12;
+  private static final int WEBP_CHUNK_DATA = 20;
+  private static final int WEBP_ALPHA_FLAG = 0x10; // VP8X flags and VP8L alpha_is_used bit.
+
+  /** Whether hardware bitmaps exist on the running platform. */
+  static boolean supportsHardware() {
+    return SDK_INT >= O;
+  }
+
+  /** Whether {@code config} is {@link Bitmap.Config#HARDWARE}, safe on every API level. */
+  static boolean isHardware(Bitmap.Config config) {
+    return config != null && SDK_INT >= O && config == Bitmap.Config.HARDWARE;
+  }
+
+  /** The config to draw a copy of {@code bitmap} into: its own, unless it can't be drawn into. */
+  static Bitmap.Config softwareConfig(Bitmap bitmap) {
+    Bitmap.Config config = bitmap.getConfig();
+    return config == null || isHardware(config) ? Bitmap.Config.ARGB_8888 : config;
+  }
+
+  /**
+   * Ask for a hardware bitmap for {@code request}, which is loaded into an {@code ImageView}, if
+   * it did not ask for a config itself.
+   */
+  @TargetApi(O)
+  static Request forImageView(Request request) {
+    if (request.config != null || !supportsHardware() || request.purgeable) {
+      return request;
+    }
+    Request hardware = request.buildUpon().config(Bitmap.Config.HARDWARE).build();
+    hardware.id = request.id;
+    hardware.started = request.started;
+    return hardware;
+  }
+
+  /**
+   * The request to decode {@code source} with for {@code request}. A hardware request is decoded
+   * in software if its bitmap has to be drawn afterwards; an opaque image without a config of its
+   * own is decoded as {@code RGB_565} unless a transformation of the request or of one of the
+   * {@code variants} sharing its decode may not handle it.
+   *
+   * @param drawnAfterDecode whether the decoded bitmap is rotated, scaled or shared with other
+   * sizes of the image.
+   */
+  static Request forDecode(Request request, List<BitmapHunter> variants, BufferedSource source,
+      boolean drawnAfterDecode) throws IOException {
+    if (isHardware(request.config)) {
+      return drawnAfterDecode || request.hasCustomTransformations()
+          ? request.buildUpon().clearConfig().build()
+          : request;
+    }
+    if (request.config == null && handlesRgb565(request.transformations)
+        && variantsHandleRgb565(variants) && isOpaque(source)) {
+      return request.buildUpon().config(Bitmap.Config.RGB_565).build();
+    }
+    return request;
+  }
+
+  /**
+   * Built-in transformations keep the config of their input, and switch to {@code ARGB_8888}
+   * themselves when they add transparency, as does a {@link DrawPass}. Others may assume their
+   * input has alpha.
+   */
+  static boolean handlesRgb565(List<Transformation> transformations) {
+    if (transformations == null) {
+      return true;
+    }
+    //noinspection ForLoopReplaceableByForEach
+    for (int i = 0, n = transformations.size(); i < n; i++) {
+      Transformation transformation = transformations.get(i);
+      if (!(transformation instanceof PixelTransformation)
+          && !(transformation instanceof FusedTransformation)
+          && !(transformation instanceof BlurTransformation)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean variantsHandleRgb565(List<BitmapHunter> variants) {
+    if (variants == null) {
+      return true;
+    }
+    //noinspection ForLoopReplaceableByForEach
+    for (int i = 0, n = variants.size(); i < n; i++) {
+      if (!handlesRgb565(variants.get(i).getData().transformations)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Whether the header of the image in {@code source} says it has no alpha channel, reading
+   * ahead without consuming anything. Formats other than JPEG, PNG and WebP are assumed to have
+   * alpha.
+   */
+  static boolean isOpaque(BufferedSource source) throws IOException {
+    if (!source.request(PNG_HEADER.size())) {
+      return false;
+    }
+    if (source.rangeEquals(0, JPEG_HEADER)) {
+      return true;
+    }
+    if (source.rangeEquals(0, PNG_HEADER)) {
+      return isOpaquePng(source);
+    }
+    if (source.rangeEquals(0, RIFF) && source.rangeEquals(8, WEBP)) {
+      return isOpaqueWebP(source);
+    }
+    return false;
+  }
+
+  private static boolean isOpaquePng(BufferedSource source) throws IOException {
+    if (!source.request(PNG_FIRST_CHUNK_AFTER_IHDR)) {
+      return false;
+    }
+    Buffer buffer = source.getBuffer();
+    if ((buffer.getByte(PNG_IHDR_COLOR_TYPE) & PNG_COLOR_TYPE_ALPHA) != 0) {
+      return false;
+    }
+    // Palette and color key transparency are in a tRNS chunk, which must come before the pixels.
+    long offset = PNG_FIRST_CHUNK_AFTER_IHDR;
+    while (offset < PNG_MAX_HEADER_BYTES && source.request(offset + 8)) {
+      int length = readInt(buffer, offset);
+      int type = readInt(buffer, offset + 4);
+      if (type == PNG_CHUNK_IDAT) {
+        return true;
+      }
+      if (type == PNG_CHUNK_TRNS || length < 0) {
+        return false;
+      }
+      offset += 12L + length; // Length, type, data and CRC.
+    }
+    return false;
+  }
+
+  private static boolean isOpaqueWebP(BufferedSource source) throws IOException {
+    if (source.rangeEquals(WEBP_CHUNK_TYPE, VP8_LOSSY)) {
+      return true;
+    }
+    if (!source.request(WEBP_CHUNK_DATA + 5)) {
+      return false;
+    }
+    Buffer buffer = source.getBuffer();
+    if (source.rangeEquals(WEBP_CHUNK_TYPE, VP8_EXTENDED)) {
+      return (buffer.getByte(WEBP_CHUNK_DATA) & WEBP_ALPHA_FLAG) == 0;
+    }
+    if (source.rangeEquals(WEBP_CHUNK_TYPE, VP8_LOSSLESS)) {
+      // A signature byte, then 14 bits of width, 14 of height and the alpha bit, little endian.
+      return (buffer.getByte(WEBP_CHUNK_DATA + 4) & WEBP_ALPHA_FLAG) == 0;
+    }
+    return false;
+  }
+
+  private static int readInt(Buffer buffer, long offset) {
+    return (buffer.getByte(offset) & 0xff) << 24
+        | (buffer.getByte(offset + 1) & 0xff) << 16
+        | (buffer.getByte(offset + 2) & 0xff) << 8
+        | buffer.getByte(offset + 3) & 0xff;
+  }
+
+  private BitmapConfigPolicy() {
+  }
+}
@@ -15,24 +15,31 @@
  */
 package com.squareup.picasso;
 
+import android.annotation.TargetApi;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Matrix;
+import android.graphics.Rect;
 import android.net.NetworkInfo;
 import android.os.Build;
 import android.view.Gravity;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import okio.Buffer;
 import okio.BufferedSource;
+import okio.ForwardingSource;
 import okio.Okio;
 import okio.Source;
 
+import static android.os.Build.VERSION_CODES.O;
 import static androidx.exifinterface.media.ExifInterface.ORIENTATION_FLIP_HORIZONTAL;
 import static androidx.exifinterface.media.ExifInterface.ORIENTATION_FLIP_VERTICAL;
 import static androidx.exifinterface.media.ExifInterface.ORIENTATION_ROTATE_180;
@@ -41,9 +48,13 @@ import static androidx.exifinterface.media.ExifInterface.ORIENTATION_ROTATE_90;
 import static androidx.exifinterface.media.ExifInterface.ORIENTATION_TRANSPOSE;
 import static androidx.exifinterface.media.ExifInterface.ORIENTATION_TRANSVERSE;
 import static com.squareup.picasso.MemoryPolicy.shouldReadFromMemoryCache;
+import static com.squareup.picasso.MemoryPolicy.shouldWriteToMemoryCache;
 import static com.squareup.picasso.Picasso.LoadedFrom.MEMORY;
+import static com.squareup.picasso.Picasso.LoadedFrom.NETWORK;
 import static com.squareup.picasso.Picasso.Priority;
 import static com.squareup.picasso.Picasso.Priority.LOW;
+import static com.squareup.picasso.PicassoExecutorService.PicassoFutureTask;
+import static com.squareup.picasso.StatsSnapshot.Stage;
 import static com.squareup.picasso.Utils.OWNER_HUNTER;
 import static com.squareup.picasso.Utils.VERB_DECODED;
 import static com.squareup.picasso.Utils.VERB_EXECUTING;
@@ -61,6 +72,13 @@ class BitmapHunter implements Runnable {
    */
   private static final Object DECODE_LOCK = new Object();
 
+  /** Previews are decoded at this multiple of the full decode's sample size. */
+  static final int PREVIEW_SAMPLE_FACTOR = 8;
+  /** Images whose full decode is smaller than this along both axes are not previewed. */
+  static final int PREVIEW_MIN_SIZE = 512;
+  /** Progressive requests look for the end of the first scan after reads of this many bytes. */
+  private static final long PREVIEW_READ_SIZE = 8192;
+
   private static final ThreadLocal<StringBuilder> NAME_BUILDER = new ThreadLocal<StringBuilder>() {
     @Override protected StringBuilder initialValue() {
       return new StringBuilder(Utils.THREAD_PREFIX);
@@ -83,8 +101,10 @@ class BitmapHunter implements Runnable {
   final Picasso picasso;
   final Dispatcher dispatcher;
   final Cache cache;
+  final EncodedCache encodedCache;
+  final MemoryGovernor governor;
   final Stats stats;
-  final String key;
+  final RequestKey key;
   final Request data;
   final int memoryPolicy;
   int networkPolicy;
@@ -99,13 +119,31 @@ class BitmapHunter implements Runnable {
   int exifOrientation; // Determined during decoding of original resource.
   int retryCount;
   Priority priority;
-
-  BitmapHunter(Picasso picasso, Dispatcher dispatcher, Cache cache, Stats stats, Action action,
-      RequestHandler requestHandler) {
+  volatile int recency; // Sequence of the most recent action to attach, newest runs first.
+  long queuedNanos; // When the dispatcher last submitted this hunter to the executor.
+  long startedNanos; // Last execution start, read by the executor once the hunter finishes.
+  long finishedNanos;
+  long bytesRead; // Bytes pulled from the request handler's source during the last execution.
+  long readNanos; // Time spent waiting on reads of that source.
+  long batchedNanos; // When the dispatcher queued this hunter for delivery to the main thread.
+  int pendingDeliveries; // Actions the main thread has yet to deliver this hunter's result to.
+  long reservedBytes; // Bitmap memory accounted against the budget during the current hunt.
+  String sourceKey; // Set by the dispatcher when other sizes of this source may join this hunter.
+  Bitmap preview; // Progressive requests only, handed to the main thread with previewActions.
+  List<Action> previewActions;
+  BitmapHunter source; // The hunter this one is derived from, if any.
+  private List<BitmapHunter> variants; // Guarded by this.
+  private boolean variantsSealed; // Guarded by this.
+
+  BitmapHunter(Picasso picasso, Dispatcher dispatcher, Cache cache, EncodedCache encodedCache,
+      MemoryGovernor governor, Stats stats, Action action, RequestHandler requestHandler) {
     this.sequence = SEQUENCE_GENERATOR.incrementAndGet();
+    this.recency = sequence;
     this.picasso = picasso;
     this.dispatcher = dispatcher;
     this.cache = cache;
+    this.encodedCache = encodedCache;
+    this.governor = governor;
     this.stats = stats;
     this.action = action;
     this.key = action.getKey();
@@ -122,8 +160,9 @@ class BitmapHunter implements Runnable {
    * about the supplied request in order to do the decoding efficiently (such as through leveraging
    * {@code inSampleSize}).
    */
-  static Bitmap decodeStream(Source source, Request request) throws IOException {
-    BufferedSource bufferedSource = Okio.buffer(source);
+  Bitmap decodeStream(Source source, Request request) throws IOException {
+    BufferedSource bufferedSource =
+        source instanceof BufferedSource ? (BufferedSource) source : Okio.buffer(source);
 
     boolean isWebPFile = Utils.isWebPFile(bufferedSource);
     boolean isPurgeable = request.purgeable && Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP;
@@ -132,47 +171,175 @@ class BitmapHunter implements Runnable {
 
     // We decode from a byte array because, a) when decoding a WebP network stream, BitmapFactory
     // throws a JNI Exception, so we workaround by decoding a byte array, or b) user requested
-    // purgeable, which only affects bitmaps decoded from byte arrays.
+    // purgeable, which only affects bitmaps decoded from byte arrays. Other streams are left to
+    // BitmapFactory, which decodes as bytes arrive; ImageDecoder can't read streams.
     if (isWebPFile || isPurgeable) {
-      byte[] bytes = bufferedSource.readByteArray();
-      if (calculateSize) {
-        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
-        RequestHandler.calculateInSampleSize(request.targetWidth, request.targetHeight, options,
-            request);
-      }
-      return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+      return decodeByteArray(bufferedSource.readByteArray(), request);
     } else {
-      InputStream stream = bufferedSource.inputStream();
       if (calculateSize) {
-        // TODO use an InputStream that buffers with Okio...
-        MarkableInputStream markStream = new MarkableInputStream(stream);
-        stream = markStream;
-        markStream.allowMarksToExpire(false);
-        long mark = markStream.savePosition(1024);
-        BitmapFactory.decodeStream(stream, null, options);
+        // Read the header through a peek so the bytes it pulls in stay buffered in the source's
+        // segments for the real decode, rather than being copied into a rewindable stream.
+        BitmapFactory.decodeStream(bufferedSource.peek().inputStream(), null, options);
         RequestHandler.calculateInSampleSize(request.targetWidth, request.targetHeight, options,
             request);
-        markStream.reset(mark);
-        markStream.allowMarksToExpire(true);
+        calculateDensityScale(request, options);
+        reserveMemory(estimateBitmapBytes(options));
       }
-      Bitmap bitmap = BitmapFactory.decodeStream(stream, null, options);
+      Bitmap bitmap = BitmapFactory.decodeStream(bufferedSource.inputStream(), null, options);
       if (bitmap == null) {
         // Treat null as an IO exception, we will eventually retry.
         throw new IOException("Failed to decode stream.");
       }
-      return bitmap;
+      return resetDensity(bitmap, options);
+    }
+  }
+
+  Bitmap decodeByteArray(byte[] bytes, Request request) throws IOException {
+    if (ImageDecoderEngine.canDecode(request)) {
+      return decodedByImageDecoder(ImageDecoderEngine.decode(bytes, request, this));
+    }
+    BitmapFactory.Options options = RequestHandler.createBitmapOptions(request);
+    if (RequestHandler.requiresInSampleSize(options)) {
+      BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+      RequestHandler.calculateInSampleSize(request.targetWidth, request.targetHeight, options,
+          request);
+      calculateDensityScale(request, options);
+      reserveMemory(estimateBitmapBytes(options));
+    }
+    Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+    return bitmap != null ? resetDensity(bitmap, options) : null;
+  }
+
+  /**
+   * Let the decode scale to the target size itself unless the transform would not scale
+   * uniformly from the decoded orientation anyway.
+   */
+  private void calculateDensityScale(Request request, BitmapFactory.Options options) {
+    int exifRotation = getExifRotation(exifOrientation);
+    if (request.rotationDegrees == 0 && exifRotation != 90 && exifRotation != 270) {
+      RequestHandler.calculateDensityScale(request, options);
     }
   }
 
+  /**
+   * A density scaled decode is tagged with the target density, which would have drawables scale
+   * it again; give it the density an unscaled decode gets.
+   */
+  static Bitmap resetDensity(Bitmap bitmap, BitmapFactory.Options options) {
+    if (options != null && options.inScaled && options.inTargetDensity != 0) {
+      bitmap.setDensity(Resources.getSystem().getDisplayMetrics().densityDpi);
+    }
+    return bitmap;
+  }
+
+  /**
+   * Estimate the memory a decode with {@code options} allocates once its bounds and sample size
+   * are known. Configs wider than {@code ARGB_8888} are rare enough to be counted as it.
+   */
+  static long estimateBitmapBytes(BitmapFactory.Options options) {
+    int sampleSize = Math.max(1, options.inSampleSize);
+    int width = (options.outWidth + sampleSize - 1) / sampleSize;
+    int height = (options.outHeight + sampleSize - 1) / sampleSize;
+    if (options.inScaled && options.inDensity > 0 && options.inTargetDensity > 0) {
+      float scale = options.inTargetDensity / (float) options.inDensity;
+      width = (int) (width * scale + 0.5f);
+      height = (int) (height * scale + 0.5f);
+    }
+    return estimateBitmapBytes(width, height, options.inPreferredConfig);
+  }
+
+  static long estimateBitmapBytes(int width, int height, Bitmap.Config config) {
+    int bytesPerPixel;
+    if (config == Bitmap.Config.ALPHA_8) {
+      bytesPerPixel = 1;
+    } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+      bytesPerPixel = 2;
+    } else {
+      bytesPerPixel = 4;
+    }
+    return (long) width * height * bytesPerPixel;
+  }
+
+  /**
+   * Read all of {@code source} and decode it. If it is a progressive JPEG, a preview is decoded
+   * and delivered from its first scan as soon as that has been read, while the rest of the image
+   * is still arriving. Both decodes read the same buffer.
+   */
+  private Bitmap decodeProgressive(BufferedSource source, Request request) throws IOException {
+    Buffer buffer = new Buffer();
+    ProgressiveJpeg jpeg = new ProgressiveJpeg();
+    long firstScanEnd = ProgressiveJpeg.MORE;
+    while (source.read(buffer, PREVIEW_READ_SIZE) != -1) {
+      if (firstScanEnd == ProgressiveJpeg.MORE) {
+        firstScanEnd = jpeg.firstScanEnd(buffer);
+        if (firstScanEnd >= 0) {
+          Buffer firstScan = new Buffer();
+          buffer.copyTo(firstScan, 0, firstScanEnd);
+          firstScan.writeByte(0xFF).writeByte(0xD9); // End of image.
+          deliverPreview(decodePreview(firstScan.readByteArray(), request));
+        }
+      }
+    }
+    return decodeByteArray(buffer.readByteArray(), request);
+  }
+
+  /**
+   * Decode a preview subsampled {@link #PREVIEW_SAMPLE_FACTOR} times further than the full decode
+   * of {@code request}, or return null if the image is too small to be worth previewing.
+   */
+  Bitmap decodePreview(byte[] bytes, Request request) {
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+    if (options.outWidth <= 0 || options.outHeight <= 0) {
+      return null;
+    }
+    if (request.hasSize()) {
+      RequestHandler.calculateInSampleSize(request.targetWidth, request.targetHeight, options,
+          request);
+    }
+    int sampleSize = Math.max(1, options.inSampleSize);
+    if (Math.max(options.outWidth, options.outHeight) / sampleSize < PREVIEW_MIN_SIZE) {
+      return null;
+    }
+    options.inJustDecodeBounds = false;
+    options.inSampleSize = sampleSize * PREVIEW_SAMPLE_FACTOR;
+    if (request.config != null) {
+      options.inPreferredConfig = request.config;
+    }
+    return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+  }
+
   @Override public void run() {
+    startedNanos = System.nanoTime();
+    bytesRead = 0;
+    readNanos = 0;
+    synchronized (this) {
+      variantsSealed = false;
+    }
     try {
+      long deadlineNanos = getDeadlineNanos();
+      if (deadlineNanos != 0 && startedNanos - deadlineNanos > 0) {
+        exception = new TimeoutException("Deadline passed before " + data.logId() + " started.");
+        dispatcher.dispatchFailed(this);
+        return;
+      }
+
       updateThreadName(data);
 
       if (picasso.loggingEnabled) {
         log(OWNER_HUNTER, VERB_EXECUTING, getLogIdsForHunter(this));
       }
 
-      result = hunt();
+      try {
+        result = hunt();
+      } catch (OutOfMemoryError e) {
+        // Evicting the memory cache may have freed what the decode was missing. Try once more.
+        if (!governor.onOutOfMemory()) {
+          throw e;
+        }
+        result = hunt();
+      }
 
       if (result == null) {
         dispatcher.dispatchFailed(this);
@@ -196,18 +363,32 @@ class BitmapHunter implements Runnable {
       exception = e;
       dispatcher.dispatchFailed(this);
     } finally {
+      finishedNanos = System.nanoTime();
       Thread.currentThread().setName(Utils.THREAD_IDLE_NAME);
     }
   }
 
   Bitmap hunt() throws IOException {
+    try {
+      return huntWithinBudget();
+    } finally {
+      if (reservedBytes != 0) {
+        governor.release(reservedBytes);
+        reservedBytes = 0;
+      }
+    }
+  }
+
+  private Bitmap huntWithinBudget() throws IOException {
     Bitmap bitmap = null;
+    List<BitmapHunter> variants = null;
 
     if (shouldReadFromMemoryCache(memoryPolicy)) {
-      bitmap = cache.get(key);
+      bitmap = Utils.getFromCache(cache, key);
       if (bitmap != null) {
         stats.dispatchCacheHit();
         loadedFrom = MEMORY;
+        recordQueueWait();
         if (picasso.loggingEnabled) {
           log(OWNER_HUNTER, VERB_DECODED, data.logId(), "from cache");
         }
@@ -216,23 +397,70 @@ class BitmapHunter implements Runnable {
     }
 
     networkPolicy = retryCount == 0 ? NetworkPolicy.OFFLINE.index : networkPolicy;
-    RequestHandler.Result result = requestHandler.load(data, networkPolicy);
-    if (result != null) {
-      loadedFrom = result.getLoadedFrom();
-      exifOrientation = result.getExifOrientation();
-      bitmap = result.getBitmap();
+    if (data.hasRegion()) {
+      bitmap = huntRegion();
+    } else {
+      long loadStartNanos = System.nanoTime();
+      RequestHandler.Result result = loadEncoded();
+      if (result == null) {
+        result = requestHandler.load(data, networkPolicy);
+      }
+      if (result != null) {
+        loadedFrom = result.getLoadedFrom();
+        exifOrientation = result.getExifOrientation();
+        bitmap = result.getBitmap();
+        variants = sealVariants();
+        long decodeStartNanos = System.nanoTime();
+        recordQueueWait();
+        if (bitmap != null) {
+          stats.dispatchLatency(Stage.DOWNLOAD, loadedFrom, decodeStartNanos - loadStartNanos);
+        }
 
-      // If there was no Bitmap then we need to decode it from the stream.
-      if (bitmap == null) {
-        Source source = result.getSource();
-        try {
-          bitmap = decodeStream(source, data);
-        } finally {
+        // If there was no Bitmap then we need to decode it from the stream.
+        if (bitmap == null) {
+          Source raw = result.getSource();
+          EncodedCache.Capture capture = null;
+          if (encodedCache != null && loadedFrom == NETWORK
+              && shouldWriteToMemoryCache(memoryPolicy)) {
+            raw = capture = encodedCache.capture(raw);
+          }
+          BufferedSource source = Okio.buffer(new CountingSource(raw));
           try {
-            //noinspection ConstantConditions If bitmap is null then source is guranteed non-null.
-            source.close();
-          } catch (IOException ignored) {
+            Request decodeRequest = createDecodeRequest(data, variants);
+            if (picasso.automaticBitmapConfig || BitmapConfigPolicy.isHardware(data.config)) {
+              boolean drawn = variants != null || data.needsMatrixTransform()
+                  || exifOrientation != 0;
+              decodeRequest = BitmapConfigPolicy.forDecode(decodeRequest, variants, source, drawn);
+            }
+            if (result.decoderSource != null && !data.progressive
+                && ImageDecoderEngine.canDecode(decodeRequest)) {
+              bitmap = decodedByImageDecoder(
+                  ImageDecoderEngine.decode(result.decoderSource, decodeRequest, this));
+            } else if (data.progressive) {
+              bitmap = decodeProgressive(source, decodeRequest);
+            } else {
+              bitmap = decodeStream(source, decodeRequest);
+            }
+            if (bitmap != null && capture != null && capture.capturing()) {
+              // Decoders may stop before the end of the image's bytes.
+              source.readAll(Okio.blackhole());
+              byte[] bytes = capture.bytes();
+              if (bytes != null) {
+                encodedCache.set(key.source(), bytes, result.getExifOrientation());
+              }
+            }
+          } finally {
+            try {
+              //noinspection ConstantConditions If bitmap is null then source is guranteed non-null.
+              source.close();
+            } catch (IOException ignored) {
+            }
+            // A network body is read as it is decoded, and waiting for it counts as download.
+            stats.dispatchLatency(Stage.DOWNLOAD, loadedFrom,
+                decodeStartNanos - loadStartNanos + readNanos);
           }
+          stats.dispatchLatency(Stage.DECODE, loadedFrom,
+              System.nanoTime() - decodeStartNanos - readNanos);
         }
       }
     }
@@ -242,31 +470,324 @@ class BitmapHunter implements Runnable {
         log(OWNER_HUNTER, VERB_DECODED, data.logId());
       }
       stats.dispatchBitmapDecoded(bitmap);
-      if (data.needsTransformation() || exifOrientation != 0) {
-        synchronized (DECODE_LOCK) {
-          if (data.needsMatrixTransform() || exifOrientation != 0) {
-            bitmap = transformResult(data, bitmap, exifOrientation);
-            if (picasso.loggingEnabled) {
-              log(OWNER_HUNTER, VERB_TRANSFORMED, data.logId());
-            }
+      // Replace the decode estimate with the bitmap actually held, plus room for one more of its
+      // size since transformations allocate their output while the input is still alive.
+      long held = Utils.getBitmapBytes(bitmap);
+      if (variants != null || data.needsTransformation() || exifOrientation != 0) {
+        held *= 2;
+      }
+      reserveMemory(held - reservedBytes);
+      boolean shared = false;
+      if (variants != null) {
+        // Variants are derived first so that this hunter may reuse the decoded bitmap last.
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0, n = variants.size(); i < n; i++) {
+          BitmapHunter variant = variants.get(i);
+          variant.loadedFrom = loadedFrom;
+          variant.exifOrientation = exifOrientation;
+          variant.result = variant.transform(bitmap, true);
+          shared |= variant.result == bitmap;
+        }
+      }
+      bitmap = transform(bitmap, shared);
+    }
+
+    return bitmap;
+  }
+
+  /**
+   * Returns the encoded image of {@link #data} from the second tier of the memory cache as a
+   * result, or null if it is not there. Only images downloaded from the network are kept there;
+   * local ones are read again from their source.
+   */
+  private RequestHandler.Result loadEncoded() {
+    if (encodedCache == null || !(requestHandler instanceof NetworkRequestHandler)
+        || !shouldReadFromMemoryCache(memoryPolicy)) {
+      return null;
+    }
+    EncodedCache.Entry entry = encodedCache.get(key.source());
+    if (entry == null) {
+      stats.dispatchEncodedCacheMiss();
+      return null;
+    }
+    stats.dispatchEncodedCacheHit();
+    return new RequestHandler.Result(null, new Buffer().write(entry.bytes), MEMORY,
+        entry.exifOrientation, null, ImageDecoderEngine.source(entry.bytes));
+  }
+
+  /**
+   * Decode the region of {@link #data} with the open decoder of its source, or open one through
+   * the request handler and keep it in the pool for the source's other regions.
+   */
+  private Bitmap huntRegion() throws IOException {
+    String sourceKey = key.source();
+    RegionDecoderPool pool = picasso.regionDecoders;
+    RegionDecoderPool.Entry entry = pool.acquire(sourceKey);
+    if (entry == null) {
+      long loadStartNanos = System.nanoTime();
+      RequestHandler.Result result = requestHandler.load(data, networkPolicy);
+      if (result == null) {
+        return null;
+      }
+      loadedFrom = result.getLoadedFrom();
+      recordQueueWait();
+      Bitmap bitmap = result.getBitmap();
+      if (bitmap != null) {
+        stats.dispatchLatency(Stage.DOWNLOAD, loadedFrom, System.nanoTime() - loadStartNanos);
+        // The handler decoded the whole image itself.
+        return cropRegion(bitmap, data.region);
+      }
+      long openStartNanos = System.nanoTime();
+      BitmapRegionDecoder decoder = openRegionDecoder(result);
+      stats.dispatchLatency(Stage.DOWNLOAD, loadedFrom,
+          openStartNanos - loadStartNanos + readNanos);
+      entry = pool.put(sourceKey, decoder, loadedFrom);
+    } else {
+      loadedFrom = entry.loadedFrom;
+      recordQueueWait();
+    }
+    long decodeStartNanos = System.nanoTime();
+    try {
+      return decodeRegion(entry.decoder, data);
+    } finally {
+      pool.release(entry);
+      stats.dispatchLatency(Stage.DECODE, loadedFrom, System.nanoTime() - decodeStartNanos);
+    }
+  }
+
+  private BitmapRegionDecoder openRegionDecoder(RequestHandler.Result result) throws IOException {
+    Source source = new CountingSource(result.getSource());
+    try {
+      return result.file != null
+          ? BitmapRegionDecoder.newInstance(result.file.getPath(), false)
+          : BitmapRegionDecoder.newInstance(Okio.buffer(source).inputStream(), false);
+    } finally {
+      try {
+        source.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  /**
+   * Decode the part of {@code request}'s region that lies within the image, subsampled by as
+   * much as its target size allows.
+   */
+  Bitmap decodeRegion(BitmapRegionDecoder decoder, Request request) throws IOException {
+    Rect region = clampRegion(request.region, decoder.getWidth(), decoder.getHeight());
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    if (request.config != null) {
+      options.inPreferredConfig = request.config;
+    }
+    if (request.hasSize()) {
+      RequestHandler.calculateInSampleSize(request.targetWidth, request.targetHeight,
+          region.width(), region.height(), options, request);
+    }
+    int sampleSize = Math.max(1, options.inSampleSize);
+    reserveMemory(estimateBitmapBytes((region.width() + sampleSize - 1) / sampleSize,
+        (region.height() + sampleSize - 1) / sampleSize, options.inPreferredConfig));
+    Bitmap bitmap = decoder.decodeRegion(region, options);
+    if (bitmap == null) {
+      throw new IOException("Failed to decode region.");
+    }
+    return bitmap;
+  }
+
+  static Bitmap cropRegion(Bitmap bitmap, Rect region) {
+    Rect clamped = clampRegion(region, bitmap.getWidth(), bitmap.getHeight());
+    Bitmap cropped = Bitmap.createBitmap(bitmap, clamped.left, clamped.top, clamped.width(),
+        clamped.height());
+    if (cropped != bitmap) {
+      bitmap.recycle();
+    }
+    return cropped;
+  }
+
+  private static Rect clampRegion(Rect region, int width, int height) {
+    Rect clamped = new Rect(region);
+    if (!clamped.intersect(0, 0, width, height)) {
+      throw new IllegalArgumentException("Region " + region.toShortString()
+          + " lies outside of the " + width + "x" + height + " image.");
+    }
+    return clamped;
+  }
+
+  /** ImageDecoder has already applied the orientation that BitmapFactory leaves to us. */
+  private Bitmap decodedByImageDecoder(Bitmap bitmap) {
+    exifOrientation = 0;
+    return bitmap;
+  }
+
+  void reserveMemory(long bytes) {
+    reservedBytes += bytes;
+    governor.reserve(bytes);
+  }
+
+  private void recordQueueWait() {
+    if (queuedNanos != 0) {
+      stats.dispatchLatency(Stage.QUEUE_WAIT, loadedFrom, startedNanos - queuedNanos);
+    }
+  }
+
+  private void deliverPreview(Bitmap preview) {
+    if (preview == null) {
+      return;
+    }
+    // Match the orientation of the final image, but leave scaling to the target.
+    if (data.rotationDegrees != 0 || exifOrientation != 0) {
+      Request rotation = data.buildUpon().clearResize().clearOnlyScaleDown().build();
+      preview = transformResult(rotation, preview, exifOrientation);
+    }
+    this.preview = preview;
+    dispatcher.dispatchPreview(this);
+  }
+
+  /**
+   * Apply this hunter's matrix and custom transformations to {@code bitmap}. A {@code shared}
+   * bitmap is referenced by other hunters and is never recycled.
+   */
+  Bitmap transform(Bitmap bitmap, boolean shared) {
+    if (data.needsTransformation() || exifOrientation != 0) {
+      long startNanos = System.nanoTime();
+      Bitmap input = bitmap;
+      synchronized (DECODE_LOCK) {
+        List<Transformation> transformations = data.transformations;
+        int fused = 0;
+        if (data.hasCustomTransformations()
+            && transformations.get(0) instanceof FusedTransformation) {
+          // Draw the matrix and the leading fused transformations into a single bitmap.
+          Matrix matrix = new Matrix();
+          Rect bounds = computeTransform(data, bitmap.getWidth(), bitmap.getHeight(),
+              exifOrientation, matrix);
+          DrawPass pass = new DrawPass(bitmap, bounds, matrix);
+          fused = fuseTransformations(transformations, pass);
+          if (fused < 0) {
+            return null;
           }
-          if (data.hasCustomTransformations()) {
-            bitmap = applyCustomTransformations(data.transformations, bitmap);
+          if (fused > 0) {
+            bitmap = pass.draw();
+            if (!shared) {
+              input.recycle();
+            }
             if (picasso.loggingEnabled) {
-              log(OWNER_HUNTER, VERB_TRANSFORMED, data.logId(), "from custom transformations");
+              log(OWNER_HUNTER, VERB_TRANSFORMED, data.logId(),
+                  "with " + fused + " fused transformation(s)");
             }
           }
         }
-        if (bitmap != null) {
-          stats.dispatchBitmapTransformed(bitmap);
+        if (fused == 0 && (data.needsMatrixTransform() || exifOrientation != 0)) {
+          bitmap = transformResult(data, bitmap, exifOrientation, !shared);
+          if (picasso.loggingEnabled) {
+            log(OWNER_HUNTER, VERB_TRANSFORMED, data.logId());
+          }
+        }
+        if (data.hasCustomTransformations() && fused < transformations.size()) {
+          if (shared && bitmap == input) {
+            // Transformations recycle their input, so give them a private copy.
+            bitmap = bitmap.copy(BitmapConfigPolicy.softwareConfig(bitmap), true);
+          }
+          bitmap = applyCustomTransformations(
+              transformations.subList(fused, transformations.size()), bitmap);
+          if (picasso.loggingEnabled) {
+            log(OWNER_HUNTER, VERB_TRANSFORMED, data.logId(), "from custom transformations");
+          }
         }
       }
+      if (bitmap != null) {
+        stats.dispatchBitmapTransformed(bitmap);
+        stats.dispatchLatency(Stage.TRANSFORM, loadedFrom, System.nanoTime() - startNanos);
+      }
+    }
+    if (bitmap != null && BitmapConfigPolicy.isHardware(data.config)
+        && !BitmapConfigPolicy.isHardware(bitmap.getConfig())) {
+      bitmap = uploadToHardware(bitmap, shared);
     }
-
     return bitmap;
   }
 
-  void attach(Action action) {
+  /**
+   * Move a software {@code bitmap} into a hardware bitmap, for requests that only display their
+   * result. The software bitmap is recycled unless it is {@code shared} with other hunters.
+   */
+  @TargetApi(O)
+  private static Bitmap uploadToHardware(Bitmap bitmap, boolean shared) {
+    Bitmap hardware = bitmap.copy(Bitmap.Config.HARDWARE, false);
+    if (hardware == null) {
+      // The platform could not allocate a graphics buffer; the software bitmap will do.
+      return bitmap;
+    }
+    if (!shared) {
+      bitmap.recycle();
+    }
+    return hardware;
+  }
+
+  /**
+   * Derive {@code variant}'s result from this hunter's decode instead of fetching its source
+   * again. Returns false if decoding has already begun, in which case the variant must be hunted
+   * on its own.
+   */
+  synchronized boolean addVariant(BitmapHunter variant) {
+    if (variantsSealed) {
+      return false;
+    }
+    if (variants == null) {
+      variants = new ArrayList<>(2);
+    }
+    variants.add(variant);
+    variant.source = this;
+    return true;
+  }
+
+  /** Returns false if {@code variant} is already being derived from this hunter's decode. */
+  synchronized boolean removeVariant(BitmapHunter variant) {
+    if (variantsSealed || variants == null || !variants.remove(variant)) {
+      return false;
+    }
+    variant.source = null;
+    return true;
+  }
+
+  /** Detach all variants once this hunter finished. */
+  synchronized List<BitmapHunter> takeVariants() {
+    List<BitmapHunter> variants = this.variants;
+    this.variants = null;
+    return variants;
+  }
+
+  private synchronized List<BitmapHunter> sealVariants() {
+    variantsSealed = true;
+    return variants == null ? null : new ArrayList<>(variants);
+  }
+
+  /** The request to decode with so that the result is large enough for every variant. */
+  static Request createDecodeRequest(Request data, List<BitmapHunter> variants) {
+    if (variants == null || !data.hasSize()) {
+      return data;
+    }
+    int targetWidth = data.targetWidth;
+    int targetHeight = data.targetHeight;
+    //noinspection ForLoopReplaceableByForEach
+    for (int i = 0, n = variants.size(); i < n; i++) {
+      Request variant = variants.get(i).data;
+      if (!variant.hasSize()) {
+        return data.buildUpon().clearResize().clearOnlyScaleDown().build();
+      }
+      targetWidth = Math.max(targetWidth, variant.targetWidth);
+      targetHeight = Math.max(targetHeight, variant.targetHeight);
+    }
+    // Sample by the smaller ratio so both dimensions cover the largest variant.
+    return data.buildUpon()
+        .resize(targetWidth, targetHeight)
+        .clearCenterCrop()
+        .clearCenterInside()
+        .clearOnlyScaleDown()
+        .build();
+  }
+
+  // Synchronized with isDetached() and getDeadlineNanos(), which rank queued hunters.
+  synchronized void attach(Action action) {
+    recency = SEQUENCE_GENERATOR.incrementAndGet();
     boolean loggingEnabled = picasso.loggingEnabled;
     Request request = action.request;
 
@@ -298,7 +819,7 @@ class BitmapHunter implements Runnable {
     }
   }
 
-  void detach(Action action) {
+  synchronized void detach(Action action) {
     boolean detached = false;
     if (this.action == action) {
       this.action = null;
@@ -346,17 +867,90 @@ class BitmapHunter implements Runnable {
     return newPriority;
   }
 
+  /**
+   * Whether every target waiting on this hunter is detached. Hunters with no actions left are
+   * detached too, unless other hunters derive their result from this one.
+   */
+  synchronized boolean isDetached() {
+    if (variants != null && !variants.isEmpty()) {
+      return false;
+    }
+    if (action != null && !action.isDetached()) {
+      return false;
+    }
+    if (actions != null) {
+      //noinspection ForLoopReplaceableByForEach
+      for (int i = 0, n = actions.size(); i < n; i++) {
+        if (!actions.get(i).isDetached()) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The {@link System#nanoTime()} after which no action wants this hunter's result, or 0 if some
+   * action has no deadline.
+   */
+  synchronized long getDeadlineNanos() {
+    if (variants != null && !variants.isEmpty()) {
+      return 0;
+    }
+    if (action != null && action.deadlineNanos == 0) {
+      return 0;
+    }
+    long deadline = action != null ? action.deadlineNanos : Long.MIN_VALUE;
+    if (actions != null) {
+      //noinspection ForLoopReplaceableByForEach
+      for (int i = 0, n = actions.size(); i < n; i++) {
+        long actionDeadline = actions.get(i).deadlineNanos;
+        if (actionDeadline == 0) {
+          return 0;
+        }
+        if (deadline == Long.MIN_VALUE || actionDeadline - deadline > 0) {
+          deadline = actionDeadline;
+        }
+      }
+    }
+    return deadline == Long.MIN_VALUE ? 0 : deadline;
+  }
+
   boolean cancel() {
-    return action == null
-        && (actions == null || actions.isEmpty())
-        && future != null
-        && future.cancel(false);
+    if (action != null || (actions != null && !actions.isEmpty())) {
+      return false;
+    }
+    BitmapHunter source = this.source;
+    if (source != null) {
+      if (!source.removeVariant(this)) {
+        return false;
+      }
+      // Without this variant the source may only be working for detached targets.
+      source.rerank();
+      return true;
+    }
+    synchronized (this) {
+      if (variants != null && !variants.isEmpty()) {
+        return false;
+      }
+    }
+    return future != null && future.cancel(false);
   }
 
   boolean isCancelled() {
     return future != null && future.isCancelled();
   }
 
+  /**
+   * Move this hunter to its place in the executor's queue, if it waits there, after its actions,
+   * variants or their targets changed. Must not be called holding this hunter's monitor.
+   */
+  void rerank() {
+    if (future instanceof PicassoFutureTask) {
+      ((PicassoFutureTask) future).rerank();
+    }
+  }
+
   boolean shouldRetry(boolean airplaneMode, NetworkInfo info) {
     boolean hasRetries = retryCount > 0;
     if (!hasRetries) {
@@ -374,7 +968,7 @@ class BitmapHunter implements Runnable {
     return result;
   }
 
-  String getKey() {
+  RequestKey getKey() {
     return key;
   }
 
@@ -410,6 +1004,26 @@ class BitmapHunter implements Runnable {
     return priority;
   }
 
+  /**
+   * Tracks how many bytes a load produced so the executor can estimate throughput, and how long
+   * reading them took so that it is not counted as decoding.
+   */
+  private final class CountingSource extends ForwardingSource {
+    CountingSource(Source delegate) {
+      super(delegate);
+    }
+
+    @Override public long read(Buffer sink, long byteCount) throws IOException {
+      long startNanos = System.nanoTime();
+      long read = super.read(sink, byteCount);
+      readNanos += System.nanoTime() - startNanos;
+      if (read != -1) {
+        bytesRead += read;
+      }
+      return read;
+    }
+  }
+
   static void updateThreadName(Request data) {
     String name = data.getName();
 
@@ -420,8 +1034,8 @@ class BitmapHunter implements Runnable {
     Thread.currentThread().setName(builder.toString());
   }
 
-  static BitmapHunter forRequest(Picasso picasso, Dispatcher dispatcher, Cache cache, Stats stats,
-      Action action) {
+  static BitmapHunter forRequest(Picasso picasso, Dispatcher dispatcher, Cache cache,
+      EncodedCache encodedCache, MemoryGovernor governor, Stats stats, Action action) {
     Request request = action.getRequest();
     List<RequestHandler> requestHandlers = picasso.getRequestHandlers();
 
@@ -430,11 +1044,41 @@ class BitmapHunter implements Runnable {
     for (int i = 0, count = requestHandlers.size(); i < count; i++) {
       RequestHandler requestHandler = requestHandlers.get(i);
       if (requestHandler.canHandleRequest(request)) {
-        return new BitmapHunter(picasso, dispatcher, cache, stats, action, requestHandler);
+        return new BitmapHunter(picasso, dispatcher, cache, encodedCache, governor, stats, action,
+            requestHandler);
       }
     }
 
-    return new BitmapHunter(picasso, dispatcher, cache, stats, action, ERRORING_HANDLER);
+    return new BitmapHunter(picasso, dispatcher, cache, encodedCache, governor, stats, action,
+        ERRORING_HANDLER);
+  }
+
+  /**
+   * Offer the leading {@link FusedTransformation}s of {@code transformations} to {@code pass}.
+   * Returns how many of them it took, or -1 if one of them crashed.
+   */
+  static int fuseTransformations(List<Transformation> transformations, DrawPass pass) {
+    int fused = 0;
+    for (int count = transformations.size(); fused < count; fused++) {
+      final Transformation transformation = transformations.get(fused);
+      if (!(transformation instanceof FusedTransformation)) {
+        break;
+      }
+      try {
+        if (!((FusedTransformation) transformation).fuse(pass)) {
+          break;
+        }
+      } catch (final RuntimeException e) {
+        Picasso.HANDLER.post(new Runnable() {
+          @Override public void run() {
+            throw new RuntimeException(
+                "Transformation " + transformation.key() + " crashed with exception.", e);
+          }
+        });
+        return -1;
+      }
+    }
+    return fused;
   }
 
   static Bitmap applyCustomTransformations(List<Transformation> transformations, Bitmap result) {
@@ -500,8 +1144,37 @@ class BitmapHunter implements Runnable {
   }
 
   static Bitmap transformResult(Request data, Bitmap result, int exifOrientation) {
-    int inWidth = result.getWidth();
-    int inHeight = result.getHeight();
+    return transformResult(data, result, exifOrientation, true);
+  }
+
+  static Bitmap transformResult(Request data, Bitmap result, int exifOrientation,
+      boolean recycleSource) {
+    Matrix matrix = new Matrix();
+    Rect draw = computeTransform(data, result.getWidth(), result.getHeight(), exifOrientation,
+        matrix);
+    if (matrix.isIdentity() && draw.left == 0 && draw.top == 0
+        && draw.width() == result.getWidth() && draw.height() == result.getHeight()) {
+      // The decode already produced the target size.
+      return result;
+    }
+    Bitmap newResult = Bitmap.createBitmap(result, draw.left, draw.top, draw.width(),
+        draw.height(), matrix, true);
+    if (newResult != result) {
+      if (recycleSource) {
+        result.recycle();
+      }
+      result = newResult;
+    }
+
+    return result;
+  }
+
+  /**
+   * Sets {@code matrix} to the resize, crop and rotation of {@code data} for an
+   * {@code inWidth} by {@code inHeight} input, and returns the part of the input it applies to.
+   */
+  static Rect computeTransform(Request data, int inWidth, int inHeight, int exifOrientation,
+      Matrix matrix) {
     boolean onlyScaleDown = data.onlyScaleDown;
 
     int drawX = 0;
@@ -509,8 +1182,6 @@ class BitmapHunter implements Runnable {
     int drawWidth = inWidth;
     int drawHeight = inHeight;
 
-    Matrix matrix = new Matrix();
-
     if (data.needsMatrixTransform() || exifOrientation != 0) {
       int targetWidth = data.targetWidth;
       int targetHeight = data.targetHeight;
@@ -641,14 +1312,7 @@ class BitmapHunter implements Runnable {
       }
     }
 
-    Bitmap newResult =
-        Bitmap.createBitmap(result, drawX, drawY, drawWidth, drawHeight, matrix, true);
-    if (newResult != result) {
-      result.recycle();
-      result = newResult;
-    }
-
-    return result;
+    return new Rect(drawX, drawY, drawX + drawWidth, drawY + drawHeight);
   }
 
   private static boolean shouldResize(boolean onlyScaleDown, int inWidth, int inHeight,
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.graphics.Bitmap;
+
+import static com.squareup.picasso.PixelTransformation.CHUNK_PIXELS;
+import static com.squareup.picasso.PixelTransformation.alpha;
+import static com.squareup.picasso.PixelTransformation.argb;
+import static com.squareup.picasso.PixelTransformation.blue;
+import static com.squareup.picasso.PixelTransformation.forEachChunk;
+import static com.squareup.picasso.PixelTransformation.green;
+import static com.squareup.picasso.PixelTransformation.red;
+
+/**
+ * Blurs with three passes of a box filter across rows and then columns, which approximates a
+ * Gaussian blur. Pixels beyond the edges repeat the edge. Each pass is split into chunks of rows
+ * or columns that several cores blur at once.
+ */
+final class BlurTransformation implements Transformation {
+  private static final int PASSES = 3;
+
+  private final int radius;
+
+  BlurTransformation(int radius) {
+    this.radius = radius;
+  }
+
+  @Override public Bitmap transform(Bitmap source) {
+    int width = source.getWidth();
+    int height = source.getHeight();
+    int[] pixels = new int[width * height];
+    source.getPixels(pixels, 0, width, 0, 0, width, height);
+    for (int pass = 0; pass < PASSES; pass++) {
+      blurRows(pixels, width, height);
+      blurColumns(pixels, width, height);
+    }
+
+    Bitmap result;
+    if (source.isMutable()) {
+      result = source;
+    } else {
+      result = Bitmap.createBitmap(width, height, BitmapConfigPolicy.softwareConfig(source));
+      result.setHasAlpha(source.hasAlpha());
+    }
+    result.setPixels(pixels, 0, width, 0, 0, width, height);
+    if (result != source) {
+      source.recycle();
+    }
+    return result;
+  }
+
+  private void blurRows(final int[] pixels, final int width, final int height) {
+    final int rowsPerChunk = Math.max(1, CHUNK_PIXELS / width);
+    int chunks = (height + rowsPerChunk - 1) / rowsPerChunk;
+    forEachChunk(chunks, width, (long) width * height, new PixelTransformation.ChunkTask() {
+      @Override public void run(int chunk, int[] buffer) {
+        for (int y = chunk * rowsPerChunk, end = Math.min(height, y + rowsPerChunk); y < end;
+            y++) {
+          System.arraycopy(pixels, y * width, buffer, 0, width);
+          box(buffer, 0, 1, width, pixels, y * width, 1, radius);
+        }
+      }
+    });
+  }
+
+  private void blurColumns(final int[] pixels, final int width, final int height) {
+    // Copy a few columns at a time, so that they are read along rows.
+    final int columnsPerChunk = Math.max(1, CHUNK_PIXELS / height);
+    int chunks = (width + columnsPerChunk - 1) / columnsPerChunk;
+    forEachChunk(chunks, columnsPerChunk * height, (long) width * height,
+        new PixelTransformation.ChunkTask() {
+          @Override public void run(int chunk, int[] buffer) {
+            int left = chunk * columnsPerChunk;
+            int columns = Math.min(columnsPerChunk, width - left);
+            for (int y = 0; y < height; y++) {
+              System.arraycopy(pixels, y * width + left, buffer, y * columns, columns);
+            }
+            for (int column = 0; column < columns; column++) {
+              box(buffer, column, columns, height, pixels, left + column, width, radius);
+            }
+          }
+        });
+  }
+
+  /**
+   * Box filter {@code count} pixels of {@code in}, starting at {@code inOffset} and
+   * {@code inStride} apart, into {@code out} at {@code outOffset} and {@code outStride} apart.
+   */
+  static void box(int[] in, int inOffset, int inStride, int count, int[] out, int outOffset,
+      int outStride, int radius) {
+    int size = 2 * radius + 1;
+    int half = size / 2;
+    int alpha = 0;
+    int red = 0;
+    int green = 0;
+    int blue = 0;
+    for (int i = -radius; i <= radius; i++) {
+      int pixel = in[inOffset + clamp(i, count) * inStride];
+      alpha += alpha(pixel);
+      red += red(pixel);
+      green += green(pixel);
+      blue += blue(pixel);
+    }
+    for (int i = 0; i < count; i++) {
+      out[outOffset + i * outStride] = argb((alpha + half) / size, (red + half) / size,
+          (green + half) / size, (blue + half) / size);
+      int removed = in[inOffset + clamp(i - radius, count) * inStride];
+      int added = in[inOffset + clamp(i + radius + 1, count) * inStride];
+      alpha += alpha(added) - alpha(removed);
+      red += red(added) - red(removed);
+      green += green(added) - green(removed);
+      blue += blue(added) - blue(removed);
+    }
+  }
+
+  private static int clamp(int index, int count) {
+    return index < 0 ? 0 : index >= count ? count - 1 : index;
+  }
+
+  @Override public String key() {
+    return "blur(" + radius + ")";
+  }
+}
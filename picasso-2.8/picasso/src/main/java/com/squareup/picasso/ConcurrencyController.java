@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feedback controller for the number of concurrent hunters of a {@link PicassoExecutorService}.
+ * <p>
+ * Completed network hunters are sampled in windows of {@link #WINDOW_SIZE}. While work is queued
+ * every thread is busy, so by Little's law the throughput of a window is the limit times the bytes
+ * read per second of hunter execution. The limit hill-climbs on that throughput: a probe adds one
+ * thread and keeps it only if the next window is at least {@link #THROUGHPUT_GAIN} faster. A probe
+ * that made things worse by as much suggests the link is past saturation, so one thread fewer is
+ * tried next and kept unless it loses throughput. After a probe the limit holds for
+ * {@link #HOLD_WINDOWS}, doubling with each probe in a row that changed nothing.
+ * <p>
+ * The first window after a reset is dropped because it pays for setting up connections, and so
+ * are samples from hunters that started before the limit last changed, so that each window
+ * measures a single limit. If the time spent per byte at an unchanged limit more than doubles, the
+ * link itself slowed down and the limit shrinks multiplicatively.
+ * <p>
+ * This type is not thread safe; callers must synchronize.
+ */
+final class ConcurrencyController {
+  static final int MIN_LIMIT = 1;
+  static final int MAX_LIMIT = 8;
+  static final int WINDOW_SIZE = 8;
+  static final int HOLD_WINDOWS = 4;
+  private static final int MAX_HOLD_DOUBLINGS = 3;
+
+  /** Throughput must improve by at least this ratio for an extra thread to be kept. */
+  private static final float THROUGHPUT_GAIN = 1.1f;
+  /** Time per byte above this multiple of the best seen at the same limit means congestion. */
+  private static final float LATENCY_TOLERANCE = 2f;
+  private static final float DECREASE_FACTOR = 0.75f;
+
+  private final int minLimit;
+  private final int maxLimit;
+
+  int limit;
+  String reason;
+
+  private int samples;
+  private long windowBytes;
+  private long windowLatencyNanos;
+  private long limitChangedNanos;
+  /** Whether a window has passed since the last reset, while new connections were set up. */
+  private boolean warm;
+  /** The best time per byte seen since the limit last changed. */
+  private double baselineNanosPerByte;
+
+  /** The step being probed: 1 or -1, or 0 between probes. */
+  private int direction;
+  private boolean probeDownNext;
+  /** The limit and throughput the current step of a probe started from. */
+  private int probedFrom;
+  private double probedFromThroughput;
+  /** Whether an earlier step of the current probe was kept. */
+  private boolean stepKept;
+  private int holdWindows;
+  private int fruitlessProbes;
+
+  ConcurrencyController(int initialLimit) {
+    this(initialLimit, MIN_LIMIT, MAX_LIMIT);
+  }
+
+  ConcurrencyController(int initialLimit, int minLimit, int maxLimit) {
+    if (minLimit < 1 || maxLimit < minLimit) {
+      throw new IllegalArgumentException("Invalid bounds: " + minLimit + ".." + maxLimit);
+    }
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    reset(initialLimit, "initial");
+  }
+
+  /**
+   * Restart sampling from {@code limit}, for example after the active network changed and the
+   * previous observations no longer apply.
+   */
+  void reset(int limit, String reason) {
+    this.limit = clamp(limit);
+    this.reason = reason;
+    samples = 0;
+    windowBytes = 0;
+    windowLatencyNanos = 0;
+    limitChangedNanos = Long.MIN_VALUE;
+    warm = false;
+    baselineNanosPerByte = 0;
+    direction = 0;
+    probeDownNext = false;
+    holdWindows = 0;
+    fruitlessProbes = 0;
+  }
+
+  /**
+   * Record a completed hunter.
+   *
+   * @param startNanos when the hunter started executing.
+   * @param endNanos when the hunter finished executing.
+   * @param bytes the number of bytes the hunter read from its source.
+   * @param backlogged whether there is queued work waiting for a thread.
+   * @return {@code true} if {@link #limit} changed as a result of this sample.
+   */
+  boolean record(long startNanos, long endNanos, long bytes, boolean backlogged) {
+    if (startNanos < limitChangedNanos || bytes <= 0) {
+      return false;
+    }
+    samples++;
+    windowBytes += bytes;
+    windowLatencyNanos += Math.max(1, endNanos - startNanos);
+    if (samples < WINDOW_SIZE) {
+      return false;
+    }
+
+    double nanosPerByte = windowLatencyNanos / (double) windowBytes;
+    double throughput = limit * TimeUnit.SECONDS.toNanos(1) / nanosPerByte;
+    samples = 0;
+    windowBytes = 0;
+    windowLatencyNanos = 0;
+
+    if (!warm) {
+      warm = true;
+      return false;
+    }
+    if (!backlogged) {
+      // With idle threads the throughput measures demand rather than the link.
+      direction = 0;
+      return false;
+    }
+    if (direction != 0) {
+      baselineNanosPerByte = nanosPerByte;
+      return judgeProbe(throughput, endNanos);
+    }
+
+    if (baselineNanosPerByte == 0 || nanosPerByte < baselineNanosPerByte) {
+      baselineNanosPerByte = nanosPerByte;
+    } else if (nanosPerByte > baselineNanosPerByte * LATENCY_TOLERANCE) {
+      String newReason = "time per KiB " + perKibMillis(nanosPerByte) + "ms exceeded "
+          + LATENCY_TOLERANCE + "x best " + perKibMillis(baselineNanosPerByte) + "ms at " + limit
+          + " threads";
+      holdWindows = 0;
+      return change(clamp((int) (limit * DECREASE_FACTOR)), newReason, endNanos);
+    }
+
+    if (holdWindows > 0) {
+      holdWindows--;
+      return false;
+    }
+    int step = probeDownNext ? -1 : 1;
+    probeDownNext = false;
+    if (clamp(limit + step) == limit) {
+      return false;
+    }
+    direction = step;
+    stepKept = false;
+    probedFrom = limit;
+    probedFromThroughput = throughput;
+    return change(limit + step,
+        "probing " + (limit + step) + " threads from " + (long) throughput + "B/s", endNanos);
+  }
+
+  /** Keep or undo the step of the current probe based on the first window measured after it. */
+  private boolean judgeProbe(double throughput, long nowNanos) {
+    double gain = throughput / probedFromThroughput;
+    String comparison = (long) throughput + "B/s at " + limit + " threads, "
+        + (long) probedFromThroughput + "B/s at " + probedFrom;
+    if (direction > 0 ? gain >= THROUGHPUT_GAIN : gain >= 1) {
+      fruitlessProbes = 0;
+      if (gain >= THROUGHPUT_GAIN && clamp(limit + direction) != limit) {
+        stepKept = true;
+        probedFrom = limit;
+        probedFromThroughput = throughput;
+        return change(limit + direction,
+            "probing " + (limit + direction) + " threads after " + comparison, nowNanos);
+      }
+      reason = "kept " + comparison;
+      direction = 0;
+      holdWindows = HOLD_WINDOWS;
+      return false;
+    }
+
+    if (direction > 0 && !stepKept && gain * THROUGHPUT_GAIN < 1) {
+      probeDownNext = true;
+      holdWindows = 0;
+    } else if (stepKept) {
+      holdWindows = HOLD_WINDOWS;
+    } else {
+      holdWindows = HOLD_WINDOWS << Math.min(fruitlessProbes++, MAX_HOLD_DOUBLINGS);
+    }
+    direction = 0;
+    return change(probedFrom, "undid " + comparison, nowNanos);
+  }
+
+  private boolean change(int newLimit, String newReason, long nowNanos) {
+    reason = newReason;
+    if (newLimit == limit) {
+      return false;
+    }
+    limit = newLimit;
+    limitChangedNanos = nowNanos;
+    baselineNanosPerByte = 0;
+    return true;
+  }
+
+  private int clamp(int value) {
+    return Math.max(minLimit, Math.min(maxLimit, value));
+  }
+
+  private static long perKibMillis(double nanosPerByte) {
+    return TimeUnit.NANOSECONDS.toMillis((long) (nanosPerByte * 1024));
+  }
+}
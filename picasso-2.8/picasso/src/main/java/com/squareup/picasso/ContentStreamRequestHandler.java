@@ -39,7 +39,8 @@ class ContentStreamRequestHandler extends RequestHandler {
 
   @Override public Result load(Request request, int networkPolicy) throws IOException {
     Source source = Okio.source(getInputStream(request));
-    return new Result(source, DISK);
+    return new Result(null, source, DISK, 0, null,
+        ImageDecoderEngine.source(context.getContentResolver(), request.uri));
   }
 
   InputStream getInputStream(Request request) throws FileNotFoundException {
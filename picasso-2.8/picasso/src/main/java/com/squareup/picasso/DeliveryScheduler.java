@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.annotation.TargetApi;
+import android.os.Handler;
+import android.view.Choreographer;
+import android.widget.ImageView;
+import java.util.ArrayDeque;
+import java.util.List;
+
+import static android.os.Build.VERSION.SDK_INT;
+import static android.os.Build.VERSION_CODES.JELLY_BEAN;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Delivers completed hunters to their actions on the main thread, spending at most a time budget
+ * per frame. Deliveries left over when the budget runs out wait for the next frame, so a burst of
+ * results, such as when a scroll stops, does not stall a single frame. Actions whose
+ * {@link ImageView} is shown go first, then other image views, then fetches and targets.
+ * <p>
+ * This is the only frame pacer of a {@link Picasso} instance. The dispatcher does not release its
+ * next batch until the frame after this one has been delivered, which this signals with
+ * {@link Dispatcher#dispatchBatchDelivered}. While deliveries are waiting, frames that the
+ * display skipped are counted in {@link Stats}.
+ * <p>
+ * This type is not thread safe; it must only be used on the main thread.
+ */
+final class DeliveryScheduler {
+  static final long DEFAULT_FRAME_BUDGET = MILLISECONDS.toNanos(4);
+  /** The interval of a 60 Hz display, used to count skipped frames. */
+  static final long FRAME_INTERVAL_NANOS = 16666667;
+  private static final int FRAME_INTERVAL = 16; // ms, used before Choreographer is available.
+
+  private static final int VISIBLE = 0;
+  private static final int HIDDEN = 1;
+  private static final int BACKGROUND = 2;
+
+  private final Picasso picasso;
+  private final Handler handler;
+  private final long budgetNanos;
+  private final ArrayDeque<Delivery> visible = new ArrayDeque<>();
+  private final ArrayDeque<Delivery> hidden = new ArrayDeque<>();
+  private final ArrayDeque<Delivery> background = new ArrayDeque<>();
+
+  private DeliveryFrameCallback frameCallback;
+  private Runnable frameRunnable;
+  private boolean framePending;
+  private boolean batchPending;
+  /** When the last frame that delivered started, or 0 when nothing is waiting. */
+  private long lastFrameNanos;
+
+  DeliveryScheduler(Picasso picasso, Handler handler, long budgetNanos) {
+    this.picasso = picasso;
+    this.handler = handler;
+    this.budgetNanos = budgetNanos;
+  }
+
+  /** Queue the actions of {@code batch} and deliver as many as the budget allows right away. */
+  void deliver(List<BitmapHunter> batch) {
+    //noinspection ForLoopReplaceableByForEach
+    for (int i = 0, n = batch.size(); i < n; i++) {
+      BitmapHunter hunter = batch.get(i);
+      Action single = hunter.getAction();
+      List<Action> joined = hunter.getActions();
+      if (single == null && (joined == null || joined.isEmpty())) {
+        continue;
+      }
+      hunter.pendingDeliveries = (single != null ? 1 : 0) + (joined != null ? joined.size() : 0);
+      if (single != null) {
+        enqueue(hunter, single);
+      }
+      if (joined != null) {
+        //noinspection ForLoopReplaceableByForEach
+        for (int j = 0, m = joined.size(); j < m; j++) {
+          enqueue(hunter, joined.get(j));
+        }
+      }
+    }
+    batchPending = true;
+    if (framePending) {
+      return;
+    }
+    long now = System.nanoTime();
+    drain(now);
+    if (hasPending()) {
+      lastFrameNanos = now;
+    }
+    scheduleFrame();
+  }
+
+  /**
+   * Deliver what fits in the budget of the frame that started at {@code frameTimeNanos}, or
+   * release the dispatcher's next batch if everything was delivered in an earlier frame.
+   */
+  void onFrame(long frameTimeNanos) {
+    framePending = false;
+    if (!hasPending()) {
+      finish();
+      return;
+    }
+    if (lastFrameNanos != 0) {
+      long frames = (frameTimeNanos - lastFrameNanos + FRAME_INTERVAL_NANOS / 2)
+          / FRAME_INTERVAL_NANOS;
+      picasso.stats.dispatchDeliveryFrame(Math.max(0, frames - 1));
+    }
+    lastFrameNanos = frameTimeNanos;
+    drain(System.nanoTime());
+    scheduleFrame();
+  }
+
+  /** Drop all waiting deliveries. */
+  void shutdown() {
+    visible.clear();
+    hidden.clear();
+    background.clear();
+    if (framePending) {
+      if (SDK_INT >= JELLY_BEAN) {
+        Choreographer.getInstance().removeFrameCallback(frameCallback);
+      } else {
+        handler.removeCallbacks(frameRunnable);
+      }
+      framePending = false;
+    }
+    lastFrameNanos = 0;
+    batchPending = false;
+  }
+
+  int pendingCount() {
+    return visible.size() + hidden.size() + background.size();
+  }
+
+  private void enqueue(BitmapHunter hunter, Action action) {
+    Delivery delivery = new Delivery(hunter, action);
+    switch (priority(action)) {
+      case VISIBLE:
+        visible.add(delivery);
+        break;
+      case HIDDEN:
+        hidden.add(delivery);
+        break;
+      default:
+        background.add(delivery);
+        break;
+    }
+  }
+
+  /**
+   * Deliver at least one action, and more until {@link #budgetNanos} has passed since start. A
+   * failed hunter is reported to the listener once its last action has been delivered.
+   */
+  private void drain(long startNanos) {
+    Delivery delivery;
+    while ((delivery = next()) != null) {
+      BitmapHunter hunter = delivery.hunter;
+      Action action = delivery.action;
+      boolean cancelled = action.isCancelled();
+      if (!cancelled) {
+        picasso.deliverAction(hunter.getResult(), hunter.getLoadedFrom(), action,
+            hunter.getException());
+      }
+      if (--hunter.pendingDeliveries == 0) {
+        picasso.notifyFailed(hunter);
+      }
+      if (cancelled) {
+        continue;
+      }
+      long now = System.nanoTime();
+      if (hunter.loadedFrom != null) {
+        picasso.stats.dispatchLatency(StatsSnapshot.Stage.DELIVERY, hunter.loadedFrom,
+            now - hunter.batchedNanos);
+      }
+      if (now - startNanos >= budgetNanos) {
+        break;
+      }
+    }
+  }
+
+  private Delivery next() {
+    Delivery delivery = visible.poll();
+    if (delivery == null) {
+      delivery = hidden.poll();
+    }
+    if (delivery == null) {
+      delivery = background.poll();
+    }
+    return delivery;
+  }
+
+  private boolean hasPending() {
+    return !visible.isEmpty() || !hidden.isEmpty() || !background.isEmpty();
+  }
+
+  private void finish() {
+    lastFrameNanos = 0;
+    if (batchPending) {
+      batchPending = false;
+      picasso.dispatcher.dispatchBatchDelivered();
+    }
+  }
+
+  private void scheduleFrame() {
+    framePending = true;
+    if (SDK_INT >= JELLY_BEAN) {
+      if (frameCallback == null) {
+        frameCallback = new DeliveryFrameCallback(this);
+      }
+      Choreographer.getInstance().postFrameCallback(frameCallback);
+    } else {
+      if (frameRunnable == null) {
+        frameRunnable = new Runnable() {
+          @Override public void run() {
+            onFrame(System.nanoTime());
+          }
+        };
+      }
+      handler.postDelayed(frameRunnable, FRAME_INTERVAL);
+    }
+  }
+
+  private static int priority(Action action) {
+    if (action instanceof ImageViewAction) {
+      ImageView target = ((ImageViewAction) action).getTarget();
+      return target != null && target.isShown() ? VISIBLE : HIDDEN;
+    }
+    return BACKGROUND;
+  }
+
+  private static final class Delivery {
+    final BitmapHunter hunter;
+    final Action action;
+
+    Delivery(BitmapHunter hunter, Action action) {
+      this.hunter = hunter;
+      this.action = action;
+    }
+  }
+
+  @TargetApi(JELLY_BEAN)
+  private static class DeliveryFrameCallback implements Choreographer.FrameCallback {
+    private final DeliveryScheduler scheduler;
+
+    DeliveryFrameCallback(DeliveryScheduler scheduler) {
+      this.scheduler = scheduler;
+    }
+
+    @Override public void doFrame(long frameTimeNanos) {
+      scheduler.onFrame(frameTimeNanos);
+    }
+  }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.content.Context;
+import androidx.annotation.NonNull;
+import java.io.File;
+import java.io.IOException;
+import okhttp3.CacheControl;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * A {@link Downloader} that keeps images of URLs whose content never changes in a disk cache of
+ * its own, ahead of another downloader.
+ * <p>
+ * HTTP caches follow the freshness rules of each response, so a cached image whose response has
+ * expired costs a round trip to revalidate, even when its URL embeds a hash of its content, as
+ * the URLs of most CDNs do. Images of URLs matching one of the given patterns are served from
+ * this cache whenever it has them, without asking the server, and are added to it when they are
+ * downloaded. All other URLs go to the other downloader as before.
+ * <p>
+ * {@link NetworkPolicy#NO_CACHE} skips the cache and {@link NetworkPolicy#NO_STORE} keeps
+ * responses out of it. Images are reported as loaded from {@link Picasso.LoadedFrom#DISK}.
+ */
+public final class DiskCacheDownloader implements Downloader {
+  private static final String DEFAULT_DIRECTORY = "picasso-images";
+  /** Bytes left unread when a response is closed that are still read to complete its entry. */
+  private static final long MAX_DRAIN = 64 * 1024;
+
+  private final Downloader delegate;
+  private final File directory;
+  private final long maxSize;
+  private final ImmutableUrlPolicy immutableUrls;
+  private ImageDiskCache cache; // Guarded by this.
+  private boolean opened; // Guarded by this.
+
+  /**
+   * Cache images of URLs that match one of {@code immutableUrlPatterns}, regular expressions of
+   * whole URLs such as {@code "https://i\\.scdn\\.co/image/.*"}, in the application's cache
+   * directory.
+   */
+  public DiskCacheDownloader(@NonNull Downloader delegate, @NonNull Context context,
+      @NonNull String... immutableUrlPatterns) {
+    this(delegate, new File(context.getApplicationContext().getCacheDir(), DEFAULT_DIRECTORY), 0,
+        immutableUrlPatterns);
+  }
+
+  /**
+   * Cache images of URLs that match one of {@code immutableUrlPatterns} in {@code directory},
+   * holding at most {@code maxSize} bytes, or as much as the default disk cache if 0.
+   */
+  public DiskCacheDownloader(@NonNull Downloader delegate, @NonNull File directory, long maxSize,
+      @NonNull String... immutableUrlPatterns) {
+    if (delegate == null) {
+      throw new IllegalArgumentException("Downloader must not be null.");
+    }
+    if (directory == null) {
+      throw new IllegalArgumentException("Directory must not be null.");
+    }
+    if (maxSize < 0) {
+      throw new IllegalArgumentException("Max size must not be negative.");
+    }
+    this.delegate = delegate;
+    this.directory = directory;
+    this.maxSize = maxSize;
+    this.immutableUrls = new ImmutableUrlPolicy(immutableUrlPatterns);
+  }
+
+  @NonNull @Override public Response load(@NonNull Request request) throws IOException {
+    String url = request.url().toString();
+    ImageDiskCache cache = immutableUrls.isImmutable(url) ? cache() : null;
+    if (cache == null) {
+      return delegate.load(request);
+    }
+
+    CacheControl cacheControl = request.cacheControl();
+    if (!cacheControl.noCache()) {
+      ImageDiskCache.Snapshot snapshot = cache.get(url);
+      if (snapshot != null) {
+        Response cacheResponse = new Response.Builder()
+            .request(request)
+            .protocol(Protocol.HTTP_1_1)
+            .code(200)
+            .message("OK")
+            .build();
+        return cacheResponse.newBuilder()
+            .body(ResponseBody.create(null, snapshot.length, snapshot.source))
+            .cacheResponse(cacheResponse)
+            .build();
+      }
+    }
+
+    Response response = delegate.load(request);
+    if (cacheControl.noStore() || response.code() != 200 || response.body() == null) {
+      return response;
+    }
+    ResponseBody body = response.body();
+    long contentLength = body.contentLength();
+    if (contentLength > cache.maxEntrySize()) {
+      return response;
+    }
+    ImageDiskCache.Editor editor = cache.edit(url);
+    if (editor == null) {
+      return response;
+    }
+    return response.newBuilder()
+        .body(new CachingBody(body, editor, cache.maxEntrySize()))
+        .build();
+  }
+
+  @Override public void shutdown() {
+    delegate.shutdown();
+    synchronized (this) {
+      if (cache != null) {
+        try {
+          cache.close();
+        } catch (IOException ignored) {
+        }
+      }
+    }
+  }
+
+  /** Opens the cache on first use, off the main thread. Returns null if it cannot be opened. */
+  private synchronized ImageDiskCache cache() {
+    if (!opened) {
+      opened = true;
+      try {
+        //noinspection ResultOfMethodCallIgnored
+        directory.mkdirs();
+        long size = maxSize != 0 ? maxSize : Utils.calculateDiskCacheSize(directory);
+        cache = ImageDiskCache.open(directory, size);
+      } catch (IOException ignored) {
+        // Without a cache every request goes to the other downloader.
+      }
+    }
+    return cache;
+  }
+
+  /** Writes a response body to the cache as it is read, completing the entry at its end. */
+  private static final class CachingBody extends ResponseBody {
+    private final ResponseBody delegate;
+    private final ImageDiskCache.Editor editor;
+    private final long maxEntrySize;
+    private final BufferedSource source;
+    boolean exhausted;
+    boolean failed;
+
+    CachingBody(ResponseBody delegate, ImageDiskCache.Editor editor, long maxEntrySize) {
+      this.delegate = delegate;
+      this.editor = editor;
+      this.maxEntrySize = maxEntrySize;
+      this.source = Okio.buffer(new Tee(delegate.source()));
+    }
+
+    @Override public MediaType contentType() {
+      return delegate.contentType();
+    }
+
+    @Override public long contentLength() {
+      return delegate.contentLength();
+    }
+
+    @Override public BufferedSource source() {
+      return source;
+    }
+
+    @Override public void close() {
+      if (!exhausted && !failed) {
+        long contentLength = delegate.contentLength();
+        long remaining = contentLength - editor.length() - source.getBuffer().size();
+        try {
+          if (contentLength != -1 && remaining <= MAX_DRAIN) {
+            // Decoders may stop short of the end of an image.
+            source.readAll(Okio.blackhole());
+          }
+        } catch (IOException ignored) {
+        }
+      }
+      if (!exhausted) {
+        editor.abort();
+      }
+      delegate.close();
+    }
+
+    private final class Tee extends ForwardingSource {
+      Tee(Source delegate) {
+        super(delegate);
+      }
+
+      @Override public long read(Buffer sink, long byteCount) throws IOException {
+        long read;
+        try {
+          read = super.read(sink, byteCount);
+        } catch (IOException e) {
+          failed = true;
+          editor.abort();
+          throw e;
+        }
+        if (failed) {
+          return read;
+        }
+        if (read == -1) {
+          exhausted = true;
+          try {
+            editor.commit();
+          } catch (IOException e) {
+            failed = true;
+          }
+          return read;
+        }
+        try {
+          if (editor.length() + read > maxEntrySize) {
+            failed = true;
+            editor.abort();
+          } else {
+            editor.write(sink, sink.size() - read, read);
+          }
+        } catch (IOException e) {
+          failed = true;
+          editor.abort();
+        }
+        return read;
+      }
+    }
+  }
+}
@@ -49,6 +49,7 @@ import static com.squareup.picasso.Utils.VERB_CANCELED;
 import static com.squareup.picasso.Utils.VERB_DELIVERED;
 import static com.squareup.picasso.Utils.VERB_ENQUEUED;
 import static com.squareup.picasso.Utils.VERB_IGNORED;
+import static com.squareup.picasso.Utils.VERB_JOINED;
 import static com.squareup.picasso.Utils.VERB_PAUSED;
 import static com.squareup.picasso.Utils.VERB_REPLAYING;
 import static com.squareup.picasso.Utils.VERB_RETRYING;
@@ -75,47 +76,83 @@ class Dispatcher {
   static final int TAG_PAUSE = 11;
   static final int TAG_RESUME = 12;
   static final int REQUEST_BATCH_RESUME = 13;
+  static final int HUNTER_BATCH_FRAME = 14;
+  static final int HUNTER_PREVIEW = 15;
+  static final int REQUEST_BATCH_SUBMIT = 16;
+  static final int TARGET_ATTACH_STATE_CHANGE = 17;
 
   private static final String DISPATCHER_THREAD_NAME = "Dispatcher";
-  private static final int BATCH_DELAY = 200; // ms
+  static final int DEFAULT_BATCH_DELAY = 200; // ms
+  static final int DEFAULT_MAX_BATCH_SIZE = 24;
 
-  final DispatcherThread dispatcherThread;
+  final DispatcherLoop loop;
   final Context context;
   final ExecutorService service;
   final Downloader downloader;
-  final Map<String, BitmapHunter> hunterMap;
+  final Map<RequestKey, BitmapHunter> hunterMap;
+  final Map<String, BitmapHunter> sourceHunterMap;
   final Map<Object, Action> failedActions;
   final Map<Object, Action> pausedActions;
   final Set<Object> pausedTags;
-  final Handler handler;
   final Handler mainThreadHandler;
   final Cache cache;
+  final EncodedCache encodedCache;
+  final MemoryGovernor governor;
   final Stats stats;
   final List<BitmapHunter> batch;
   final NetworkBroadcastReceiver receiver;
   final boolean scansNetworkChanges;
+  final boolean adaptiveBatching;
+  final int maxBatchSize;
+  final long batchDelay;
 
   boolean airplaneMode;
-
+  /** True from sending a batch to the main thread until the frame after it was delivered. */
+  boolean deliveryInFlight;
+
+  /**
+   * Dispatches with the default batching over a {@link Handler} loop on its own thread. The
+   * governor this creates is not registered for trim callbacks; {@link Picasso.Builder} uses the
+   * full constructor with one that is.
+   */
   Dispatcher(Context context, ExecutorService service, Handler mainThreadHandler,
       Downloader downloader, Cache cache, Stats stats) {
-    this.dispatcherThread = new DispatcherThread();
-    this.dispatcherThread.start();
-    Utils.flushStackLocalLeaks(dispatcherThread.getLooper());
+    this(context, service, mainThreadHandler, downloader, cache, null, new MemoryGovernor(cache),
+        stats, true, DEFAULT_MAX_BATCH_SIZE, DEFAULT_BATCH_DELAY, false, true);
+  }
+
+  /**
+   * {@code encodedCache} is the second tier of {@code cache}, or null, and {@code governor} holds
+   * both and the bitmaps of running hunters to one budget. Unless {@code ownThread}, commands run
+   * on the calling thread: a {@link Handler} loop's from its {@link Looper}, a lock-free loop's
+   * when {@link MpscDispatcherLoop#drain} is called.
+   */
+  Dispatcher(Context context, ExecutorService service, Handler mainThreadHandler,
+      Downloader downloader, Cache cache, EncodedCache encodedCache, MemoryGovernor governor,
+      Stats stats, boolean adaptiveBatching, int maxBatchSize, long batchDelay,
+      boolean lockFreeQueue, boolean ownThread) {
     this.context = context;
     this.service = service;
     this.hunterMap = new LinkedHashMap<>();
+    this.sourceHunterMap = new LinkedHashMap<>();
     this.failedActions = new WeakHashMap<>();
     this.pausedActions = new WeakHashMap<>();
     this.pausedTags = new LinkedHashSet<>();
-    this.handler = new DispatcherHandler(dispatcherThread.getLooper(), this);
     this.downloader = downloader;
     this.mainThreadHandler = mainThreadHandler;
     this.cache = cache;
+    this.encodedCache = encodedCache;
+    this.governor = governor;
     this.stats = stats;
     this.batch = new ArrayList<>(4);
+    this.adaptiveBatching = adaptiveBatching;
+    this.maxBatchSize = maxBatchSize;
+    this.batchDelay = batchDelay;
     this.airplaneMode = Utils.isAirplaneModeOn(this.context);
     this.scansNetworkChanges = hasPermission(context, Manifest.permission.ACCESS_NETWORK_STATE);
+    this.loop = lockFreeQueue
+        ? new MpscDispatcherLoop(this, ownThread)
+        : new HandlerLoop(this, ownThread);
     this.receiver = new NetworkBroadcastReceiver(this);
     receiver.register();
   }
@@ -126,7 +163,7 @@ class Dispatcher {
       service.shutdown();
     }
     downloader.shutdown();
-    dispatcherThread.quit();
+    loop.quit();
     // Unregister network broadcast receiver on the main thread.
     Picasso.HANDLER.post(new Runnable() {
       @Override public void run() {
@@ -136,40 +173,63 @@ class Dispatcher {
   }
 
   void dispatchSubmit(Action action) {
-    handler.sendMessage(handler.obtainMessage(REQUEST_SUBMIT, action));
+    loop.send(REQUEST_SUBMIT, action, 0);
+  }
+
+  void dispatchSubmit(List<Action> actions) {
+    loop.send(REQUEST_BATCH_SUBMIT, actions, 0);
   }
 
   void dispatchCancel(Action action) {
-    handler.sendMessage(handler.obtainMessage(REQUEST_CANCEL, action));
+    loop.send(REQUEST_CANCEL, action, 0);
   }
 
   void dispatchPauseTag(Object tag) {
-    handler.sendMessage(handler.obtainMessage(TAG_PAUSE, tag));
+    loop.send(TAG_PAUSE, tag, 0);
   }
 
   void dispatchResumeTag(Object tag) {
-    handler.sendMessage(handler.obtainMessage(TAG_RESUME, tag));
+    loop.send(TAG_RESUME, tag, 0);
   }
 
   void dispatchComplete(BitmapHunter hunter) {
-    handler.sendMessage(handler.obtainMessage(HUNTER_COMPLETE, hunter));
+    loop.send(HUNTER_COMPLETE, hunter, 0);
   }
 
   void dispatchRetry(BitmapHunter hunter) {
-    handler.sendMessageDelayed(handler.obtainMessage(HUNTER_RETRY, hunter), RETRY_DELAY);
+    loop.sendDelayed(HUNTER_RETRY, hunter, RETRY_DELAY);
+  }
+
+  void dispatchPreview(BitmapHunter hunter) {
+    loop.send(HUNTER_PREVIEW, hunter, 0);
   }
 
   void dispatchFailed(BitmapHunter hunter) {
-    handler.sendMessage(handler.obtainMessage(HUNTER_DECODE_FAILED, hunter));
+    loop.send(HUNTER_DECODE_FAILED, hunter, 0);
+  }
+
+  /**
+   * Called on the main thread by {@link DeliveryScheduler} on the frame after a batch has been
+   * delivered. Releasing the next batch then coalesces deliveries under load to at most one per
+   * frame.
+   */
+  void dispatchBatchDelivered() {
+    if (adaptiveBatching) {
+      loop.send(HUNTER_BATCH_FRAME, null, 0);
+    }
+  }
+
+  /** Called on the main thread when the target of {@code action} was attached or detached. */
+  void dispatchAttachStateChange(Action action) {
+    loop.send(TARGET_ATTACH_STATE_CHANGE, action, 0);
   }
 
   void dispatchNetworkStateChange(NetworkInfo info) {
-    handler.sendMessage(handler.obtainMessage(NETWORK_STATE_CHANGE, info));
+    loop.send(NETWORK_STATE_CHANGE, info, 0);
   }
 
   void dispatchAirplaneModeChange(boolean airplaneMode) {
-    handler.sendMessage(handler.obtainMessage(AIRPLANE_MODE_CHANGE,
-        airplaneMode ? AIRPLANE_MODE_ON : AIRPLANE_MODE_OFF, 0));
+    loop.send(AIRPLANE_MODE_CHANGE, null, airplaneMode ? AIRPLANE_MODE_ON : AIRPLANE_MODE_OFF);
   }
 
   void performSubmit(Action action) {
@@ -189,6 +249,7 @@ class Dispatcher {
     BitmapHunter hunter = hunterMap.get(action.getKey());
     if (hunter != null) {
       hunter.attach(action);
+      hunter.rerank();
       return;
     }
 
@@ -199,28 +260,59 @@ class Dispatcher {
       return;
     }
 
-    hunter = forRequest(action.getPicasso(), this, cache, stats, action);
-    hunter.future = service.submit(hunter);
+    hunter = forRequest(action.getPicasso(), this, cache, encodedCache, governor, stats, action);
+    // Another size or transformation of a source already in flight is derived from its decode.
+    String sourceKey = createSourceKey(hunter);
+    BitmapHunter source = sourceKey != null ? sourceHunterMap.get(sourceKey) : null;
+    if (source == null || !source.addVariant(hunter)) {
+      hunter.queuedNanos = System.nanoTime();
+      hunter.future = service.submit(hunter);
+      if (sourceKey != null) {
+        hunter.sourceKey = sourceKey;
+        sourceHunterMap.put(sourceKey, hunter);
+      }
+    } else {
+      source.rerank();
+    }
     hunterMap.put(action.getKey(), hunter);
     if (dismissFailed) {
       failedActions.remove(action.getTarget());
     }
 
     if (action.getPicasso().loggingEnabled) {
-      log(OWNER_DISPATCHER, VERB_ENQUEUED, action.request.logId());
+      if (hunter.source != null) {
+        log(OWNER_DISPATCHER, VERB_JOINED, action.request.logId(),
+            getLogIdsForHunter(hunter.source, "to "));
+      } else {
+        log(OWNER_DISPATCHER, VERB_ENQUEUED, action.request.logId());
+      }
+    }
+  }
+
+  void performBatchSubmit(List<Action> actions) {
+    //noinspection ForLoopReplaceableByForEach
+    for (int i = 0, n = actions.size(); i < n; i++) {
+      Action action = actions.get(i);
+      // A later action of the batch for the same target cancelled this one on the main thread.
+      if (!action.isCancelled()) {
+        performSubmit(action);
+      }
     }
   }
 
   void performCancel(Action action) {
-    String key = action.getKey();
+    RequestKey key = action.getKey();
     BitmapHunter hunter = hunterMap.get(key);
     if (hunter != null) {
       hunter.detach(action);
       if (hunter.cancel()) {
         hunterMap.remove(key);
+        forgetSource(hunter);
         if (action.getPicasso().loggingEnabled) {
           log(OWNER_DISPATCHER, VERB_CANCELED, action.getRequest().logId());
         }
+      } else {
+        hunter.rerank();
       }
     }
 
@@ -288,9 +380,12 @@ class Dispatcher {
       // had the tag being paused here.
       if (hunter.cancel()) {
         it.remove();
+        forgetSource(hunter);
         if (loggingEnabled) {
           log(OWNER_DISPATCHER, VERB_CANCELED, getLogIdsForHunter(hunter), "all actions paused");
         }
+      } else {
+        hunter.rerank();
       }
     }
   }
@@ -340,6 +435,7 @@ class Dispatcher {
       if (hunter.getException() instanceof NetworkRequestHandler.ContentLengthException) {
         hunter.networkPolicy |= NetworkPolicy.NO_CACHE.index;
       }
+      hunter.queuedNanos = System.nanoTime();
       hunter.future = service.submit(hunter);
     } else {
       // Mark for replay only if we observe network info changes and support replay.
@@ -353,29 +449,70 @@ class Dispatcher {
 
   void performComplete(BitmapHunter hunter) {
     if (shouldWriteToMemoryCache(hunter.getMemoryPolicy())) {
-      cache.set(hunter.getKey(), hunter.getResult());
+      Utils.putInCache(cache, hunter.getKey(), hunter.getResult());
     }
     hunterMap.remove(hunter.getKey());
+    forgetSource(hunter);
     batch(hunter);
     if (hunter.getPicasso().loggingEnabled) {
       log(OWNER_DISPATCHER, VERB_BATCHED, getLogIdsForHunter(hunter), "for completion");
     }
+    finishVariants(hunter, false);
+  }
+
+  void performPreview(BitmapHunter hunter) {
+    if (hunter.isCancelled()) {
+      return;
+    }
+    List<Action> actions = new ArrayList<>(2);
+    Action single = hunter.getAction();
+    if (single != null) {
+      actions.add(single);
+    }
+    List<Action> joined = hunter.getActions();
+    if (joined != null) {
+      actions.addAll(joined);
+    }
+    if (actions.isEmpty()) {
+      return;
+    }
+    hunter.previewActions = actions;
+    mainThreadHandler.sendMessage(mainThreadHandler.obtainMessage(HUNTER_PREVIEW, hunter));
   }
 
   void performBatchComplete() {
+    loop.remove(HUNTER_DELAY_NEXT_BATCH);
+    if (batch.isEmpty()) {
+      return;
+    }
     List<BitmapHunter> copy = new ArrayList<>(batch);
     batch.clear();
+    deliveryInFlight = true;
     mainThreadHandler.sendMessage(mainThreadHandler.obtainMessage(HUNTER_BATCH_COMPLETE, copy));
     logBatch(copy);
   }
 
+  void performBatchFrame() {
+    deliveryInFlight = false;
+    performBatchComplete();
+  }
+
   void performError(BitmapHunter hunter, boolean willReplay) {
     if (hunter.getPicasso().loggingEnabled) {
       log(OWNER_DISPATCHER, VERB_BATCHED, getLogIdsForHunter(hunter),
           "for error" + (willReplay ? " (will replay)" : ""));
     }
     hunterMap.remove(hunter.getKey());
+    forgetSource(hunter);
     batch(hunter);
+    finishVariants(hunter, willReplay);
+  }
+
+  void performAttachStateChange(Action action) {
+    BitmapHunter hunter = hunterMap.get(action.getKey());
+    if (hunter != null) {
+      hunter.rerank();
+    }
   }
 
   void performAirplaneModeChange(boolean airplaneMode) {
@@ -406,6 +543,51 @@ class Dispatcher {
     }
   }
 
+  private void finishVariants(BitmapHunter hunter, boolean willReplay) {
+    List<BitmapHunter> variants = hunter.takeVariants();
+    if (variants == null) {
+      return;
+    }
+    //noinspection ForLoopReplaceableByForEach
+    for (int i = 0, n = variants.size(); i < n; i++) {
+      BitmapHunter variant = variants.get(i);
+      variant.source = null;
+      if (variant.getResult() != null) {
+        performComplete(variant);
+      } else if (hunter.getResult() != null) {
+        // The source was served without decoding (e.g. from the memory cache); hunt on its own.
+        variant.queuedNanos = System.nanoTime();
+        variant.future = service.submit(variant);
+      } else {
+        variant.exception = hunter.getException();
+        performError(variant, willReplay);
+        if (willReplay) {
+          markForReplay(variant);
+        }
+      }
+    }
+  }
+
+  private void forgetSource(BitmapHunter hunter) {
+    String sourceKey = hunter.sourceKey;
+    if (sourceKey != null && sourceHunterMap.get(sourceKey) == hunter) {
+      sourceHunterMap.remove(sourceKey);
+    }
+  }
+
+  /**
+   * Returns a key shared by hunters that read the same network source with the same decode
+   * options, or null if the hunter's result cannot be shared.
+   */
+  static String createSourceKey(BitmapHunter hunter) {
+    Request data = hunter.getData();
+    // Regions decode only part of the source, so other sizes can't be derived from them.
+    if (!(hunter.requestHandler instanceof NetworkRequestHandler) || data.hasRegion()) {
+      return null;
+    }
+    return data.uri + "\n" + data.config + "\n" + data.purgeable + "\n" + hunter.networkPolicy;
+  }
+
   private void markForReplay(BitmapHunter hunter) {
     Action action = hunter.getAction();
     if (action != null) {
@@ -436,9 +618,16 @@ class Dispatcher {
     if (hunter.result != null) {
       hunter.result.prepareToDraw();
     }
+    hunter.batchedNanos = System.nanoTime();
     batch.add(hunter);
-    if (!handler.hasMessages(HUNTER_DELAY_NEXT_BATCH)) {
-      handler.sendEmptyMessageDelayed(HUNTER_DELAY_NEXT_BATCH, BATCH_DELAY);
+    // An idle main thread gets results right away. While a delivery is in flight, results are
+    // held until the next frame, bounded in count and by the batch delay.
+    if (batch.size() >= maxBatchSize || (adaptiveBatching && !deliveryInFlight)) {
+      performBatchComplete();
+      return;
+    }
+    if (!loop.hasPending(HUNTER_DELAY_NEXT_BATCH)) {
+      loop.sendDelayed(HUNTER_DELAY_NEXT_BATCH, null, batchDelay);
     }
   }
 
@@ -456,70 +645,129 @@ class Dispatcher {
     }
   }
 
-  private static class DispatcherHandler extends Handler {
-    private final Dispatcher dispatcher;
-
-    DispatcherHandler(Looper looper, Dispatcher dispatcher) {
-      super(looper);
-      this.dispatcher = dispatcher;
+  /** Run a command sent through {@link #loop}, on the dispatcher thread. */
+  void handle(final int what, Object obj, int arg1) {
+    switch (what) {
+      case REQUEST_SUBMIT: {
+        Action action = (Action) obj;
+        performSubmit(action);
+        break;
+      }
+      case REQUEST_BATCH_SUBMIT: {
+        @SuppressWarnings("unchecked") List<Action> actions = (List<Action>) obj;
+        performBatchSubmit(actions);
+        break;
+      }
+      case REQUEST_CANCEL: {
+        Action action = (Action) obj;
+        performCancel(action);
+        break;
+      }
+      case TAG_PAUSE: {
+        Object tag = obj;
+        performPauseTag(tag);
+        break;
+      }
+      case TAG_RESUME: {
+        Object tag = obj;
+        performResumeTag(tag);
+        break;
+      }
+      case HUNTER_COMPLETE: {
+        BitmapHunter hunter = (BitmapHunter) obj;
+        performComplete(hunter);
+        break;
+      }
+      case HUNTER_RETRY: {
+        BitmapHunter hunter = (BitmapHunter) obj;
+        performRetry(hunter);
+        break;
+      }
+      case HUNTER_DECODE_FAILED: {
+        BitmapHunter hunter = (BitmapHunter) obj;
+        performError(hunter, false);
+        break;
+      }
+      case HUNTER_DELAY_NEXT_BATCH: {
+        performBatchComplete();
+        break;
+      }
+      case HUNTER_BATCH_FRAME: {
+        performBatchFrame();
+        break;
+      }
+      case HUNTER_PREVIEW: {
+        BitmapHunter hunter = (BitmapHunter) obj;
+        performPreview(hunter);
+        break;
+      }
+      case NETWORK_STATE_CHANGE: {
+        NetworkInfo info = (NetworkInfo) obj;
+        performNetworkStateChange(info);
+        break;
+      }
+      case AIRPLANE_MODE_CHANGE: {
+        performAirplaneModeChange(arg1 == AIRPLANE_MODE_ON);
+        break;
+      }
+      case TARGET_ATTACH_STATE_CHANGE: {
+        Action action = (Action) obj;
+        performAttachStateChange(action);
+        break;
+      }
+      default:
+        Picasso.HANDLER.post(new Runnable() {
+          @Override public void run() {
+            throw new AssertionError("Unknown dispatcher command received: " + what);
+          }
+        });
     }
+  }
 
-    @Override public void handleMessage(final Message msg) {
-      switch (msg.what) {
-        case REQUEST_SUBMIT: {
-          Action action = (Action) msg.obj;
-          dispatcher.performSubmit(action);
-          break;
-        }
-        case REQUEST_CANCEL: {
-          Action action = (Action) msg.obj;
-          dispatcher.performCancel(action);
-          break;
-        }
-        case TAG_PAUSE: {
-          Object tag = msg.obj;
-          dispatcher.performPauseTag(tag);
-          break;
-        }
-        case TAG_RESUME: {
-          Object tag = msg.obj;
-          dispatcher.performResumeTag(tag);
-          break;
-        }
-        case HUNTER_COMPLETE: {
-          BitmapHunter hunter = (BitmapHunter) msg.obj;
-          dispatcher.performComplete(hunter);
-          break;
-        }
-        case HUNTER_RETRY: {
-          BitmapHunter hunter = (BitmapHunter) msg.obj;
-          dispatcher.performRetry(hunter);
-          break;
-        }
-        case HUNTER_DECODE_FAILED: {
-          BitmapHunter hunter = (BitmapHunter) msg.obj;
-          dispatcher.performError(hunter, false);
-          break;
-        }
-        case HUNTER_DELAY_NEXT_BATCH: {
-          dispatcher.performBatchComplete();
-          break;
-        }
-        case NETWORK_STATE_CHANGE: {
-          NetworkInfo info = (NetworkInfo) msg.obj;
-          dispatcher.performNetworkStateChange(info);
-          break;
-        }
-        case AIRPLANE_MODE_CHANGE: {
-          dispatcher.performAirplaneModeChange(msg.arg1 == AIRPLANE_MODE_ON);
-          break;
+  /** Runs commands with a {@link Handler} on a {@link HandlerThread}, or the calling thread. */
+  private static final class HandlerLoop implements DispatcherLoop {
+    private final DispatcherThread thread;
+    private final Handler handler;
+
+    HandlerLoop(final Dispatcher dispatcher, boolean ownThread) {
+      Looper looper;
+      if (ownThread) {
+        thread = new DispatcherThread();
+        thread.start();
+        looper = thread.getLooper();
+        Utils.flushStackLocalLeaks(looper);
+      } else {
+        thread = null;
+        looper = Looper.myLooper();
+      }
+      handler = new Handler(looper) {
+        @Override public void handleMessage(Message msg) {
+          dispatcher.handle(msg.what, msg.obj, msg.arg1);
         }
-        default:
-          Picasso.HANDLER.post(new Runnable() {
-            @Override public void run() {
-              throw new AssertionError("Unknown handler message received: " + msg.what);
-            }
-          });
+      };
+    }
+
+    @Override public void send(int what, Object obj, int arg1) {
+      handler.sendMessage(handler.obtainMessage(what, arg1, 0, obj));
+    }
+
+    @Override public void sendDelayed(int what, Object obj, long delayMillis) {
+      handler.sendMessageDelayed(handler.obtainMessage(what, obj), delayMillis);
+    }
+
+    @Override public boolean hasPending(int what) {
+      return handler.hasMessages(what);
+    }
+
+    @Override public void remove(int what) {
+      handler.removeMessages(what);
+    }
+
+    @Override public void quit() {
+      if (thread != null) {
+        thread.quit();
+      } else {
+        handler.removeCallbacksAndMessages(null);
       }
     }
   }
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+/**
+ * Runs the commands of a {@link Dispatcher} one at a time, in the order they were sent, on a
+ * thread of its own. All dispatcher state is only touched from that thread.
+ */
+interface DispatcherLoop {
+  /** Run {@code what} with {@code obj} and {@code arg1} on the loop's thread. */
+  void send(int what, Object obj, int arg1);
+
+  /** Run {@code what} with {@code obj} on the loop's thread after {@code delayMillis}. */
+  void sendDelayed(int what, Object obj, long delayMillis);
+
+  /** Whether a command of {@code what} has been sent but not run yet. */
+  boolean hasPending(int what);
+
+  /** Drop every command of {@code what} that has been sent but not run yet. */
+  void remove(int what);
+
+  /** Stop the thread, dropping any commands that have not run yet. */
+  void quit();
+}
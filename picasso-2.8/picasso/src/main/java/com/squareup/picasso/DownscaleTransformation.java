@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.graphics.Bitmap;
+import androidx.annotation.NonNull;
+
+/**
+ * Shrinks the image to at most a maximum size per side, keeping its aspect ratio. Every output
+ * pixel is the average of the source pixels it covers, so small results still hold the colors
+ * of the whole image, for example to extract a palette.
+ */
+final class DownscaleTransformation implements FusedTransformation {
+  /** Below this scale, bilinear filtering skips source pixels, so the average is computed. */
+  private static final float MIN_FUSED_SCALE = 0.5f;
+
+  private final int maxSize;
+
+  DownscaleTransformation(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  @Override public boolean fuse(@NonNull DrawPass pass) {
+    float scale = maxSize / (float) Math.max(pass.getWidth(), pass.getHeight());
+    if (scale < MIN_FUSED_SCALE) {
+      return false;
+    }
+    if (scale < 1) {
+      pass.scale(scale, scale);
+    }
+    return true;
+  }
+
+  @Override public Bitmap transform(final Bitmap source) {
+    final int width = source.getWidth();
+    final int height = source.getHeight();
+    float scale = maxSize / (float) Math.max(width, height);
+    if (scale >= 1) {
+      return source;
+    }
+    final int outWidth = Math.max(1, Math.round(width * scale));
+    final int outHeight = Math.max(1, Math.round(height * scale));
+    final Bitmap result =
+        Bitmap.createBitmap(outWidth, outHeight, BitmapConfigPolicy.softwareConfig(source));
+    result.setHasAlpha(source.hasAlpha());
+
+    final int maxRows = (height + outHeight - 1) / outHeight + 1;
+    PixelTransformation.forEachChunk(outHeight, maxRows * width + outWidth,
+        (long) width * height, new PixelTransformation.ChunkTask() {
+          @Override public void run(int outY, int[] buffer) {
+            int top = (int) ((long) outY * height / outHeight);
+            int rows = Math.max(1, (int) ((long) (outY + 1) * height / outHeight) - top);
+            source.getPixels(buffer, 0, width, 0, top, width, rows);
+            int out = rows * width;
+            for (int outX = 0; outX < outWidth; outX++) {
+              int left = (int) ((long) outX * width / outWidth);
+              int columns = Math.max(1, (int) ((long) (outX + 1) * width / outWidth) - left);
+              buffer[out + outX] = average(buffer, width, left, columns, rows);
+            }
+            result.setPixels(buffer, out, outWidth, 0, outY, outWidth, 1);
+          }
+        });
+    source.recycle();
+    return result;
+  }
+
+  /** The average of {@code columns} by {@code rows} pixels, starting at column {@code left}. */
+  static int average(int[] pixels, int stride, int left, int columns, int rows) {
+    long alpha = 0;
+    long red = 0;
+    long green = 0;
+    long blue = 0;
+    for (int row = 0; row < rows; row++) {
+      for (int i = row * stride + left, end = i + columns; i < end; i++) {
+        int pixel = pixels[i];
+        alpha += PixelTransformation.alpha(pixel);
+        red += PixelTransformation.red(pixel);
+        green += PixelTransformation.green(pixel);
+        blue += PixelTransformation.blue(pixel);
+      }
+    }
+    long count = (long) columns * rows;
+    long half = count / 2;
+    return PixelTransformation.argb((int) ((alpha + half) / count), (int) ((red + half) / count),
+        (int) ((green + half) / count), (int) ((blue + half) / count));
+  }
+
+  @Override public String key() {
+    return "downscale(" + maxSize + ")";
+  }
+}
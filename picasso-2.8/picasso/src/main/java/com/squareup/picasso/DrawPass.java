@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.ColorMatrix;
+import android.graphics.ColorMatrixColorFilter;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import androidx.annotation.NonNull;
+import java.util.ArrayList;
+import java.util.List;
+
+import static android.graphics.Shader.TileMode.CLAMP;
+
+/**
+ * One draw of a decoded image into its final bitmap, collecting the matrix of the request and the
+ * operations of its {@link FusedTransformation}s. Coordinates are those of the output bitmap.
+ */
+public final class DrawPass {
+  private final Bitmap source;
+  private final Rect sourceBounds;
+  /** Maps the drawn part of the source, moved to the origin, to the output. */
+  private final Matrix matrix;
+  private final List<Paint> overlays = new ArrayList<>(1);
+  private int width;
+  private int height;
+  private ColorMatrix colorMatrix;
+  private Path clip;
+
+  DrawPass(Bitmap source, Rect sourceBounds, Matrix matrix) {
+    this.source = source;
+    this.sourceBounds = sourceBounds;
+    this.matrix = new Matrix(matrix);
+    RectF bounds = new RectF(0, 0, sourceBounds.width(), sourceBounds.height());
+    this.matrix.mapRect(bounds);
+    this.matrix.postTranslate(-bounds.left, -bounds.top);
+    this.width = Math.max(1, Math.round(bounds.width()));
+    this.height = Math.max(1, Math.round(bounds.height()));
+  }
+
+  /** The width of the output so far. */
+  public int getWidth() {
+    return width;
+  }
+
+  /** The height of the output so far. */
+  public int getHeight() {
+    return height;
+  }
+
+  /** Scale the output, including any clip, rounding its size to whole pixels. */
+  public void scale(float scaleX, float scaleY) {
+    if (scaleX <= 0 || scaleY <= 0) {
+      throw new IllegalArgumentException("Scale must be positive.");
+    }
+    int newWidth = Math.max(1, Math.round(width * scaleX));
+    int newHeight = Math.max(1, Math.round(height * scaleY));
+    Matrix scale = new Matrix();
+    scale.setScale(newWidth / (float) width, newHeight / (float) height);
+    matrix.postConcat(scale);
+    if (clip != null) {
+      clip.transform(scale);
+    }
+    width = newWidth;
+    height = newHeight;
+  }
+
+  /** Apply {@code colorMatrix} to every pixel, after the color matrices added before. */
+  public void concatColorMatrix(@NonNull ColorMatrix colorMatrix) {
+    if (colorMatrix == null) {
+      throw new IllegalArgumentException("Color matrix must not be null.");
+    }
+    if (this.colorMatrix == null) {
+      this.colorMatrix = new ColorMatrix(colorMatrix);
+    } else {
+      this.colorMatrix.postConcat(colorMatrix);
+    }
+  }
+
+  /** Whether the output is already clipped to a shape. */
+  public boolean hasClip() {
+    return clip != null;
+  }
+
+  /**
+   * Only draw within {@code path}, leaving the rest of the output transparent. A pass has at most
+   * one clip, so check {@link #hasClip()} first.
+   */
+  public void clip(@NonNull Path path) {
+    if (path == null) {
+      throw new IllegalArgumentException("Path must not be null.");
+    }
+    if (clip != null) {
+      throw new IllegalStateException("Pass is already clipped.");
+    }
+    clip = new Path(path);
+  }
+
+  /** Fill the output with {@code paint} once the image is drawn, within any clip. */
+  public void addOverlay(@NonNull Paint paint) {
+    if (paint == null) {
+      throw new IllegalArgumentException("Paint must not be null.");
+    }
+    overlays.add(new Paint(paint));
+  }
+
+  /** Draw the source into a new bitmap. The source is left untouched. */
+  Bitmap draw() {
+    boolean transparent = clip != null || !matrix.rectStaysRect();
+    Bitmap.Config config =
+        transparent ? Bitmap.Config.ARGB_8888 : BitmapConfigPolicy.softwareConfig(source);
+    Bitmap result = Bitmap.createBitmap(width, height, config);
+    result.setHasAlpha(transparent || source.hasAlpha());
+    Canvas canvas = new Canvas(result);
+
+    Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    if (transparent) {
+      paint.setAntiAlias(true);
+    }
+    if (colorMatrix != null) {
+      paint.setColorFilter(new ColorMatrixColorFilter(colorMatrix));
+    }
+    int sourceWidth = sourceBounds.width();
+    int sourceHeight = sourceBounds.height();
+    canvas.save();
+    canvas.concat(matrix);
+    if (clip != null) {
+      // Draw the clip shape, mapped back to the source, filled with the source.
+      Matrix inverse = new Matrix();
+      matrix.invert(inverse);
+      Path shape = new Path(clip);
+      shape.transform(inverse);
+      Matrix shaderMatrix = new Matrix();
+      shaderMatrix.setTranslate(-sourceBounds.left, -sourceBounds.top);
+      BitmapShader shader = new BitmapShader(source, CLAMP, CLAMP);
+      shader.setLocalMatrix(shaderMatrix);
+      paint.setShader(shader);
+      canvas.clipRect(0, 0, sourceWidth, sourceHeight);
+      canvas.drawPath(shape, paint);
+    } else {
+      canvas.drawBitmap(source, sourceBounds, new Rect(0, 0, sourceWidth, sourceHeight), paint);
+    }
+    canvas.restore();
+
+    //noinspection ForLoopReplaceableByForEach
+    for (int i = 0, n = overlays.size(); i < n; i++) {
+      if (clip != null) {
+        canvas.drawPath(clip, overlays.get(i));
+      } else {
+        canvas.drawRect(0, 0, width, height, overlays.get(i));
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import java.io.IOException;
+import java.util.Iterator;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Source;
+
+import static android.os.Build.VERSION.SDK_INT;
+import static android.os.Build.VERSION_CODES.JELLY_BEAN_MR1;
+
+/**
+ * The second tier of the memory cache: the encoded bytes of recently downloaded images, keyed by
+ * {@link RequestKey#source()}. Encoded images are a fraction of the size of their bitmaps, so
+ * this tier remembers far more images than the bitmap cache can. A request whose bitmap was
+ * evicted is decoded again from here, without any I/O or HTTP cache validation.
+ */
+final class EncodedCache {
+  static final class Entry {
+    final byte[] bytes;
+    final int exifOrientation;
+
+    Entry(byte[] bytes, int exifOrientation) {
+      this.bytes = bytes;
+      this.exifOrientation = exifOrientation;
+    }
+  }
+
+  final android.util.LruCache<String, Entry> cache;
+
+  EncodedCache(int maxByteCount) {
+    cache = new android.util.LruCache<String, Entry>(maxByteCount) {
+      @Override protected int sizeOf(String key, Entry value) {
+        return value.bytes.length;
+      }
+    };
+  }
+
+  Entry get(String source) {
+    return cache.get(source);
+  }
+
+  void set(String source, byte[] bytes, int exifOrientation) {
+    if (bytes.length > maxEntrySize()) {
+      cache.remove(source);
+      return;
+    }
+    cache.put(source, new Entry(bytes, exifOrientation));
+  }
+
+  void remove(String source) {
+    cache.remove(source);
+  }
+
+  int size() {
+    return cache.size();
+  }
+
+  int maxSize() {
+    return cache.maxSize();
+  }
+
+  void clear() {
+    cache.evictAll();
+  }
+
+  /** Evict the least recently used entries until the cache holds at most {@code size} bytes. */
+  synchronized void trimToSize(int size) {
+    if (SDK_INT >= JELLY_BEAN_MR1) {
+      cache.trimToSize(size);
+      return;
+    }
+    // Snapshots iterate from least to most recently used.
+    Iterator<String> keys = cache.snapshot().keySet().iterator();
+    while (cache.size() > size && keys.hasNext()) {
+      cache.remove(keys.next());
+    }
+  }
+
+  /** Images larger than this would push out too many others to be worth keeping. */
+  int maxEntrySize() {
+    return cache.maxSize() / 8;
+  }
+
+  /**
+   * Wrap {@code source} so that the bytes read through it are kept, as long as they fit in an
+   * entry. {@link Capture#bytes()} returns them once the source was read to the end.
+   */
+  Capture capture(Source source) {
+    return new Capture(source, maxEntrySize());
+  }
+
+  static final class Capture extends ForwardingSource {
+    private final Buffer captured = new Buffer();
+    private final long limit;
+    private boolean overflowed;
+    private boolean exhausted;
+
+    Capture(Source delegate, long limit) {
+      super(delegate);
+      this.limit = limit;
+    }
+
+    @Override public long read(Buffer sink, long byteCount) throws IOException {
+      long read = super.read(sink, byteCount);
+      if (read == -1) {
+        exhausted = true;
+      } else if (!overflowed) {
+        if (captured.size() + read > limit) {
+          overflowed = true;
+          captured.clear();
+        } else {
+          // Shares the segments rather than copying their bytes.
+          sink.copyTo(captured, sink.size() - read, read);
+        }
+      }
+      return read;
+    }
+
+    /** Returns whether the bytes read so far may still be kept. */
+    boolean capturing() {
+      return !overflowed;
+    }
+
+    /** Returns the complete encoded image, or null if it was too large or not read to the end. */
+    byte[] bytes() {
+      return exhausted && !overflowed ? captured.readByteArray() : null;
+    }
+  }
+}
@@ -23,7 +23,7 @@ class FetchAction extends Action<Object> {
   private Callback callback;
 
   FetchAction(Picasso picasso, Request data, int memoryPolicy, int networkPolicy, Object tag,
-      String key, Callback callback) {
+      RequestKey key, Callback callback) {
     super(picasso, null, data, memoryPolicy, networkPolicy, 0, null, key, tag, false);
     this.target = new Object();
     this.callback = callback;
@@ -43,6 +43,9 @@ class FetchAction extends Action<Object> {
 
   @Override void cancel() {
     super.cancel();
+    if (callback instanceof Batch.Item) {
+      ((Batch.Item) callback).onCancelled();
+    }
     callback = null;
   }
 
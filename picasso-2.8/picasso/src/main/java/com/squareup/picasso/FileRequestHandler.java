@@ -18,6 +18,7 @@ package com.squareup.picasso;
 import android.content.Context;
 import android.net.Uri;
 import androidx.exifinterface.media.ExifInterface;
+import java.io.File;
 import java.io.IOException;
 import okio.Okio;
 import okio.Source;
@@ -39,7 +40,8 @@ class FileRequestHandler extends ContentStreamRequestHandler {
 
   @Override public Result load(Request request, int networkPolicy) throws IOException {
     Source source = Okio.source(getInputStream(request));
-    return new Result(null, source, DISK, getFileExifRotation(request.uri));
+    return new Result(null, source, DISK, getFileExifRotation(request.uri),
+        new File(request.uri.getPath()));
   }
 
   static int getFileExifRotation(Uri uri) throws IOException {
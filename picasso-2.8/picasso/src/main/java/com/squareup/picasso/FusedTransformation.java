@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A {@link Transformation} that can be drawn in the same pass as the resize, crop and rotation
+ * of its request, instead of copying the whole image into another bitmap. Pixel-wise color
+ * changes, clipping to a shape and scaling can all be expressed this way.
+ * <p>
+ * Consecutive fused transformations at the start of a request's transformations share one
+ * {@link DrawPass} and produce a single bitmap. The ones after the first that can not be fused
+ * are applied with {@link #transform(android.graphics.Bitmap)}, which must therefore still be
+ * implemented.
+ */
+public interface FusedTransformation extends Transformation {
+  /**
+   * Add this transformation to {@code pass}. Return false without changing {@code pass} to be
+   * applied with {@link #transform(android.graphics.Bitmap)} instead, for example because the
+   * pass is already clipped to another shape.
+   */
+  boolean fuse(@NonNull DrawPass pass);
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.graphics.Bitmap;
+import java.io.IOException;
+
+import static com.squareup.picasso.Utils.isMain;
+
+/** Completes the {@link PicassoFuture} returned by {@link RequestCreator#submit()}. */
+final class FutureAction extends Action<Object> {
+  final PicassoFuture<Bitmap> future;
+
+  FutureAction(Picasso picasso, Request data, int memoryPolicy, int networkPolicy, Object tag,
+      RequestKey key) {
+    super(picasso, null, data, memoryPolicy, networkPolicy, 0, null, key, tag, false);
+    this.future = new PicassoFuture<>(new Runnable() {
+      @Override public void run() {
+        onFutureCancelled();
+      }
+    });
+  }
+
+  @Override void complete(Bitmap result, Picasso.LoadedFrom from) {
+    future.set(result);
+  }
+
+  @Override void error(Exception e) {
+    future.setException(e != null ? e : new IOException("Failed to load " + request.logId()));
+  }
+
+  @Override void cancel() {
+    super.cancel();
+    future.cancel(false);
+  }
+
+  /** The future is the target so that the action, and with it the future, stay reachable. */
+  @Override Object getTarget() {
+    return future;
+  }
+
+  void onFutureCancelled() {
+    if (isMain()) {
+      picasso.cancelAction(this);
+      return;
+    }
+    Picasso.HANDLER.post(new Runnable() {
+      @Override public void run() {
+        picasso.cancelAction(FutureAction.this);
+      }
+    });
+  }
+}
@@ -19,7 +19,7 @@ import android.graphics.Bitmap;
 
 class GetAction extends Action<Void> {
   GetAction(Picasso picasso, Request data, int memoryPolicy, int networkPolicy, Object tag,
-      String key) {
+      RequestKey key) {
     super(picasso, null, data, memoryPolicy, networkPolicy, 0, null, key, tag, false);
   }
 
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.graphics.ColorMatrix;
+import androidx.annotation.NonNull;
+
+/** Removes all color, weighting the channels as {@link ColorMatrix#setSaturation} does. */
+final class GrayscaleTransformation extends PixelTransformation implements FusedTransformation {
+  // 0.213, 0.715 and 0.072 in 8 bit fixed point.
+  private static final int RED_WEIGHT = 54;
+  private static final int GREEN_WEIGHT = 183;
+  private static final int BLUE_WEIGHT = 19;
+
+  @Override public boolean fuse(@NonNull DrawPass pass) {
+    ColorMatrix colorMatrix = new ColorMatrix();
+    colorMatrix.setSaturation(0);
+    pass.concatColorMatrix(colorMatrix);
+    return true;
+  }
+
+  @Override void filter(int[] pixels, int width, int top, int rows, int height) {
+    for (int i = 0, n = width * rows; i < n; i++) {
+      int pixel = pixels[i];
+      int gray = (RED_WEIGHT * red(pixel) + GREEN_WEIGHT * green(pixel)
+          + BLUE_WEIGHT * blue(pixel) + 128) >> 8;
+      pixels[i] = argb(alpha(pixel), gray, gray, gray);
+    }
+  }
+
+  @Override public String key() {
+    return "grayscale()";
+  }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.squareup.picasso.PicassoExecutorService.PicassoFutureTask;
+
+/**
+ * The work queue of a {@link PicassoExecutorService}.
+ * <p>
+ * Unlike a {@link java.util.concurrent.PriorityBlockingQueue}, whose order is fixed when a task is
+ * inserted, this queue moves a task when what it is ranked by changes while it waits: an action
+ * joins or leaves its hunter, or a target is attached to or detached from its window. The
+ * dispatcher calls {@link #reorder} for those, so taking a task is only removing the first of an
+ * ordered set. Tasks cancelled while waiting leave the queue as they are cancelled.
+ * <p>
+ * Ranking reads each hunter under its monitor while holding this queue's lock, so a hunter must
+ * not call into the queue while holding its monitor.
+ */
+final class HunterQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final TreeSet<PicassoFutureTask> tasks = new TreeSet<>();
+  private long sequence;
+
+  @Override public boolean offer(Runnable runnable) {
+    PicassoFutureTask task = (PicassoFutureTask) Utils.checkNotNull(runnable, "runnable == null");
+    lock.lock();
+    try {
+      task.queue = this;
+      task.sequence = sequence++;
+      task.rank();
+      tasks.add(task);
+      notEmpty.signal();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Move {@code task} to its place after what it is ranked by changed, if it is still waiting. */
+  void reorder(PicassoFutureTask task) {
+    lock.lock();
+    try {
+      // The task must leave the set under its old rank, which orders it there.
+      if (tasks.remove(task)) {
+        task.rank();
+        tasks.add(task);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override public void put(Runnable runnable) {
+    offer(runnable);
+  }
+
+  @Override public boolean offer(Runnable runnable, long timeout, TimeUnit unit) {
+    return offer(runnable);
+  }
+
+  @Override public Runnable take() throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      PicassoFutureTask task;
+      while ((task = removeNext()) == null) {
+        notEmpty.await();
+      }
+      return task;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+    long nanos = unit.toNanos(timeout);
+    lock.lockInterruptibly();
+    try {
+      PicassoFutureTask task;
+      while ((task = removeNext()) == null) {
+        if (nanos <= 0) {
+          return null;
+        }
+        nanos = notEmpty.awaitNanos(nanos);
+      }
+      return task;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override public Runnable poll() {
+    lock.lock();
+    try {
+      return removeNext();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override public Runnable peek() {
+    lock.lock();
+    try {
+      return tasks.isEmpty() ? null : tasks.first();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override public boolean remove(Object o) {
+    lock.lock();
+    try {
+      return o instanceof PicassoFutureTask && tasks.remove(o);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override public int size() {
+    lock.lock();
+    try {
+      return tasks.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override public int remainingCapacity() {
+    return Integer.MAX_VALUE;
+  }
+
+  @Override public int drainTo(Collection<? super Runnable> c) {
+    return drainTo(c, Integer.MAX_VALUE);
+  }
+
+  @Override public int drainTo(Collection<? super Runnable> c, int maxElements) {
+    if (c == this) {
+      throw new IllegalArgumentException("Cannot drain to self.");
+    }
+    lock.lock();
+    try {
+      int drained = 0;
+      PicassoFutureTask task;
+      while (drained < maxElements && (task = removeNext()) != null) {
+        c.add(task);
+        drained++;
+      }
+      return drained;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Iterates over a copy of the tasks, in the order they would be taken. */
+  @Override public Iterator<Runnable> iterator() {
+    lock.lock();
+    try {
+      return new Itr(tasks.toArray(new Runnable[tasks.size()]));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private PicassoFutureTask removeNext() {
+    return tasks.pollFirst();
+  }
+
+  private final class Itr implements Iterator<Runnable> {
+    private final Runnable[] snapshot;
+    private int cursor;
+    private int last = -1;
+
+    Itr(Runnable[] snapshot) {
+      this.snapshot = snapshot;
+    }
+
+    @Override public boolean hasNext() {
+      return cursor < snapshot.length;
+    }
+
+    @Override public Runnable next() {
+      if (cursor >= snapshot.length) {
+        throw new NoSuchElementException();
+      }
+      last = cursor;
+      return snapshot[cursor++];
+    }
+
+    @Override public void remove() {
+      if (last == -1) {
+        throw new IllegalStateException();
+      }
+      HunterQueue.this.remove(snapshot[last]);
+      last = -1;
+    }
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.res.AssetManager;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.ImageDecoder;
+import android.net.Uri;
+import android.util.Size;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static android.os.Build.VERSION.SDK_INT;
+import static android.os.Build.VERSION_CODES.P;
+
+/**
+ * Decodes with {@link ImageDecoder} on API 28 and newer. Unlike {@code BitmapFactory} it reads the
+ * header and scales to the requested size within a single decode, so resized requests need
+ * neither a separate bounds pass nor a power-of-two sample size. It also applies the image's EXIF
+ * orientation itself.
+ * <p>
+ * Decodes are software unless the request asks for {@link Bitmap.Config#HARDWARE}, since
+ * transformations draw into the decoded bitmap.
+ * <p>
+ * Request handlers of local images describe where their image is with a {@link SourceFactory}, so
+ * that the decoder opens it itself and reads it as it decodes. Streams without one are left to
+ * {@code BitmapFactory} rather than being read into memory first.
+ */
+@TargetApi(P)
+final class ImageDecoderEngine {
+  /** Whether {@code request} can be decoded by this engine on the running platform. */
+  static boolean canDecode(Request request) {
+    if (SDK_INT < P) {
+      return false;
+    }
+    Bitmap.Config config = request.config;
+    // ImageDecoder has no equivalent of the other configs' inPreferredConfig.
+    return config == null
+        || config == Bitmap.Config.ARGB_8888
+        || config == Bitmap.Config.RGB_565
+        || config == Bitmap.Config.HARDWARE;
+  }
+
+  /** Where an image can be opened by the decoder itself, rather than read from a stream. */
+  interface SourceFactory {
+    ImageDecoder.Source create();
+  }
+
+  /** Returns a factory of sources of {@code file}, or null below API 28. */
+  static SourceFactory source(final File file) {
+    return SDK_INT < P ? null : new SourceFactory() {
+      @Override public ImageDecoder.Source create() {
+        return ImageDecoder.createSource(file);
+      }
+    };
+  }
+
+  /** Returns a factory of sources of the content at {@code uri}, or null below API 28. */
+  static SourceFactory source(final ContentResolver resolver, final Uri uri) {
+    return SDK_INT < P ? null : new SourceFactory() {
+      @Override public ImageDecoder.Source create() {
+        return ImageDecoder.createSource(resolver, uri);
+      }
+    };
+  }
+
+  /** Returns a factory of sources of the asset at {@code path}, or null below API 28. */
+  static SourceFactory source(final AssetManager assets, final String path) {
+    return SDK_INT < P ? null : new SourceFactory() {
+      @Override public ImageDecoder.Source create() {
+        return ImageDecoder.createSource(assets, path);
+      }
+    };
+  }
+
+  /** Returns a factory of sources of the resource {@code id}, or null below API 28. */
+  static SourceFactory source(final Resources resources, final int id) {
+    return SDK_INT < P ? null : new SourceFactory() {
+      @Override public ImageDecoder.Source create() {
+        return ImageDecoder.createSource(resources, id);
+      }
+    };
+  }
+
+  /** Returns a factory of sources of {@code bytes}, or null below API 28. */
+  static SourceFactory source(final byte[] bytes) {
+    return SDK_INT < P ? null : new SourceFactory() {
+      @Override public ImageDecoder.Source create() {
+        return ImageDecoder.createSource(ByteBuffer.wrap(bytes));
+      }
+    };
+  }
+
+  static Bitmap decode(SourceFactory factory, Request request, BitmapHunter hunter)
+      throws IOException {
+    return decode(factory.create(), request, hunter);
+  }
+
+  static Bitmap decode(byte[] bytes, Request request, BitmapHunter hunter) throws IOException {
+    return decode(ImageDecoder.createSource(ByteBuffer.wrap(bytes)), request, hunter);
+  }
+
+  private static Bitmap decode(ImageDecoder.Source source, final Request request,
+      final BitmapHunter hunter) throws IOException {
+    return ImageDecoder.decodeBitmap(source, new ImageDecoder.OnHeaderDecodedListener() {
+      @Override public void onHeaderDecoded(ImageDecoder decoder, ImageDecoder.ImageInfo info,
+          ImageDecoder.Source source) {
+        Size size = info.getSize();
+        int width = size.getWidth();
+        int height = size.getHeight();
+        float scale = decodeScale(request, width, height);
+        if (scale < 1) {
+          width = Math.max(1, Math.round(width * scale));
+          height = Math.max(1, Math.round(height * scale));
+          decoder.setTargetSize(width, height);
+        }
+        decoder.setAllocator(request.config == Bitmap.Config.HARDWARE
+            ? ImageDecoder.ALLOCATOR_HARDWARE
+            : ImageDecoder.ALLOCATOR_SOFTWARE);
+        if (request.config == Bitmap.Config.RGB_565) {
+          decoder.setMemorySizePolicy(ImageDecoder.MEMORY_POLICY_LOW_RAM);
+        }
+        hunter.reserveMemory(BitmapHunter.estimateBitmapBytes(width, height, request.config));
+      }
+    });
+  }
+
+  /**
+   * The scale at which to decode a {@code width} by {@code height} image for {@code request}.
+   * Like {@link RequestHandler#calculateInSampleSize} the result covers the target, or fits
+   * within it for {@link Request#centerInside}, and never scales up; the matrix transform then
+   * only has to crop or stretch what is left.
+   */
+  static float decodeScale(Request request, int width, int height) {
+    if (!request.hasSize() || width <= 0 || height <= 0) {
+      return 1;
+    }
+    int targetWidth = request.targetWidth;
+    int targetHeight = request.targetHeight;
+    float widthRatio =
+        targetWidth != 0 ? targetWidth / (float) width : targetHeight / (float) height;
+    float heightRatio =
+        targetHeight != 0 ? targetHeight / (float) height : targetWidth / (float) width;
+    float scale = request.centerInside
+        ? Math.min(widthRatio, heightRatio)
+        : Math.max(widthRatio, heightRatio);
+    return Math.min(1, scale);
+  }
+
+  private ImageDecoderEngine() {
+  }
+}
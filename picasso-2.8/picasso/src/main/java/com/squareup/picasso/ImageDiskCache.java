@@ -0,0 +1,528 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Adler32;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * A disk cache of encoded images that never expire, for URLs whose content never changes.
+ * <p>
+ * Each image is a file named after the hash of its URL. The index of files in least recently
+ * used order lives in memory and is rebuilt at open from a journal of fixed-size records, which
+ * is memory-mapped so that recording a read, a write or a removal costs no system call. The
+ * journal is rewritten to just the live entries once its mapping is full.
+ * <p>
+ * Writes go to a temporary file that is renamed into place when complete, and only then
+ * journaled. Files record their URL, length and checksum, so a read never serves another URL's
+ * image or one that a crash left incomplete: a short file is a miss, and a checksum mismatch
+ * fails the read once it reaches the end and removes the entry.
+ * <p>
+ * Only uses {@code java.io}, {@code java.nio} and Okio, so that it also runs on the JVM.
+ */
+final class ImageDiskCache implements Closeable {
+  static final String JOURNAL_FILE = "journal";
+  static final String JOURNAL_FILE_TEMP = "journal.tmp";
+  static final int MIN_JOURNAL_CAPACITY = 4096;
+
+  private static final int JOURNAL_MAGIC = 0x50494d4a; // "PIMJ"
+  private static final int ENTRY_MAGIC = 0x50494d45; // "PIME"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+  private static final int RECORD_SIZE = 24;
+  private static final int OP_PUT = 1;
+  private static final int OP_READ = 2;
+  private static final int OP_REMOVE = 3;
+
+  private final File directory;
+  private final long maxSize;
+  private final int minJournalCapacity;
+  /** By key, from least to most recently used. Guarded by this. */
+  private final LinkedHashMap<Long, Long> sizes = new LinkedHashMap<>(0, 0.75f, true);
+  /** Keys being written. Guarded by this. */
+  private final Set<Long> editing = new HashSet<>();
+  private long size; // Guarded by this.
+
+  private FileChannel journalChannel; // Guarded by this.
+  private MappedByteBuffer journal; // Guarded by this.
+  private int journalCapacity; // Guarded by this.
+  private int journalRecords; // Guarded by this.
+  private boolean closed; // Guarded by this.
+
+  private ImageDiskCache(File directory, long maxSize, int minJournalCapacity) {
+    this.directory = directory;
+    this.maxSize = maxSize;
+    this.minJournalCapacity = minJournalCapacity;
+  }
+
+  /** Opens the cache in {@code directory}, creating it if needed. */
+  static ImageDiskCache open(File directory, long maxSize) throws IOException {
+    return open(directory, maxSize, MIN_JOURNAL_CAPACITY);
+  }
+
+  static ImageDiskCache open(File directory, long maxSize, int minJournalCapacity)
+      throws IOException {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize <= 0");
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create cache directory " + directory);
+    }
+    ImageDiskCache cache = new ImageDiskCache(directory, maxSize, minJournalCapacity);
+    synchronized (cache) {
+      cache.readJournal();
+    }
+    return cache;
+  }
+
+  /** Returns the image cached for {@code url}, or null. */
+  Snapshot get(String url) throws IOException {
+    long key = key(url);
+    synchronized (this) {
+      checkNotClosed();
+      if (sizes.get(key) == null) {
+        return null;
+      }
+      append(OP_READ, key, 0);
+    }
+    File file = file(key);
+    BufferedSource source;
+    try {
+      source = Okio.buffer(Okio.source(new FileInputStream(file)));
+    } catch (IOException e) {
+      remove(key);
+      return null;
+    }
+    long fileLength = file.length();
+    try {
+      if (source.readInt() == ENTRY_MAGIC) {
+        int urlLength = source.readInt();
+        if (urlLength > 0 && urlLength < fileLength) {
+          ByteString storedUrl = source.readByteString(urlLength);
+          long length = source.readLong();
+          int checksum = source.readInt();
+          if (storedUrl.utf8().equals(url) && fileLength == headerSize(urlLength) + length) {
+            return new Snapshot(key, new ChecksumSource(source, key, checksum), length);
+          }
+        }
+      }
+    } catch (IOException ignored) {
+      // Truncated header.
+    }
+    source.close();
+    remove(key);
+    return null;
+  }
+
+  /**
+   * Returns an editor to write the image of {@code url}, or null if another is being written to
+   * it. The image replaces the cached one on {@link Editor#commit()}.
+   */
+  synchronized Editor edit(String url) throws IOException {
+    checkNotClosed();
+    long key = key(url);
+    if (!editing.add(key)) {
+      return null;
+    }
+    try {
+      return new Editor(this, key, url, tempFile(key));
+    } catch (IOException e) {
+      editing.remove(key);
+      throw e;
+    }
+  }
+
+  synchronized boolean remove(String url) throws IOException {
+    checkNotClosed();
+    return remove(key(url));
+  }
+
+  /** Returns the bytes the cached files take up. */
+  synchronized long size() {
+    return size;
+  }
+
+  long maxSize() {
+    return maxSize;
+  }
+
+  synchronized int entryCount() {
+    return sizes.size();
+  }
+
+  /** The largest image worth caching; larger ones would push out too many others. */
+  long maxEntrySize() {
+    return maxSize / 8;
+  }
+
+  @Override public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    journal = null;
+    journalChannel.close();
+  }
+
+  private synchronized boolean remove(long key) {
+    Long removed = sizes.remove(key);
+    if (removed == null) {
+      return false;
+    }
+    size -= removed;
+    //noinspection ResultOfMethodCallIgnored
+    file(key).delete();
+    if (!closed) {
+      try {
+        append(OP_REMOVE, key, 0);
+      } catch (IOException ignored) {
+        // The file is gone, which a replay treats as a miss.
+      }
+    }
+    return true;
+  }
+
+  synchronized void completeEdit(Editor editor, boolean success) throws IOException {
+    long key = editor.key;
+    editing.remove(key);
+    if (closed || !success) {
+      //noinspection ResultOfMethodCallIgnored
+      editor.temp.delete();
+      return;
+    }
+    long length = editor.temp.length();
+    File file = file(key);
+    if (!editor.temp.renameTo(file)) {
+      //noinspection ResultOfMethodCallIgnored
+      editor.temp.delete();
+      remove(key);
+      return;
+    }
+    Long previous = sizes.put(key, length);
+    size += length - (previous != null ? previous : 0);
+    append(OP_PUT, key, length);
+    trimToSize(maxSize);
+  }
+
+  private void trimToSize(long maxSize) throws IOException {
+    Iterator<Map.Entry<Long, Long>> entries = sizes.entrySet().iterator();
+    while (size > maxSize && entries.hasNext()) {
+      Map.Entry<Long, Long> entry = entries.next();
+      long key = entry.getKey();
+      size -= entry.getValue();
+      entries.remove();
+      //noinspection ResultOfMethodCallIgnored
+      file(key).delete();
+      append(OP_REMOVE, key, 0);
+    }
+  }
+
+  private void readJournal() throws IOException {
+    File file = new File(directory, JOURNAL_FILE);
+    if (!file.exists()) {
+      rebuildJournal();
+      return;
+    }
+    mapJournal(file, Math.max(minJournalCapacity,
+        (int) Math.min(Integer.MAX_VALUE, (file.length() - HEADER_SIZE) / RECORD_SIZE)));
+    MappedByteBuffer journal = this.journal;
+    if (journal.getInt(0) != JOURNAL_MAGIC || journal.getInt(4) != VERSION) {
+      rebuildJournal();
+      return;
+    }
+    int records = 0;
+    for (int position = HEADER_SIZE; records < journalCapacity; position += RECORD_SIZE) {
+      int op = journal.getInt(position);
+      long key = journal.getLong(position + 4);
+      long length = journal.getLong(position + 12);
+      if (op == 0 || journal.getInt(position + 20) != check(op, key, length)) {
+        break; // The end, or a record torn by a crash.
+      }
+      records++;
+      if (op == OP_PUT) {
+        Long previous = sizes.put(key, length);
+        size += length - (previous != null ? previous : 0);
+      } else if (op == OP_READ) {
+        sizes.get(key);
+      } else {
+        Long removed = sizes.remove(key);
+        if (removed != null) {
+          size -= removed;
+        }
+      }
+    }
+    journalRecords = records;
+    if (records > 2 * sizes.size() + minJournalCapacity / 2) {
+      rebuildJournal();
+    }
+    trimToSize(maxSize);
+  }
+
+  /**
+   * Write the live entries to a new journal, replacing the current one atomically, and delete the
+   * files no entry refers to, such as temporary files a crash left behind.
+   */
+  private void rebuildJournal() throws IOException {
+    File temp = new File(directory, JOURNAL_FILE_TEMP);
+    int capacity = Math.max(minJournalCapacity, 2 * sizes.size());
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + sizes.size() * RECORD_SIZE);
+    buffer.putInt(JOURNAL_MAGIC).putInt(VERSION).putLong(0);
+    for (Map.Entry<Long, Long> entry : sizes.entrySet()) {
+      long key = entry.getKey();
+      long length = entry.getValue();
+      buffer.putInt(OP_PUT).putLong(key).putLong(length).putInt(check(OP_PUT, key, length));
+    }
+    buffer.flip();
+    FileOutputStream out = new FileOutputStream(temp);
+    try {
+      FileChannel channel = out.getChannel();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    File file = new File(directory, JOURNAL_FILE);
+    if (!temp.renameTo(file)) {
+      throw new IOException("Unable to replace " + file);
+    }
+    if (journalChannel != null) {
+      journalChannel.close();
+    }
+    mapJournal(file, capacity);
+    journalRecords = sizes.size();
+
+    String[] names = directory.list();
+    if (names != null) {
+      Set<String> live = new HashSet<>();
+      live.add(JOURNAL_FILE);
+      for (long key : sizes.keySet()) {
+        live.add(file(key).getName());
+      }
+      for (long key : editing) {
+        live.add(tempFile(key).getName());
+      }
+      for (String name : names) {
+        if (!live.contains(name)) {
+          //noinspection ResultOfMethodCallIgnored
+          new File(directory, name).delete();
+        }
+      }
+    }
+  }
+
+  private void mapJournal(File file, int capacity) throws IOException {
+    journalChannel = new RandomAccessFile(file, "rw").getChannel();
+    journal = journalChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+        HEADER_SIZE + (long) capacity * RECORD_SIZE);
+    journalCapacity = capacity;
+  }
+
+  private void append(int op, long key, long length) throws IOException {
+    if (journalRecords == journalCapacity) {
+      // The index already reflects the operation, so the rebuilt journal records it.
+      rebuildJournal();
+      return;
+    }
+    int position = HEADER_SIZE + journalRecords * RECORD_SIZE;
+    MappedByteBuffer journal = this.journal;
+    journal.putLong(position + 4, key);
+    journal.putLong(position + 12, length);
+    journal.putInt(position + 20, check(op, key, length));
+    // The op goes last; a record without one ends the journal.
+    journal.putInt(position, op);
+    journalRecords++;
+  }
+
+  private void checkNotClosed() {
+    if (closed) {
+      throw new IllegalStateException("cache is closed");
+    }
+  }
+
+  private File file(long key) {
+    return new File(directory, Long.toHexString(key));
+  }
+
+  private File tempFile(long key) {
+    return new File(directory, Long.toHexString(key) + ".tmp");
+  }
+
+  static long key(String url) {
+    return ByteString.encodeUtf8(url).md5().asByteBuffer().getLong();
+  }
+
+  static int headerSize(int urlLength) {
+    return 4 + 4 + urlLength + 8 + 4;
+  }
+
+  private static int check(int op, long key, long length) {
+    long hash = (key * 31 + length) * 31 + op;
+    return (int) (hash ^ (hash >>> 32)) | 1;
+  }
+
+  /** A cached image. Close its source when done. */
+  static final class Snapshot {
+    final long key;
+    final BufferedSource source;
+    final long length;
+
+    Snapshot(long key, Source source, long length) {
+      this.key = key;
+      this.source = Okio.buffer(source);
+      this.length = length;
+    }
+  }
+
+  /** Verifies the checksum of an image once read to the end, removing it on a mismatch. */
+  private final class ChecksumSource extends ForwardingSource {
+    private final ChecksumStream checksum = new ChecksumStream();
+    private final long key;
+    private final int expected;
+
+    ChecksumSource(Source delegate, long key, int expected) {
+      super(delegate);
+      this.key = key;
+      this.expected = expected;
+    }
+
+    @Override public long read(Buffer sink, long byteCount) throws IOException {
+      long read = super.read(sink, byteCount);
+      if (read == -1) {
+        if ((int) checksum.adler.getValue() != expected) {
+          remove(key);
+          throw new IOException("Cached image is corrupt");
+        }
+      } else {
+        sink.copyTo(checksum, sink.size() - read, read);
+      }
+      return read;
+    }
+  }
+
+  /** Feeds the bytes written to it to a checksum, straight from the segments of a buffer. */
+  static final class ChecksumStream extends OutputStream {
+    final Adler32 adler = new Adler32();
+
+    @Override public void write(int b) {
+      adler.update(b);
+    }
+
+    @Override public void write(byte[] b, int off, int len) {
+      adler.update(b, off, len);
+    }
+  }
+
+  /** Writes the image of one URL. Either commit or abort it. */
+  static final class Editor {
+    final ImageDiskCache cache;
+    final long key;
+    final File temp;
+    private final FileOutputStream out;
+    private final BufferedSink sink;
+    private final ChecksumStream checksum = new ChecksumStream();
+    private final int urlLength;
+    private long length;
+    private boolean done;
+
+    Editor(ImageDiskCache cache, long key, String url, File temp) throws IOException {
+      this.cache = cache;
+      this.key = key;
+      this.temp = temp;
+      this.out = new FileOutputStream(temp);
+      this.sink = Okio.buffer(Okio.sink(out));
+      ByteString urlBytes = ByteString.encodeUtf8(url);
+      urlLength = urlBytes.size();
+      // The length and checksum are filled in on commit.
+      sink.writeInt(ENTRY_MAGIC).writeInt(urlLength).write(urlBytes).writeLong(0).writeInt(0);
+    }
+
+    /** Append {@code byteCount} bytes of {@code buffer} from {@code offset}, leaving it as is. */
+    void write(Buffer buffer, long offset, long byteCount) throws IOException {
+      buffer.copyTo(checksum, offset, byteCount);
+      buffer.copyTo(sink.buffer(), offset, byteCount);
+      sink.emitCompleteSegments();
+      length += byteCount;
+    }
+
+    long length() {
+      return length;
+    }
+
+    void commit() throws IOException {
+      if (done) {
+        return;
+      }
+      done = true;
+      boolean success = false;
+      try {
+        sink.flush();
+        ByteBuffer trailer = ByteBuffer.allocate(12);
+        trailer.putLong(length).putInt((int) checksum.adler.getValue()).flip();
+        FileChannel channel = out.getChannel();
+        long position = 4 + 4 + urlLength;
+        while (trailer.hasRemaining()) {
+          position += channel.write(trailer, position);
+        }
+        success = true;
+      } finally {
+        closeQuietly();
+        cache.completeEdit(this, success);
+      }
+    }
+
+    void abort() {
+      if (done) {
+        return;
+      }
+      done = true;
+      closeQuietly();
+      try {
+        cache.completeEdit(this, false);
+      } catch (IOException ignored) {
+      }
+    }
+
+    private void closeQuietly() {
+      try {
+        sink.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+}
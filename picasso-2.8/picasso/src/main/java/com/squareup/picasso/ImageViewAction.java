@@ -19,18 +19,25 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.drawable.Animatable;
 import android.graphics.drawable.Drawable;
+import android.view.View;
+import android.view.View.OnAttachStateChangeListener;
 import android.widget.ImageView;
 
-class ImageViewAction extends Action<ImageView> {
+class ImageViewAction extends Action<ImageView> implements OnAttachStateChangeListener {
 
   Callback callback;
+  boolean previewShown;
+  /** Kept by the main thread, which alone may ask the view, for threads ranking hunters. */
+  private volatile boolean detached;
 
   ImageViewAction(Picasso picasso, ImageView imageView, Request data, int memoryPolicy,
-      int networkPolicy, int errorResId, Drawable errorDrawable, String key, Object tag,
+      int networkPolicy, int errorResId, Drawable errorDrawable, RequestKey key, Object tag,
       Callback callback, boolean noFade) {
     super(picasso, imageView, data, memoryPolicy, networkPolicy, errorResId, errorDrawable, key,
         tag, noFade);
     this.callback = callback;
+    this.detached = !Utils.isAttachedToWindow(imageView);
+    imageView.addOnAttachStateChangeListener(this);
   }
 
   @Override public void complete(Bitmap result, Picasso.LoadedFrom from) {
@@ -43,21 +50,54 @@ class ImageViewAction extends Action<ImageView> {
     if (target == null) {
       return;
     }
+    target.removeOnAttachStateChangeListener(this);
 
     Context context = picasso.context;
     boolean indicatorsEnabled = picasso.indicatorsEnabled;
-    PicassoDrawable.setBitmap(target, context, result, from, noFade, indicatorsEnabled);
+    // Swapping a preview for the full image is not faded so the image does not flash.
+    PicassoDrawable.setBitmap(target, context, result, from, noFade || previewShown,
+        indicatorsEnabled);
 
     if (callback != null) {
       callback.onSuccess();
     }
   }
 
+  @Override void preview(Bitmap preview, Picasso.LoadedFrom from) {
+    ImageView target = this.target.get();
+    if (target == null) {
+      return;
+    }
+    PicassoDrawable.setBitmap(target, picasso.context, preview, from, true,
+        picasso.indicatorsEnabled);
+    previewShown = true;
+  }
+
+  @Override boolean isDetached() {
+    return detached || target.get() == null;
+  }
+
+  @Override public void onViewAttachedToWindow(View view) {
+    setDetached(false);
+  }
+
+  @Override public void onViewDetachedFromWindow(View view) {
+    setDetached(true);
+  }
+
+  private void setDetached(boolean detached) {
+    if (this.detached != detached) {
+      this.detached = detached;
+      picasso.attachStateChanged(this);
+    }
+  }
+
   @Override public void error(Exception e) {
     ImageView target = this.target.get();
     if (target == null) {
       return;
     }
+    target.removeOnAttachStateChangeListener(this);
     Drawable placeholder = target.getDrawable();
     if (placeholder instanceof Animatable) {
       ((Animatable) placeholder).stop();
@@ -75,6 +115,13 @@ class ImageViewAction extends Action<ImageView> {
 
   @Override void cancel() {
     super.cancel();
+    ImageView target = this.target.get();
+    if (target != null) {
+      target.removeOnAttachStateChangeListener(this);
+    }
+    if (callback instanceof Batch.Item) {
+      ((Batch.Item) callback).onCancelled();
+    }
     if (callback != null) {
       callback = null;
     }
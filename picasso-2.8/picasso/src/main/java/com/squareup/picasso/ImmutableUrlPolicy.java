@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import java.util.regex.Pattern;
+
+/**
+ * URLs whose content never changes, such as those of CDNs that embed a hash of the image, set
+ * with {@link Picasso.Builder#immutableUrls(String...)}. Their cached images are used however
+ * old they are, instead of being revalidated with the server once stale.
+ */
+final class ImmutableUrlPolicy {
+  static final ImmutableUrlPolicy NONE = new ImmutableUrlPolicy();
+
+  private final Pattern[] patterns;
+
+  /** {@code patterns} are regular expressions that have to match the whole URL. */
+  ImmutableUrlPolicy(String... patterns) {
+    this.patterns = new Pattern[patterns.length];
+    for (int i = 0; i < patterns.length; i++) {
+      if (patterns[i] == null) {
+        throw new IllegalArgumentException("Pattern must not be null.");
+      }
+      this.patterns[i] = Pattern.compile(patterns[i]);
+    }
+  }
+
+  boolean isImmutable(String url) {
+    //noinspection ForLoopReplaceableByForEach
+    for (int i = 0; i < patterns.length; i++) {
+      if (patterns[i].matcher(url).matches()) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * A lock-free latency histogram with log-linear buckets in the style of HdrHistogram.
+ * <p>
+ * Values are recorded in microseconds. Below {@link #SUB_BUCKETS} each value has its own bucket;
+ * above it every power of two is split into {@link #SUB_BUCKETS} equal buckets, which bounds the
+ * relative error of any reported percentile to {@code 1 / SUB_BUCKETS}. Values larger than
+ * {@link #MAX_VALUE} are clamped.
+ */
+final class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 3;
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  /** About 71 minutes, far longer than any request should take. */
+  static final long MAX_VALUE = (1L << 32) - 1;
+  static final int BUCKET_COUNT = bucketIndex(MAX_VALUE) + 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final StripedCounter total = new StripedCounter();
+  private final AtomicLong max = new AtomicLong();
+
+  void recordNanos(long nanos) {
+    record(NANOSECONDS.toMicros(nanos));
+  }
+
+  void record(long micros) {
+    long value = Math.max(0, Math.min(MAX_VALUE, micros));
+    counts.incrementAndGet(bucketIndex(value));
+    total.add(value);
+    long current;
+    while (value > (current = max.get())) {
+      if (max.compareAndSet(current, value)) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Copy the current state. Concurrent recordings may be partially reflected; the copy is
+   * internally consistent in that its count always matches its buckets.
+   */
+  StatsSnapshot.Latency snapshot() {
+    long[] copy = new long[BUCKET_COUNT];
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      copy[i] = counts.get(i);
+    }
+    return new StatsSnapshot.Latency(copy, total.sum(), max.get());
+  }
+
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int magnitude = 63 - Long.numberOfLeadingZeros(value);
+    int shift = magnitude - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+    return (shift + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /** The largest value that is recorded into bucket {@code index}. */
+  static long highestValue(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+}
@@ -19,12 +19,26 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
-import static com.squareup.picasso.Utils.KEY_SEPARATOR;
+import static android.os.Build.VERSION.SDK_INT;
+import static android.os.Build.VERSION_CODES.JELLY_BEAN_MR1;
 
 /** A memory cache which uses a least-recently used eviction policy. */
 public final class LruCache implements Cache {
-  final android.util.LruCache<String, LruCache.BitmapAndSize> cache;
+  final android.util.LruCache<RequestKey, LruCache.BitmapAndSize> cache;
+  /**
+   * Cached keys by {@link RequestKey#source()}, so {@link #clearKeyUri} only touches the variants
+   * of one image. Every change to the cache happens while holding this cache's lock, and the
+   * index is updated from within them, so the two never disagree.
+   */
+  final Map<String, List<RequestKey>> keysBySource = new HashMap<>();
+  /** Set by a {@link MemoryGovernor} to hold the cache below its maximum size. */
+  private volatile int limit = Integer.MAX_VALUE;
 
   /** Create a cache using an appropriate portion of the available RAM as the maximum size. */
   public LruCache(@NonNull Context context) {
@@ -33,14 +47,25 @@ public final class LruCache implements Cache {
 
   /** Create a cache with a given maximum size in bytes. */
   public LruCache(int maxByteCount) {
-    cache = new android.util.LruCache<String, LruCache.BitmapAndSize>(maxByteCount) {
-      @Override protected int sizeOf(String key, BitmapAndSize value) {
+    cache = new android.util.LruCache<RequestKey, LruCache.BitmapAndSize>(maxByteCount) {
+      @Override protected int sizeOf(RequestKey key, BitmapAndSize value) {
         return value.byteCount;
       }
+
+      @Override protected void entryRemoved(boolean evicted, RequestKey key,
+          BitmapAndSize oldValue, BitmapAndSize newValue) {
+        if (newValue == null) {
+          removeFromIndex(key);
+        }
+      }
     };
   }
 
   @Nullable @Override public Bitmap get(@NonNull String key) {
+    return get(RequestKey.of(key));
+  }
+
+  @Nullable Bitmap get(RequestKey key) {
     BitmapAndSize bitmapAndSize = cache.get(key);
     return bitmapAndSize != null ? bitmapAndSize.bitmap : null;
   }
@@ -49,6 +74,13 @@ public final class LruCache implements Cache {
     if (key == null || bitmap == null) {
       throw new NullPointerException("key == null || bitmap == null");
     }
+    set(RequestKey.of(key), bitmap);
+  }
+
+  synchronized void set(RequestKey key, Bitmap bitmap) {
+    if (key == null || bitmap == null) {
+      throw new NullPointerException("key == null || bitmap == null");
+    }
 
     int byteCount = Utils.getBitmapBytes(bitmap);
 
@@ -60,7 +92,13 @@ public final class LruCache implements Cache {
       return;
     }
 
-    cache.put(key, new BitmapAndSize(bitmap, byteCount));
+    if (cache.put(key, new BitmapAndSize(bitmap, byteCount)) == null) {
+      addToIndex(key);
+    }
+    int limit = this.limit;
+    if (cache.size() > limit) {
+      trimToSize(limit);
+    }
   }
 
   @Override public int size() {
@@ -71,18 +109,60 @@ public final class LruCache implements Cache {
     return cache.maxSize();
   }
 
-  @Override public void clear() {
+  @Override public synchronized void clear() {
     cache.evictAll();
   }
 
-  @Override public void clearKeyUri(String uri) {
-    // Keys are prefixed with a URI followed by '\n'.
-    for (String key : cache.snapshot().keySet()) {
-      if (key.startsWith(uri)
-          && key.length() > uri.length()
-          && key.charAt(uri.length()) == KEY_SEPARATOR) {
-        cache.remove(key);
-      }
+  @Override public synchronized void clearKeyUri(String uri) {
+    List<RequestKey> keys = keysBySource.get(uri);
+    if (keys == null) {
+      return;
+    }
+    // Each removal takes its key out of the index.
+    for (RequestKey key : keys.toArray(new RequestKey[keys.size()])) {
+      cache.remove(key);
+    }
+  }
+
+  private void addToIndex(RequestKey key) {
+    String source = key.source();
+    if (source == null) {
+      return;
+    }
+    List<RequestKey> keys = keysBySource.get(source);
+    if (keys == null) {
+      keys = new ArrayList<>(2);
+      keysBySource.put(source, keys);
+    }
+    keys.add(key);
+  }
+
+  private void removeFromIndex(RequestKey key) {
+    String source = key.source();
+    List<RequestKey> keys = source != null ? keysBySource.get(source) : null;
+    if (keys != null && keys.remove(key) && keys.isEmpty()) {
+      keysBySource.remove(source);
+    }
+  }
+
+  /** Evict the least recently used entries until the cache holds at most {@code size} bytes. */
+  synchronized void trimToSize(int size) {
+    if (SDK_INT >= JELLY_BEAN_MR1) {
+      cache.trimToSize(size);
+      return;
+    }
+    // Snapshots iterate from least to most recently used.
+    Iterator<RequestKey> keys = cache.snapshot().keySet().iterator();
+    while (cache.size() > size && keys.hasNext()) {
+      cache.remove(keys.next());
+    }
+  }
+
+  /** Keep the cache at or below {@code limit} bytes, trimming it now if it holds more. */
+  synchronized void setLimit(int limit) {
+    this.limit = limit;
+    if (cache.size() > limit) {
+      trimToSize(limit);
     }
   }
 
@@ -64,7 +64,8 @@ class MediaStoreRequestHandler extends ContentStreamRequestHandler {
       PicassoKind picassoKind = getPicassoKind(request.targetWidth, request.targetHeight);
       if (!isVideo && picassoKind == FULL) {
         Source source = Okio.source(getInputStream(request));
-        return new Result(null, source, DISK, exifOrientation);
+        return new Result(null, source, DISK, exifOrientation, null,
+            ImageDecoderEngine.source(contentResolver, request.uri));
       }
 
       long id = parseId(request.uri);
@@ -93,7 +94,8 @@ class MediaStoreRequestHandler extends ContentStreamRequestHandler {
     }
 
     Source source = Okio.source(getInputStream(request));
-    return new Result(null, source, DISK, exifOrientation);
+    return new Result(null, source, DISK, exifOrientation, null,
+        isVideo ? null : ImageDecoderEngine.source(contentResolver, request.uri));
   }
 
   static PicassoKind getPicassoKind(int targetWidth, int targetHeight) {
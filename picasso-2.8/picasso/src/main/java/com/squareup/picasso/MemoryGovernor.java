@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.os.Bundle;
+
+/**
+ * Holds the bitmap memory Picasso is responsible for to one budget: the bytes in the memory cache
+ * plus the bitmaps hunters are decoding or transforming but have not handed to the cache yet.
+ * <p>
+ * The budget is the cache's maximum size. While decodes are in flight the default {@link LruCache}
+ * is held below that by their estimated size, evicting its least recently used entries so the sum
+ * stays within budget. Registered as {@link ComponentCallbacks2}, it also trims the cache further
+ * the more severe the reported memory pressure is, and keeps it there until a lower level is
+ * reported or, registered as {@link Application.ActivityLifecycleCallbacks}, an activity of the
+ * hidden app starts. Caches other than {@link LruCache} can only be cleared, which happens at the
+ * most severe levels. An {@link EncodedCache} second tier is trimmed in the same proportion and
+ * cleared with the cache.
+ */
+class MemoryGovernor implements ComponentCallbacks2, Application.ActivityLifecycleCallbacks {
+  final Cache cache;
+  final EncodedCache encodedCache;
+  final int budget;
+
+  private long inFlightBytes; // Guarded by this.
+  private volatile int trimLevel;
+  private volatile int outOfMemoryCount;
+
+  MemoryGovernor(Cache cache) {
+    this(cache, null);
+  }
+
+  MemoryGovernor(Cache cache, EncodedCache encodedCache) {
+    this.cache = cache;
+    this.encodedCache = encodedCache;
+    this.budget = cache.maxSize();
+  }
+
+  /** Account {@code bytes} of bitmap memory that a hunter is about to allocate or holds. */
+  synchronized void reserve(long bytes) {
+    inFlightBytes += bytes;
+    updateCacheLimit();
+  }
+
+  /** Return bytes previously passed to {@link #reserve(long)}. */
+  synchronized void release(long bytes) {
+    inFlightBytes -= bytes;
+    updateCacheLimit();
+  }
+
+  synchronized long inFlightBytes() {
+    return inFlightBytes;
+  }
+
+  int trimLevel() {
+    return trimLevel;
+  }
+
+  int outOfMemoryCount() {
+    return outOfMemoryCount;
+  }
+
+  /**
+   * Free the memory cache after a hunter ran out of memory. Returns true if anything was freed,
+   * in which case the failed work is worth one more attempt.
+   */
+  boolean onOutOfMemory() {
+    synchronized (this) {
+      outOfMemoryCount++;
+    }
+    int size = cache.size();
+    cache.clear();
+    if (encodedCache != null) {
+      size += encodedCache.size();
+      encodedCache.clear();
+    }
+    return size > 0;
+  }
+
+  @Override public void onTrimMemory(int level) {
+    synchronized (this) {
+      trimLevel = level;
+      updateCacheLimit();
+    }
+    if (!(cache instanceof LruCache) && retainedSize(budget, level) == 0) {
+      cache.clear();
+    }
+    if (encodedCache != null) {
+      encodedCache.trimToSize(retainedSize(encodedCache.maxSize(), level));
+    }
+  }
+
+  @Override public void onLowMemory() {
+    onTrimMemory(TRIM_MEMORY_COMPLETE);
+  }
+
+  @Override public void onConfigurationChanged(Configuration newConfig) {
+  }
+
+  /** The app is visible again, so the cache may grow back to its budget. */
+  @Override public void onActivityStarted(Activity activity) {
+    synchronized (this) {
+      if (trimLevel < TRIM_MEMORY_UI_HIDDEN) {
+        return;
+      }
+      trimLevel = 0;
+      updateCacheLimit();
+    }
+  }
+
+  @Override public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+  }
+
+  @Override public void onActivityResumed(Activity activity) {
+  }
+
+  @Override public void onActivityPaused(Activity activity) {
+  }
+
+  @Override public void onActivityStopped(Activity activity) {
+  }
+
+  @Override public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+  }
+
+  @Override public void onActivityDestroyed(Activity activity) {
+  }
+
+  /** Holds the cache to what the reservations and the last trim level leave of the budget. */
+  private void updateCacheLimit() {
+    if (cache instanceof LruCache) {
+      long limit = Math.min(budget - inFlightBytes, retainedSize(budget, trimLevel));
+      ((LruCache) cache).setLimit((int) Math.max(0, limit));
+    }
+  }
+
+  /**
+   * How much of {@code budget} the cache may keep at trim {@code level}. Levels from
+   * {@link #TRIM_MEMORY_UI_HIDDEN} up are sent once the app is in the background and those below
+   * while it is running; within each range the cache gives up more as the level grows.
+   */
+  static int retainedSize(int budget, int level) {
+    if (level >= TRIM_MEMORY_COMPLETE) {
+      return 0;
+    }
+    if (level >= TRIM_MEMORY_MODERATE) {
+      return budget / 4;
+    }
+    if (level >= TRIM_MEMORY_UI_HIDDEN) {
+      return budget / 2;
+    }
+    if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+      return budget / 4;
+    }
+    if (level >= TRIM_MEMORY_RUNNING_LOW) {
+      return budget / 2;
+    }
+    if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+      return (int) (budget * 3L / 4);
+    }
+    return budget;
+  }
+}
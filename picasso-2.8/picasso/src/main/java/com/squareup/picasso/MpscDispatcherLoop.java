@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.os.Process;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * A {@link DispatcherLoop} built on a lock-free multi-producer single-consumer queue instead of a
+ * {@code Handler}. Sending a command is one atomic swap, and the loop's thread is only woken with
+ * {@link LockSupport#unpark} if it was parked. The thread takes every command sent so far at once
+ * and runs them in order before looking at the queue again.
+ * <p>
+ * Delayed commands wait in a heap owned by the loop's thread. As with a {@code Handler}, a command
+ * whose delay has passed runs after those already waiting.
+ */
+final class MpscDispatcherLoop implements DispatcherLoop {
+  private static final String THREAD_NAME = Utils.THREAD_PREFIX + "Dispatcher";
+
+  private final Dispatcher dispatcher;
+  private final Thread thread;
+  /** The last command sent. Producers swap themselves in and then link the previous one. */
+  private final AtomicReference<Command> head;
+  /** The last command taken by the loop's thread, whose {@code next} is the first waiting. */
+  private Command tail;
+  private final AtomicBoolean parked = new AtomicBoolean();
+  private volatile boolean quit;
+
+  // Only touched by the loop's thread.
+  private final ArrayDeque<Command> ready = new ArrayDeque<>();
+  private final PriorityQueue<Command> delayed = new PriorityQueue<>();
+  private long sequence;
+
+  MpscDispatcherLoop(Dispatcher dispatcher) {
+    this(dispatcher, true);
+  }
+
+  /**
+   * Unless {@code startThread}, commands only run when {@link #drain} is called, and the caller is
+   * then the loop's thread.
+   */
+  MpscDispatcherLoop(Dispatcher dispatcher, boolean startThread) {
+    this.dispatcher = dispatcher;
+    Command stub = new Command(0, null, 0, false, 0);
+    this.head = new AtomicReference<>(stub);
+    this.tail = stub;
+    this.thread = new Thread(THREAD_NAME) {
+      @Override public void run() {
+        Process.setThreadPriority(THREAD_PRIORITY_BACKGROUND);
+        loop();
+      }
+    };
+    if (startThread) {
+      thread.start();
+    }
+  }
+
+  @Override public void send(int what, Object obj, int arg1) {
+    enqueue(new Command(what, obj, arg1, false, 0));
+  }
+
+  @Override public void sendDelayed(int what, Object obj, long delayMillis) {
+    long due = System.nanoTime() + MILLISECONDS.toNanos(Math.max(0, delayMillis));
+    enqueue(new Command(what, obj, 0, true, due));
+  }
+
+  /** Must only be called on the loop's thread, as {@link Dispatcher} does. */
+  @Override public boolean hasPending(int what) {
+    transfer();
+    for (Command command : ready) {
+      if (command.what == what) {
+        return true;
+      }
+    }
+    for (Command command : delayed) {
+      if (command.what == what) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Must only be called on the loop's thread, as {@link Dispatcher} does. */
+  @Override public void remove(int what) {
+    transfer();
+    for (Iterator<Command> i = ready.iterator(); i.hasNext();) {
+      Command command = i.next();
+      if (command.what == what) {
+        command.obj = null;
+        i.remove();
+      }
+    }
+    for (Iterator<Command> i = delayed.iterator(); i.hasNext();) {
+      Command command = i.next();
+      if (command.what == what) {
+        command.obj = null;
+        i.remove();
+      }
+    }
+  }
+
+  @Override public void quit() {
+    quit = true;
+    LockSupport.unpark(thread);
+  }
+
+  private void enqueue(Command command) {
+    Command previous = head.getAndSet(command);
+    // Between the swap and this link the loop's thread sees the queue end at previous. The
+    // volatile write orders the link before reading whether the loop's thread parked.
+    previous.next = command;
+    if (parked.get() && parked.compareAndSet(true, false)) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  private void loop() {
+    while (!quit) {
+      promoteDueCommands(System.nanoTime());
+      transfer();
+      runReady();
+      if (quit || tail.next != null) {
+        continue;
+      }
+      parked.set(true);
+      // A command sent after the check above unparks this thread, so it can not be missed.
+      if (tail.next == null && !quit) {
+        Command next = delayed.peek();
+        if (next == null) {
+          LockSupport.park(this);
+        } else {
+          long wait = next.due - System.nanoTime();
+          if (wait > 0) {
+            LockSupport.parkNanos(this, wait);
+          }
+        }
+      }
+      parked.set(false);
+    }
+  }
+
+  /**
+   * Run the commands sent so far and those they send in turn on the calling thread, until none is
+   * due. With {@code includeDelayed}, delayed commands run in due order as if their time had come.
+   * Only for a loop whose thread was not started.
+   */
+  void drain(boolean includeDelayed) {
+    while (!quit) {
+      promoteDueCommands(System.nanoTime());
+      transfer();
+      if (includeDelayed) {
+        while (!delayed.isEmpty()) {
+          ready.add(delayed.poll());
+        }
+      }
+      if (ready.isEmpty()) {
+        return;
+      }
+      runReady();
+    }
+  }
+
+  private void runReady() {
+    Command command;
+    while (!quit && (command = ready.poll()) != null) {
+      Object obj = command.obj;
+      // The node may stay behind as the queue's stub, so it must not keep obj alive.
+      command.obj = null;
+      dispatcher.handle(command.what, obj, command.arg1);
+    }
+  }
+
+  /** Take every command sent so far from the queue, in order. */
+  private void transfer() {
+    long now = 0;
+    Command command;
+    while ((command = tail.next) != null) {
+      tail = command;
+      if (!command.timed) {
+        ready.add(command);
+        continue;
+      }
+      if (now == 0) {
+        now = System.nanoTime();
+      }
+      if (command.due - now <= 0) {
+        ready.add(command);
+      } else {
+        command.sequence = sequence++;
+        delayed.add(command);
+      }
+    }
+  }
+
+  private void promoteDueCommands(long now) {
+    Command command;
+    while ((command = delayed.peek()) != null && command.due - now <= 0) {
+      ready.add(delayed.poll());
+    }
+  }
+
+  static final class Command implements Comparable<Command> {
+    final int what;
+    final int arg1;
+    final boolean timed;
+    /** The {@link System#nanoTime()} to run at, if {@link #timed}. */
+    final long due;
+    Object obj;
+    long sequence;
+    volatile Command next;
+
+    Command(int what, Object obj, int arg1, boolean timed, long due) {
+      this.what = what;
+      this.obj = obj;
+      this.arg1 = arg1;
+      this.timed = timed;
+      this.due = due;
+    }
+
+    @Override public int compareTo(Command other) {
+      long difference = due - other.due;
+      if (difference != 0) {
+        return difference < 0 ? -1 : 1;
+      }
+      return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+    }
+  }
+}
@@ -23,6 +23,7 @@ import okhttp3.ResponseBody;
 
 import static com.squareup.picasso.Picasso.LoadedFrom.DISK;
 import static com.squareup.picasso.Picasso.LoadedFrom.NETWORK;
+import static java.net.HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
 
 class NetworkRequestHandler extends RequestHandler {
   private static final String SCHEME_HTTP = "http";
@@ -30,10 +31,16 @@ class NetworkRequestHandler extends RequestHandler {
 
   private final Downloader downloader;
   private final Stats stats;
+  private final ImmutableUrlPolicy immutableUrls;
 
   NetworkRequestHandler(Downloader downloader, Stats stats) {
+    this(downloader, stats, ImmutableUrlPolicy.NONE);
+  }
+
+  NetworkRequestHandler(Downloader downloader, Stats stats, ImmutableUrlPolicy immutableUrls) {
     this.downloader = downloader;
     this.stats = stats;
+    this.immutableUrls = immutableUrls;
   }
 
   @Override public boolean canHandleRequest(Request data) {
@@ -43,7 +50,20 @@ class NetworkRequestHandler extends RequestHandler {
 
   @Override public Result load(Request request, int networkPolicy) throws IOException {
     okhttp3.Request downloaderRequest = createRequest(request, networkPolicy);
-    Response response = downloader.load(downloaderRequest);
+    Response response = null;
+    if (shouldForceCache(downloaderRequest, networkPolicy)) {
+      // Serve an immutable image from the cache however stale, and only go to the network if it
+      // is not there, which a forced cache lookup reports with a 504.
+      response = downloader.load(
+          downloaderRequest.newBuilder().cacheControl(CacheControl.FORCE_CACHE).build());
+      if (response.code() == HTTP_GATEWAY_TIMEOUT) {
+        closeBody(response);
+        response = null;
+      }
+    }
+    if (response == null) {
+      response = downloader.load(downloaderRequest);
+    }
     ResponseBody body = response.body();
 
     if (!response.isSuccessful()) {
@@ -79,6 +99,19 @@ class NetworkRequestHandler extends RequestHandler {
     return true;
   }
 
+  private boolean shouldForceCache(okhttp3.Request downloaderRequest, int networkPolicy) {
+    return NetworkPolicy.shouldReadFromDiskCache(networkPolicy)
+        && !NetworkPolicy.isOfflineOnly(networkPolicy)
+        && immutableUrls.isImmutable(downloaderRequest.url().toString());
+  }
+
+  private static void closeBody(Response response) {
+    ResponseBody body = response.body();
+    if (body != null) {
+      body.close();
+    }
+  }
+
   private static okhttp3.Request createRequest(Request request, int networkPolicy) {
     CacheControl cacheControl = null;
     if (networkPolicy != 0) {
@@ -16,6 +16,7 @@
 package com.squareup.picasso;
 
 import android.annotation.SuppressLint;
+import android.app.Application;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Color;
@@ -38,10 +39,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
 import static com.squareup.picasso.Action.RequestWeakReference;
 import static com.squareup.picasso.Dispatcher.HUNTER_BATCH_COMPLETE;
+import static com.squareup.picasso.Dispatcher.HUNTER_PREVIEW;
 import static com.squareup.picasso.Dispatcher.REQUEST_BATCH_RESUME;
 import static com.squareup.picasso.Dispatcher.REQUEST_GCED;
 import static com.squareup.picasso.MemoryPolicy.shouldReadFromMemoryCache;
@@ -116,13 +119,16 @@ public class Picasso {
       switch (msg.what) {
         case HUNTER_BATCH_COMPLETE: {
           @SuppressWarnings("unchecked") List<BitmapHunter> batch = (List<BitmapHunter>) msg.obj;
-          //noinspection ForLoopReplaceableByForEach
-          for (int i = 0, n = batch.size(); i < n; i++) {
-            BitmapHunter hunter = batch.get(i);
-            hunter.picasso.complete(hunter);
+          if (!batch.isEmpty()) {
+            batch.get(0).picasso.delivery.deliver(batch);
           }
           break;
         }
+        case HUNTER_PREVIEW: {
+          BitmapHunter hunter = (BitmapHunter) msg.obj;
+          hunter.picasso.deliverPreview(hunter);
+          break;
+        }
         case REQUEST_GCED: {
           Action action = (Action) msg.obj;
           if (action.getPicasso().loggingEnabled) {
@@ -160,6 +166,9 @@ public class Picasso {
   final Map<ImageView, DeferredRequestCreator> targetToDeferredRequestCreator;
   final ReferenceQueue<Object> referenceQueue;
   final Bitmap.Config defaultBitmapConfig;
+  final boolean automaticBitmapConfig;
+  final RegionDecoderPool regionDecoders = new RegionDecoderPool();
+  final DeliveryScheduler delivery;
 
   boolean indicatorsEnabled;
   volatile boolean loggingEnabled;
@@ -169,12 +178,22 @@ public class Picasso {
   Picasso(Context context, Dispatcher dispatcher, Cache cache, Listener listener,
       RequestTransformer requestTransformer, List<RequestHandler> extraRequestHandlers, Stats stats,
       Bitmap.Config defaultBitmapConfig, boolean indicatorsEnabled, boolean loggingEnabled) {
+    this(context, dispatcher, cache, listener, requestTransformer, extraRequestHandlers, stats,
+        defaultBitmapConfig, indicatorsEnabled, loggingEnabled,
+        DeliveryScheduler.DEFAULT_FRAME_BUDGET, false, ImmutableUrlPolicy.NONE);
+  }
+
+  Picasso(Context context, Dispatcher dispatcher, Cache cache, Listener listener,
+      RequestTransformer requestTransformer, List<RequestHandler> extraRequestHandlers, Stats stats,
+      Bitmap.Config defaultBitmapConfig, boolean indicatorsEnabled, boolean loggingEnabled,
+      long deliveryBudgetNanos, boolean automaticBitmapConfig, ImmutableUrlPolicy immutableUrls) {
     this.context = context;
     this.dispatcher = dispatcher;
     this.cache = cache;
     this.listener = listener;
     this.requestTransformer = requestTransformer;
     this.defaultBitmapConfig = defaultBitmapConfig;
+    this.automaticBitmapConfig = automaticBitmapConfig;
 
     int builtInHandlers = 7; // Adjust this as internal handlers are added or removed.
     int extraCount = (extraRequestHandlers != null ? extraRequestHandlers.size() : 0);
@@ -192,7 +211,7 @@ public class Picasso {
     allRequestHandlers.add(new ContentStreamRequestHandler(context));
     allRequestHandlers.add(new AssetRequestHandler(context));
     allRequestHandlers.add(new FileRequestHandler(context));
-    allRequestHandlers.add(new NetworkRequestHandler(dispatcher.downloader, stats));
+    allRequestHandlers.add(new NetworkRequestHandler(dispatcher.downloader, stats, immutableUrls));
     requestHandlers = Collections.unmodifiableList(allRequestHandlers);
 
     this.stats = stats;
@@ -203,6 +222,7 @@ public class Picasso {
     this.referenceQueue = new ReferenceQueue<>();
     this.cleanupThread = new CleanupThread(referenceQueue, HANDLER);
     this.cleanupThread.start();
+    this.delivery = new DeliveryScheduler(this, HANDLER, deliveryBudgetNanos);
   }
 
   /** Cancel any existing requests for the specified target {@link ImageView}. */
@@ -377,6 +397,10 @@ public class Picasso {
   public void invalidate(@Nullable Uri uri) {
     if (uri != null) {
       cache.clearKeyUri(uri.toString());
+      if (dispatcher.encodedCache != null) {
+        dispatcher.encodedCache.remove(uri.toString());
+      }
+      regionDecoders.evict(uri.toString());
     }
   }
 
@@ -451,9 +475,18 @@ public class Picasso {
       return;
     }
     cache.clear();
+    if (dispatcher.encodedCache != null) {
+      dispatcher.encodedCache.clear();
+    }
+    regionDecoders.evictAll();
+    context.unregisterComponentCallbacks(dispatcher.governor);
+    if (context instanceof Application) {
+      ((Application) context).unregisterActivityLifecycleCallbacks(dispatcher.governor);
+    }
     cleanupThread.shutdown();
     stats.shutdown();
     dispatcher.shutdown();
+    delivery.shutdown();
     for (DeferredRequestCreator deferredRequestCreator : targetToDeferredRequestCreator.values()) {
       deferredRequestCreator.cancel();
     }
@@ -485,21 +518,36 @@ public class Picasso {
   }
 
   void enqueueAndSubmit(Action action) {
+    enqueue(action);
+    submit(action);
+  }
+
+  /** Make {@code action} the one request of its target, cancelling any previous one. */
+  void enqueue(Action action) {
     Object target = action.getTarget();
     if (target != null && targetToAction.get(target) != action) {
       // This will also check we are on the main thread.
       cancelExistingRequest(target);
       targetToAction.put(target, action);
     }
-    submit(action);
   }
 
   void submit(Action action) {
     dispatcher.dispatchSubmit(action);
   }
 
-  Bitmap quickMemoryCacheCheck(String key) {
-    Bitmap cached = cache.get(key);
+  /** Re-rank the hunter of {@code action} after its target was attached or detached. */
+  void attachStateChanged(Action action) {
+    dispatcher.dispatchAttachStateChange(action);
+  }
+
+  /** Submit {@code actions} with a single message to the dispatcher. */
+  void submit(List<Action> actions) {
+    dispatcher.dispatchSubmit(actions);
+  }
+
+  Bitmap quickMemoryCacheCheck(RequestKey key) {
+    Bitmap cached = Utils.getFromCache(cache, key);
     if (cached != null) {
       stats.dispatchCacheHit();
     } else {
@@ -508,36 +556,23 @@ public class Picasso {
     return cached;
   }
 
-  void complete(BitmapHunter hunter) {
-    Action single = hunter.getAction();
-    List<Action> joined = hunter.getActions();
-
-    boolean hasMultiple = joined != null && !joined.isEmpty();
-    boolean shouldDeliver = single != null || hasMultiple;
-
-    if (!shouldDeliver) {
-      return;
-    }
-
-    Uri uri = hunter.getData().uri;
-    Exception exception = hunter.getException();
-    Bitmap result = hunter.getResult();
+  void deliverPreview(BitmapHunter hunter) {
+    Bitmap preview = hunter.preview;
     LoadedFrom from = hunter.getLoadedFrom();
-
-    if (single != null) {
-      deliverAction(result, from, single, exception);
-    }
-
-    if (hasMultiple) {
-      //noinspection ForLoopReplaceableByForEach
-      for (int i = 0, n = joined.size(); i < n; i++) {
-        Action join = joined.get(i);
-        deliverAction(result, from, join, exception);
+    List<Action> actions = hunter.previewActions;
+    //noinspection ForLoopReplaceableByForEach
+    for (int i = 0, n = actions.size(); i < n; i++) {
+      Action action = actions.get(i);
+      if (!action.isCancelled()) {
+        action.preview(preview, from);
       }
     }
+  }
 
+  void notifyFailed(BitmapHunter hunter) {
+    Exception exception = hunter.getException();
     if (listener != null && exception != null) {
-      listener.onImageLoadFailed(this, uri, exception);
+      listener.onImageLoadFailed(this, hunter.getData().uri, exception);
     }
   }
 
@@ -562,7 +597,7 @@ public class Picasso {
     }
   }
 
-  private void deliverAction(Bitmap result, LoadedFrom from, Action action, Exception e) {
+  void deliverAction(Bitmap result, LoadedFrom from, Action action, Exception e) {
     if (action.isCancelled()) {
       return;
     }
@@ -585,6 +620,13 @@ public class Picasso {
     }
   }
 
+  /** Cancel an action that is not tracked by its target, such as a fetch. */
+  void cancelAction(Action action) {
+    checkMain();
+    action.cancel();
+    dispatcher.dispatchCancel(action);
+  }
+
   void cancelExistingRequest(Object target) {
     checkMain();
     Action action = targetToAction.remove(target);
@@ -718,6 +760,14 @@ public class Picasso {
 
     private boolean indicatorsEnabled;
     private boolean loggingEnabled;
+    private boolean adaptiveBatching = true;
+    private int maxBatchSize = Dispatcher.DEFAULT_MAX_BATCH_SIZE;
+    private long maxBatchDelay = Dispatcher.DEFAULT_BATCH_DELAY;
+    private long deliveryBudget = DeliveryScheduler.DEFAULT_FRAME_BUDGET;
+    private boolean lockFreeDispatcher;
+    private boolean automaticBitmapConfig;
+    private float encodedCacheRatio;
+    private ImmutableUrlPolicy immutableUrls = ImmutableUrlPolicy.NONE;
 
     /** Start building a new {@link Picasso} instance. */
     public Builder(@NonNull Context context) {
@@ -739,6 +789,65 @@ public class Picasso {
       return this;
     }
 
+    /**
+     * Toggle whether to pick the {@link Bitmap.Config} of requests that set none, neither with
+     * {@link RequestCreator#config(Bitmap.Config) config(..)} nor through
+     * {@link #defaultBitmapConfig(Bitmap.Config)}. Images without alpha, such as every JPEG,
+     * decode as {@link Bitmap.Config#RGB_565}, and on API 26 and newer images loaded into an
+     * {@link ImageView} are kept in {@link Bitmap.Config#HARDWARE HARDWARE} bitmaps outside of
+     * the app's heap.
+     * <p>
+     * {@code RGB_565} trades color depth for half the memory, which may show as banding in smooth
+     * gradients. Requests with {@link Transformation}s other than the built-in ones of
+     * {@link Transformations} keep the platform's default config.
+     * <p>
+     * <b>NOTE:</b> This is a beta feature. The API is subject to change in a backwards incompatible
+     * way at any time.
+     */
+    public Builder automaticBitmapConfig(boolean enabled) {
+      this.automaticBitmapConfig = enabled;
+      return this;
+    }
+
+    /**
+     * Give {@code ratio} of the memory cache's budget to a second tier that keeps the encoded
+     * bytes of images downloaded from the network. Encoded images are about a tenth of the size of
+     * their bitmaps, so this tier holds many more of them; a request whose bitmap was evicted is
+     * decoded again from it, without I/O or HTTP cache validation. Pass 0, the default, to
+     * disable it.
+     * <p>
+     * With the default memory cache both tiers share its usual size. A custom
+     * {@link #memoryCache(Cache) memoryCache} keeps its size and the second tier is added to it
+     * so that it makes up {@code ratio} of the two. Hit rates of the tier are reported separately
+     * in {@link StatsSnapshot#encodedCacheHits}.
+     */
+    public Builder encodedMemoryCache(float ratio) {
+      if (ratio < 0 || ratio >= 1) {
+        throw new IllegalArgumentException("Ratio must be at least 0 and less than 1.");
+      }
+      this.encodedCacheRatio = ratio;
+      return this;
+    }
+
+    /**
+     * Treat the images of URLs matching one of {@code patterns} as never changing. Patterns are
+     * regular expressions of whole URLs, such as {@code "https://i\\.scdn\\.co/image/.*"} for
+     * album art whose URL holds a hash of the image.
+     * <p>
+     * Once cached, these images are loaded from the disk cache however old their response is,
+     * without revalidating them with the server, and only a cache miss goes to the network.
+     * {@link NetworkPolicy#NO_CACHE} still skips the cache. This relies on the
+     * {@link Downloader} honoring {@link okhttp3.CacheControl#FORCE_CACHE}, as
+     * {@link OkHttp3Downloader} and {@link DiskCacheDownloader} do.
+     */
+    public Builder immutableUrls(@NonNull String... patterns) {
+      if (patterns == null) {
+        throw new IllegalArgumentException("Patterns must not be null.");
+      }
+      this.immutableUrls = new ImmutableUrlPolicy(patterns);
+      return this;
+    }
+
     /** Specify the {@link Downloader} that will be used for downloading images. */
     public Builder downloader(@NonNull Downloader downloader) {
       if (downloader == null) {
@@ -823,6 +932,68 @@ public class Picasso {
       return this;
     }
 
+    /**
+     * Toggle whether completed requests are delivered to the main thread as soon as it is idle.
+     * <p>
+     * When enabled (the default) a result is delivered immediately if no earlier delivery is
+     * pending, and results that complete while one is pending are coalesced and released on the
+     * next frame. When disabled, results are always held for the
+     * {@linkplain #maxBatchDelay(long, TimeUnit) maximum batch delay} before delivery.
+     */
+    public Builder adaptiveBatching(boolean enabled) {
+      this.adaptiveBatching = enabled;
+      return this;
+    }
+
+    /** Specify the number of completed requests at which a batch is delivered without waiting. */
+    public Builder maxBatchSize(int maxBatchSize) {
+      if (maxBatchSize < 1) {
+        throw new IllegalArgumentException("Max batch size must be positive.");
+      }
+      this.maxBatchSize = maxBatchSize;
+      return this;
+    }
+
+    /** Specify the longest a completed request may wait to be batched with others. */
+    public Builder maxBatchDelay(long delay, @NonNull TimeUnit unit) {
+      if (delay < 0) {
+        throw new IllegalArgumentException("Max batch delay must not be negative.");
+      }
+      if (unit == null) {
+        throw new IllegalArgumentException("TimeUnit must not be null.");
+      }
+      this.maxBatchDelay = unit.toMillis(delay);
+      return this;
+    }
+
+    /**
+     * Specify how long the main thread may spend delivering results in each frame. Results that
+     * do not fit wait for the following frame, with images in shown views delivered first. At
+     * least one result is delivered per frame. Defaults to 4ms.
+     */
+    public Builder deliveryBudget(long budget, @NonNull TimeUnit unit) {
+      if (budget < 0) {
+        throw new IllegalArgumentException("Delivery budget must not be negative.");
+      }
+      if (unit == null) {
+        throw new IllegalArgumentException("TimeUnit must not be null.");
+      }
+      this.deliveryBudget = unit.toNanos(budget);
+      return this;
+    }
+
+    /**
+     * Toggle whether the dispatcher receives requests and results through a lock-free queue
+     * instead of a {@code Handler}, which saves a {@code Message} and a looper wake-up for each.
+     * <p>
+     * <b>NOTE:</b> This is a beta feature. The API is subject to change in a backwards incompatible
+     * way at any time.
+     */
+    public Builder lockFreeDispatcher(boolean enabled) {
+      this.lockFreeDispatcher = enabled;
+      return this;
+    }
+
     /** Toggle whether to display debug indicators on images. */
     public Builder indicatorsEnabled(boolean enabled) {
       this.indicatorsEnabled = enabled;
@@ -847,22 +1018,39 @@ public class Picasso {
       if (downloader == null) {
         downloader = new OkHttp3Downloader(context);
       }
+      EncodedCache encodedCache = null;
       if (cache == null) {
-        cache = new LruCache(context);
+        int budget = Utils.calculateMemoryCacheSize(context);
+        int encodedSize = (int) (budget * encodedCacheRatio);
+        cache = new LruCache(budget - encodedSize);
+        if (encodedSize > 0) {
+          encodedCache = new EncodedCache(encodedSize);
+        }
+      } else if (encodedCacheRatio > 0) {
+        encodedCache = new EncodedCache(
+            (int) (cache.maxSize() * encodedCacheRatio / (1 - encodedCacheRatio)));
+      }
+      MemoryGovernor governor = new MemoryGovernor(cache, encodedCache);
+      context.registerComponentCallbacks(governor);
+      if (context instanceof Application) {
+        ((Application) context).registerActivityLifecycleCallbacks(governor);
       }
+      Stats stats = new Stats(cache, encodedCache, governor);
+
       if (service == null) {
-        service = new PicassoExecutorService();
+        service = new PicassoExecutorService(stats);
       }
       if (transformer == null) {
         transformer = RequestTransformer.IDENTITY;
       }
 
-      Stats stats = new Stats(cache);
-
-      Dispatcher dispatcher = new Dispatcher(context, service, HANDLER, downloader, cache, stats);
+      Dispatcher dispatcher = new Dispatcher(context, service, HANDLER, downloader, cache,
+          encodedCache, governor, stats, adaptiveBatching, maxBatchSize, maxBatchDelay,
+          lockFreeDispatcher, true);
 
       return new Picasso(context, dispatcher, cache, listener, transformer, requestHandlers, stats,
-          defaultBitmapConfig, indicatorsEnabled, loggingEnabled);
+          defaultBitmapConfig, indicatorsEnabled, loggingEnabled, deliveryBudget,
+          automaticBitmapConfig, immutableUrls);
     }
   }
 
@@ -20,7 +20,6 @@ import android.net.NetworkInfo;
 import android.telephony.TelephonyManager;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
-import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -29,56 +28,120 @@ import java.util.concurrent.TimeUnit;
  * <p>
  * Exists as a custom type so that we can differentiate the use of defaults versus a user-supplied
  * instance.
+ * <p>
+ * The network type only seeds the thread count. Completed network hunters are then fed to a
+ * {@link ConcurrencyController} which resizes the pool based on the observed throughput and
+ * latency.
+ * <p>
+ * Queued hunters are kept in order by a {@link HunterQueue}: work for targets that are still
+ * attached first, then by priority, then earliest deadline, then the most recently requested.
+ * During a fling this runs the rows that just came on screen before the ones that already left it.
  */
 class PicassoExecutorService extends ThreadPoolExecutor {
   private static final int DEFAULT_THREAD_COUNT = 3;
 
+  private final ConcurrencyController controller;
+  private final Stats stats;
+
   PicassoExecutorService() {
+    this(null);
+  }
+
+  PicassoExecutorService(Stats stats) {
     super(DEFAULT_THREAD_COUNT, DEFAULT_THREAD_COUNT, 0, TimeUnit.MILLISECONDS,
-        new PriorityBlockingQueue<Runnable>(), new Utils.PicassoThreadFactory());
+        new HunterQueue(), new Utils.PicassoThreadFactory());
+    this.controller = new ConcurrencyController(DEFAULT_THREAD_COUNT);
+    this.stats = stats;
+    if (stats != null) {
+      stats.dispatchThreadCountChanged(DEFAULT_THREAD_COUNT, controller.reason);
+    }
   }
 
   void adjustThreadCount(NetworkInfo info) {
+    int threadCount = threadCountFor(info);
+    synchronized (controller) {
+      controller.reset(threadCount, "network changed");
+      setThreadCount(threadCount);
+    }
+  }
+
+  /** The number of threads currently allowed to run hunters. */
+  int getThreadCountLimit() {
+    synchronized (controller) {
+      return controller.limit;
+    }
+  }
+
+  /** Why {@link #getThreadCountLimit()} last changed. */
+  String getThreadCountReason() {
+    synchronized (controller) {
+      return controller.reason;
+    }
+  }
+
+  static int threadCountFor(NetworkInfo info) {
     if (info == null || !info.isConnectedOrConnecting()) {
-      setThreadCount(DEFAULT_THREAD_COUNT);
-      return;
+      return DEFAULT_THREAD_COUNT;
     }
     switch (info.getType()) {
       case ConnectivityManager.TYPE_WIFI:
       case ConnectivityManager.TYPE_WIMAX:
       case ConnectivityManager.TYPE_ETHERNET:
-        setThreadCount(4);
-        break;
+        return 4;
       case ConnectivityManager.TYPE_MOBILE:
         switch (info.getSubtype()) {
           case TelephonyManager.NETWORK_TYPE_LTE:  // 4G
           case TelephonyManager.NETWORK_TYPE_HSPAP:
           case TelephonyManager.NETWORK_TYPE_EHRPD:
-            setThreadCount(3);
-            break;
+            return 3;
           case TelephonyManager.NETWORK_TYPE_UMTS: // 3G
           case TelephonyManager.NETWORK_TYPE_CDMA:
           case TelephonyManager.NETWORK_TYPE_EVDO_0:
           case TelephonyManager.NETWORK_TYPE_EVDO_A:
           case TelephonyManager.NETWORK_TYPE_EVDO_B:
-            setThreadCount(2);
-            break;
+            return 2;
           case TelephonyManager.NETWORK_TYPE_GPRS: // 2G
           case TelephonyManager.NETWORK_TYPE_EDGE:
-            setThreadCount(1);
-            break;
+            return 1;
           default:
-            setThreadCount(DEFAULT_THREAD_COUNT);
+            return DEFAULT_THREAD_COUNT;
         }
-        break;
       default:
-        setThreadCount(DEFAULT_THREAD_COUNT);
+        return DEFAULT_THREAD_COUNT;
     }
   }
 
   private void setThreadCount(int threadCount) {
-    setCorePoolSize(threadCount);
-    setMaximumPoolSize(threadCount);
+    // Order matters: the core size may never exceed the maximum size.
+    if (threadCount > getMaximumPoolSize()) {
+      setMaximumPoolSize(threadCount);
+      setCorePoolSize(threadCount);
+    } else {
+      setCorePoolSize(threadCount);
+      setMaximumPoolSize(threadCount);
+    }
+    if (stats != null) {
+      stats.dispatchThreadCountChanged(threadCount, controller.reason);
+    }
+  }
+
+  @Override protected void afterExecute(Runnable r, Throwable t) {
+    super.afterExecute(r, t);
+    if (!(r instanceof PicassoFutureTask)) {
+      return;
+    }
+    BitmapHunter hunter = ((PicassoFutureTask) r).hunter;
+    // Only network loads say anything about the link; memory and disk hits would skew the window.
+    if (hunter.loadedFrom != Picasso.LoadedFrom.NETWORK || hunter.bytesRead <= 0) {
+      return;
+    }
+    synchronized (controller) {
+      boolean backlogged = !getQueue().isEmpty();
+      if (controller.record(hunter.startedNanos, hunter.finishedNanos, hunter.bytesRead,
+          backlogged)) {
+        setThreadCount(controller.limit);
+      }
+    }
   }
 
   @Override
@@ -88,23 +151,64 @@ class PicassoExecutorService extends ThreadPoolExecutor {
     return ftask;
   }
 
-  private static final class PicassoFutureTask extends FutureTask<BitmapHunter>
+  static final class PicassoFutureTask extends FutureTask<BitmapHunter>
       implements Comparable<PicassoFutureTask> {
-    private final BitmapHunter hunter;
+    final BitmapHunter hunter;
+
+    // Set by the queue. The rank is captured by rank() and must not change while the queue orders
+    // the task by it.
+    volatile HunterQueue queue;
+    long sequence;
+    private boolean detached;
+    private Picasso.Priority priority;
+    private long deadlineNanos;
+    private int recency;
 
     PicassoFutureTask(BitmapHunter hunter) {
       super(hunter, null);
       this.hunter = hunter;
     }
 
+    /** Move this task to its place in the queue after what it is ranked by changed. */
+    void rerank() {
+      if (queue != null) {
+        queue.reorder(this);
+      }
+    }
+
+    @Override protected void done() {
+      if (isCancelled() && queue != null) {
+        queue.remove(this);
+      }
+    }
+
+    void rank() {
+      detached = hunter.isDetached();
+      priority = hunter.getPriority();
+      deadlineNanos = hunter.getDeadlineNanos();
+      recency = hunter.recency;
+    }
+
+    /** Tasks that should run first are "lesser", and ties are first come, first served. */
     @Override
     public int compareTo(PicassoFutureTask other) {
-      Picasso.Priority p1 = hunter.getPriority();
-      Picasso.Priority p2 = other.hunter.getPriority();
-
-      // High-priority requests are "lesser" so they are sorted to the front.
-      // Equal priorities are sorted by sequence number to provide FIFO ordering.
-      return (p1 == p2 ? hunter.sequence - other.hunter.sequence : p2.ordinal() - p1.ordinal());
+      if (detached != other.detached) {
+        return detached ? 1 : -1;
+      }
+      if (priority != other.priority) {
+        return other.priority.ordinal() - priority.ordinal();
+      }
+      if (deadlineNanos != other.deadlineNanos) {
+        if (deadlineNanos == 0 || other.deadlineNanos == 0) {
+          return deadlineNanos == 0 ? 1 : -1;
+        }
+        return deadlineNanos - other.deadlineNanos < 0 ? -1 : 1;
+      }
+      // The most recently requested image is the most likely to still be on screen.
+      if (recency != other.recency) {
+        return recency > other.recency ? -1 : 1;
+      }
+      return sequence == other.sequence ? 0 : sequence < other.sequence ? -1 : 1;
     }
   }
 }
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.squareup.picasso.Utils.isMain;
+
+/**
+ * The pending result of {@link RequestCreator#submit()}, or of work chained to it with
+ * {@link #then(Function, Executor)} and {@link #allOf(List)}.
+ * <pre><code>
+ * picasso.load(url)
+ *     .resize(64, 64)
+ *     .submit()
+ *     .then(new PicassoFuture.Function&lt;Bitmap, Palette&gt;() {
+ *       {@literal @}Override public Palette apply(Bitmap bitmap) {
+ *         return Palette.from(bitmap).generate();
+ *       }
+ *     }, executor)
+ *     .addListener(listener, executor);
+ * </code></pre>
+ * Unlike a {@link Target}, a future is strongly held by Picasso until its request finished.
+ * Cancelling a future cancels its request, and cancelling a chained future cancels the future it
+ * was chained to.
+ * <p>
+ * All methods are safe to call from any thread, except that {@link #get()} must not block the main
+ * thread, which delivers results.
+ */
+public final class PicassoFuture<T> implements Future<T> {
+  /** Turns the result of a future into the result of the future chained to it. */
+  public interface Function<I, O> {
+    O apply(I input) throws Exception;
+  }
+
+  /** Notified once a future succeeded, failed or was cancelled. */
+  public interface Listener<T> {
+    void onSuccess(T result);
+
+    /** Called with a {@link CancellationException} if the future was cancelled. */
+    void onError(@NonNull Exception e);
+  }
+
+  private static final int PENDING = 0;
+  private static final int SUCCEEDED = 1;
+  private static final int FAILED = 2;
+  private static final int CANCELLED = 3;
+
+  private static final Executor DIRECT = new Executor() {
+    @Override public void execute(@NonNull Runnable command) {
+      command.run();
+    }
+  };
+
+  /** Cancels the work this future is waiting for, or {@code null}. */
+  private final Runnable onCancel;
+  private int state = PENDING;
+  private T result;
+  private Exception exception;
+  /** Pairs of an executor and a runnable to execute on it once done. */
+  private List<Object> callbacks = new ArrayList<>(2);
+
+  PicassoFuture(@Nullable Runnable onCancel) {
+    this.onCancel = onCancel;
+  }
+
+  static <T> PicassoFuture<T> immediate(@Nullable T result) {
+    PicassoFuture<T> future = new PicassoFuture<>(null);
+    future.set(result);
+    return future;
+  }
+
+  /**
+   * A future of the results of {@code futures} in the same order, which fails as soon as one of
+   * them fails or is cancelled. Cancelling it cancels every one of {@code futures}.
+   */
+  @NonNull
+  public static <T> PicassoFuture<List<T>> allOf(
+      @NonNull List<? extends PicassoFuture<? extends T>> futures) {
+    if (futures == null) {
+      throw new IllegalArgumentException("Futures must not be null.");
+    }
+    final List<PicassoFuture<? extends T>> inputs = new ArrayList<>(futures);
+    final PicassoFuture<List<T>> all = new PicassoFuture<>(new Runnable() {
+      @Override public void run() {
+        //noinspection ForLoopReplaceableByForEach
+        for (int i = 0, n = inputs.size(); i < n; i++) {
+          inputs.get(i).cancel(false);
+        }
+      }
+    });
+    final int size = inputs.size();
+    if (size == 0) {
+      all.set(Collections.<T>emptyList());
+      return all;
+    }
+    final AtomicInteger remaining = new AtomicInteger(size);
+    for (int i = 0; i < size; i++) {
+      final PicassoFuture<? extends T> input = inputs.get(i);
+      input.whenDone(DIRECT, new Runnable() {
+        @Override public void run() {
+          if (input.state() != SUCCEEDED) {
+            all.setException(input.failure());
+            return;
+          }
+          if (remaining.decrementAndGet() == 0) {
+            List<T> results = new ArrayList<>(size);
+            //noinspection ForLoopReplaceableByForEach
+            for (int j = 0; j < size; j++) {
+              results.add(inputs.get(j).result());
+            }
+            all.set(results);
+          }
+        }
+      });
+    }
+    return all;
+  }
+
+  /**
+   * A future of {@code function} applied to this future's result on {@code executor}. If this
+   * future fails or is cancelled, or {@code function} throws, the returned future fails too.
+   */
+  @NonNull
+  public <R> PicassoFuture<R> then(@NonNull final Function<? super T, ? extends R> function,
+      @NonNull Executor executor) {
+    if (function == null) {
+      throw new IllegalArgumentException("Function must not be null.");
+    }
+    checkExecutor(executor);
+    final PicassoFuture<R> next = new PicassoFuture<>(new Runnable() {
+      @Override public void run() {
+        cancel(false);
+      }
+    });
+    whenDone(executor, new Runnable() {
+      @Override public void run() {
+        if (next.isDone()) {
+          return;
+        }
+        if (state() != SUCCEEDED) {
+          next.setException(failure());
+          return;
+        }
+        R value;
+        try {
+          value = function.apply(result());
+        } catch (Exception e) {
+          next.setException(e);
+          return;
+        }
+        next.set(value);
+      }
+    });
+    return next;
+  }
+
+  /**
+   * Notify {@code listener} on {@code executor} once this future is done, or right away if it
+   * already is.
+   */
+  @NonNull
+  public PicassoFuture<T> addListener(@NonNull final Listener<? super T> listener,
+      @NonNull Executor executor) {
+    if (listener == null) {
+      throw new IllegalArgumentException("Listener must not be null.");
+    }
+    checkExecutor(executor);
+    whenDone(executor, new Runnable() {
+      @Override public void run() {
+        if (state() == SUCCEEDED) {
+          listener.onSuccess(result());
+        } else {
+          listener.onError(failure());
+        }
+      }
+    });
+    return this;
+  }
+
+  /**
+   * Cancel this future and the work it is waiting for. {@code mayInterruptIfRunning} is ignored;
+   * a request that is already decoding is left to finish, but its result is discarded.
+   */
+  @Override public boolean cancel(boolean mayInterruptIfRunning) {
+    if (!complete(CANCELLED, null, null)) {
+      return false;
+    }
+    if (onCancel != null) {
+      onCancel.run();
+    }
+    return true;
+  }
+
+  @Override public synchronized boolean isCancelled() {
+    return state == CANCELLED;
+  }
+
+  @Override public synchronized boolean isDone() {
+    return state != PENDING;
+  }
+
+  @Override public synchronized T get() throws InterruptedException, ExecutionException {
+    if (state == PENDING && isMain()) {
+      throw new IllegalStateException("Cannot wait for a result on the main thread.");
+    }
+    while (state == PENDING) {
+      wait();
+    }
+    return report();
+  }
+
+  @Override public synchronized T get(long timeout, @NonNull TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    if (state == PENDING && isMain()) {
+      throw new IllegalStateException("Cannot wait for a result on the main thread.");
+    }
+    long remainingNanos = unit.toNanos(timeout);
+    long deadline = System.nanoTime() + remainingNanos;
+    while (state == PENDING) {
+      if (remainingNanos <= 0) {
+        throw new TimeoutException();
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+      remainingNanos = deadline - System.nanoTime();
+    }
+    return report();
+  }
+
+  boolean set(@Nullable T result) {
+    return complete(SUCCEEDED, result, null);
+  }
+
+  boolean setException(@NonNull Exception exception) {
+    return complete(FAILED, null, exception);
+  }
+
+  private boolean complete(int state, T result, Exception exception) {
+    List<Object> callbacks;
+    synchronized (this) {
+      if (this.state != PENDING) {
+        return false;
+      }
+      this.state = state;
+      this.result = result;
+      this.exception = exception;
+      callbacks = this.callbacks;
+      this.callbacks = null;
+      notifyAll();
+    }
+    for (int i = 0, n = callbacks.size(); i < n; i += 2) {
+      ((Executor) callbacks.get(i)).execute((Runnable) callbacks.get(i + 1));
+    }
+    return true;
+  }
+
+  private void whenDone(Executor executor, Runnable runnable) {
+    synchronized (this) {
+      if (state == PENDING) {
+        callbacks.add(executor);
+        callbacks.add(runnable);
+        return;
+      }
+    }
+    executor.execute(runnable);
+  }
+
+  private synchronized int state() {
+    return state;
+  }
+
+  private synchronized T result() {
+    return result;
+  }
+
+  /** The exception a failed or cancelled future reports to the futures chained to it. */
+  private synchronized Exception failure() {
+    return state == CANCELLED ? new CancellationException("Request was cancelled.") : exception;
+  }
+
+  private T report() throws ExecutionException {
+    if (state == SUCCEEDED) {
+      return result;
+    }
+    if (state == CANCELLED) {
+      throw new CancellationException("Request was cancelled.");
+    }
+    throw new ExecutionException(exception);
+  }
+
+  private static void checkExecutor(Executor executor) {
+    if (executor == null) {
+      throw new IllegalArgumentException("Executor must not be null.");
+    }
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.graphics.Bitmap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Base of the built-in {@link Transformations} that work on the pixels of each row. Rows are
+ * read into a reusable per-thread {@code int[]} buffer a chunk at a time, filtered and written
+ * back. Large images are split into chunks that several cores filter at once, since hunters
+ * transform one image at a time.
+ */
+abstract class PixelTransformation implements Transformation {
+  /** Images with fewer pixels are filtered on the calling thread only. */
+  static final int PARALLEL_THRESHOLD = 256 * 256;
+  /** Pixels per chunk, bounding the buffer each thread keeps. */
+  static final int CHUNK_PIXELS = 16 * 1024;
+  /** Larger buffers are not kept for reuse. */
+  private static final int MAX_KEPT_BUFFER = 4 * CHUNK_PIXELS;
+
+  /** The number of threads that filter one image, including the calling one. */
+  static int parallelism = Runtime.getRuntime().availableProcessors();
+
+  private static final ThreadLocal<int[]> BUFFERS = new ThreadLocal<>();
+  private static ThreadPoolExecutor executor;
+
+  /** Filters {@code chunk} of a larger operation using {@code buffer}. */
+  interface ChunkTask {
+    void run(int chunk, int[] buffer);
+  }
+
+  /**
+   * Filter {@code rows} rows of an image {@code height} rows high, starting at row {@code top},
+   * held in {@code pixels} at a stride of {@code width}.
+   */
+  abstract void filter(int[] pixels, int width, int top, int rows, int height);
+
+  /** The config of the result. */
+  Bitmap.Config resultConfig(Bitmap source) {
+    return BitmapConfigPolicy.softwareConfig(source);
+  }
+
+  @Override public Bitmap transform(Bitmap source) {
+    Bitmap.Config config = resultConfig(source);
+    Bitmap result = source.isMutable() && source.getConfig() == config
+        ? source
+        : source.copy(config, true);
+    filter(result);
+    if (result != source) {
+      source.recycle();
+    }
+    return result;
+  }
+
+  /** Filter every row of the mutable {@code bitmap}. */
+  void filter(Bitmap bitmap) {
+    filterRows(bitmap, 0, bitmap.getHeight());
+  }
+
+  /** Filter the rows from {@code top} up to {@code bottom} of the mutable {@code bitmap}. */
+  final void filterRows(final Bitmap bitmap, final int top, final int bottom) {
+    final int width = bitmap.getWidth();
+    final int height = bitmap.getHeight();
+    final int rowsPerChunk = Math.max(1, CHUNK_PIXELS / width);
+    int chunks = (bottom - top + rowsPerChunk - 1) / rowsPerChunk;
+    forEachChunk(chunks, rowsPerChunk * width, (long) width * (bottom - top), new ChunkTask() {
+      @Override public void run(int chunk, int[] buffer) {
+        int y = top + chunk * rowsPerChunk;
+        int rows = Math.min(rowsPerChunk, bottom - y);
+        bitmap.getPixels(buffer, 0, width, 0, y, width, rows);
+        filter(buffer, width, y, rows, height);
+        bitmap.setPixels(buffer, 0, width, 0, y, width, rows);
+      }
+    });
+  }
+
+  /**
+   * Run {@code task} for every chunk from 0 up to {@code chunks}, each with a buffer of at least
+   * {@code bufferSize}. Chunks are shared out among several threads if the operation covers
+   * {@code pixels} of at least {@link #PARALLEL_THRESHOLD}. Returns once all of them are done.
+   */
+  static void forEachChunk(final int chunks, final int bufferSize, long pixels,
+      final ChunkTask task) {
+    int workers = pixels < PARALLEL_THRESHOLD ? 1 : Math.min(parallelism, chunks);
+    final AtomicInteger next = new AtomicInteger();
+    Runnable worker = new Runnable() {
+      @Override public void run() {
+        int[] buffer = buffer(bufferSize);
+        for (int chunk; (chunk = next.getAndIncrement()) < chunks;) {
+          task.run(chunk, buffer);
+        }
+      }
+    };
+    if (workers <= 1) {
+      worker.run();
+      return;
+    }
+
+    ThreadPoolExecutor executor = executor();
+    List<Future<?>> futures = new ArrayList<>(workers - 1);
+    for (int i = 1; i < workers; i++) {
+      futures.add(executor.submit(worker));
+    }
+    worker.run();
+
+    // Never return while other threads may still write to the bitmap.
+    boolean interrupted = false;
+    RuntimeException failure = null;
+    //noinspection ForLoopReplaceableByForEach
+    for (int i = 0, n = futures.size(); i < n; i++) {
+      while (true) {
+        try {
+          futures.get(i).get();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          failure = cause instanceof RuntimeException
+              ? (RuntimeException) cause
+              : new RuntimeException(cause);
+          break;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * A buffer of at least {@code size} that stays with the calling thread, unless it is too large
+   * to keep around.
+   */
+  static int[] buffer(int size) {
+    if (size > MAX_KEPT_BUFFER) {
+      return new int[size];
+    }
+    int[] buffer = BUFFERS.get();
+    if (buffer == null || buffer.length < size) {
+      buffer = new int[size];
+      BUFFERS.set(buffer);
+    }
+    return buffer;
+  }
+
+  private static synchronized ThreadPoolExecutor executor() {
+    if (executor == null) {
+      int threads = Math.max(1, parallelism - 1);
+      executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), new Utils.PicassoThreadFactory());
+      executor.allowCoreThreadTimeOut(true);
+    }
+    return executor;
+  }
+
+  static int alpha(int color) {
+    return color >>> 24;
+  }
+
+  static int red(int color) {
+    return (color >> 16) & 0xff;
+  }
+
+  static int green(int color) {
+    return (color >> 8) & 0xff;
+  }
+
+  static int blue(int color) {
+    return color & 0xff;
+  }
+
+  static int argb(int alpha, int red, int green, int blue) {
+    return alpha << 24 | red << 16 | green << 8 | blue;
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import okio.Buffer;
+
+/**
+ * Finds where the first scan of a progressive JPEG ends while its bytes are still arriving. The
+ * bytes up to that point, followed by an end of image marker, are a complete JPEG that holds a
+ * blurry version of the whole image, which is enough for a preview.
+ * <p>
+ * Baseline JPEGs, whose single scan runs top to bottom, and other formats have no such point.
+ */
+final class ProgressiveJpeg {
+  /** Returned by {@link #firstScanEnd} until enough of the image has arrived to tell. */
+  static final long MORE = -1;
+  /** Returned by {@link #firstScanEnd} once it is known that there is no first scan to preview. */
+  static final long NONE = -2;
+
+  private static final int SOI = 0xD8;
+  private static final int EOI = 0xD9;
+  private static final int SOS = 0xDA;
+  private static final int SOF2 = 0xC2;
+
+  private long offset; // The next byte to look at.
+  private boolean progressive;
+  private boolean inScan;
+  private long result = MORE;
+
+  /**
+   * Returns the offset in {@code jpeg} at which its first scan ends, {@link #MORE} if that is
+   * not known yet, or {@link #NONE}. Each call resumes where the last one stopped, so
+   * {@code jpeg} must hold the image from its first byte and only ever grow.
+   */
+  long firstScanEnd(Buffer jpeg) {
+    if (result != MORE) {
+      return result;
+    }
+    long size = jpeg.size();
+    if (offset == 0) {
+      if (size < 2) {
+        return MORE;
+      }
+      if (unsigned(jpeg, 0) != 0xFF || unsigned(jpeg, 1) != SOI) {
+        return result = NONE;
+      }
+      offset = 2;
+    }
+    while (true) {
+      if (inScan) {
+        if (offset >= size) {
+          return MORE;
+        }
+        // Entropy-coded data only has a 0xFF before a stuffed zero, a restart or a marker.
+        long marker = jpeg.indexOf((byte) 0xFF, offset);
+        if (marker == -1 || marker + 1 >= size) {
+          offset = marker == -1 ? size : marker;
+          return MORE;
+        }
+        int code = unsigned(jpeg, marker + 1);
+        if (code == 0 || (code >= 0xD0 && code <= 0xD7) || code == 0xFF) {
+          offset = marker + 1 + (code == 0xFF ? 0 : 1);
+          continue;
+        }
+        return result = code == EOI ? NONE : marker;
+      }
+
+      if (offset + 2 > size) {
+        return MORE;
+      }
+      if (unsigned(jpeg, offset) != 0xFF) {
+        return result = NONE;
+      }
+      int code = unsigned(jpeg, offset + 1);
+      if (code == 0xFF) {
+        offset++; // Fill byte.
+        continue;
+      }
+      if (code == EOI) {
+        return result = NONE;
+      }
+      if (code == SOI || (code >= 0xD0 && code <= 0xD7) || code == 0x01) {
+        offset += 2; // No length follows these.
+        continue;
+      }
+      if (offset + 4 > size) {
+        return MORE;
+      }
+      int length = (unsigned(jpeg, offset + 2) << 8) | unsigned(jpeg, offset + 3);
+      if (code >= 0xC0 && code <= 0xCF && code != 0xC4 && code != 0xC8 && code != 0xCC) {
+        // A start of frame tells how the image is encoded.
+        progressive = code == SOF2;
+        if (!progressive) {
+          return result = NONE;
+        }
+      }
+      offset += 2 + length;
+      if (code == SOS) {
+        if (!progressive) {
+          return result = NONE;
+        }
+        inScan = true;
+      }
+    }
+  }
+
+  private static int unsigned(Buffer buffer, long index) {
+    return buffer.getByte(index) & 0xFF;
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.graphics.BitmapRegionDecoder;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the {@link BitmapRegionDecoder}s of the most recently used sources open, so that the
+ * regions of one image are decoded without loading and indexing the image again for each of
+ * them. A decoder is recycled once it has been evicted and the last hunter using it released it.
+ */
+final class RegionDecoderPool {
+  static final int DEFAULT_CAPACITY = 2;
+
+  static final class Entry {
+    final BitmapRegionDecoder decoder;
+    final Picasso.LoadedFrom loadedFrom;
+    int users; // Guarded by the pool.
+    boolean evicted; // Guarded by the pool.
+
+    Entry(BitmapRegionDecoder decoder, Picasso.LoadedFrom loadedFrom) {
+      this.decoder = decoder;
+      this.loadedFrom = loadedFrom;
+    }
+  }
+
+  private final int capacity;
+  private final Map<String, Entry> entries = new LinkedHashMap<>(0, 0.75f, true);
+
+  RegionDecoderPool() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  RegionDecoderPool(int capacity) {
+    this.capacity = capacity;
+  }
+
+  /** Returns the open decoder of {@code source}, or null. Pass a returned entry to release. */
+  synchronized Entry acquire(String source) {
+    Entry entry = entries.get(source);
+    if (entry != null) {
+      entry.users++;
+    }
+    return entry;
+  }
+
+  /**
+   * Keep {@code decoder} open for {@code source} and acquire it. If another hunter opened the
+   * same source in the meantime, {@code decoder} is recycled and the other one returned.
+   */
+  synchronized Entry put(String source, BitmapRegionDecoder decoder,
+      Picasso.LoadedFrom loadedFrom) {
+    Entry entry = entries.get(source);
+    if (entry != null) {
+      decoder.recycle();
+    } else {
+      entry = new Entry(decoder, loadedFrom);
+      entries.put(source, entry);
+      if (entries.size() > capacity) {
+        Iterator<Entry> eldest = entries.values().iterator();
+        close(eldest.next());
+        eldest.remove();
+      }
+    }
+    entry.users++;
+    return entry;
+  }
+
+  synchronized void release(Entry entry) {
+    if (--entry.users == 0 && entry.evicted) {
+      entry.decoder.recycle();
+    }
+  }
+
+  /** Close the decoder of {@code source}, for example because the image changed. */
+  synchronized void evict(String source) {
+    Entry entry = entries.remove(source);
+    if (entry != null) {
+      close(entry);
+    }
+  }
+
+  synchronized void evictAll() {
+    for (Entry entry : entries.values()) {
+      close(entry);
+    }
+    entries.clear();
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  private static void close(Entry entry) {
+    entry.evicted = true;
+    if (entry.users == 0) {
+      entry.decoder.recycle();
+    }
+  }
+}
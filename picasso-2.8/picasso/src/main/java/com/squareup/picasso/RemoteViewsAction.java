@@ -32,7 +32,7 @@ abstract class RemoteViewsAction extends Action<RemoteViewsAction.RemoteViewsTar
   private RemoteViewsTarget target;
 
   RemoteViewsAction(Picasso picasso, Request data, RemoteViews remoteViews, int viewId,
-      int errorResId, int memoryPolicy, int networkPolicy, Object tag, String key,
+      int errorResId, int memoryPolicy, int networkPolicy, Object tag, RequestKey key,
       Callback callback) {
     super(picasso, null, data, memoryPolicy, networkPolicy, errorResId, null, key, tag, false);
     this.remoteViews = remoteViews;
@@ -104,7 +104,7 @@ abstract class RemoteViewsAction extends Action<RemoteViewsAction.RemoteViewsTar
     private final int[] appWidgetIds;
 
     AppWidgetAction(Picasso picasso, Request data, RemoteViews remoteViews, int viewId,
-        int[] appWidgetIds, int memoryPolicy, int networkPolicy, String key, Object tag,
+        int[] appWidgetIds, int memoryPolicy, int networkPolicy, RequestKey key, Object tag,
         int errorResId, Callback callback) {
       super(picasso, data, remoteViews, viewId, errorResId, memoryPolicy, networkPolicy, tag, key,
           callback);
@@ -124,7 +124,7 @@ abstract class RemoteViewsAction extends Action<RemoteViewsAction.RemoteViewsTar
 
     NotificationAction(Picasso picasso, Request data, RemoteViews remoteViews, int viewId,
         int notificationId, Notification notification, String notificationTag, int memoryPolicy,
-        int networkPolicy, String key, Object tag, int errorResId, Callback callback) {
+        int networkPolicy, RequestKey key, Object tag, int errorResId, Callback callback) {
       super(picasso, data, remoteViews, viewId, errorResId, memoryPolicy, networkPolicy, tag, key,
           callback);
       this.notificationId = notificationId;
@@ -16,6 +16,7 @@
 package com.squareup.picasso;
 
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.net.Uri;
 import androidx.annotation.DrawableRes;
 import androidx.annotation.NonNull;
@@ -57,6 +58,12 @@ public final class Request {
    * caching. Two requests with the same value are considered to be for the same resource.
    */
   public final String stableKey;
+  /**
+   * The part of the image to decode, in pixels of the encoded image before any EXIF orientation,
+   * or {@code null} to decode all of it. Owned by this request and never modified; see
+   * {@link #getRegion()}.
+   */
+  final Rect region;
   /** List of custom transformations to be applied after the built-in transformations. */
   public final List<Transformation> transformations;
   /** Target image width for resizing. */
@@ -88,19 +95,22 @@ public final class Request {
   public final boolean hasRotationPivot;
   /** True if image should be decoded with inPurgeable and inInputShareable. */
   public final boolean purgeable;
+  /** True if a subsampled preview should be delivered before the full image. */
+  public final boolean progressive;
   /** Target image config for decoding. */
   public final Bitmap.Config config;
   /** The priority of this request. */
   public final Priority priority;
 
-  private Request(Uri uri, int resourceId, String stableKey, List<Transformation> transformations,
-      int targetWidth, int targetHeight, boolean centerCrop, boolean centerInside,
-      int centerCropGravity, boolean onlyScaleDown, float rotationDegrees,
+  private Request(Uri uri, int resourceId, String stableKey, Rect region,
+      List<Transformation> transformations, int targetWidth, int targetHeight, boolean centerCrop,
+      boolean centerInside, int centerCropGravity, boolean onlyScaleDown, float rotationDegrees,
       float rotationPivotX, float rotationPivotY, boolean hasRotationPivot,
-      boolean purgeable, Bitmap.Config config, Priority priority) {
+      boolean purgeable, boolean progressive, Bitmap.Config config, Priority priority) {
     this.uri = uri;
     this.resourceId = resourceId;
     this.stableKey = stableKey;
+    this.region = region;
     if (transformations == null) {
       this.transformations = null;
     } else {
@@ -117,6 +127,7 @@ public final class Request {
     this.rotationPivotY = rotationPivotY;
     this.hasRotationPivot = hasRotationPivot;
     this.purgeable = purgeable;
+    this.progressive = progressive;
     this.config = config;
     this.priority = priority;
   }
@@ -136,6 +147,9 @@ public final class Request {
     if (stableKey != null) {
       builder.append(" stableKey(").append(stableKey).append(')');
     }
+    if (region != null) {
+      builder.append(" region(").append(region.toShortString()).append(')');
+    }
     if (targetWidth > 0) {
       builder.append(" resize(").append(targetWidth).append(',').append(targetHeight).append(')');
     }
@@ -155,6 +169,9 @@ public final class Request {
     if (purgeable) {
       builder.append(" purgeable");
     }
+    if (progressive) {
+      builder.append(" progressive");
+    }
     if (config != null) {
       builder.append(' ').append(config);
     }
@@ -186,6 +203,18 @@ public final class Request {
     return targetWidth != 0 || targetHeight != 0;
   }
 
+  public boolean hasRegion() {
+    return region != null;
+  }
+
+  /**
+   * A copy of the part of the image to decode, in pixels of the encoded image before any EXIF
+   * orientation, or {@code null} to decode all of it.
+   */
+  @Nullable public Rect getRegion() {
+    return region != null ? new Rect(region) : null;
+  }
+
   boolean needsTransformation() {
     return needsMatrixTransform() || hasCustomTransformations();
   }
@@ -207,6 +236,7 @@ public final class Request {
     private Uri uri;
     private int resourceId;
     private String stableKey;
+    private Rect region;
     private int targetWidth;
     private int targetHeight;
     private boolean centerCrop;
@@ -218,6 +248,7 @@ public final class Request {
     private float rotationPivotY;
     private boolean hasRotationPivot;
     private boolean purgeable;
+    private boolean progressive;
     private List<Transformation> transformations;
     private Bitmap.Config config;
     private Priority priority;
@@ -242,6 +273,7 @@ public final class Request {
       uri = request.uri;
       resourceId = request.resourceId;
       stableKey = request.stableKey;
+      region = request.region != null ? new Rect(request.region) : null;
       targetWidth = request.targetWidth;
       targetHeight = request.targetHeight;
       centerCrop = request.centerCrop;
@@ -252,6 +284,7 @@ public final class Request {
       rotationPivotY = request.rotationPivotY;
       hasRotationPivot = request.hasRotationPivot;
       purgeable = request.purgeable;
+      progressive = request.progressive;
       onlyScaleDown = request.onlyScaleDown;
       if (request.transformations != null) {
         transformations = new ArrayList<>(request.transformations);
@@ -309,6 +342,28 @@ public final class Request {
       return this;
     }
 
+    /**
+     * Decode only the part of the image within the specified bounds, in pixels of the encoded
+     * image. The part that lies outside of the image is ignored. A resize then applies to the
+     * decoded part.
+     */
+    public Builder region(@Px int left, @Px int top, @Px int right, @Px int bottom) {
+      if (left < 0 || top < 0) {
+        throw new IllegalArgumentException("Region must not start at a negative position.");
+      }
+      if (right <= left || bottom <= top) {
+        throw new IllegalArgumentException("Region must not be empty.");
+      }
+      region = new Rect(left, top, right, bottom);
+      return this;
+    }
+
+    /** Clear the region, if any, so that the whole image is decoded. */
+    public Builder clearRegion() {
+      region = null;
+      return this;
+    }
+
     /**
      * Resize the image to the specified size in pixels.
      * Use 0 as desired dimension to resize keeping aspect ratio.
@@ -432,6 +487,15 @@ public final class Request {
       return this;
     }
 
+    /**
+     * Deliver a subsampled preview of a progressive JPEG decoded from its first scan, before the
+     * rest has been downloaded.
+     */
+    public Builder progressive() {
+      progressive = true;
+      return this;
+    }
+
     /** Decode the image using the specified config. */
     public Builder config(@NonNull Bitmap.Config config) {
       if (config == null) {
@@ -441,6 +505,12 @@ public final class Request {
       return this;
     }
 
+    /** Decode the image using the platform's default config. */
+    Builder clearConfig() {
+      this.config = null;
+      return this;
+    }
+
     /** Execute request using the specified priority. */
     public Builder priority(@NonNull Priority priority) {
       if (priority == null) {
@@ -500,12 +570,16 @@ public final class Request {
         throw new IllegalStateException(
             "Center inside requires calling resize with positive width and height.");
       }
+      if (region != null && progressive) {
+        throw new IllegalStateException("Progressive loading can not be used with a region.");
+      }
       if (priority == null) {
         priority = Priority.NORMAL;
       }
-      return new Request(uri, resourceId, stableKey, transformations, targetWidth, targetHeight,
-          centerCrop, centerInside, centerCropGravity, onlyScaleDown, rotationDegrees,
-          rotationPivotX, rotationPivotY, hasRotationPivot, purgeable, config, priority);
+      return new Request(uri, resourceId, stableKey, region != null ? new Rect(region) : null,
+          transformations, targetWidth, targetHeight, centerCrop, centerInside, centerCropGravity,
+          onlyScaleDown, rotationDegrees, rotationPivotX, rotationPivotY, hasRotationPivot,
+          purgeable, progressive, config, priority);
     }
   }
 }
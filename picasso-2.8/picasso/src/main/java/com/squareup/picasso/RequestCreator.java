@@ -33,6 +33,7 @@ import android.widget.ImageView;
 import android.widget.RemoteViews;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.squareup.picasso.BitmapHunter.forRequest;
@@ -70,6 +71,7 @@ public class RequestCreator {
   private Drawable placeholderDrawable;
   private Drawable errorDrawable;
   private Object tag;
+  private long deadlineNanos;
 
   RequestCreator(Picasso picasso, Uri uri, int resourceId) {
     if (picasso.shutdown) {
@@ -222,6 +224,16 @@ public class RequestCreator {
     return tag;
   }
 
+  /** Internal use only. Used by {@link Batch}. */
+  boolean hasPriority() {
+    return data.hasPriority();
+  }
+
+  /** Internal use only. Used by {@link Batch}. */
+  boolean isDeferred() {
+    return deferred;
+  }
+
   /** Resize the image to the specified dimension size. */
   public RequestCreator resizeDimen(int targetWidthResId, int targetHeightResId) {
     Resources resources = picasso.context.getResources();
@@ -230,6 +242,18 @@ public class RequestCreator {
     return resize(targetWidth, targetHeight);
   }
 
+  /**
+   * Decode only the part of the image within the specified bounds, in pixels of the encoded
+   * image, for example one tile of an image too large to decode whole. Each region is cached on
+   * its own. See {@link TiledImage} for loading the regions that a viewport shows.
+   * <p>
+   * <em>Note</em>: The region is not affected by the image's EXIF orientation.
+   */
+  public RequestCreator region(int left, int top, int right, int bottom) {
+    data.region(left, top, right, bottom);
+    return this;
+  }
+
   /** Resize the image to the specified size in pixels. */
   public RequestCreator resize(int targetWidth, int targetHeight) {
     data.resize(targetWidth, targetHeight);
@@ -318,6 +342,25 @@ public class RequestCreator {
     return this;
   }
 
+  /**
+   * Fail this request with a {@link java.util.concurrent.TimeoutException} if it has not started
+   * within {@code timeout} of being submitted.
+   * <p>
+   * Among requests of the same priority, those with a deadline run first, earliest deadline
+   * first. Requests for several targets that share a download only give up once every target's
+   * deadline has passed.
+   */
+  public RequestCreator deadline(long timeout, @NonNull TimeUnit unit) {
+    if (timeout <= 0) {
+      throw new IllegalArgumentException("Deadline must be positive.");
+    }
+    if (unit == null) {
+      throw new IllegalArgumentException("TimeUnit must not be null.");
+    }
+    this.deadlineNanos = unit.toNanos(timeout);
+    return this;
+  }
+
   /**
    * Add a custom transformation to be applied to the image.
    * <p>
@@ -399,6 +442,20 @@ public class RequestCreator {
     return this;
   }
 
+  /**
+   * Show a heavily subsampled preview of a large progressive JPEG as soon as its first scan has
+   * been downloaded, while the rest is still arriving, then swap in the full-quality image
+   * without a fade once it has been decoded. Both passes decode the same downloaded bytes.
+   * <p>
+   * <em>Note</em>: Previews are only delivered to {@link ImageView} targets. Baseline JPEGs and
+   * other formats load as usual. Like {@link #purgeable()}, this decodes from a byte array
+   * instead of a stream.
+   */
+  public RequestCreator progressive() {
+    data.progressive();
+    return this;
+  }
+
   /** Disable brief fade in of images loaded from the disk cache or network. */
   public RequestCreator noFade() {
     noFade = true;
@@ -423,10 +480,12 @@ public class RequestCreator {
     }
 
     Request finalData = createRequest(started);
-    String key = createKey(finalData, new StringBuilder());
+    RequestKey key = createKey(finalData);
 
     Action action = new GetAction(picasso, finalData, memoryPolicy, networkPolicy, tag, key);
-    return forRequest(picasso, picasso.dispatcher, picasso.cache, picasso.stats, action).hunt();
+    Dispatcher dispatcher = picasso.dispatcher;
+    return forRequest(picasso, dispatcher, picasso.cache, dispatcher.encodedCache,
+        dispatcher.governor, picasso.stats, action).hunt();
   }
 
   /**
@@ -449,6 +508,69 @@ public class RequestCreator {
    * until the request is completed.
    */
   public void fetch(@Nullable Callback callback) {
+    fetchAction(callback);
+  }
+
+  /**
+   * Asynchronously fulfills the request and returns a {@link PicassoFuture} of the bitmap. This is
+   * useful to process an image off the main thread, for example with
+   * {@link PicassoFuture#then(PicassoFuture.Function, java.util.concurrent.Executor)}. The future
+   * is complete right away if the image is in the memory cache, and completes with {@code null} if
+   * there is no image to load.
+   * <p>
+   * Unlike {@link #into(Target)}, Picasso keeps a strong reference to the future until the
+   * request finished. Cancel the future to cancel the request.
+   * <p>
+   * <em>Note:</em> It is safe to invoke this method from any thread.
+   */
+  @NonNull
+  public PicassoFuture<Bitmap> submit() {
+    long started = System.nanoTime();
+
+    if (deferred) {
+      throw new IllegalStateException("Fit cannot be used with submit.");
+    }
+    if (!data.hasImage()) {
+      return PicassoFuture.immediate(null);
+    }
+
+    Request request = createRequest(started);
+    RequestKey key = createKey(request);
+
+    if (shouldReadFromMemoryCache(memoryPolicy)) {
+      Bitmap bitmap = picasso.quickMemoryCacheCheck(key);
+      if (bitmap != null) {
+        if (picasso.loggingEnabled) {
+          log(OWNER_MAIN, VERB_COMPLETED, request.plainId(), "from " + MEMORY);
+        }
+        return PicassoFuture.immediate(bitmap);
+      }
+    }
+
+    FutureAction action =
+        new FutureAction(picasso, request, memoryPolicy, networkPolicy, tag, key);
+    applyDeadline(action);
+    picasso.submit(action);
+    return action.future;
+  }
+
+  /**
+   * Like {@link #fetch(Callback)}, returning the submitted action so that it can be cancelled, or
+   * {@code null} if nothing was submitted.
+   */
+  @Nullable Action fetchAction(@Nullable Callback callback) {
+    Action action = prepareFetch(callback);
+    if (action != null) {
+      picasso.submit(action);
+    }
+    return action;
+  }
+
+  /**
+   * Like {@link #fetchAction(Callback)}, returning the action without submitting it. Used by
+   * {@link Batch} to submit many actions at once.
+   */
+  @Nullable Action prepareFetch(@Nullable Callback callback) {
     long started = System.nanoTime();
 
     if (deferred) {
@@ -461,7 +583,7 @@ public class RequestCreator {
       }
 
       Request request = createRequest(started);
-      String key = createKey(request, new StringBuilder());
+      RequestKey key = createKey(request);
 
       if (shouldReadFromMemoryCache(memoryPolicy)) {
         Bitmap bitmap = picasso.quickMemoryCacheCheck(key);
@@ -472,14 +594,16 @@ public class RequestCreator {
           if (callback != null) {
             callback.onSuccess();
           }
-          return;
+          return null;
         }
       }
 
       Action action =
           new FetchAction(picasso, request, memoryPolicy, networkPolicy, tag, key, callback);
-      picasso.submit(action);
+      applyDeadline(action);
+      return action;
     }
+    return null;
   }
 
   /**
@@ -545,7 +669,7 @@ public class RequestCreator {
     }
 
     Request request = createRequest(started);
-    String requestKey = createKey(request);
+    RequestKey requestKey = createKey(request);
 
     if (shouldReadFromMemoryCache(memoryPolicy)) {
       Bitmap bitmap = picasso.quickMemoryCacheCheck(requestKey);
@@ -561,6 +685,7 @@ public class RequestCreator {
     Action action =
         new TargetAction(picasso, target, request, memoryPolicy, networkPolicy, errorDrawable,
             requestKey, tag, errorResId);
+    applyDeadline(action);
     picasso.enqueueAndSubmit(action);
   }
 
@@ -605,7 +730,7 @@ public class RequestCreator {
     }
 
     Request request = createRequest(started);
-    String key = createKey(request, new StringBuilder()); // Non-main thread needs own builder.
+    RequestKey key = createKey(request);
 
     RemoteViewsAction action =
         new NotificationAction(picasso, request, remoteViews, viewId, notificationId, notification,
@@ -646,7 +771,7 @@ public class RequestCreator {
     }
 
     Request request = createRequest(started);
-    String key = createKey(request, new StringBuilder()); // Non-main thread needs own builder.
+    RequestKey key = createKey(request);
 
     RemoteViewsAction action =
         new AppWidgetAction(picasso, request, remoteViews, viewId, appWidgetIds, memoryPolicy,
@@ -675,6 +800,18 @@ public class RequestCreator {
    * {@link Picasso#cancelRequest(android.widget.ImageView)} call to prevent temporary leaking.
    */
   public void into(ImageView target, Callback callback) {
+    Action action = prepareInto(target, callback);
+    if (action != null) {
+      picasso.enqueueAndSubmit(action);
+    }
+  }
+
+  /**
+   * Like {@link #into(ImageView, Callback)}, returning the action without enqueueing it, or
+   * {@code null} if the request was completed or deferred. Used by {@link Batch} to submit many
+   * actions at once.
+   */
+  @Nullable Action prepareInto(ImageView target, Callback callback) {
     long started = System.nanoTime();
     checkMain();
 
@@ -687,7 +824,7 @@ public class RequestCreator {
       if (setPlaceholder) {
         setPlaceholder(target, getPlaceholderDrawable());
       }
-      return;
+      return null;
     }
 
     if (deferred) {
@@ -701,13 +838,16 @@ public class RequestCreator {
           setPlaceholder(target, getPlaceholderDrawable());
         }
         picasso.defer(target, new DeferredRequestCreator(this, target, callback));
-        return;
+        return null;
       }
       data.resize(width, height);
     }
 
     Request request = createRequest(started);
-    String requestKey = createKey(request);
+    if (picasso.automaticBitmapConfig) {
+      request = BitmapConfigPolicy.forImageView(request);
+    }
+    RequestKey requestKey = createKey(request);
 
     if (shouldReadFromMemoryCache(memoryPolicy)) {
       Bitmap bitmap = picasso.quickMemoryCacheCheck(requestKey);
@@ -720,7 +860,7 @@ public class RequestCreator {
         if (callback != null) {
           callback.onSuccess();
         }
-        return;
+        return null;
       }
     }
 
@@ -731,8 +871,8 @@ public class RequestCreator {
     Action action =
         new ImageViewAction(picasso, target, request, memoryPolicy, networkPolicy, errorResId,
             errorDrawable, requestKey, tag, callback, noFade);
-
-    picasso.enqueueAndSubmit(action);
+    applyDeadline(action);
+    return action;
   }
 
   private Drawable getPlaceholderDrawable() {
@@ -791,6 +931,13 @@ public class RequestCreator {
       action.setImageResource(placeholderResId);
     }
 
+    applyDeadline(action);
     picasso.enqueueAndSubmit(action);
   }
+
+  private void applyDeadline(Action action) {
+    if (deadlineNanos != 0) {
+      action.deadlineNanos = System.nanoTime() + deadlineNanos;
+    }
+  }
 }
@@ -20,6 +20,7 @@ import android.graphics.BitmapFactory;
 import android.net.NetworkInfo;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import java.io.File;
 import java.io.IOException;
 import okio.Source;
 
@@ -55,6 +56,8 @@ public abstract class RequestHandler {
     private final Bitmap bitmap;
     private final Source source;
     private final int exifOrientation;
+    @Nullable final File file;
+    @Nullable final ImageDecoderEngine.SourceFactory decoderSource;
 
     public Result(@NonNull Bitmap bitmap, @NonNull Picasso.LoadedFrom loadedFrom) {
       this(checkNotNull(bitmap, "bitmap == null"), null, loadedFrom, 0);
@@ -69,6 +72,31 @@ public abstract class RequestHandler {
         @Nullable Source source,
         @NonNull Picasso.LoadedFrom loadedFrom,
         int exifOrientation) {
+      this(bitmap, source, loadedFrom, exifOrientation, null, null);
+    }
+
+    /** {@code file} is where {@code source} reads from, for decoders that open it themselves. */
+    Result(
+        @Nullable Bitmap bitmap,
+        @Nullable Source source,
+        @NonNull Picasso.LoadedFrom loadedFrom,
+        int exifOrientation,
+        @Nullable File file) {
+      this(bitmap, source, loadedFrom, exifOrientation, file,
+          file != null ? ImageDecoderEngine.source(file) : null);
+    }
+
+    /**
+     * {@code decoderSource} opens what {@code source} reads from for {@code ImageDecoder}, which
+     * then reads it as it decodes. Null below API 28 or if the image can only be streamed.
+     */
+    Result(
+        @Nullable Bitmap bitmap,
+        @Nullable Source source,
+        @NonNull Picasso.LoadedFrom loadedFrom,
+        int exifOrientation,
+        @Nullable File file,
+        @Nullable ImageDecoderEngine.SourceFactory decoderSource) {
       if ((bitmap != null) == (source != null)) {
         throw new AssertionError();
       }
@@ -76,6 +104,8 @@ public abstract class RequestHandler {
       this.source = source;
       this.loadedFrom = checkNotNull(loadedFrom, "loadedFrom == null");
       this.exifOrientation = exifOrientation;
+      this.file = file;
+      this.decoderSource = decoderSource;
     }
 
     /** The loaded {@link Bitmap}. Mutually exclusive with {@link #getSource()}. */
@@ -181,4 +211,43 @@ public abstract class RequestHandler {
     options.inSampleSize = sampleSize;
     options.inJustDecodeBounds = false;
   }
+
+  /**
+   * Have the decoder scale the rest of the way to {@code request}'s target size, which
+   * {@code inSampleSize} alone can only approach in powers of two, so that the matrix transform
+   * has nothing left to do. Call after {@link #calculateInSampleSize}; the scale is the one the
+   * transform would otherwise apply, chosen so that the dimension which decides it comes out
+   * exact. Returns whether the decode is scaled.
+   */
+  static boolean calculateDensityScale(Request request, BitmapFactory.Options options) {
+    int width = options.outWidth;
+    int height = options.outHeight;
+    if (!request.hasSize() || request.purgeable || width <= 0 || height <= 0) {
+      return false;
+    }
+    float scale = ImageDecoderEngine.decodeScale(request, width, height);
+    if (scale >= 1) {
+      return false;
+    }
+    boolean byWidth = request.targetHeight == 0 || (request.targetWidth != 0
+        && Math.round(width * scale) == request.targetWidth);
+    if (!request.centerInside && request.targetWidth != 0 && request.targetHeight != 0
+        && (!byWidth || Math.round(height * scale) != request.targetHeight)) {
+      // A crop or stretch is left, which the transform does best in the same pass as the scale.
+      return false;
+    }
+    int source = byWidth ? width : height;
+    int target = byWidth ? request.targetWidth : request.targetHeight;
+    // Decoders only sample natively in powers of two, rounding partial blocks up.
+    int sampleSize = Integer.highestOneBit(Math.max(1, options.inSampleSize));
+    int sampled = (source + sampleSize - 1) / sampleSize;
+    if (target <= 0 || target >= sampled) {
+      return false;
+    }
+    options.inSampleSize = sampleSize;
+    options.inScaled = true;
+    options.inDensity = sampled;
+    options.inTargetDensity = target;
+    return true;
+  }
 }
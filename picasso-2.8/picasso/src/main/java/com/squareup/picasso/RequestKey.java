@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.graphics.Rect;
+
+/**
+ * Identifies a request's result in the memory cache and among in-flight hunters without building
+ * the string form of the key on the calling thread.
+ * <p>
+ * The 64-bit hash is computed over the same characters {@link Utils#createKey(Request,
+ * StringBuilder)} would append, so a key made from a {@link Request} and one wrapping the
+ * equivalent string hash alike and are equal. Two keys made from requests compare their fields,
+ * and only when their hashes already match; the string form is built lazily, when a key meets a
+ * string key or a custom {@link Cache} asks for it.
+ * <p>
+ * A key copies only the fields of the request that make up its string form, keeping transformations
+ * by their {@link Transformation#key() key}: cache entries and the variants index outlive the
+ * request, and must not keep its transformations, and whatever they reference, reachable.
+ */
+final class RequestKey {
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  final long hash;
+  private final boolean structured; // False for keys wrapping a string.
+  private final String source; // Null for resources, which are keyed by their ID.
+  private final int resourceId;
+  private final Rect region;
+  private final float rotationDegrees;
+  private final boolean hasRotationPivot;
+  private final float rotationPivotX;
+  private final float rotationPivotY;
+  private final int targetWidth;
+  private final int targetHeight;
+  private final boolean centerCrop;
+  private final int centerCropGravity;
+  private final boolean centerInside;
+  private final String[] transformationKeys; // Null when the request has none.
+  private final boolean hardware;
+  private String string; // Racy single check: every thread would build an equal string.
+
+  private RequestKey(long hash, Request data, String source, String[] transformationKeys) {
+    this.hash = hash;
+    this.structured = true;
+    this.source = source;
+    this.resourceId = data.resourceId;
+    this.region = data.region; // Never modified by the request that owns it.
+    this.rotationDegrees = data.rotationDegrees;
+    this.hasRotationPivot = data.hasRotationPivot;
+    this.rotationPivotX = data.rotationPivotX;
+    this.rotationPivotY = data.rotationPivotY;
+    this.targetWidth = data.targetWidth;
+    this.targetHeight = data.targetHeight;
+    this.centerCrop = data.centerCrop;
+    this.centerCropGravity = data.centerCropGravity;
+    this.centerInside = data.centerInside;
+    this.transformationKeys = transformationKeys;
+    this.hardware = BitmapConfigPolicy.isHardware(data.config);
+  }
+
+  private RequestKey(long hash, String string) {
+    this.hash = hash;
+    this.structured = false;
+    this.source = null;
+    this.resourceId = 0;
+    this.region = null;
+    this.rotationDegrees = 0;
+    this.hasRotationPivot = false;
+    this.rotationPivotX = 0;
+    this.rotationPivotY = 0;
+    this.targetWidth = 0;
+    this.targetHeight = 0;
+    this.centerCrop = false;
+    this.centerCropGravity = 0;
+    this.centerInside = false;
+    this.transformationKeys = null;
+    this.hardware = false;
+    this.string = string;
+  }
+
+  static RequestKey of(Request data) {
+    long hash = FNV_OFFSET_BASIS;
+    String source = null;
+    if (data.stableKey != null) {
+      source = data.stableKey;
+      hash = hash(hash, source);
+    } else if (data.uri != null) {
+      source = data.uri.toString();
+      hash = hash(hash, source);
+    } else {
+      hash = hash(hash, data.resourceId);
+    }
+    hash = hash(hash, Utils.KEY_SEPARATOR);
+
+    if (data.region != null) {
+      hash = hash(hash, "region:");
+      hash = hash(hash, data.region.left);
+      hash = hash(hash, ',');
+      hash = hash(hash, data.region.top);
+      hash = hash(hash, ',');
+      hash = hash(hash, data.region.right);
+      hash = hash(hash, ',');
+      hash = hash(hash, data.region.bottom);
+      hash = hash(hash, Utils.KEY_SEPARATOR);
+    }
+    if (data.rotationDegrees != 0) {
+      hash = hash(hash, "rotation:");
+      hash = hash(hash, Float.toString(data.rotationDegrees));
+      if (data.hasRotationPivot) {
+        hash = hash(hash, '@');
+        hash = hash(hash, Float.toString(data.rotationPivotX));
+        hash = hash(hash, 'x');
+        hash = hash(hash, Float.toString(data.rotationPivotY));
+      }
+      hash = hash(hash, Utils.KEY_SEPARATOR);
+    }
+    if (data.hasSize()) {
+      hash = hash(hash, "resize:");
+      hash = hash(hash, data.targetWidth);
+      hash = hash(hash, 'x');
+      hash = hash(hash, data.targetHeight);
+      hash = hash(hash, Utils.KEY_SEPARATOR);
+    }
+    if (data.centerCrop) {
+      hash = hash(hash, "centerCrop:");
+      hash = hash(hash, data.centerCropGravity);
+      hash = hash(hash, Utils.KEY_SEPARATOR);
+    } else if (data.centerInside) {
+      hash = hash(hash, "centerInside");
+      hash = hash(hash, Utils.KEY_SEPARATOR);
+    }
+
+    String[] transformationKeys = null;
+    if (data.transformations != null) {
+      int count = data.transformations.size();
+      transformationKeys = new String[count];
+      for (int i = 0; i < count; i++) {
+        String key = data.transformations.get(i).key();
+        transformationKeys[i] = key;
+        hash = hash(hash, key);
+        hash = hash(hash, Utils.KEY_SEPARATOR);
+      }
+    }
+    if (BitmapConfigPolicy.isHardware(data.config)) {
+      hash = hash(hash, "hardware");
+      hash = hash(hash, Utils.KEY_SEPARATOR);
+    }
+    return new RequestKey(hash, data, source, transformationKeys);
+  }
+
+  static RequestKey of(String key) {
+    return new RequestKey(hash(FNV_OFFSET_BASIS, key), key);
+  }
+
+  /**
+   * The image this key is a variant of: the part of its string form before the first separator,
+   * or {@code null} for a string key without one.
+   */
+  String source() {
+    if (!structured) {
+      int separator = string.indexOf(Utils.KEY_SEPARATOR);
+      return separator != -1 ? string.substring(0, separator) : null;
+    }
+    return source != null ? source : String.valueOf(resourceId);
+  }
+
+  @Override public boolean equals(Object o) {
+    if (o == this) {
+      return true;
+    }
+    if (!(o instanceof RequestKey)) {
+      return false;
+    }
+    RequestKey other = (RequestKey) o;
+    if (hash != other.hash) {
+      return false;
+    }
+    if (structured && other.structured) {
+      return sameKey(other);
+    }
+    return toString().equals(other.toString());
+  }
+
+  @Override public int hashCode() {
+    return (int) (hash ^ (hash >>> 32));
+  }
+
+  /** The same string {@link Utils#createKey(Request, StringBuilder)} builds for the request. */
+  @Override public String toString() {
+    String string = this.string;
+    if (string == null) {
+      StringBuilder builder = new StringBuilder();
+      if (source != null) {
+        builder.append(source);
+      } else {
+        builder.append(resourceId);
+      }
+      builder.append(Utils.KEY_SEPARATOR);
+
+      if (region != null) {
+        builder.append("region:").append(region.left).append(',').append(region.top).append(',')
+            .append(region.right).append(',').append(region.bottom).append(Utils.KEY_SEPARATOR);
+      }
+      if (rotationDegrees != 0) {
+        builder.append("rotation:").append(rotationDegrees);
+        if (hasRotationPivot) {
+          builder.append('@').append(rotationPivotX).append('x').append(rotationPivotY);
+        }
+        builder.append(Utils.KEY_SEPARATOR);
+      }
+      if (hasSize()) {
+        builder.append("resize:").append(targetWidth).append('x').append(targetHeight);
+        builder.append(Utils.KEY_SEPARATOR);
+      }
+      if (centerCrop) {
+        builder.append("centerCrop:").append(centerCropGravity).append(Utils.KEY_SEPARATOR);
+      } else if (centerInside) {
+        builder.append("centerInside").append(Utils.KEY_SEPARATOR);
+      }
+
+      if (transformationKeys != null) {
+        for (String key : transformationKeys) {
+          builder.append(key).append(Utils.KEY_SEPARATOR);
+        }
+      }
+      if (hardware) {
+        builder.append("hardware").append(Utils.KEY_SEPARATOR);
+      }
+      string = builder.toString();
+      this.string = string;
+    }
+    return string;
+  }
+
+  private boolean hasSize() {
+    return targetWidth != 0 || targetHeight != 0;
+  }
+
+  /** Whether this and {@code b} have equal string keys, compared without building them. */
+  private boolean sameKey(RequestKey b) {
+    if (!sameSource(b)) {
+      return false;
+    }
+    if (region == null ? b.region != null : !region.equals(b.region)) {
+      return false;
+    }
+    boolean rotated = rotationDegrees != 0;
+    if (rotated != (b.rotationDegrees != 0)) {
+      return false;
+    }
+    if (rotated && (Float.compare(rotationDegrees, b.rotationDegrees) != 0
+        || hasRotationPivot != b.hasRotationPivot
+        || hasRotationPivot && (Float.compare(rotationPivotX, b.rotationPivotX) != 0
+        || Float.compare(rotationPivotY, b.rotationPivotY) != 0))) {
+      return false;
+    }
+    if (hasSize() != b.hasSize()
+        || hasSize() && (targetWidth != b.targetWidth || targetHeight != b.targetHeight)) {
+      return false;
+    }
+    if (centerCrop != b.centerCrop
+        || centerCrop && centerCropGravity != b.centerCropGravity
+        || !centerCrop && centerInside != b.centerInside) {
+      return false;
+    }
+    int count = transformationKeys != null ? transformationKeys.length : 0;
+    if (count != (b.transformationKeys != null ? b.transformationKeys.length : 0)) {
+      return false;
+    }
+    for (int i = 0; i < count; i++) {
+      if (!transformationKeys[i].equals(b.transformationKeys[i])) {
+        return false;
+      }
+    }
+    return hardware == b.hardware;
+  }
+
+  private boolean sameSource(RequestKey b) {
+    if (source == null && b.source == null) {
+      return resourceId == b.resourceId;
+    }
+    return source().equals(b.source());
+  }
+
+  // FNV-1a over UTF-16 code units.
+
+  private static long hash(long hash, char c) {
+    return (hash ^ c) * FNV_PRIME;
+  }
+
+  private static long hash(long hash, String s) {
+    for (int i = 0, length = s.length(); i < length; i++) {
+      hash = (hash ^ s.charAt(i)) * FNV_PRIME;
+    }
+    return hash;
+  }
+
+  /** Hashes the decimal digits {@link StringBuilder#append(int)} would write. */
+  private static long hash(long hash, int value) {
+    if (value < 0) {
+      if (value == Integer.MIN_VALUE) {
+        return hash(hash, "-2147483648");
+      }
+      hash = hash(hash, '-');
+      value = -value;
+    }
+    int divisor = 1;
+    while (value / divisor >= 10) {
+      divisor *= 10;
+    }
+    for (; divisor > 0; divisor /= 10) {
+      hash = hash(hash, (char) ('0' + value / divisor % 10));
+    }
+    return hash;
+  }
+}
@@ -20,6 +20,7 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import java.io.IOException;
+import okio.Okio;
 
 import static android.content.ContentResolver.SCHEME_ANDROID_RESOURCE;
 import static com.squareup.picasso.Picasso.LoadedFrom.DISK;
@@ -42,6 +43,12 @@ class ResourceRequestHandler extends RequestHandler {
   @Override public Result load(Request request, int networkPolicy) throws IOException {
     Resources res = Utils.getResources(context, request);
     int id = Utils.getResourceId(res, request);
+    if (ImageDecoderEngine.canDecode(request) && !request.progressive && !request.hasRegion()) {
+      // ImageDecoder opens the resource itself and scales it for the display as decodeResource
+      // does. The stream is only peeked at to choose a config.
+      return new Result(null, Okio.source(res.openRawResource(id)), DISK, 0, null,
+          ImageDecoderEngine.source(res, id));
+    }
     return new Result(decodeResource(res, id, request), DISK);
   }
 
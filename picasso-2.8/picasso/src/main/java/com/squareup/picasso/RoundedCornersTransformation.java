@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.graphics.Bitmap;
+import android.graphics.Path;
+import android.graphics.RectF;
+import androidx.annotation.NonNull;
+
+/** Rounds the corners to transparent, antialiasing their edges. */
+final class RoundedCornersTransformation extends PixelTransformation
+    implements FusedTransformation {
+  private final float radius;
+
+  RoundedCornersTransformation(float radius) {
+    this.radius = radius;
+  }
+
+  @Override public boolean fuse(@NonNull DrawPass pass) {
+    if (pass.hasClip()) {
+      return false;
+    }
+    Path path = new Path();
+    path.addRoundRect(new RectF(0, 0, pass.getWidth(), pass.getHeight()), radius, radius,
+        Path.Direction.CW);
+    pass.clip(path);
+    return true;
+  }
+
+  @Override Bitmap.Config resultConfig(Bitmap source) {
+    return Bitmap.Config.ARGB_8888;
+  }
+
+  @Override void filter(Bitmap bitmap) {
+    bitmap.setHasAlpha(true);
+    int width = bitmap.getWidth();
+    int height = bitmap.getHeight();
+    // Only the rows of the corners change.
+    int rows = Math.min(height, (int) Math.ceil(clampedRadius(width, height)));
+    filterRows(bitmap, 0, rows);
+    filterRows(bitmap, Math.max(rows, height - rows), height);
+  }
+
+  @Override void filter(int[] pixels, int width, int top, int rows, int height) {
+    float radius = clampedRadius(width, height);
+    int columns = Math.min(width, (int) Math.ceil(radius));
+    for (int row = 0; row < rows; row++) {
+      float y = top + row + 0.5f;
+      float centerY;
+      if (y < radius) {
+        centerY = radius;
+      } else if (y > height - radius) {
+        centerY = height - radius;
+      } else {
+        continue;
+      }
+      int offset = row * width;
+      for (int column = 0; column < width; column++) {
+        if (column == columns && column < width - columns) {
+          column = width - columns;
+        }
+        float x = column + 0.5f;
+        float centerX;
+        if (x < radius) {
+          centerX = radius;
+        } else if (x > width - radius) {
+          centerX = width - radius;
+        } else {
+          continue;
+        }
+        float dx = x - centerX;
+        float dy = y - centerY;
+        float coverage = radius + 0.5f - (float) Math.sqrt(dx * dx + dy * dy);
+        if (coverage < 1) {
+          int pixel = pixels[offset + column];
+          int alpha = coverage <= 0 ? 0 : Math.round(alpha(pixel) * coverage);
+          pixels[offset + column] = argb(alpha, red(pixel), green(pixel), blue(pixel));
+        }
+      }
+    }
+  }
+
+  /** Like a canvas, shrink the radius to fit an image smaller than the corners. */
+  private float clampedRadius(int width, int height) {
+    return Math.min(radius, Math.min(width, height) / 2f);
+  }
+
+  @Override public String key() {
+    return "roundedCorners(" + radius + ")";
+  }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.os.SystemClock;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.squareup.picasso.Utils.checkMain;
+
+/**
+ * Fetches the images a list or grid is about to show, based on the direction and speed at which
+ * it scrolls. Report every scroll with {@link #onScroll(int, int)}; the prefetcher then issues
+ * {@linkplain RequestCreator#fetch() fetches} sized to the item views for the rows just beyond the
+ * visible ones. The faster the scroll, the more rows ahead, up to {@link Builder#maxRows(int)}.
+ * <p>
+ * Prefetches are cancelled when the scroll direction reverses, or when the scroll passes them
+ * before they completed. The decoded size of all unfinished prefetches is capped by
+ * {@link Builder#maxInFlightBytes(long)}.
+ * <p>
+ * All methods must be called from the main thread.
+ */
+public final class ScrollPrefetcher {
+  /** Supplies the request for each item of an adapter. */
+  public interface Source {
+    /** The number of items. */
+    int getCount();
+
+    /**
+     * The request that shows the item at {@code position}, or {@code null} if it has no image.
+     * The prefetcher resizes the request to the item size, so it must not use
+     * {@link RequestCreator#fit() fit()}. It must otherwise match the request used to bind the
+     * item's view so that the view finds the prefetched image in the memory cache.
+     */
+    @Nullable RequestCreator getRequest(int position);
+  }
+
+  static final int DEFAULT_MAX_ROWS = 4;
+  static final long DEFAULT_MAX_IN_FLIGHT_BYTES = 4 * 1024 * 1024;
+  /** Prefetch as many rows as the current velocity scrolls in this time. */
+  static final float LOOKAHEAD_SECONDS = 0.5f;
+  /** Weight of the newest sample in the smoothed velocity. */
+  private static final float VELOCITY_SMOOTHING = 0.5f;
+  private static final int BYTES_PER_PIXEL = 4;
+
+  private final Picasso picasso;
+  private final Source source;
+  private final int maxRows;
+  private final long maxInFlightBytes;
+  /** Prefetched positions that have not been shown yet, in the order they were issued. */
+  private final Map<Integer, Prefetch> prefetches = new LinkedHashMap<>();
+
+  private int columns = 1;
+  private int targetWidth;
+  private int targetHeight;
+  private int lastFirstVisible = -1;
+  private long lastScrollMillis;
+  private int direction;
+  private float velocity; // Items per second, positive towards the end of the list.
+  private long inFlightBytes;
+
+  private int prefetchCount;
+  private int hitCount;
+  private int wastedCount;
+
+  ScrollPrefetcher(Picasso picasso, Source source, int maxRows, long maxInFlightBytes) {
+    this.picasso = picasso;
+    this.source = source;
+    this.maxRows = maxRows;
+    this.maxInFlightBytes = maxInFlightBytes;
+  }
+
+  /**
+   * Describe the item views: how many share one row and the size of each. Nothing is prefetched
+   * until the size is known.
+   */
+  public void setItemLayout(int columns, int targetWidth, int targetHeight) {
+    if (columns <= 0) {
+      throw new IllegalArgumentException("Columns must be positive.");
+    }
+    if (targetWidth < 0 || targetHeight < 0) {
+      throw new IllegalArgumentException("Target size must not be negative.");
+    }
+    this.columns = columns;
+    this.targetWidth = targetWidth;
+    this.targetHeight = targetHeight;
+  }
+
+  /** Report that items {@code firstVisible} to {@code firstVisible + visibleCount - 1} show. */
+  public void onScroll(int firstVisible, int visibleCount) {
+    checkMain();
+    long now = SystemClock.uptimeMillis();
+    if (lastFirstVisible != -1 && firstVisible != lastFirstVisible) {
+      int newDirection = firstVisible > lastFirstVisible ? 1 : -1;
+      if (direction != 0 && newDirection != direction) {
+        // Everything prefetched so far lies the other way.
+        cancelPrefetches();
+        velocity = 0;
+      }
+      direction = newDirection;
+      long elapsed = Math.max(1, now - lastScrollMillis);
+      float sample = (firstVisible - lastFirstVisible) * 1000f / elapsed;
+      velocity = velocity == 0 ? sample
+          : VELOCITY_SMOOTHING * sample + (1 - VELOCITY_SMOOTHING) * velocity;
+      lastScrollMillis = now;
+    } else if (lastFirstVisible == -1) {
+      lastScrollMillis = now;
+    }
+    lastFirstVisible = firstVisible;
+
+    int lastVisible = firstVisible + visibleCount - 1;
+    retire(firstVisible, lastVisible);
+    if (direction != 0 && targetWidth > 0 && targetHeight > 0) {
+      prefetch(firstVisible, lastVisible);
+    }
+  }
+
+  /** Cancel every unfinished prefetch, for example when the list goes away. */
+  public void cancel() {
+    checkMain();
+    cancelPrefetches();
+    direction = 0;
+    velocity = 0;
+    lastFirstVisible = -1;
+  }
+
+  /** The number of fetches issued. */
+  public int getPrefetchCount() {
+    return prefetchCount;
+  }
+
+  /** The number of prefetched items that were shown afterwards. */
+  public int getHitCount() {
+    return hitCount;
+  }
+
+  /** The number of prefetched items that were cancelled or scrolled past without showing. */
+  public int getWastedCount() {
+    return wastedCount;
+  }
+
+  /** The decoded size of the prefetches that have not finished yet. */
+  long getInFlightBytes() {
+    return inFlightBytes;
+  }
+
+  /** Count shown prefetches as hits and drop the ones the scroll passed without showing. */
+  private void retire(int firstVisible, int lastVisible) {
+    for (Iterator<Prefetch> it = prefetches.values().iterator(); it.hasNext();) {
+      Prefetch prefetch = it.next();
+      int position = prefetch.position;
+      if (position >= firstVisible && position <= lastVisible) {
+        // An unfinished fetch keeps going; the view's own request joins it.
+        hitCount++;
+        prefetch.release();
+        it.remove();
+      } else if (direction > 0 ? position < firstVisible : position > lastVisible) {
+        wastedCount++;
+        prefetch.cancel();
+        it.remove();
+      }
+    }
+  }
+
+  private void prefetch(int firstVisible, int lastVisible) {
+    int rowsPerSecond = (int) Math.ceil(Math.abs(velocity) / columns * LOOKAHEAD_SECONDS);
+    int rows = Math.max(1, Math.min(maxRows, rowsPerSecond));
+    int count = Math.min(rows * columns, source.getCount());
+    long bytes = (long) targetWidth * targetHeight * BYTES_PER_PIXEL;
+    for (int i = 1; i <= count; i++) {
+      int position = direction > 0 ? lastVisible + i : firstVisible - i;
+      if (position < 0 || position >= source.getCount()) {
+        break;
+      }
+      if (prefetches.containsKey(position)) {
+        continue;
+      }
+      if (inFlightBytes + bytes > maxInFlightBytes) {
+        break;
+      }
+      RequestCreator request = source.getRequest(position);
+      if (request == null) {
+        continue;
+      }
+      Prefetch prefetch = new Prefetch(position, bytes);
+      prefetches.put(position, prefetch);
+      inFlightBytes += bytes;
+      prefetch.action = request.resize(targetWidth, targetHeight).fetchAction(prefetch);
+      if (prefetch.action == null) {
+        // Already in the memory cache, or there was nothing to load.
+        prefetch.release();
+        prefetches.remove(position);
+      } else {
+        prefetchCount++;
+      }
+    }
+  }
+
+  private void cancelPrefetches() {
+    List<Prefetch> cancelled = new ArrayList<>(prefetches.values());
+    prefetches.clear();
+    //noinspection ForLoopReplaceableByForEach
+    for (int i = 0, n = cancelled.size(); i < n; i++) {
+      wastedCount++;
+      cancelled.get(i).cancel();
+    }
+  }
+
+  private final class Prefetch implements Callback {
+    final int position;
+    final long bytes;
+    Action action;
+    boolean finished;
+
+    Prefetch(int position, long bytes) {
+      this.position = position;
+      this.bytes = bytes;
+    }
+
+    @Override public void onSuccess() {
+      release();
+    }
+
+    @Override public void onError(@NonNull Exception e) {
+      release();
+      if (prefetches.get(position) == this) {
+        prefetches.remove(position);
+      }
+    }
+
+    void release() {
+      if (!finished) {
+        finished = true;
+        inFlightBytes -= bytes;
+        action = null;
+      }
+    }
+
+    void cancel() {
+      Action action = this.action;
+      release();
+      if (action != null) {
+        picasso.cancelAction(action);
+      }
+    }
+  }
+
+  /** Fluent API for creating {@link ScrollPrefetcher} instances. */
+  public static class Builder {
+    private final Picasso picasso;
+    private final Source source;
+    private int maxRows = DEFAULT_MAX_ROWS;
+    private long maxInFlightBytes = DEFAULT_MAX_IN_FLIGHT_BYTES;
+
+    /** Start building a prefetcher for the items of {@code source}. */
+    public Builder(@NonNull Picasso picasso, @NonNull Source source) {
+      if (picasso == null) {
+        throw new IllegalArgumentException("Picasso must not be null.");
+      }
+      if (source == null) {
+        throw new IllegalArgumentException("Source must not be null.");
+      }
+      this.picasso = picasso;
+      this.source = source;
+    }
+
+    /** The most rows to prefetch ahead of the visible ones, however fast the scroll. */
+    public Builder maxRows(int maxRows) {
+      if (maxRows <= 0) {
+        throw new IllegalArgumentException("Max rows must be positive.");
+      }
+      this.maxRows = maxRows;
+      return this;
+    }
+
+    /** The most decoded bytes that unfinished prefetches may add up to. */
+    public Builder maxInFlightBytes(long maxInFlightBytes) {
+      if (maxInFlightBytes <= 0) {
+        throw new IllegalArgumentException("Max in-flight bytes must be positive.");
+      }
+      this.maxInFlightBytes = maxInFlightBytes;
+      return this;
+    }
+
+    /** Create the {@link ScrollPrefetcher} instance. */
+    public ScrollPrefetcher build() {
+      return new ScrollPrefetcher(picasso, source, maxRows, maxInFlightBytes);
+    }
+  }
+}
@@ -16,146 +16,159 @@
 package com.squareup.picasso;
 
 import android.graphics.Bitmap;
-import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Looper;
-import android.os.Message;
 
-import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
 
+/**
+ * Counters and latency histograms for a {@link Picasso} instance. Every method may be called from
+ * any thread and records without locking or handing off to another thread; contention between
+ * recording threads is kept low by {@link StripedCounter}. Snapshots read each counter
+ * independently, so they are not atomic with respect to concurrent recording.
+ */
 class Stats {
-  private static final int CACHE_HIT = 0;
-  private static final int CACHE_MISS = 1;
-  private static final int BITMAP_DECODE_FINISHED = 2;
-  private static final int BITMAP_TRANSFORMED_FINISHED = 3;
-  private static final int DOWNLOAD_FINISHED = 4;
-
-  private static final String STATS_THREAD_NAME = Utils.THREAD_PREFIX + "Stats";
+  private static final StatsSnapshot.Stage[] STAGES = StatsSnapshot.Stage.values();
+  private static final Picasso.LoadedFrom[] SOURCES = Picasso.LoadedFrom.values();
 
-  final HandlerThread statsThread;
   final Cache cache;
-  final Handler handler;
-
-  long cacheHits;
-  long cacheMisses;
-  long totalDownloadSize;
-  long totalOriginalBitmapSize;
-  long totalTransformedBitmapSize;
-  long averageDownloadSize;
-  long averageOriginalBitmapSize;
-  long averageTransformedBitmapSize;
-  int downloadCount;
-  int originalBitmapCount;
-  int transformedBitmapCount;
+  private final EncodedCache encodedCache;
+  private final MemoryGovernor governor;
+
+  final StripedCounter cacheHits = new StripedCounter();
+  final StripedCounter cacheMisses = new StripedCounter();
+  final StripedCounter encodedCacheHits = new StripedCounter();
+  final StripedCounter encodedCacheMisses = new StripedCounter();
+  final StripedCounter downloadCount = new StripedCounter();
+  final StripedCounter totalDownloadSize = new StripedCounter();
+  final StripedCounter originalBitmapCount = new StripedCounter();
+  final StripedCounter totalOriginalBitmapSize = new StripedCounter();
+  final StripedCounter transformedBitmapCount = new StripedCounter();
+  final StripedCounter totalTransformedBitmapSize = new StripedCounter();
+  final StripedCounter deliveryFrames = new StripedCounter();
+  final StripedCounter droppedDeliveryFrames = new StripedCounter();
+  /** Indexed by {@link StatsSnapshot.Stage} and then {@link Picasso.LoadedFrom} ordinal. */
+  final LatencyHistogram[][] latencies;
+  private volatile ThreadCount threadCount = new ThreadCount(0, null);
 
   Stats(Cache cache) {
+    this(cache, null, null);
+  }
+
+  /**
+   * Snapshots report the sizes of {@code cache}, its second tier {@code encodedCache} and the
+   * budget of {@code governor}, each of which may be null but {@code cache}.
+   */
+  Stats(Cache cache, EncodedCache encodedCache, MemoryGovernor governor) {
     this.cache = cache;
-    this.statsThread = new HandlerThread(STATS_THREAD_NAME, THREAD_PRIORITY_BACKGROUND);
-    this.statsThread.start();
-    Utils.flushStackLocalLeaks(statsThread.getLooper());
-    this.handler = new StatsHandler(statsThread.getLooper(), this);
+    this.encodedCache = encodedCache;
+    this.governor = governor;
+    this.latencies = new LatencyHistogram[STAGES.length][SOURCES.length];
+    for (int stage = 0; stage < STAGES.length; stage++) {
+      for (int source = 0; source < SOURCES.length; source++) {
+        latencies[stage][source] = new LatencyHistogram();
+      }
+    }
   }
 
   void dispatchBitmapDecoded(Bitmap bitmap) {
-    processBitmap(bitmap, BITMAP_DECODE_FINISHED);
+    originalBitmapCount.increment();
+    totalOriginalBitmapSize.add(Utils.getBitmapBytes(bitmap));
   }
 
   void dispatchBitmapTransformed(Bitmap bitmap) {
-    processBitmap(bitmap, BITMAP_TRANSFORMED_FINISHED);
+    transformedBitmapCount.increment();
+    totalTransformedBitmapSize.add(Utils.getBitmapBytes(bitmap));
   }
 
   void dispatchDownloadFinished(long size) {
-    handler.sendMessage(handler.obtainMessage(DOWNLOAD_FINISHED, size));
+    downloadCount.increment();
+    totalDownloadSize.add(size);
   }
 
-  void dispatchCacheHit() {
-    handler.sendEmptyMessage(CACHE_HIT);
+  void dispatchThreadCountChanged(int threadCount, String reason) {
+    this.threadCount = new ThreadCount(threadCount, reason);
   }
 
-  void dispatchCacheMiss() {
-    handler.sendEmptyMessage(CACHE_MISS);
+  void dispatchCacheHit() {
+    cacheHits.increment();
   }
 
-  void shutdown() {
-    statsThread.quit();
+  void dispatchCacheMiss() {
+    cacheMisses.increment();
   }
 
-  void performCacheHit() {
-    cacheHits++;
+  void dispatchEncodedCacheHit() {
+    encodedCacheHits.increment();
   }
 
-  void performCacheMiss() {
-    cacheMisses++;
+  void dispatchEncodedCacheMiss() {
+    encodedCacheMisses.increment();
   }
 
-  void performDownloadFinished(Long size) {
-    downloadCount++;
-    totalDownloadSize += size;
-    averageDownloadSize = getAverage(downloadCount, totalDownloadSize);
+  /** Record that {@code stage} of a request loaded from {@code loadedFrom} took {@code nanos}. */
+  void dispatchLatency(StatsSnapshot.Stage stage, Picasso.LoadedFrom loadedFrom, long nanos) {
+    latencies[stage.ordinal()][loadedFrom.ordinal()].recordNanos(nanos);
   }
 
-  void performBitmapDecoded(long size) {
-    originalBitmapCount++;
-    totalOriginalBitmapSize += size;
-    averageOriginalBitmapSize = getAverage(originalBitmapCount, totalOriginalBitmapSize);
+  /**
+   * Record a frame that delivered results held over from an earlier frame, after the display
+   * skipped {@code droppedFrames} since the previous one.
+   */
+  void dispatchDeliveryFrame(long droppedFrames) {
+    deliveryFrames.increment();
+    droppedDeliveryFrames.add(droppedFrames);
   }
 
-  void performBitmapTransformed(long size) {
-    transformedBitmapCount++;
-    totalTransformedBitmapSize += size;
-    averageTransformedBitmapSize = getAverage(originalBitmapCount, totalTransformedBitmapSize);
+  void shutdown() {
+    // Recording happens on the calling threads, so there is nothing to stop.
   }
 
   StatsSnapshot createSnapshot() {
-    return new StatsSnapshot(cache.maxSize(), cache.size(), cacheHits, cacheMisses,
-        totalDownloadSize, totalOriginalBitmapSize, totalTransformedBitmapSize, averageDownloadSize,
-        averageOriginalBitmapSize, averageTransformedBitmapSize, downloadCount, originalBitmapCount,
-        transformedBitmapCount, System.currentTimeMillis());
-  }
-
-  private void processBitmap(Bitmap bitmap, int what) {
-    // Never send bitmaps to the handler as they could be recycled before we process them.
-    int bitmapSize = Utils.getBitmapBytes(bitmap);
-    handler.sendMessage(handler.obtainMessage(what, bitmapSize, 0));
-  }
-
-  private static long getAverage(int count, long totalSize) {
-    return totalSize / count;
-  }
-
-  private static class StatsHandler extends Handler {
-
-    private final Stats stats;
-
-    StatsHandler(Looper looper, Stats stats) {
-      super(looper);
-      this.stats = stats;
-    }
-
-    @Override public void handleMessage(final Message msg) {
-      switch (msg.what) {
-        case CACHE_HIT:
-          stats.performCacheHit();
-          break;
-        case CACHE_MISS:
-          stats.performCacheMiss();
-          break;
-        case BITMAP_DECODE_FINISHED:
-          stats.performBitmapDecoded(msg.arg1);
-          break;
-        case BITMAP_TRANSFORMED_FINISHED:
-          stats.performBitmapTransformed(msg.arg1);
-          break;
-        case DOWNLOAD_FINISHED:
-          stats.performDownloadFinished((Long) msg.obj);
-          break;
-        default:
-          Picasso.HANDLER.post(new Runnable() {
-            @Override public void run() {
-              throw new AssertionError("Unhandled stats message." + msg.what);
-            }
-          });
+    StatsSnapshot.Latency[][] latencies = new StatsSnapshot.Latency[STAGES.length][];
+    for (int stage = 0; stage < STAGES.length; stage++) {
+      latencies[stage] = new StatsSnapshot.Latency[SOURCES.length];
+      for (int source = 0; source < SOURCES.length; source++) {
+        latencies[stage][source] = this.latencies[stage][source].snapshot();
       }
     }
+    StatsSnapshot.Latency delivery =
+        StatsSnapshot.Latency.merge(latencies[StatsSnapshot.Stage.DELIVERY.ordinal()]);
+
+    long downloads = downloadCount.sum();
+    long downloadSize = totalDownloadSize.sum();
+    long originals = originalBitmapCount.sum();
+    long originalSize = totalOriginalBitmapSize.sum();
+    long transformed = transformedBitmapCount.sum();
+    long transformedSize = totalTransformedBitmapSize.sum();
+    ThreadCount threadCount = this.threadCount;
+    EncodedCache encodedCache = this.encodedCache;
+    MemoryGovernor governor = this.governor;
+    return new StatsSnapshot(cache.maxSize(), cache.size(), cacheHits.sum(), cacheMisses.sum(),
+        encodedCache != null ? encodedCache.maxSize() : 0,
+        encodedCache != null ? encodedCache.size() : 0, encodedCacheHits.sum(),
+        encodedCacheMisses.sum(),
+        downloadSize, originalSize, transformedSize, getAverage(downloads, downloadSize),
+        getAverage(originals, originalSize), getAverage(transformed, transformedSize),
+        (int) downloads, (int) originals, (int) transformed, threadCount.count,
+        threadCount.reason, (int) delivery.count, MICROSECONDS.toMillis(delivery.mean),
+        MICROSECONDS.toMillis(delivery.max), (int) deliveryFrames.sum(),
+        (int) droppedDeliveryFrames.sum(), governor != null ? governor.budget : 0,
+        governor != null ? governor.inFlightBytes() : 0,
+        governor != null ? governor.trimLevel() : 0,
+        governor != null ? governor.outOfMemoryCount() : 0, latencies, System.currentTimeMillis());
+  }
+
+  private static long getAverage(long count, long totalSize) {
+    return count == 0 ? 0 : totalSize / count;
+  }
+
+  /** Published as a unit so that a snapshot never pairs a count with another count's reason. */
+  private static final class ThreadCount {
+    final int count;
+    final String reason;
+
+    ThreadCount(int count, String reason) {
+      this.count = count;
+      this.reason = reason;
+    }
   }
-}
\ No newline at end of file
+}
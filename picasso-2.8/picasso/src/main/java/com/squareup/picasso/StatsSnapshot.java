@@ -18,15 +18,42 @@ package com.squareup.picasso;
 import android.util.Log;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Locale;
 
 import static com.squareup.picasso.Picasso.TAG;
 
 /** Represents all stats for a {@link Picasso} instance at a single point in time. */
 public class StatsSnapshot {
+  private static final Picasso.LoadedFrom[] SOURCES = Picasso.LoadedFrom.values();
+  private static final double[] DUMPED_PERCENTILES = {50, 90, 99, 99.9};
+
+  /** The phases of a request whose latency is tracked. */
+  public enum Stage {
+    /** From submission to the executor until a thread started the request. */
+    QUEUE_WAIT,
+    /**
+     * Until the request handler produced a bitmap, or opened its source plus the time spent
+     * reading it, which for a network response is the body as it arrives.
+     */
+    DOWNLOAD,
+    /** Turning the source into a bitmap, less the time spent waiting on reads of it. */
+    DECODE,
+    /** Matrix and custom transformations. */
+    TRANSFORM,
+    /** From the result being ready until it was delivered on the main thread. */
+    DELIVERY
+  }
+
   public final int maxSize;
   public final int size;
   public final long cacheHits;
   public final long cacheMisses;
+  /** Bytes the encoded images of the memory cache's second tier may hold, or 0 without one. */
+  public final int encodedCacheMaxSize;
+  public final int encodedCacheSize;
+  /** Bitmap cache misses decoded from the second tier instead of being loaded again. */
+  public final long encodedCacheHits;
+  public final long encodedCacheMisses;
   public final long totalDownloadSize;
   public final long totalOriginalBitmapSize;
   public final long totalTransformedBitmapSize;
@@ -36,17 +63,61 @@ public class StatsSnapshot {
   public final int downloadCount;
   public final int originalBitmapCount;
   public final int transformedBitmapCount;
+  /** Threads allowed to run concurrently, or 0 if Picasso does not own the executor. */
+  public final int threadCount;
+  /** Why {@link #threadCount} last changed, or {@code null}. */
+  public final String threadCountReason;
+  /** Results handed to their targets on the main thread. */
+  public final int deliveryCount;
+  /** Milliseconds between a result being ready and it being delivered on the main thread. */
+  public final long averageDeliveryDelay;
+  public final long maxDeliveryDelay;
+  /** Frames that delivered results which did not fit in the delivery budget of an earlier one. */
+  public final int deliveryFrameCount;
+  /** Frames the display skipped while results were waiting to be delivered. */
+  public final int droppedDeliveryFrameCount;
+  /** Bytes the memory cache and bitmaps being decoded or transformed share. */
+  public final long memoryBudget;
+  /** Estimated bytes of bitmaps being decoded or transformed that are not in the cache yet. */
+  public final long inFlightBitmapSize;
+  /** The last {@code ComponentCallbacks2.TRIM_MEMORY_*} level reported, or 0. */
+  public final int trimMemoryLevel;
+  /** Hunters that ran out of memory, whether or not a retry then succeeded. */
+  public final int outOfMemoryCount;
 
   public final long timeStamp;
 
+  /** Indexed by {@link Stage} and then {@link Picasso.LoadedFrom} ordinal, or {@code null}. */
+  private final Latency[][] latencies;
+
   public StatsSnapshot(int maxSize, int size, long cacheHits, long cacheMisses,
       long totalDownloadSize, long totalOriginalBitmapSize, long totalTransformedBitmapSize,
       long averageDownloadSize, long averageOriginalBitmapSize, long averageTransformedBitmapSize,
       int downloadCount, int originalBitmapCount, int transformedBitmapCount, long timeStamp) {
+    this(maxSize, size, cacheHits, cacheMisses, 0, 0, 0, 0, totalDownloadSize,
+        totalOriginalBitmapSize, totalTransformedBitmapSize, averageDownloadSize,
+        averageOriginalBitmapSize, averageTransformedBitmapSize, downloadCount,
+        originalBitmapCount, transformedBitmapCount, 0, null, 0, 0, 0, 0, 0, 0, 0, 0, 0, null,
+        timeStamp);
+  }
+
+  StatsSnapshot(int maxSize, int size, long cacheHits, long cacheMisses,
+      int encodedCacheMaxSize, int encodedCacheSize, long encodedCacheHits,
+      long encodedCacheMisses, long totalDownloadSize, long totalOriginalBitmapSize,
+      long totalTransformedBitmapSize, long averageDownloadSize, long averageOriginalBitmapSize,
+      long averageTransformedBitmapSize, int downloadCount, int originalBitmapCount,
+      int transformedBitmapCount, int threadCount, String threadCountReason, int deliveryCount,
+      long averageDeliveryDelay, long maxDeliveryDelay, int deliveryFrameCount,
+      int droppedDeliveryFrameCount, long memoryBudget, long inFlightBitmapSize,
+      int trimMemoryLevel, int outOfMemoryCount, Latency[][] latencies, long timeStamp) {
     this.maxSize = maxSize;
     this.size = size;
     this.cacheHits = cacheHits;
     this.cacheMisses = cacheMisses;
+    this.encodedCacheMaxSize = encodedCacheMaxSize;
+    this.encodedCacheSize = encodedCacheSize;
+    this.encodedCacheHits = encodedCacheHits;
+    this.encodedCacheMisses = encodedCacheMisses;
     this.totalDownloadSize = totalDownloadSize;
     this.totalOriginalBitmapSize = totalOriginalBitmapSize;
     this.totalTransformedBitmapSize = totalTransformedBitmapSize;
@@ -56,9 +127,37 @@ public class StatsSnapshot {
     this.downloadCount = downloadCount;
     this.originalBitmapCount = originalBitmapCount;
     this.transformedBitmapCount = transformedBitmapCount;
+    this.threadCount = threadCount;
+    this.threadCountReason = threadCountReason;
+    this.deliveryCount = deliveryCount;
+    this.averageDeliveryDelay = averageDeliveryDelay;
+    this.maxDeliveryDelay = maxDeliveryDelay;
+    this.deliveryFrameCount = deliveryFrameCount;
+    this.droppedDeliveryFrameCount = droppedDeliveryFrameCount;
+    this.memoryBudget = memoryBudget;
+    this.inFlightBitmapSize = inFlightBitmapSize;
+    this.trimMemoryLevel = trimMemoryLevel;
+    this.outOfMemoryCount = outOfMemoryCount;
+    this.latencies = latencies;
     this.timeStamp = timeStamp;
   }
 
+  /** Latency of {@code stage} for requests that were loaded from {@code loadedFrom}. */
+  public Latency latency(Stage stage, Picasso.LoadedFrom loadedFrom) {
+    if (latencies == null) {
+      return Latency.EMPTY;
+    }
+    return latencies[stage.ordinal()][loadedFrom.ordinal()];
+  }
+
+  /** Latency of {@code stage} across all sources. */
+  public Latency latency(Stage stage) {
+    if (latencies == null) {
+      return Latency.EMPTY;
+    }
+    return Latency.merge(latencies[stage.ordinal()]);
+  }
+
   /** Prints out this {@link StatsSnapshot} into log. */
   @SuppressWarnings("UnusedDeclaration") public void dump() {
     StringWriter logWriter = new StringWriter();
@@ -80,6 +179,26 @@ public class StatsSnapshot {
     writer.println(cacheHits);
     writer.print("  Cache Misses: ");
     writer.println(cacheMisses);
+    if (encodedCacheMaxSize > 0) {
+      writer.println("Encoded Cache Stats");
+      writer.print("  Max Cache Size: ");
+      writer.println(encodedCacheMaxSize);
+      writer.print("  Cache Size: ");
+      writer.println(encodedCacheSize);
+      writer.print("  Cache Hits: ");
+      writer.println(encodedCacheHits);
+      writer.print("  Cache Misses: ");
+      writer.println(encodedCacheMisses);
+    }
+    writer.println("Memory Budget Stats");
+    writer.print("  Memory Budget: ");
+    writer.println(memoryBudget);
+    writer.print("  In-flight Bitmap Size: ");
+    writer.println(inFlightBitmapSize);
+    writer.print("  Trim Memory Level: ");
+    writer.println(trimMemoryLevel);
+    writer.print("  Out of Memory Count: ");
+    writer.println(outOfMemoryCount);
     writer.println("Network Stats");
     writer.print("  Download Count: ");
     writer.println(downloadCount);
@@ -87,6 +206,21 @@ public class StatsSnapshot {
     writer.println(totalDownloadSize);
     writer.print("  Average Download Size: ");
     writer.println(averageDownloadSize);
+    writer.print("  Thread Count: ");
+    writer.println(threadCount);
+    writer.print("  Thread Count Reason: ");
+    writer.println(threadCountReason);
+    writer.println("Delivery Stats");
+    writer.print("  Delivery Count: ");
+    writer.println(deliveryCount);
+    writer.print("  Average Delivery Delay: ");
+    writer.println(averageDeliveryDelay);
+    writer.print("  Max Delivery Delay: ");
+    writer.println(maxDeliveryDelay);
+    writer.print("  Delivery Frames: ");
+    writer.println(deliveryFrameCount);
+    writer.print("  Dropped Delivery Frames: ");
+    writer.println(droppedDeliveryFrameCount);
     writer.println("Bitmap Stats");
     writer.print("  Total Bitmaps Decoded: ");
     writer.println(originalBitmapCount);
@@ -100,10 +234,104 @@ public class StatsSnapshot {
     writer.println(averageOriginalBitmapSize);
     writer.print("  Average Transformed Bitmap Size: ");
     writer.println(averageTransformedBitmapSize);
+    writer.println("Latency Stats (us)");
+    for (Stage stage : Stage.values()) {
+      for (Picasso.LoadedFrom source : SOURCES) {
+        Latency latency = latency(stage, source);
+        if (latency.count == 0) {
+          continue;
+        }
+        writer.print("  ");
+        writer.print(name(stage));
+        writer.print(' ');
+        writer.print(name(source));
+        writer.print(": count=");
+        writer.print(latency.count);
+        writer.print(" mean=");
+        writer.print(latency.mean);
+        writer.print(" p50=");
+        writer.print(latency.percentile(50));
+        writer.print(" p99=");
+        writer.print(latency.percentile(99));
+        writer.print(" max=");
+        writer.println(latency.max);
+      }
+    }
     writer.println("===============END PICASSO STATS ===============");
     writer.flush();
   }
 
+  /**
+   * Prints out this {@link StatsSnapshot} in the Prometheus text exposition format, so that it can
+   * be collected by a metrics scraper. Latencies are reported in microseconds as summaries labeled
+   * with their stage and source.
+   */
+  public void dumpMetrics(PrintWriter writer) {
+    printMetric(writer, "picasso_cache_max_size_bytes", "gauge", maxSize);
+    printMetric(writer, "picasso_cache_size_bytes", "gauge", size);
+    printMetric(writer, "picasso_cache_hits_total", "counter", cacheHits);
+    printMetric(writer, "picasso_cache_misses_total", "counter", cacheMisses);
+    printMetric(writer, "picasso_encoded_cache_max_size_bytes", "gauge", encodedCacheMaxSize);
+    printMetric(writer, "picasso_encoded_cache_size_bytes", "gauge", encodedCacheSize);
+    printMetric(writer, "picasso_encoded_cache_hits_total", "counter", encodedCacheHits);
+    printMetric(writer, "picasso_encoded_cache_misses_total", "counter", encodedCacheMisses);
+    printMetric(writer, "picasso_memory_budget_bytes", "gauge", memoryBudget);
+    printMetric(writer, "picasso_in_flight_bitmap_bytes", "gauge", inFlightBitmapSize);
+    printMetric(writer, "picasso_trim_memory_level", "gauge", trimMemoryLevel);
+    printMetric(writer, "picasso_out_of_memory_total", "counter", outOfMemoryCount);
+    printMetric(writer, "picasso_downloads_total", "counter", downloadCount);
+    printMetric(writer, "picasso_download_bytes_total", "counter", totalDownloadSize);
+    printMetric(writer, "picasso_decoded_bitmaps_total", "counter", originalBitmapCount);
+    printMetric(writer, "picasso_decoded_bitmap_bytes_total", "counter",
+        totalOriginalBitmapSize);
+    printMetric(writer, "picasso_transformed_bitmaps_total", "counter", transformedBitmapCount);
+    printMetric(writer, "picasso_transformed_bitmap_bytes_total", "counter",
+        totalTransformedBitmapSize);
+    printMetric(writer, "picasso_threads", "gauge", threadCount);
+    printMetric(writer, "picasso_delivery_frames_total", "counter", deliveryFrameCount);
+    printMetric(writer, "picasso_delivery_dropped_frames_total", "counter",
+        droppedDeliveryFrameCount);
+
+    writer.println("# TYPE picasso_latency_microseconds summary");
+    for (Stage stage : Stage.values()) {
+      for (Picasso.LoadedFrom source : SOURCES) {
+        Latency latency = latency(stage, source);
+        String labels = "stage=\"" + name(stage) + "\",source=\"" + name(source) + '"';
+        for (double percentile : DUMPED_PERCENTILES) {
+          writer.print("picasso_latency_microseconds{");
+          writer.print(labels);
+          writer.print(",quantile=\"");
+          writer.print(percentile / 100);
+          writer.print("\"} ");
+          writer.println(latency.percentile(percentile));
+        }
+        writer.print("picasso_latency_microseconds_sum{");
+        writer.print(labels);
+        writer.print("} ");
+        writer.println(latency.sum);
+        writer.print("picasso_latency_microseconds_count{");
+        writer.print(labels);
+        writer.print("} ");
+        writer.println(latency.count);
+      }
+    }
+    writer.flush();
+  }
+
+  private static void printMetric(PrintWriter writer, String name, String type, long value) {
+    writer.print("# TYPE ");
+    writer.print(name);
+    writer.print(' ');
+    writer.println(type);
+    writer.print(name);
+    writer.print(' ');
+    writer.println(value);
+  }
+
+  private static String name(Enum<?> value) {
+    return value.name().toLowerCase(Locale.US);
+  }
+
   @Override public String toString() {
     return "StatsSnapshot{"
         + "maxSize="
@@ -114,6 +342,10 @@ public class StatsSnapshot {
         + cacheHits
         + ", cacheMisses="
         + cacheMisses
+        + ", encodedCacheHits="
+        + encodedCacheHits
+        + ", encodedCacheMisses="
+        + encodedCacheMisses
         + ", downloadCount="
         + downloadCount
         + ", totalDownloadSize="
@@ -132,8 +364,97 @@ public class StatsSnapshot {
         + originalBitmapCount
         + ", transformedBitmapCount="
         + transformedBitmapCount
+        + ", threadCount="
+        + threadCount
+        + ", threadCountReason="
+        + threadCountReason
+        + ", deliveryCount="
+        + deliveryCount
+        + ", averageDeliveryDelay="
+        + averageDeliveryDelay
+        + ", maxDeliveryDelay="
+        + maxDeliveryDelay
+        + ", deliveryFrameCount="
+        + deliveryFrameCount
+        + ", droppedDeliveryFrameCount="
+        + droppedDeliveryFrameCount
         + ", timeStamp="
         + timeStamp
         + '}';
   }
+
+  /** An immutable copy of the latency distribution of one {@link Stage}, in microseconds. */
+  public static final class Latency {
+    static final Latency EMPTY = new Latency(new long[0], 0, 0);
+
+    public final long count;
+    public final long mean;
+    public final long max;
+    final long sum;
+    private final long[] counts;
+
+    Latency(long[] counts, long total, long max) {
+      long count = 0;
+      //noinspection ForLoopReplaceableByForEach
+      for (int i = 0; i < counts.length; i++) {
+        count += counts[i];
+      }
+      this.counts = counts;
+      this.sum = total;
+      this.count = count;
+      this.mean = count == 0 ? 0 : total / count;
+      this.max = max;
+    }
+
+    /**
+     * The value below which {@code percentile} percent of the recorded values fall, accurate to
+     * within the resolution of the underlying histogram. Returns 0 if nothing was recorded.
+     */
+    public long percentile(double percentile) {
+      if (percentile < 0 || percentile > 100) {
+        throw new IllegalArgumentException("Percentile must be between 0 and 100.");
+      }
+      if (count == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return Math.min(LatencyHistogram.highestValue(i), max);
+        }
+      }
+      return max;
+    }
+
+    static Latency merge(Latency[] latencies) {
+      long[] counts = new long[LatencyHistogram.BUCKET_COUNT];
+      long total = 0;
+      long max = 0;
+      for (Latency latency : latencies) {
+        for (int i = 0; i < latency.counts.length; i++) {
+          counts[i] += latency.counts[i];
+        }
+        total += latency.sum;
+        max = Math.max(max, latency.max);
+      }
+      return new Latency(counts, total, max);
+    }
+
+    @Override public String toString() {
+      return "Latency{"
+          + "count="
+          + count
+          + ", mean="
+          + mean
+          + ", p50="
+          + percentile(50)
+          + ", p99="
+          + percentile(99)
+          + ", max="
+          + max
+          + '}';
+    }
+  }
 }
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that spreads concurrent updates over several cache-line padded cells so that threads
+ * recording at the same time rarely contend on the same memory. Reads sum all cells and are
+ * therefore more expensive than updates; they are only exact in the absence of concurrent
+ * updates.
+ */
+final class StripedCounter {
+  /** Longs per cell, so that neighbouring cells never share a 64 byte cache line. */
+  private static final int PADDING = 8;
+  static final int STRIPES = stripeCount(Runtime.getRuntime().availableProcessors());
+
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+  void increment() {
+    add(1);
+  }
+
+  void add(long delta) {
+    cells.getAndAdd(cellIndex(Thread.currentThread()), delta);
+  }
+
+  long sum() {
+    long sum = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      sum += cells.get(i * PADDING);
+    }
+    return sum;
+  }
+
+  static int cellIndex(Thread thread) {
+    // Thread ids are sequential, so mix them before picking a stripe.
+    long id = thread.getId() * 0x9E3779B97F4A7C15L;
+    return (int) ((id >>> 32) & (STRIPES - 1)) * PADDING;
+  }
+
+  /** The smallest power of two which is at least twice {@code processors}, capped at 64. */
+  static int stripeCount(int processors) {
+    int stripes = 1;
+    while (stripes < processors * 2 && stripes < 64) {
+      stripes <<= 1;
+    }
+    return stripes;
+  }
+}
@@ -21,7 +21,7 @@ import android.graphics.drawable.Drawable;
 final class TargetAction extends Action<Target> {
 
   TargetAction(Picasso picasso, Target target, Request data, int memoryPolicy, int networkPolicy,
-      Drawable errorDrawable, String key, Object tag, int errorResId) {
+      Drawable errorDrawable, RequestKey key, Object tag, int errorResId) {
     super(picasso, target, data, memoryPolicy, networkPolicy, errorResId, errorDrawable, key, tag,
         false);
   }
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.squareup.picasso.Utils.checkMain;
+
+/**
+ * Shows an image too large to decode whole, for example zoomable high-resolution artwork, by
+ * loading it as a grid of {@linkplain RequestCreator#region(int, int, int, int) regions}. Only
+ * the tiles that the viewport shows are decoded, at the sample size that its zoom needs, so
+ * memory use follows the size of the screen rather than that of the image.
+ * <p>
+ * Report every change of the viewport with {@link #setViewport(Rect, float)}. Tiles that come
+ * into view are loaded, each cached on its own, and unfinished tiles that leave it are
+ * cancelled. Draw the tiles of {@link #getTiles()} that have a bitmap, scaled up by their sample
+ * size, whenever the {@link Listener} reports one more. Tiles of the previous zoom level are
+ * dropped when it changes, so draw a downsampled image of the whole below them.
+ * <p>
+ * All methods must be called from the main thread.
+ */
+public final class TiledImage {
+  /** Notified as tiles finish loading. */
+  public interface Listener {
+    void onTileLoaded(@NonNull Tile tile);
+  }
+
+  /** One region of the image. */
+  public static final class Tile {
+    final int column;
+    final int row;
+    final Rect region;
+    final int sampleSize;
+    final Target target;
+    Bitmap bitmap;
+
+    Tile(final TiledImage image, int column, int row, Rect region, int sampleSize) {
+      this.column = column;
+      this.row = row;
+      this.region = region;
+      this.sampleSize = sampleSize;
+      this.target = new Target() {
+        @Override public void onBitmapLoaded(Bitmap bitmap, Picasso.LoadedFrom from) {
+          Tile.this.bitmap = bitmap;
+          image.onTileLoaded(Tile.this);
+        }
+
+        @Override public void onBitmapFailed(Exception e, Drawable errorDrawable) {
+        }
+
+        @Override public void onPrepareLoad(Drawable placeHolderDrawable) {
+        }
+      };
+    }
+
+    /** The bounds of this tile in pixels of the image. */
+    @NonNull public Rect getRegion() {
+      return new Rect(region);
+    }
+
+    /** How many pixels of the image each pixel of {@link #getBitmap()} stands for, per side. */
+    public int getSampleSize() {
+      return sampleSize;
+    }
+
+    /** The decoded tile, or {@code null} while it is loading or if it failed to load. */
+    @Nullable public Bitmap getBitmap() {
+      return bitmap;
+    }
+  }
+
+  static final int DEFAULT_TILE_SIZE = 512;
+
+  private final Picasso picasso;
+  private final Uri uri;
+  private final int imageWidth;
+  private final int imageHeight;
+  private final int tileSize;
+  private final Listener listener;
+  /** Tiles of the current viewport by column and row. */
+  private final Map<Long, Tile> tiles = new LinkedHashMap<>();
+
+  TiledImage(Picasso picasso, Uri uri, int imageWidth, int imageHeight, int tileSize,
+      Listener listener) {
+    this.picasso = picasso;
+    this.uri = uri;
+    this.imageWidth = imageWidth;
+    this.imageHeight = imageHeight;
+    this.tileSize = tileSize;
+    this.listener = listener;
+  }
+
+  /**
+   * Show the part of the image within {@code visible}, in pixels of the image, drawn at
+   * {@code scale} screen pixels per image pixel.
+   */
+  public void setViewport(@NonNull Rect visible, float scale) {
+    checkMain();
+    if (visible == null) {
+      throw new IllegalArgumentException("Viewport must not be null.");
+    }
+    if (scale <= 0) {
+      throw new IllegalArgumentException("Scale must be positive.");
+    }
+    int sampleSize = sampleSize(scale);
+    Rect shown = new Rect(visible);
+    if (!shown.intersect(0, 0, imageWidth, imageHeight)) {
+      cancel();
+      return;
+    }
+    // Each tile covers tileSize screen pixels at this zoom.
+    int extent = tileSize * sampleSize;
+    int firstColumn = shown.left / extent;
+    int lastColumn = (shown.right - 1) / extent;
+    int firstRow = shown.top / extent;
+    int lastRow = (shown.bottom - 1) / extent;
+
+    for (Iterator<Tile> it = tiles.values().iterator(); it.hasNext();) {
+      Tile tile = it.next();
+      if (tile.sampleSize != sampleSize
+          || tile.column < firstColumn || tile.column > lastColumn
+          || tile.row < firstRow || tile.row > lastRow) {
+        picasso.cancelRequest(tile.target);
+        it.remove();
+      }
+    }
+    for (int row = firstRow; row <= lastRow; row++) {
+      for (int column = firstColumn; column <= lastColumn; column++) {
+        long key = (long) row << 32 | column;
+        if (tiles.containsKey(key)) {
+          continue;
+        }
+        Rect region = new Rect(column * extent, row * extent,
+            Math.min(imageWidth, (column + 1) * extent), Math.min(imageHeight, (row + 1) * extent));
+        Tile tile = new Tile(this, column, row, region, sampleSize);
+        tiles.put(key, tile);
+        picasso.load(uri)
+            .region(region.left, region.top, region.right, region.bottom)
+            .resize(Math.max(1, region.width() / sampleSize),
+                Math.max(1, region.height() / sampleSize))
+            .into(tile.target);
+      }
+    }
+  }
+
+  /** The tiles of the current viewport, loaded or not. */
+  @NonNull public List<Tile> getTiles() {
+    return new ArrayList<>(tiles.values());
+  }
+
+  /** Cancel every unfinished tile and forget them all, for example when the view goes away. */
+  public void cancel() {
+    checkMain();
+    for (Tile tile : tiles.values()) {
+      picasso.cancelRequest(tile.target);
+    }
+    tiles.clear();
+  }
+
+  void onTileLoaded(Tile tile) {
+    if (listener != null && tiles.get((long) tile.row << 32 | tile.column) == tile) {
+      listener.onTileLoaded(tile);
+    }
+  }
+
+  /** The largest power of two that decodes at least one pixel per screen pixel at scale. */
+  static int sampleSize(float scale) {
+    int sampleSize = 1;
+    while (sampleSize * 2 * scale <= 1) {
+      sampleSize *= 2;
+    }
+    return sampleSize;
+  }
+
+  /** Fluent API for creating {@link TiledImage} instances. */
+  public static class Builder {
+    private final Picasso picasso;
+    private final Uri uri;
+    private final int imageWidth;
+    private final int imageHeight;
+    private int tileSize = DEFAULT_TILE_SIZE;
+    private Listener listener;
+
+    /** Start building tiles for the {@code imageWidth} by {@code imageHeight} image at uri. */
+    public Builder(@NonNull Picasso picasso, @NonNull Uri uri, int imageWidth, int imageHeight) {
+      if (picasso == null) {
+        throw new IllegalArgumentException("Picasso must not be null.");
+      }
+      if (uri == null) {
+        throw new IllegalArgumentException("Uri must not be null.");
+      }
+      if (imageWidth <= 0 || imageHeight <= 0) {
+        throw new IllegalArgumentException("Image size must be positive.");
+      }
+      this.picasso = picasso;
+      this.uri = uri;
+      this.imageWidth = imageWidth;
+      this.imageHeight = imageHeight;
+    }
+
+    /** The size of each decoded tile in pixels, per side. */
+    public Builder tileSize(int tileSize) {
+      if (tileSize <= 0) {
+        throw new IllegalArgumentException("Tile size must be positive.");
+      }
+      this.tileSize = tileSize;
+      return this;
+    }
+
+    /** Be notified as tiles finish loading. */
+    public Builder listener(@NonNull Listener listener) {
+      if (listener == null) {
+        throw new IllegalArgumentException("Listener must not be null.");
+      }
+      this.listener = listener;
+      return this;
+    }
+
+    /** Create the {@link TiledImage} instance. */
+    public TiledImage build() {
+      return new TiledImage(picasso, uri, imageWidth, imageHeight, tileSize, listener);
+    }
+  }
+}
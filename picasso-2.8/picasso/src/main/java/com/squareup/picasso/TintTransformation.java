@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.graphics.ColorMatrix;
+import androidx.annotation.NonNull;
+import java.util.Locale;
+
+/**
+ * Blends a color over every pixel, keeping the pixel's alpha. The color's own alpha is the
+ * strength of the tint.
+ */
+final class TintTransformation extends PixelTransformation implements FusedTransformation {
+  private final int color;
+
+  TintTransformation(int color) {
+    this.color = color;
+  }
+
+  @Override public boolean fuse(@NonNull DrawPass pass) {
+    float strength = alpha(color) / 255f;
+    float keep = 1 - strength;
+    pass.concatColorMatrix(new ColorMatrix(new float[] {
+        keep, 0, 0, 0, red(color) * strength,
+        0, keep, 0, 0, green(color) * strength,
+        0, 0, keep, 0, blue(color) * strength,
+        0, 0, 0, 1, 0,
+    }));
+    return true;
+  }
+
+  @Override void filter(int[] pixels, int width, int top, int rows, int height) {
+    int strength = alpha(color);
+    int keep = 255 - strength;
+    int red = red(color) * strength;
+    int green = green(color) * strength;
+    int blue = blue(color) * strength;
+    for (int i = 0, n = width * rows; i < n; i++) {
+      int pixel = pixels[i];
+      pixels[i] = argb(alpha(pixel),
+          (red(pixel) * keep + red + 127) / 255,
+          (green(pixel) * keep + green + 127) / 255,
+          (blue(pixel) * keep + blue + 127) / 255);
+    }
+  }
+
+  @Override public String key() {
+    return String.format(Locale.US, "tint(#%08X)", color);
+  }
+}
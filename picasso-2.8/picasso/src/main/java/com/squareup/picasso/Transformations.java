@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Px;
+
+/**
+ * Built-in {@link Transformation}s. Those that change each pixel on its own, or only the size or
+ * shape of the image, are {@link FusedTransformation}s and are drawn together with the resize,
+ * crop and rotation of their request. Otherwise they filter reusable row buffers, splitting
+ * large images across cores.
+ * <pre><code>
+ * picasso.load(url)
+ *     .resize(200, 200)
+ *     .centerCrop()
+ *     .transform(Transformations.grayscale())
+ *     .transform(Transformations.roundedCorners(16))
+ *     .into(imageView);
+ * </code></pre>
+ */
+public final class Transformations {
+  private static final Transformation GRAYSCALE = new GrayscaleTransformation();
+
+  /** Remove all color. */
+  @NonNull public static Transformation grayscale() {
+    return GRAYSCALE;
+  }
+
+  /**
+   * Blend {@code color} over the image, keeping its transparency. The alpha of {@code color} is
+   * the strength of the tint.
+   */
+  @NonNull public static Transformation tint(int color) {
+    return new TintTransformation(color);
+  }
+
+  /**
+   * Blur the image, approximating a Gaussian blur whose standard deviation is about
+   * {@code radius} pixels. This can not be fused, so prefer blurring a small image.
+   */
+  @NonNull public static Transformation blur(int radius) {
+    if (radius < 1) {
+      throw new IllegalArgumentException("Radius must be positive.");
+    }
+    return new BlurTransformation(radius);
+  }
+
+  /** Round the corners of the image to transparent, which makes it {@code ARGB_8888}. */
+  @NonNull public static Transformation roundedCorners(@Px float radius) {
+    if (radius <= 0) {
+      throw new IllegalArgumentException("Radius must be positive.");
+    }
+    return new RoundedCornersTransformation(radius);
+  }
+
+  /**
+   * Shrink the image so that neither side exceeds {@code maxSize}, averaging the pixels each
+   * output pixel covers. Smaller images are left alone. Useful ahead of extracting a palette.
+   */
+  @NonNull public static Transformation downscale(@Px int maxSize) {
+    if (maxSize < 1) {
+      throw new IllegalArgumentException("Max size must be positive.");
+    }
+    return new DownscaleTransformation(maxSize);
+  }
+
+  private Transformations() {
+    throw new AssertionError("No instances.");
+  }
+}
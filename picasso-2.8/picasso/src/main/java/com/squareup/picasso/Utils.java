@@ -22,6 +22,7 @@ import android.content.Context;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
@@ -29,6 +30,7 @@ import android.os.Process;
 import android.os.StatFs;
 import android.provider.Settings;
 import android.util.Log;
+import android.view.View;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -57,9 +59,6 @@ final class Utils {
   static final int THREAD_LEAK_CLEANING_MS = 1000;
   static final char KEY_SEPARATOR = '\n';
 
-  /** Thread confined to main thread for key creation. */
-  static final StringBuilder MAIN_THREAD_KEY_BUILDER = new StringBuilder();
-
   /** Logging */
   static final String OWNER_MAIN = "Main";
   static final String OWNER_DISPATCHER = "Dispatcher";
@@ -109,6 +108,10 @@ final class Utils {
     return result;
   }
 
+  static boolean isAttachedToWindow(View view) {
+    return SDK_INT >= KITKAT ? view.isAttachedToWindow() : view.getWindowToken() != null;
+  }
+
   static <T> T checkNotNull(T value, String message) {
     if (value == null) {
       throw new NullPointerException(message);
@@ -160,10 +163,8 @@ final class Utils {
     Log.d(TAG, format("%1$-11s %2$-12s %3$s %4$s", owner, verb, logId, extras));
   }
 
-  static String createKey(Request data) {
-    String result = createKey(data, MAIN_THREAD_KEY_BUILDER);
-    MAIN_THREAD_KEY_BUILDER.setLength(0);
-    return result;
+  static RequestKey createKey(Request data) {
+    return RequestKey.of(data);
   }
 
   static String createKey(Request data, StringBuilder builder) {
@@ -180,6 +181,11 @@ final class Utils {
     }
     builder.append(KEY_SEPARATOR);
 
+    if (data.region != null) {
+      Rect region = data.region;
+      builder.append("region:").append(region.left).append(',').append(region.top).append(',')
+          .append(region.right).append(',').append(region.bottom).append(KEY_SEPARATOR);
+    }
     if (data.rotationDegrees != 0) {
       builder.append("rotation:").append(data.rotationDegrees);
       if (data.hasRotationPivot) {
@@ -204,10 +210,26 @@ final class Utils {
         builder.append(KEY_SEPARATOR);
       }
     }
+    if (BitmapConfigPolicy.isHardware(data.config)) {
+      builder.append("hardware").append(KEY_SEPARATOR);
+    }
 
     return builder.toString();
   }
 
+  /** Look up {@code key}, building its string form only for caches other than {@link LruCache}. */
+  static Bitmap getFromCache(Cache cache, RequestKey key) {
+    return cache instanceof LruCache ? ((LruCache) cache).get(key) : cache.get(key.toString());
+  }
+
+  static void putInCache(Cache cache, RequestKey key, Bitmap bitmap) {
+    if (cache instanceof LruCache) {
+      ((LruCache) cache).set(key, bitmap);
+    } else {
+      cache.set(key.toString(), bitmap);
+    }
+  }
+
   static File createDefaultCacheDir(Context context) {
     File cache = new File(context.getApplicationContext().getCacheDir(), PICASSO_CACHE);
     if (!cache.exists()) {
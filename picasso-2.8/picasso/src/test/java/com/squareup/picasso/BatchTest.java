@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.widget.ImageView;
+import java.io.IOException;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.squareup.picasso.Picasso.LoadedFrom.NETWORK;
+import static com.squareup.picasso.Picasso.Priority.HIGH;
+import static com.squareup.picasso.Picasso.Priority.LOW;
+import static com.squareup.picasso.TestUtils.TRANSFORM_REQUEST_ANSWER;
+import static com.squareup.picasso.TestUtils.URI_1;
+import static com.squareup.picasso.TestUtils.URI_2;
+import static com.squareup.picasso.TestUtils.makeBitmap;
+import static com.squareup.picasso.TestUtils.mockImageViewTarget;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class BatchTest {
+  @Mock Picasso picasso;
+  @Mock Batch.Listener listener;
+
+  @Before public void setUp() {
+    initMocks(this);
+    when(picasso.transformRequest(any(Request.class))).thenAnswer(TRANSFORM_REQUEST_ANSWER);
+  }
+
+  @Test public void submitsAllActionsInOneMessage() {
+    ImageView target = mockImageViewTarget();
+    new Batch.Builder(picasso)
+        .add(new RequestCreator(picasso, URI_1, 0), target)
+        .add(new RequestCreator(picasso, URI_2, 0))
+        .add(new RequestCreator(picasso, URI_2, 0).priority(LOW).tag("own"))
+        .tag("page")
+        .priority(HIGH)
+        .submit();
+
+    List<Action> actions = submitted();
+    assertThat(actions).hasSize(3);
+    verify(picasso).enqueue(actions.get(0));
+    verify(picasso, never()).enqueue(actions.get(1));
+    verify(picasso, never()).submit(any(Action.class));
+    assertThat(actions.get(0)).isInstanceOf(ImageViewAction.class);
+    assertThat(actions.get(0).getTag()).isEqualTo("page");
+    assertThat(actions.get(0).getRequest().priority).isEqualTo(HIGH);
+    assertThat(actions.get(1)).isInstanceOf(FetchAction.class);
+    assertThat(actions.get(1).getRequest().priority).isEqualTo(HIGH);
+    assertThat(actions.get(2).getTag()).isEqualTo("own");
+    assertThat(actions.get(2).getRequest().priority).isEqualTo(LOW);
+  }
+
+  @Test public void listenerIsNotifiedOnceAllFinished() {
+    Batch batch = new Batch.Builder(picasso)
+        .add(new RequestCreator(picasso, URI_1, 0), mockImageViewTarget())
+        .add(new RequestCreator(picasso, URI_2, 0))
+        .listener(listener)
+        .submit();
+    List<Action> actions = submitted();
+
+    IOException error = new IOException();
+    actions.get(0).error(error);
+    verify(listener, never()).onBatchComplete(any(Batch.class));
+    assertThat(batch.isDone()).isFalse();
+
+    actions.get(1).complete(makeBitmap(), NETWORK);
+    verify(listener).onBatchComplete(batch);
+    assertThat(batch.isDone()).isTrue();
+    List<Batch.Item> items = batch.getItems();
+    assertThat(items.get(0).isSuccessful()).isFalse();
+    assertThat(items.get(0).getError()).isSameAs(error);
+    assertThat(items.get(1).isSuccessful()).isTrue();
+  }
+
+  @Test public void cachedItemsCompleteWithoutSubmitting() {
+    when(picasso.quickMemoryCacheCheck(any(RequestKey.class))).thenReturn(makeBitmap());
+    Batch batch = new Batch.Builder(picasso)
+        .add(new RequestCreator(picasso, URI_1, 0))
+        .add(new RequestCreator(picasso, URI_2, 0))
+        .listener(listener)
+        .submit();
+    verify(listener).onBatchComplete(batch);
+    verify(picasso, never()).submit(any(List.class));
+  }
+
+  @Test public void emptyBatchCompletes() {
+    Batch batch = new Batch.Builder(picasso).listener(listener).submit();
+    assertThat(batch.isDone()).isTrue();
+    verify(listener).onBatchComplete(batch);
+    verify(picasso, never()).submit(any(List.class));
+  }
+
+  @Test public void cancelledItemFinishes() {
+    Batch batch = new Batch.Builder(picasso)
+        .add(new RequestCreator(picasso, URI_1, 0), mockImageViewTarget())
+        .listener(listener)
+        .submit();
+    // For example because the view was reused for another request.
+    submitted().get(0).cancel();
+    assertThat(batch.getItems().get(0).isCancelled()).isTrue();
+    assertThat(batch.getItems().get(0).isSuccessful()).isFalse();
+    verify(listener).onBatchComplete(batch);
+  }
+
+  @Test public void cancelCancelsUnfinishedItems() {
+    Batch batch = new Batch.Builder(picasso)
+        .add(new RequestCreator(picasso, URI_1, 0))
+        .add(new RequestCreator(picasso, URI_2, 0))
+        .listener(listener)
+        .submit();
+    List<Action> actions = submitted();
+    actions.get(0).complete(makeBitmap(), NETWORK);
+
+    batch.cancel();
+    verify(picasso, never()).cancelAction(actions.get(0));
+    verify(picasso).cancelAction(actions.get(1));
+    verify(listener, never()).onBatchComplete(any(Batch.class));
+  }
+
+  @Test public void fitThrows() {
+    try {
+      new Batch.Builder(picasso)
+          .add(new RequestCreator(picasso, URI_1, 0).fit(), mockImageViewTarget());
+      fail("Fit in a batch should throw.");
+    } catch (IllegalStateException ignored) {
+    }
+  }
+
+  @SuppressWarnings("unchecked") private List<Action> submitted() {
+    ArgumentCaptor<List> actionsCaptor = ArgumentCaptor.forClass(List.class);
+    verify(picasso).submit(actionsCaptor.capture());
+    return (List<Action>) actionsCaptor.getValue();
+  }
+}
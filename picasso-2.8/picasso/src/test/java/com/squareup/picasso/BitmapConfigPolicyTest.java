@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.graphics.Bitmap;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import okio.Buffer;
+import okio.ByteString;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.squareup.picasso.TestUtils.URI_1;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+public class BitmapConfigPolicyTest {
+  private static final int PNG_GRAY = 0;
+  private static final int PNG_TRUECOLOR = 2;
+  private static final int PNG_PALETTE = 3;
+  private static final int PNG_TRUECOLOR_ALPHA = 6;
+
+  @Test public void jpegIsOpaque() throws IOException {
+    assertThat(isOpaque(ByteString.decodeHex("ffd8ffe000104a46494600010100000100010000"))).isTrue();
+  }
+
+  @Test public void pngWithoutAlphaIsOpaque() throws IOException {
+    assertThat(isOpaque(png(PNG_TRUECOLOR, "pHYs", "IDAT"))).isTrue();
+    assertThat(isOpaque(png(PNG_GRAY, "IDAT"))).isTrue();
+    assertThat(isOpaque(png(PNG_PALETTE, "PLTE", "IDAT"))).isTrue();
+  }
+
+  @Test public void pngWithAlphaChannelIsNotOpaque() throws IOException {
+    assertThat(isOpaque(png(PNG_TRUECOLOR_ALPHA, "IDAT"))).isFalse();
+  }
+
+  @Test public void pngWithTransparencyChunkIsNotOpaque() throws IOException {
+    assertThat(isOpaque(png(PNG_PALETTE, "PLTE", "tRNS", "IDAT"))).isFalse();
+    assertThat(isOpaque(png(PNG_TRUECOLOR, "tRNS", "IDAT"))).isFalse();
+  }
+
+  @Test public void truncatedPngIsNotOpaque() throws IOException {
+    assertThat(isOpaque(png(PNG_TRUECOLOR, "pHYs"))).isFalse();
+  }
+
+  @Test public void lossyWebPIsOpaque() throws IOException {
+    assertThat(isOpaque(webP("VP8 ", 0x9d))).isTrue();
+  }
+
+  @Test public void losslessWebPUsesAlphaBit() throws IOException {
+    assertThat(isOpaque(webP("VP8L", 0x2f, 0xff, 0xff, 0xff, 0x0f))).isTrue();
+    assertThat(isOpaque(webP("VP8L", 0x2f, 0xff, 0xff, 0xff, 0x1f))).isFalse();
+  }
+
+  @Test public void extendedWebPUsesAlphaFlag() throws IOException {
+    assertThat(isOpaque(webP("VP8X", 0x00, 0, 0, 0, 0))).isTrue();
+    assertThat(isOpaque(webP("VP8X", 0x10, 0, 0, 0, 0))).isFalse();
+  }
+
+  @Test public void otherFormatsAreNotOpaque() throws IOException {
+    assertThat(isOpaque(ByteString.encodeUtf8("GIF89a\u0001\u0000\u0001\u0000"))).isFalse();
+    assertThat(isOpaque(ByteString.decodeHex("ffd8"))).isFalse();
+  }
+
+  @Test public void sniffingDoesNotConsume() throws IOException {
+    ByteString png = png(PNG_TRUECOLOR, "IDAT");
+    Buffer buffer = new Buffer().write(png);
+    BitmapConfigPolicy.isOpaque(buffer);
+    assertThat(buffer.readByteString()).isEqualTo(png);
+  }
+
+  @Test public void opaqueImageDecodesAsRgb565() throws IOException {
+    Request request = new Request.Builder(URI_1).build();
+    Request decode = BitmapConfigPolicy.forDecode(request, null, jpeg(), false);
+    assertThat(decode.config).isEqualTo(Bitmap.Config.RGB_565);
+  }
+
+  @Test public void imageWithAlphaKeepsDefaultConfig() throws IOException {
+    Request request = new Request.Builder(URI_1).build();
+    Buffer source = new Buffer().write(png(PNG_TRUECOLOR_ALPHA, "IDAT"));
+    assertThat(BitmapConfigPolicy.forDecode(request, null, source, false)).isSameAs(request);
+  }
+
+  @Test public void requestedConfigIsKept() throws IOException {
+    Request request = new Request.Builder(URI_1).config(Bitmap.Config.ARGB_8888).build();
+    assertThat(BitmapConfigPolicy.forDecode(request, null, jpeg(), false)).isSameAs(request);
+  }
+
+  @Test public void customTransformationKeepsDefaultConfig() throws IOException {
+    Request request = new Request.Builder(URI_1).transform(new TestTransformation("test")).build();
+    assertThat(BitmapConfigPolicy.forDecode(request, null, jpeg(), false)).isSameAs(request);
+  }
+
+  @Test public void variantWithCustomTransformationKeepsDefaultConfig() throws IOException {
+    Request request = new Request.Builder(URI_1).resize(100, 100).build();
+    BitmapHunter plain = mock(BitmapHunter.class);
+    when(plain.getData()).thenReturn(new Request.Builder(URI_1).resize(50, 50).build());
+    BitmapHunter custom = mock(BitmapHunter.class);
+    when(custom.getData()).thenReturn(
+        new Request.Builder(URI_1).resize(20, 20).transform(new TestTransformation("test")).build());
+
+    assertThat(BitmapConfigPolicy.forDecode(request, Collections.singletonList(plain), jpeg(),
+        true).config).isEqualTo(Bitmap.Config.RGB_565);
+    assertThat(BitmapConfigPolicy.forDecode(request, Arrays.asList(plain, custom), jpeg(), true))
+        .isSameAs(request);
+  }
+
+  @Test public void builtInTransformationsHandleRgb565() {
+    assertThat(BitmapConfigPolicy.handlesRgb565(null)).isTrue();
+    assertThat(BitmapConfigPolicy.handlesRgb565(Arrays.asList(Transformations.grayscale(),
+        Transformations.roundedCorners(8), Transformations.blur(4)))).isTrue();
+    assertThat(BitmapConfigPolicy.handlesRgb565(
+        Collections.<Transformation>singletonList(new TestTransformation("test")))).isFalse();
+  }
+
+  @Test public void hardwareNeedsApi26() {
+    Request request = new Request.Builder(URI_1).build();
+    // Robolectric runs these tests on an older platform.
+    assertThat(BitmapConfigPolicy.forImageView(request)).isSameAs(request);
+    assertThat(BitmapConfigPolicy.isHardware(null)).isFalse();
+  }
+
+  private static boolean isOpaque(ByteString bytes) throws IOException {
+    return BitmapConfigPolicy.isOpaque(new Buffer().write(bytes));
+  }
+
+  private static Buffer jpeg() {
+    return new Buffer().write(ByteString.decodeHex("ffd8ffe000104a46494600010100000100010000"));
+  }
+
+  /** A PNG header of {@code colorType}, followed by empty chunks of {@code types}. */
+  private static ByteString png(int colorType, String... types) {
+    Buffer buffer = new Buffer()
+        .write(ByteString.decodeHex("89504e470d0a1a0a"))
+        .writeInt(13)
+        .writeUtf8("IHDR")
+        .writeInt(64)
+        .writeInt(64)
+        .writeByte(8)
+        .writeByte(colorType)
+        .writeByte(0)
+        .writeByte(0)
+        .writeByte(0)
+        .writeInt(0);
+    for (String type : types) {
+      // A chunk with some data, so that chunk lengths are skipped correctly.
+      buffer.writeInt(3).writeUtf8(type).writeUtf8("abc").writeInt(0);
+    }
+    return buffer.readByteString();
+  }
+
+  /** A WebP header whose first chunk is {@code type}, starting with {@code data}. */
+  private static ByteString webP(String type, int... data) {
+    Buffer buffer = new Buffer()
+        .writeUtf8("RIFF")
+        .writeIntLe(4 + 8 + data.length)
+        .writeUtf8("WEBP")
+        .writeUtf8(type)
+        .writeIntLe(data.length);
+    for (int b : data) {
+      buffer.writeByte(b);
+    }
+    return buffer.readByteString();
+  }
+}
@@ -16,24 +16,42 @@
 package com.squareup.picasso;
 
 import android.content.Context;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Matrix;
+import android.graphics.Path;
+import android.graphics.Rect;
 import android.net.Uri;
 import android.view.Gravity;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeoutException;
+import javax.imageio.ImageIO;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Okio;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.shadows.ShadowBitmap;
 import org.robolectric.shadows.ShadowMatrix;
 
 import static android.graphics.Bitmap.Config.ARGB_8888;
+import static android.graphics.Bitmap.Config.RGB_565;
 import static androidx.exifinterface.media.ExifInterface.ORIENTATION_FLIP_HORIZONTAL;
 import static androidx.exifinterface.media.ExifInterface.ORIENTATION_FLIP_VERTICAL;
 import static androidx.exifinterface.media.ExifInterface.ORIENTATION_ROTATE_90;
@@ -42,10 +60,14 @@ import static androidx.exifinterface.media.ExifInterface.ORIENTATION_TRANSVERSE;
 import static com.google.common.truth.Truth.assertThat;
 import static com.squareup.picasso.BitmapHunter.forRequest;
 import static com.squareup.picasso.BitmapHunter.transformResult;
+import static com.squareup.picasso.Picasso.LoadedFrom.DISK;
 import static com.squareup.picasso.Picasso.LoadedFrom.MEMORY;
+import static com.squareup.picasso.Picasso.LoadedFrom.NETWORK;
 import static com.squareup.picasso.Picasso.Priority.HIGH;
 import static com.squareup.picasso.Picasso.Priority.LOW;
 import static com.squareup.picasso.Picasso.Priority.NORMAL;
+import static com.squareup.picasso.StatsSnapshot.Stage.DECODE;
+import static com.squareup.picasso.StatsSnapshot.Stage.DOWNLOAD;
 import static com.squareup.picasso.TestUtils.ASSET_KEY_1;
 import static com.squareup.picasso.TestUtils.ASSET_URI_1;
 import static com.squareup.picasso.TestUtils.CONTACT_KEY_1;
@@ -67,15 +89,24 @@ import static com.squareup.picasso.TestUtils.RESOURCE_ID_URI_KEY;
 import static com.squareup.picasso.TestUtils.RESOURCE_TYPE_URI;
 import static com.squareup.picasso.TestUtils.RESOURCE_TYPE_URI_KEY;
 import static com.squareup.picasso.TestUtils.URI_1;
+import static com.squareup.picasso.TestUtils.URI_2;
 import static com.squareup.picasso.TestUtils.URI_KEY_1;
+import static com.squareup.picasso.TestUtils.URI_KEY_2;
+import static com.squareup.picasso.TestUtils.jpeg;
 import static com.squareup.picasso.TestUtils.makeBitmap;
 import static com.squareup.picasso.TestUtils.mockAction;
 import static com.squareup.picasso.TestUtils.mockImageViewTarget;
 import static com.squareup.picasso.TestUtils.mockPicasso;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
@@ -88,6 +119,7 @@ public class BitmapHunterTest {
   @Mock Picasso picasso;
   @Mock Cache cache;
   @Mock Stats stats;
+  @Mock MemoryGovernor governor;
   @Mock Dispatcher dispatcher;
   @Mock Downloader downloader;
 
@@ -143,6 +175,29 @@ public class BitmapHunterTest {
     }
   }
 
+  @Test public void outOfMemoryRetriesOnceWhenMemoryWasFreed() throws Exception {
+    when(stats.createSnapshot()).thenReturn(mock(StatsSnapshot.class));
+
+    Action action = mockAction(URI_KEY_1, URI_1);
+    BitmapHunter hunter = new OOMBitmapHunter(picasso, dispatcher, cache, stats, action);
+    when(hunter.governor.onOutOfMemory()).thenReturn(true);
+    hunter.run();
+    verify(hunter.governor).onOutOfMemory();
+    verify(hunter.requestHandler, times(2)).load(eq(action.getRequest()), anyInt());
+    verify(dispatcher).dispatchFailed(hunter);
+    assertThat(hunter.getException().getCause()).isInstanceOf(OutOfMemoryError.class);
+  }
+
+  @Test public void decodeReservesMemoryUntilHuntEnds() throws Exception {
+    Action action = mockAction(URI_KEY_1, URI_1);
+    BitmapHunter hunter = new TestableBitmapHunter(picasso, dispatcher, cache, stats, action, bitmap);
+    hunter.hunt();
+    long bytes = Utils.getBitmapBytes(bitmap);
+    verify(hunter.governor).reserve(bytes);
+    verify(hunter.governor).release(bytes);
+    assertThat(hunter.reservedBytes).isEqualTo(0);
+  }
+
   @Test public void runWithIoExceptionDispatchRetry() {
     Action action = mockAction(URI_KEY_1, URI_1);
     BitmapHunter hunter = new TestableBitmapHunter(picasso, dispatcher, cache, stats, action, null,
@@ -151,32 +206,50 @@ public class BitmapHunterTest {
     verify(dispatcher).dispatchRetry(hunter);
   }
 
+  @Test public void runPastDeadlineDispatchFailedWithoutLoading() throws Exception {
+    Action action = mockAction(URI_KEY_1, URI_1);
+    action.deadlineNanos = System.nanoTime() - 1;
+    BitmapHunter hunter = new TestableBitmapHunter(picasso, dispatcher, cache, stats, action, bitmap);
+    hunter.run();
+    verify(dispatcher).dispatchFailed(hunter);
+    verify(hunter.requestHandler, never()).load(action.getRequest(), 0);
+    assertThat(hunter.getException()).isInstanceOf(TimeoutException.class);
+  }
+
+  @Test public void runBeforeDeadlineDispatchComplete() {
+    Action action = mockAction(URI_KEY_1, URI_1);
+    action.deadlineNanos = System.nanoTime() + 60000000000L;
+    BitmapHunter hunter = new TestableBitmapHunter(picasso, dispatcher, cache, stats, action, bitmap);
+    hunter.run();
+    verify(dispatcher).dispatchComplete(hunter);
+  }
+
   @Test public void huntDecodesWhenNotInCache() throws Exception {
     Action action = mockAction(URI_KEY_1, URI_1, mockImageViewTarget());
     TestableBitmapHunter hunter =
         new TestableBitmapHunter(picasso, dispatcher, cache, stats, action, bitmap);
 
     Bitmap result = hunter.hunt();
-    verify(cache).get(URI_KEY_1);
+    verify(cache).get(URI_KEY_1.toString());
     verify(hunter.requestHandler).load(action.getRequest(), 0);
     assertThat(result).isEqualTo(bitmap);
   }
 
   @Test public void huntReturnsWhenResultInCache() throws Exception {
-    when(cache.get(URI_KEY_1)).thenReturn(bitmap);
+    when(cache.get(URI_KEY_1.toString())).thenReturn(bitmap);
     Action action = mockAction(URI_KEY_1, URI_1, mockImageViewTarget());
     TestableBitmapHunter hunter =
         new TestableBitmapHunter(picasso, dispatcher, cache, stats, action, bitmap);
 
     Bitmap result = hunter.hunt();
-    verify(cache).get(URI_KEY_1);
+    verify(cache).get(URI_KEY_1.toString());
     verify(hunter.requestHandler, never()).load(action.getRequest(), 0);
     assertThat(result).isEqualTo(bitmap);
   }
 
   @Test public void huntUnrecognizedUri() throws Exception {
     Action action = mockAction(CUSTOM_URI_KEY, CUSTOM_URI);
-    BitmapHunter hunter = forRequest(picasso, dispatcher, cache, stats, action);
+    BitmapHunter hunter = forRequest(picasso, dispatcher, cache, null, governor, stats, action);
     try {
       hunter.hunt();
       fail("Unrecognized URI should throw exception.");
@@ -187,7 +260,7 @@ public class BitmapHunterTest {
   @Test public void huntDecodesWithRequestHandler() throws Exception {
     Action action = mockAction(CUSTOM_URI_KEY, CUSTOM_URI);
     BitmapHunter hunter = forRequest(mockPicasso(new CustomRequestHandler()), dispatcher,
-        cache, stats, action);
+        cache, null, governor, stats, action);
     Bitmap result = hunter.hunt();
     assertThat(result).isEqualTo(bitmap);
   }
@@ -258,89 +331,385 @@ public class BitmapHunterTest {
     assertThat(hunter.isCancelled()).isTrue();
   }
 
+  @Test public void detachedOnceEveryTargetIsDetached() {
+    Action action1 = mockAction(URI_KEY_1, URI_1, mockImageViewTarget());
+    Action action2 = mockAction(URI_KEY_1, URI_1, mockImageViewTarget());
+    BitmapHunter hunter = new TestableBitmapHunter(picasso, dispatcher, cache, stats, action1);
+    hunter.attach(action2);
+    assertThat(hunter.isDetached()).isFalse();
+    when(action1.isDetached()).thenReturn(true);
+    assertThat(hunter.isDetached()).isFalse();
+    when(action2.isDetached()).thenReturn(true);
+    assertThat(hunter.isDetached()).isTrue();
+  }
+
+  @Test public void hunterWithVariantsIsNeverDetached() {
+    Action action = mockAction(URI_KEY_1, URI_1);
+    when(action.isDetached()).thenReturn(true);
+    BitmapHunter hunter = new TestableBitmapHunter(picasso, dispatcher, cache, stats, action);
+    hunter.addVariant(
+        new TestableBitmapHunter(picasso, dispatcher, cache, stats, mockAction(URI_KEY_2, URI_1)));
+    assertThat(hunter.isDetached()).isFalse();
+  }
+
+  @Test public void deadlineIsLatestOfAllActions() {
+    Action action1 = mockAction(URI_KEY_1, URI_1);
+    action1.deadlineNanos = 200;
+    Action action2 = mockAction(URI_KEY_1, URI_1);
+    action2.deadlineNanos = 300;
+    BitmapHunter hunter = new TestableBitmapHunter(picasso, dispatcher, cache, stats, action1);
+    assertThat(hunter.getDeadlineNanos()).isEqualTo(200);
+    hunter.attach(action2);
+    assertThat(hunter.getDeadlineNanos()).isEqualTo(300);
+    hunter.detach(action1);
+    assertThat(hunter.getDeadlineNanos()).isEqualTo(300);
+  }
+
+  @Test public void noDeadlineIfAnyActionHasNone() {
+    Action action1 = mockAction(URI_KEY_1, URI_1);
+    action1.deadlineNanos = 200;
+    Action action2 = mockAction(URI_KEY_1, URI_1);
+    BitmapHunter hunter = new TestableBitmapHunter(picasso, dispatcher, cache, stats, action1);
+    hunter.attach(action2);
+    assertThat(hunter.getDeadlineNanos()).isEqualTo(0);
+  }
+
+  @Test public void attachMakesHunterMostRecent() {
+    Action action1 = mockAction(URI_KEY_1, URI_1);
+    BitmapHunter hunter1 = new TestableBitmapHunter(picasso, dispatcher, cache, stats, action1);
+    BitmapHunter hunter2 =
+        new TestableBitmapHunter(picasso, dispatcher, cache, stats, mockAction(URI_KEY_2, URI_2));
+    assertThat(hunter2.recency).isGreaterThan(hunter1.recency);
+    hunter1.attach(mockAction(URI_KEY_1, URI_1));
+    assertThat(hunter1.recency).isGreaterThan(hunter2.recency);
+  }
+
   // ---------------------------------------
 
+  @Test public void huntDerivesVariantsFromSingleLoad() throws Exception {
+    Action action = mockAction(URI_KEY_1,
+        new Request.Builder(URI_1).resize(8, 8).build());
+    Action variantAction = mockAction(URI_KEY_2,
+        new Request.Builder(URI_1).resize(4, 4).rotate(90).build());
+    TestableBitmapHunter hunter =
+        new TestableBitmapHunter(picasso, dispatcher, cache, stats, action, bitmap);
+    TestableBitmapHunter variant =
+        new TestableBitmapHunter(picasso, dispatcher, cache, stats, variantAction, bitmap);
+    assertThat(hunter.addVariant(variant)).isTrue();
+    assertThat(variant.source).isSameAs(hunter);
+
+    Bitmap result = hunter.hunt();
+    verify(hunter.requestHandler).load(action.getRequest(), 0);
+    verify(variant.requestHandler, never()).load(variantAction.getRequest(), 0);
+    assertThat(result).isNotNull();
+    assertThat(variant.getResult()).isNotNull();
+    assertThat(shadowOf(variant.getResult()).getCreatedFromBitmap()).isSameAs(bitmap);
+    assertThat(variant.loadedFrom).isEqualTo(MEMORY);
+    assertThat(hunter.takeVariants()).containsExactly(variant);
+  }
+
+  @Test public void sharedBitmapIsNotRecycledByVariant() throws Exception {
+    Action action = mockAction(URI_KEY_1, URI_1);
+    Action variantAction = mockAction(URI_KEY_2,
+        new Request.Builder(URI_1).resize(4, 4).build());
+    TestableBitmapHunter hunter =
+        new TestableBitmapHunter(picasso, dispatcher, cache, stats, action, bitmap);
+    TestableBitmapHunter variant =
+        new TestableBitmapHunter(picasso, dispatcher, cache, stats, variantAction, bitmap);
+    hunter.addVariant(variant);
+
+    Bitmap result = hunter.hunt();
+    assertThat(result).isSameAs(bitmap);
+    assertThat(bitmap.isRecycled()).isFalse();
+    assertThat(variant.getResult()).isNotSameAs(bitmap);
+  }
+
+  @Test public void addVariantAfterDecodeFails() throws Exception {
+    Action action = mockAction(URI_KEY_1, URI_1);
+    TestableBitmapHunter hunter =
+        new TestableBitmapHunter(picasso, dispatcher, cache, stats, action, bitmap);
+    hunter.hunt();
+    BitmapHunter variant =
+        new TestableBitmapHunter(picasso, dispatcher, cache, stats, mockAction(URI_KEY_2, URI_1));
+    assertThat(hunter.addVariant(variant)).isFalse();
+    assertThat(variant.source).isNull();
+  }
+
+  @Test public void cancelVariantDetachesFromSource() {
+    Action action = mockAction(URI_KEY_1, URI_1);
+    Action variantAction = mockAction(URI_KEY_2, URI_1);
+    BitmapHunter hunter = new TestableBitmapHunter(picasso, dispatcher, cache, stats, action);
+    hunter.future = new FutureTask<>(mock(Runnable.class), mock(Object.class));
+    BitmapHunter variant =
+        new TestableBitmapHunter(picasso, dispatcher, cache, stats, variantAction);
+    hunter.addVariant(variant);
+
+    hunter.detach(action);
+    assertThat(hunter.cancel()).isFalse();
+
+    assertThat(variant.cancel()).isFalse();
+    variant.detach(variantAction);
+    assertThat(variant.cancel()).isTrue();
+    assertThat(variant.source).isNull();
+    assertThat(hunter.cancel()).isTrue();
+  }
+
+  @Test public void decodeRequestCoversLargestVariant() {
+    Request data = new Request.Builder(URI_1).resize(10, 40).centerInside().build();
+    BitmapHunter wide = new TestableBitmapHunter(picasso, dispatcher, cache, stats,
+        mockAction(URI_KEY_2, new Request.Builder(URI_1).resize(80, 20).centerCrop().build()));
+    Request decode = BitmapHunter.createDecodeRequest(data, Arrays.asList(wide));
+    assertThat(decode.targetWidth).isEqualTo(80);
+    assertThat(decode.targetHeight).isEqualTo(40);
+    assertThat(decode.centerInside).isFalse();
+    assertThat(decode.centerCrop).isFalse();
+
+    BitmapHunter full = new TestableBitmapHunter(picasso, dispatcher, cache, stats,
+        mockAction(URI_KEY_2, URI_1));
+    assertThat(BitmapHunter.createDecodeRequest(data, Arrays.asList(wide, full)).hasSize())
+        .isFalse();
+    assertThat(BitmapHunter.createDecodeRequest(data, null)).isSameAs(data);
+  }
+
+  @Test public void cropRegionClampsToBitmap() {
+    Bitmap cropped = BitmapHunter.cropRegion(makeBitmap(10, 10), new Rect(2, 4, 16, 20));
+    assertThat(cropped.getWidth()).isEqualTo(8);
+    assertThat(cropped.getHeight()).isEqualTo(6);
+  }
+
+  @Test public void regionsOfOneSourceShareDecoder() throws Exception {
+    Picasso picasso = new Picasso(context, dispatcher, cache, null, null, null, stats,
+        ARGB_8888, false, false);
+    RequestHandler handler = spy(new StreamRequestHandler());
+    Request first = new Request.Builder(URI_1).region(0, 0, 50, 50).build();
+    Request second = new Request.Builder(URI_1).region(50, 0, 100, 50).resize(25, 25).build();
+
+    Bitmap firstResult = new BitmapHunter(picasso, dispatcher, cache, null, governor, stats,
+        mockAction(RequestKey.of(first), first), handler).hunt();
+    Bitmap secondResult = new BitmapHunter(picasso, dispatcher, cache, null, governor, stats,
+        mockAction(RequestKey.of(second), second), handler).hunt();
+
+    verify(handler).load(eq(first), anyInt());
+    verify(handler, never()).load(eq(second), anyInt());
+    assertThat(firstResult.getWidth()).isEqualTo(50);
+    assertThat(secondResult.getWidth()).isEqualTo(25);
+    assertThat(picasso.regionDecoders.size()).isEqualTo(1);
+
+    picasso.invalidate(URI_1);
+    assertThat(picasso.regionDecoders.size()).isEqualTo(0);
+  }
+
+  @Test public void bitmapMissDecodesFromEncodedCache() throws Exception {
+    EncodedCache encodedCache = new EncodedCache(1024 * 1024);
+    Stats stats = new Stats(cache, encodedCache, governor);
+    RequestHandler handler = spy(new NetworkStreamRequestHandler());
+
+    BitmapHunter first = new BitmapHunter(picasso, dispatcher, cache, encodedCache, governor,
+        stats, mockAction(URI_KEY_1, URI_1), handler);
+    first.hunt();
+    BitmapHunter second = new BitmapHunter(picasso, dispatcher, cache, encodedCache, governor,
+        stats, mockAction(URI_KEY_1, URI_1), handler);
+    Bitmap result = second.hunt();
+
+    verify(handler).load(any(Request.class), anyInt());
+    assertThat(first.getLoadedFrom()).isEqualTo(NETWORK);
+    assertThat(second.getLoadedFrom()).isEqualTo(MEMORY);
+    assertThat(result.getWidth()).isEqualTo(100);
+    StatsSnapshot snapshot = stats.createSnapshot();
+    assertThat(snapshot.encodedCacheHits).isEqualTo(1);
+    assertThat(snapshot.encodedCacheMisses).isEqualTo(1);
+    assertThat(snapshot.encodedCacheSize).isEqualTo(png(100, 50).length);
+  }
+
+  @Test public void noStoreSkipsEncodedCache() throws Exception {
+    EncodedCache encodedCache = new EncodedCache(1024 * 1024);
+    Action action = mockAction(URI_KEY_1, URI_1);
+    when(action.getMemoryPolicy()).thenReturn(MemoryPolicy.NO_STORE.index);
+    new BitmapHunter(picasso, dispatcher, cache, encodedCache, governor, stats, action,
+        new NetworkStreamRequestHandler()).hunt();
+    assertThat(encodedCache.size()).isEqualTo(0);
+  }
+
+  @Test public void localImageSkipsEncodedCache() throws Exception {
+    EncodedCache encodedCache = new EncodedCache(1024 * 1024);
+    RequestHandler handler = spy(new StreamRequestHandler());
+    new BitmapHunter(picasso, dispatcher, cache, encodedCache, governor, stats,
+        mockAction(URI_KEY_1, URI_1), handler).hunt();
+    new BitmapHunter(picasso, dispatcher, cache, encodedCache, governor, stats,
+        mockAction(URI_KEY_1, URI_1), handler).hunt();
+    assertThat(encodedCache.size()).isEqualTo(0);
+    verify(handler, times(2)).load(any(Request.class), anyInt());
+    verify(stats, never()).dispatchEncodedCacheMiss();
+  }
+
+  @Test public void progressivePreviewIsDecodedBeforeTheWholeBodyIsRead() throws Exception {
+    final byte[] jpeg = jpeg(1280, 960, true);
+    Request request = new Request.Builder(URI_1).progressive().build();
+    RequestHandler handler = new NetworkStreamRequestHandler() {
+      @Override public Result load(Request request, int networkPolicy) {
+        return new Result(Okio.source(new ByteArrayInputStream(jpeg)), NETWORK);
+      }
+    };
+    final BitmapHunter hunter = spy(new BitmapHunter(picasso, dispatcher, cache, null, governor,
+        stats, mockAction(RequestKey.of(request), request), handler));
+    final long[] readAtPreview = { -1 };
+    final byte[][] previewBytes = new byte[1][];
+    doAnswer(new Answer<Bitmap>() {
+      @Override public Bitmap answer(InvocationOnMock invocation) {
+        readAtPreview[0] = hunter.bytesRead;
+        previewBytes[0] = (byte[]) invocation.getArguments()[0];
+        return makeBitmap(160, 120);
+      }
+    }).when(hunter).decodePreview(any(byte[].class), any(Request.class));
+
+    Bitmap result = hunter.hunt();
+
+    assertThat(result).isNotNull();
+    verify(dispatcher).dispatchPreview(hunter);
+    assertThat(hunter.preview.getWidth()).isEqualTo(160);
+    assertThat(readAtPreview[0]).isLessThan(jpeg.length / 2L);
+    // The preview decodes the first scan, closed with an end of image marker.
+    assertThat(previewBytes[0].length).isLessThan(jpeg.length / 2);
+    assertThat(previewBytes[0][previewBytes[0].length - 2] & 0xFF).isEqualTo(0xFF);
+    assertThat(previewBytes[0][previewBytes[0].length - 1] & 0xFF).isEqualTo(0xD9);
+  }
+
+  @Test public void baselineJpegHasNoProgressivePreview() throws Exception {
+    final byte[] jpeg = jpeg(1280, 960, false);
+    Request request = new Request.Builder(URI_1).progressive().build();
+    RequestHandler handler = new NetworkStreamRequestHandler() {
+      @Override public Result load(Request request, int networkPolicy) {
+        return new Result(Okio.source(new ByteArrayInputStream(jpeg)), NETWORK);
+      }
+    };
+    BitmapHunter hunter = spy(new BitmapHunter(picasso, dispatcher, cache, null, governor,
+        stats, mockAction(RequestKey.of(request), request), handler));
+
+    assertThat(hunter.hunt()).isNotNull();
+    verify(hunter, never()).decodePreview(any(byte[].class), any(Request.class));
+    verify(dispatcher, never()).dispatchPreview(hunter);
+  }
+
+  @Test public void slowBodyCountsAsDownloadNotDecode() throws Exception {
+    RequestHandler handler = new NetworkStreamRequestHandler() {
+      @Override public Result load(Request request, int networkPolicy) throws IOException {
+        return new Result(new ForwardingSource(super.load(request, networkPolicy).getSource()) {
+          @Override public long read(Buffer sink, long byteCount) throws IOException {
+            try {
+              Thread.sleep(50);
+            } catch (InterruptedException e) {
+              throw new AssertionError(e);
+            }
+            return super.read(sink, byteCount);
+          }
+        }, NETWORK);
+      }
+    };
+    new BitmapHunter(picasso, dispatcher, cache, null, governor, stats,
+        mockAction(URI_KEY_1, URI_1), handler).hunt();
+
+    ArgumentCaptor<Long> download = ArgumentCaptor.forClass(Long.class);
+    ArgumentCaptor<Long> decode = ArgumentCaptor.forClass(Long.class);
+    verify(stats).dispatchLatency(eq(DOWNLOAD), eq(NETWORK), download.capture());
+    verify(stats).dispatchLatency(eq(DECODE), eq(NETWORK), decode.capture());
+    assertThat(download.getValue()).isAtLeast(MILLISECONDS.toNanos(50));
+    assertThat(decode.getValue()).isLessThan(MILLISECONDS.toNanos(50));
+  }
+
+  @Test public void regionOutsideImageFails() throws Exception {
+    BitmapRegionDecoder decoder =
+        BitmapRegionDecoder.newInstance(new ByteArrayInputStream(png(100, 50)), false);
+    Request data = new Request.Builder(URI_1).region(100, 0, 110, 10).build();
+    BitmapHunter hunter = new TestableBitmapHunter(picasso, dispatcher, cache, stats,
+        mockAction(RequestKey.of(data), data));
+    try {
+      hunter.decodeRegion(decoder, data);
+      fail("Region outside of the image should throw.");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
   @Test public void forContentProviderRequest() {
     Action action = mockAction(CONTENT_KEY_1, CONTENT_1_URL);
     BitmapHunter hunter = forRequest(mockPicasso(new ContentStreamRequestHandler(context)),
-        dispatcher, cache, stats, action);
+        dispatcher, cache, null, governor, stats, action);
     assertThat(hunter.requestHandler).isInstanceOf(ContentStreamRequestHandler.class);
   }
 
   @Test public void forMediaStoreRequest() {
     Action action = mockAction(MEDIA_STORE_CONTENT_KEY_1, MEDIA_STORE_CONTENT_1_URL);
     BitmapHunter hunter = forRequest(mockPicasso(new MediaStoreRequestHandler(context)), dispatcher,
-        cache, stats, action);
+        cache, null, governor, stats, action);
     assertThat(hunter.requestHandler).isInstanceOf(MediaStoreRequestHandler.class);
   }
 
   @Test public void forContactsPhotoRequest() {
     Action action = mockAction(CONTACT_KEY_1, CONTACT_URI_1);
     BitmapHunter hunter = forRequest(mockPicasso(new ContactsPhotoRequestHandler(context)),
-        dispatcher, cache, stats, action);
+        dispatcher, cache, null, governor, stats, action);
     assertThat(hunter.requestHandler).isInstanceOf(ContactsPhotoRequestHandler.class);
   }
 
   @Test public void forContactsThumbnailPhotoRequest() {
     Action action = mockAction(CONTACT_PHOTO_KEY_1, CONTACT_PHOTO_URI_1);
     BitmapHunter hunter = forRequest(mockPicasso(new ContactsPhotoRequestHandler(context)),
-      dispatcher, cache, stats, action);
+      dispatcher, cache, null, governor, stats, action);
     assertThat(hunter.requestHandler).isInstanceOf(ContactsPhotoRequestHandler.class);
   }
 
   @Test public void forNetworkRequest() {
     Action action = mockAction(URI_KEY_1, URI_1);
     BitmapHunter hunter = forRequest(mockPicasso(new NetworkRequestHandler(downloader, stats)),
-        dispatcher, cache, stats, action);
+        dispatcher, cache, null, governor, stats, action);
     assertThat(hunter.requestHandler).isInstanceOf(NetworkRequestHandler.class);
   }
 
   @Test public void forFileWithAuthorityRequest() {
     Action action = mockAction(FILE_KEY_1, FILE_1_URL);
     BitmapHunter hunter = forRequest(mockPicasso(new FileRequestHandler(context)), dispatcher,
-        cache, stats, action);
+        cache, null, governor, stats, action);
     assertThat(hunter.requestHandler).isInstanceOf(FileRequestHandler.class);
   }
 
   @Test public void forAndroidResourceRequest() {
     Action action = mockAction(RESOURCE_ID_KEY_1, null, null, RESOURCE_ID_1);
     BitmapHunter hunter = forRequest(mockPicasso(new ResourceRequestHandler(context)), dispatcher,
-        cache, stats, action);
+        cache, null, governor, stats, action);
     assertThat(hunter.requestHandler).isInstanceOf(ResourceRequestHandler.class);
   }
 
   @Test public void forAndroidResourceUriWithId() {
     Action action = mockAction(RESOURCE_ID_URI_KEY, RESOURCE_ID_URI);
     BitmapHunter hunter = forRequest(mockPicasso(new ResourceRequestHandler(context)), dispatcher,
-        cache, stats, action);
+        cache, null, governor, stats, action);
     assertThat(hunter.requestHandler).isInstanceOf(ResourceRequestHandler.class);
   }
 
   @Test public void forAndroidResourceUriWithType() {
     Action action = mockAction(RESOURCE_TYPE_URI_KEY, RESOURCE_TYPE_URI);
     BitmapHunter hunter = forRequest(mockPicasso(new ResourceRequestHandler(context)), dispatcher,
-        cache, stats, action);
+        cache, null, governor, stats, action);
     assertThat(hunter.requestHandler).isInstanceOf(ResourceRequestHandler.class);
   }
 
   @Test public void forAssetRequest() {
     Action action = mockAction(ASSET_KEY_1, ASSET_URI_1);
     BitmapHunter hunter = forRequest(mockPicasso(new AssetRequestHandler(context)), dispatcher,
-        cache, stats, action);
+        cache, null, governor, stats, action);
     assertThat(hunter.requestHandler).isInstanceOf(AssetRequestHandler.class);
   }
 
   @Test public void forFileWithNoPathSegments() {
-    Action action = mockAction("keykeykey", Uri.fromFile(new File("/")));
+    Action action = mockAction(RequestKey.of("keykeykey"), Uri.fromFile(new File("/")));
     BitmapHunter hunter = forRequest(mockPicasso(new FileRequestHandler(context)), dispatcher,
-        cache, stats, action);
+        cache, null, governor, stats, action);
     assertThat(hunter.requestHandler).isInstanceOf(FileRequestHandler.class);
   }
 
   @Test public void forCustomRequest() {
     Action action = mockAction(CUSTOM_URI_KEY, CUSTOM_URI);
     BitmapHunter hunter = forRequest(mockPicasso(new CustomRequestHandler()), dispatcher, cache,
-        stats, action);
+        null, governor, stats, action);
     assertThat(hunter.requestHandler).isInstanceOf(CustomRequestHandler.class);
   }
 
@@ -351,22 +720,22 @@ public class BitmapHunterTest {
     // Must use non-mock constructor because that is where Picasso's list of handlers is created.
     Picasso picasso = new Picasso(context, dispatcher, cache, null, null, handlers, stats,
         ARGB_8888, false, false);
-    BitmapHunter hunter = forRequest(picasso, dispatcher, cache, stats, action);
+    BitmapHunter hunter = forRequest(picasso, dispatcher, cache, null, governor, stats, action);
     assertThat(hunter.requestHandler).isEqualTo(handler);
   }
 
   @Test public void sequenceIsIncremented() {
     Action action = mockAction(URI_KEY_1, URI_1);
     Picasso picasso = mockPicasso();
-    BitmapHunter hunter1 = forRequest(picasso, dispatcher, cache, stats, action);
-    BitmapHunter hunter2 = forRequest(picasso, dispatcher, cache, stats, action);
+    BitmapHunter hunter1 = forRequest(picasso, dispatcher, cache, null, governor, stats, action);
+    BitmapHunter hunter2 = forRequest(picasso, dispatcher, cache, null, governor, stats, action);
     assertThat(hunter2.sequence).isGreaterThan(hunter1.sequence);
   }
 
   @Test public void getPriorityWithNoRequests() {
     Action action = mockAction(URI_KEY_1, URI_1);
     BitmapHunter hunter = forRequest(mockPicasso(new NetworkRequestHandler(downloader, stats)),
-        dispatcher, cache, stats, action);
+        dispatcher, cache, null, governor, stats, action);
     hunter.detach(action);
     assertThat(hunter.getAction()).isNull();
     assertThat(hunter.getActions()).isNull();
@@ -376,7 +745,7 @@ public class BitmapHunterTest {
   @Test public void getPriorityWithSingleRequest() {
     Action action = mockAction(URI_KEY_1, URI_1, HIGH);
     BitmapHunter hunter = forRequest(mockPicasso(new NetworkRequestHandler(downloader, stats)),
-        dispatcher, cache, stats, action);
+        dispatcher, cache, null, governor, stats, action);
     assertThat(hunter.getAction()).isEqualTo(action);
     assertThat(hunter.getActions()).isNull();
     assertThat(hunter.getPriority()).isEqualTo(HIGH);
@@ -386,7 +755,7 @@ public class BitmapHunterTest {
     Action action1 = mockAction(URI_KEY_1, URI_1, NORMAL);
     Action action2 = mockAction(URI_KEY_1, URI_1, HIGH);
     BitmapHunter hunter = forRequest(mockPicasso(new NetworkRequestHandler(downloader, stats)),
-        dispatcher, cache, stats, action1);
+        dispatcher, cache, null, governor, stats, action1);
     hunter.attach(action2);
     assertThat(hunter.getAction()).isEqualTo(action1);
     assertThat(hunter.getActions()).containsExactly(action2);
@@ -397,7 +766,7 @@ public class BitmapHunterTest {
     Action action1 = mockAction(URI_KEY_1, URI_1, NORMAL);
     Action action2 = mockAction(URI_KEY_1, URI_1, HIGH);
     BitmapHunter hunter = forRequest(mockPicasso(new NetworkRequestHandler(downloader, stats)),
-        dispatcher, cache, stats, action1);
+        dispatcher, cache, null, governor, stats, action1);
     hunter.attach(action2);
     assertThat(hunter.getAction()).isEqualTo(action1);
     assertThat(hunter.getActions()).containsExactly(action2);
@@ -408,6 +777,38 @@ public class BitmapHunterTest {
     assertThat(hunter.getPriority()).isEqualTo(NORMAL);
   }
 
+  @Test public void exactDecodeSkipsMatrixPass() {
+    Request data = new Request.Builder(URI_1).resize(300, 0).build();
+    Bitmap source = Bitmap.createBitmap(300, 225, ARGB_8888);
+    assertThat(transformResult(data, source, 0)).isSameAs(source);
+  }
+
+  @Test public void estimateBitmapBytesIncludesDensityScale() {
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.outWidth = 640;
+    options.outHeight = 480;
+    options.inSampleSize = 2;
+    assertThat(BitmapHunter.estimateBitmapBytes(options)).isEqualTo(320 * 240 * 4);
+    options.inDensity = 320;
+    options.inTargetDensity = 300;
+    assertThat(BitmapHunter.estimateBitmapBytes(options)).isEqualTo(300 * 225 * 4);
+  }
+
+  @Test public void resetDensityOnlyAfterDensityScale() {
+    Bitmap bitmap = Bitmap.createBitmap(300, 225, ARGB_8888);
+    int density = bitmap.getDensity();
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inDensity = 320;
+    options.inTargetDensity = 300;
+    bitmap.setDensity(300);
+    BitmapHunter.resetDensity(bitmap, options);
+    assertThat(bitmap.getDensity())
+        .isEqualTo(Resources.getSystem().getDisplayMetrics().densityDpi);
+    bitmap.setDensity(density);
+    BitmapHunter.resetDensity(bitmap, new BitmapFactory.Options());
+    assertThat(bitmap.getDensity()).isEqualTo(density);
+  }
+
   @Test public void exifRotation() {
     Request data = new Request.Builder(URI_1).rotate(-45).build();
     Bitmap source = Bitmap.createBitmap(10, 10, ARGB_8888);
@@ -967,6 +1368,91 @@ public class BitmapHunterTest {
     }
   }
 
+  @Test public void fusedTransformationsDrawOneBitmap() {
+    Request data = new Request.Builder(URI_1)
+        .resize(40, 20)
+        .centerCrop()
+        .transform(new ScaleTransformation(0.5f))
+        .transform(new ScaleTransformation(0.5f))
+        .build();
+    BitmapHunter hunter = new TestableBitmapHunter(picasso, dispatcher, cache, stats,
+        mockAction(RequestKey.of(data), data));
+    Bitmap source = Bitmap.createBitmap(100, 100, ARGB_8888);
+
+    Bitmap result = hunter.transform(source, false);
+    assertThat(result.getWidth()).isEqualTo(10);
+    assertThat(result.getHeight()).isEqualTo(5);
+    assertThat(source.isRecycled()).isTrue();
+    assertThat(shadowOf(result).getCreatedFromBitmap()).isNull();
+  }
+
+  @Test public void fusedTransformationKeepsSharedSource() {
+    Request data = new Request.Builder(URI_1).transform(new ScaleTransformation(0.5f)).build();
+    BitmapHunter hunter = new TestableBitmapHunter(picasso, dispatcher, cache, stats,
+        mockAction(RequestKey.of(data), data));
+    Bitmap source = Bitmap.createBitmap(100, 100, ARGB_8888);
+
+    Bitmap result = hunter.transform(source, true);
+    assertThat(result.getWidth()).isEqualTo(50);
+    assertThat(source.isRecycled()).isFalse();
+  }
+
+  @Test public void transformationsAfterFusedOnesAreApplied() {
+    Bitmap transformed = makeBitmap(3, 3);
+    Transformation plain = spy(new TestTransformation("plain", transformed));
+    Request data = new Request.Builder(URI_1)
+        .transform(new ScaleTransformation(0.5f))
+        .transform(plain)
+        .transform(new ScaleTransformation(0.5f))
+        .build();
+    BitmapHunter hunter = new TestableBitmapHunter(picasso, dispatcher, cache, stats,
+        mockAction(RequestKey.of(data), data));
+
+    Bitmap result = hunter.transform(Bitmap.createBitmap(100, 100, ARGB_8888), false);
+    ArgumentCaptor<Bitmap> captor = ArgumentCaptor.forClass(Bitmap.class);
+    verify(plain).transform(captor.capture());
+    assertThat(captor.getValue().getWidth()).isEqualTo(50);
+    // Only the leading fused transformations share the pass, later ones run on their own.
+    assertThat(result.getWidth()).isEqualTo(2);
+  }
+
+  @Test public void declinedFusionFallsBackToTransform() {
+    Bitmap transformed = makeBitmap(3, 3);
+    ScaleTransformation declining = new ScaleTransformation(0.5f, transformed);
+    Request data = new Request.Builder(URI_1).resize(20, 20).transform(declining).build();
+    BitmapHunter hunter = new TestableBitmapHunter(picasso, dispatcher, cache, stats,
+        mockAction(RequestKey.of(data), data));
+
+    assertThat(hunter.transform(Bitmap.createBitmap(100, 100, ARGB_8888), false))
+        .isSameAs(transformed);
+  }
+
+  @Test public void clippedPassHasAlpha() {
+    Request data = new Request.Builder(URI_1).transform(new FusedTransformation() {
+      @Override public boolean fuse(DrawPass pass) {
+        Path path = new Path();
+        path.addCircle(pass.getWidth() / 2f, pass.getHeight() / 2f, pass.getWidth() / 2f,
+            Path.Direction.CW);
+        pass.clip(path);
+        return true;
+      }
+
+      @Override public Bitmap transform(Bitmap source) {
+        throw new AssertionError();
+      }
+
+      @Override public String key() {
+        return "circle";
+      }
+    }).build();
+    BitmapHunter hunter = new TestableBitmapHunter(picasso, dispatcher, cache, stats,
+        mockAction(RequestKey.of(data), data));
+
+    Bitmap result = hunter.transform(Bitmap.createBitmap(10, 10, RGB_565), false);
+    assertThat(result.getConfig()).isEqualTo(ARGB_8888);
+    assertThat(result.hasAlpha()).isTrue();
+  }
+
   @Test public void nullResultFromTransformationThrows() {
     Transformation badTransformation = new Transformation() {
       @Override public Bitmap transform(Bitmap source) {
@@ -1047,7 +1533,8 @@ public class BitmapHunterTest {
 
     TestableBitmapHunter(Picasso picasso, Dispatcher dispatcher, Cache cache, Stats stats,
         Action action, Bitmap result, IOException exception) {
-      super(picasso, dispatcher, cache, stats, action, spy(new TestableRequestHandler(result, exception)));
+      super(picasso, dispatcher, cache, null, mock(MemoryGovernor.class), stats, action,
+          spy(new TestableRequestHandler(result, exception)));
     }
 
     @Override Picasso.LoadedFrom getLoadedFrom() {
@@ -1080,10 +1567,76 @@ public class BitmapHunterTest {
     }
   }
 
+  /** Encodes a blank image, whose size the shadow region decoder reads from the header. */
+  private static byte[] png(int width, int height) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB), "png", out);
+    return out.toByteArray();
+  }
+
+  /** Scales by a factor in the draw pass, or declines and returns a fixed result. */
+  private static class ScaleTransformation implements FusedTransformation {
+    private final float scale;
+    private final Bitmap declinedResult;
+
+    ScaleTransformation(float scale) {
+      this(scale, null);
+    }
+
+    ScaleTransformation(float scale, Bitmap declinedResult) {
+      this.scale = scale;
+      this.declinedResult = declinedResult;
+    }
+
+    @Override public boolean fuse(DrawPass pass) {
+      if (declinedResult != null) {
+        return false;
+      }
+      pass.scale(scale, scale);
+      return true;
+    }
+
+    @Override public Bitmap transform(Bitmap source) {
+      if (declinedResult == null) {
+        Bitmap result = Bitmap.createScaledBitmap(source,
+            Math.round(source.getWidth() * scale), Math.round(source.getHeight() * scale), true);
+        source.recycle();
+        return result;
+      }
+      source.recycle();
+      return declinedResult;
+    }
+
+    @Override public String key() {
+      return "scale(" + scale + ")";
+    }
+  }
+
+  private static class StreamRequestHandler extends RequestHandler {
+    @Override public boolean canHandleRequest(Request data) {
+      return true;
+    }
+
+    @Override public Result load(Request request, int networkPolicy) throws IOException {
+      return new Result(Okio.source(new ByteArrayInputStream(png(100, 50))), DISK);
+    }
+  }
+
+  private static class NetworkStreamRequestHandler extends NetworkRequestHandler {
+    NetworkStreamRequestHandler() {
+      super(null, null);
+    }
+
+    @Override public Result load(Request request, int networkPolicy) throws IOException {
+      return new Result(Okio.source(new ByteArrayInputStream(png(100, 50))), NETWORK);
+    }
+  }
+
   private static class OOMBitmapHunter extends BitmapHunter {
     OOMBitmapHunter(Picasso picasso, Dispatcher dispatcher, Cache cache, Stats stats,
         Action action) {
-      super(picasso, dispatcher, cache, stats, action, spy(new OOMRequestHandler()));
+      super(picasso, dispatcher, cache, null, mock(MemoryGovernor.class), stats, action,
+          spy(new OOMRequestHandler()));
     }
   }
 
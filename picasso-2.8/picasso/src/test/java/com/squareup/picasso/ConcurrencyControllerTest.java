@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.squareup.picasso.ConcurrencyController.WINDOW_SIZE;
+import static org.junit.Assert.fail;
+
+public class ConcurrencyControllerTest {
+  private long now = TimeUnit.SECONDS.toNanos(1);
+
+  @Test public void invalidBoundsThrows() {
+    try {
+      new ConcurrencyController(3, 0, 4);
+      fail("Zero minimum should throw.");
+    } catch (IllegalArgumentException ignored) {
+    }
+    try {
+      new ConcurrencyController(3, 4, 2);
+      fail("Maximum below minimum should throw.");
+    } catch (IllegalArgumentException ignored) {
+    }
+  }
+
+  @Test public void initialLimitIsClamped() {
+    assertThat(new ConcurrencyController(20, 1, 6).limit).isEqualTo(6);
+    assertThat(new ConcurrencyController(0, 2, 6).limit).isEqualTo(2);
+  }
+
+  @Test public void partialWindowDoesNotChangeLimit() {
+    ConcurrencyController controller = new ConcurrencyController(3);
+    for (int i = 0; i < WINDOW_SIZE - 1; i++) {
+      assertThat(controller.record(now, now + millis(100), 10000, true)).isFalse();
+    }
+    assertThat(controller.limit).isEqualTo(3);
+  }
+
+  @Test public void firstWindowOnlyWarmsUp() {
+    ConcurrencyController controller = new ConcurrencyController(3);
+    assertThat(window(controller, 100, 10000, true)).isFalse();
+    assertThat(controller.limit).isEqualTo(3);
+    assertThat(window(controller, 100, 10000, true)).isTrue();
+    assertThat(controller.limit).isEqualTo(4);
+  }
+
+  @Test public void backlogProbesOneMoreThread() {
+    ConcurrencyController controller = warm(new ConcurrencyController(3));
+    assertThat(window(controller, 100, 10000, true)).isTrue();
+    assertThat(controller.limit).isEqualTo(4);
+    assertThat(controller.reason).contains("probing");
+  }
+
+  @Test public void withoutBacklogHolds() {
+    ConcurrencyController controller = warm(new ConcurrencyController(3));
+    assertThat(window(controller, 100, 10000, false)).isFalse();
+    assertThat(controller.limit).isEqualTo(3);
+    assertThat(controller.reason).isEqualTo("initial");
+  }
+
+  @Test public void probeThatPaysKeepsClimbing() {
+    ConcurrencyController controller = warm(new ConcurrencyController(3));
+    window(controller, 100, 10000, true);
+    // Each thread is as fast as before, so four threads move a third more than three.
+    assertThat(window(controller, 100, 10000, true)).isTrue();
+    assertThat(controller.limit).isEqualTo(5);
+    assertThat(controller.reason).contains("after");
+  }
+
+  @Test public void probeThatDoesNotPayIsUndoneAndHolds() {
+    ConcurrencyController controller = warm(new ConcurrencyController(3));
+    window(controller, 100, 10000, true);
+    // Four threads sharing what three had.
+    assertThat(window(controller, 133, 10000, true)).isTrue();
+    assertThat(controller.limit).isEqualTo(3);
+    assertThat(controller.reason).contains("undid");
+
+    for (int i = 0; i < ConcurrencyController.HOLD_WINDOWS; i++) {
+      assertThat(window(controller, 100, 10000, true)).isFalse();
+    }
+    assertThat(window(controller, 100, 10000, true)).isTrue();
+    assertThat(controller.limit).isEqualTo(4);
+  }
+
+  @Test public void fruitlessProbesBackOff() {
+    ConcurrencyController controller = warm(new ConcurrencyController(3));
+    window(controller, 100, 10000, true);
+    window(controller, 133, 10000, true);
+    skipHold(controller, ConcurrencyController.HOLD_WINDOWS);
+    window(controller, 100, 10000, true);
+    assertThat(window(controller, 133, 10000, true)).isTrue();
+    assertThat(controller.limit).isEqualTo(3);
+
+    skipHold(controller, 2 * ConcurrencyController.HOLD_WINDOWS);
+    assertThat(window(controller, 100, 10000, true)).isTrue();
+    assertThat(controller.limit).isEqualTo(4);
+  }
+
+  @Test public void probeThatLosesThroughputTriesFewerThreads() {
+    ConcurrencyController controller = warm(new ConcurrencyController(4));
+    window(controller, 100, 10000, true);
+    // Five threads move less than four did: the link is past saturation.
+    assertThat(window(controller, 200, 10000, true)).isTrue();
+    assertThat(controller.limit).isEqualTo(4);
+
+    assertThat(window(controller, 100, 10000, true)).isTrue();
+    assertThat(controller.limit).isEqualTo(3);
+    assertThat(controller.reason).contains("probing 3");
+
+    // Three threads move more than four did, so two are tried as well.
+    assertThat(window(controller, 60, 10000, true)).isTrue();
+    assertThat(controller.limit).isEqualTo(2);
+
+    // Two threads lose throughput, so the limit returns to three and holds there.
+    assertThat(window(controller, 60, 10000, true)).isTrue();
+    assertThat(controller.limit).isEqualTo(3);
+    assertThat(controller.reason).contains("undid");
+    skipHold(controller, ConcurrencyController.HOLD_WINDOWS);
+  }
+
+  @Test public void fewerThreadsWithoutLossAreKept() {
+    ConcurrencyController controller = warm(new ConcurrencyController(4));
+    window(controller, 100, 10000, true);
+    window(controller, 200, 10000, true);
+    window(controller, 100, 10000, true);
+    // Three threads move exactly what four did.
+    assertThat(window(controller, 75, 10000, true)).isFalse();
+    assertThat(controller.limit).isEqualTo(3);
+    assertThat(controller.reason).contains("kept");
+  }
+
+  @Test public void samplesStartedBeforeChangeAreIgnored() {
+    ConcurrencyController controller = warm(new ConcurrencyController(3));
+    long before = now;
+    window(controller, 100, 10000, true);
+    assertThat(controller.limit).isEqualTo(4);
+
+    // Slow hunters that were already running under the old limit do not count against the probe.
+    for (int i = 0; i < WINDOW_SIZE; i++) {
+      assertThat(controller.record(before, now + millis(1000), 10000, true)).isFalse();
+    }
+    assertThat(window(controller, 100, 10000, true)).isTrue();
+    assertThat(controller.limit).isEqualTo(5);
+  }
+
+  @Test public void inflatedTimePerByteDecreases() {
+    ConcurrencyController controller = warm(new ConcurrencyController(4, 1, 4));
+    assertThat(window(controller, 100, 10000, true)).isFalse();
+    assertThat(window(controller, 400, 10000, true)).isTrue();
+    assertThat(controller.limit).isEqualTo(3);
+    assertThat(controller.reason).contains("time per KiB");
+  }
+
+  @Test public void limitStaysWithinBounds() {
+    ConcurrencyController controller = warm(new ConcurrencyController(2, 1, 3));
+    for (int i = 0; i < 5; i++) {
+      window(controller, 100, 10000, true);
+    }
+    assertThat(controller.limit).isEqualTo(3);
+
+    controller = warm(new ConcurrencyController(1, 1, 3));
+    window(controller, 100, 10000, true);
+    assertThat(controller.limit).isEqualTo(2);
+    window(controller, 400, 10000, true);
+    assertThat(controller.limit).isEqualTo(1);
+    window(controller, 100, 10000, true);
+    assertThat(window(controller, 1000, 10000, true)).isFalse();
+    assertThat(controller.limit).isEqualTo(1);
+  }
+
+  @Test public void resetDiscardsObservations() {
+    ConcurrencyController controller = warm(new ConcurrencyController(4));
+    window(controller, 100, 10000, true);
+    controller.reset(2, "network changed");
+    assertThat(controller.limit).isEqualTo(2);
+    assertThat(controller.reason).isEqualTo("network changed");
+
+    // The probe from before the reset is forgotten, and the first window only warms up again.
+    assertThat(window(controller, 400, 10000, true)).isFalse();
+    assertThat(controller.limit).isEqualTo(2);
+    assertThat(window(controller, 400, 10000, true)).isTrue();
+    assertThat(controller.limit).isEqualTo(3);
+    assertThat(controller.reason).contains("probing");
+  }
+
+  /** Pass the window that is dropped while connections are set up. */
+  private ConcurrencyController warm(ConcurrencyController controller) {
+    window(controller, 100, 10000, false);
+    return controller;
+  }
+
+  private void skipHold(ConcurrencyController controller, int windows) {
+    int limit = controller.limit;
+    for (int i = 0; i < windows; i++) {
+      assertThat(window(controller, 100, 10000, true)).isFalse();
+    }
+    assertThat(controller.limit).isEqualTo(limit);
+  }
+
+  /** Feed one full window of hunters that ran concurrently for {@code latencyMs}. */
+  private boolean window(ConcurrencyController controller, long latencyMs, long bytes,
+      boolean backlogged) {
+    boolean changed = false;
+    long start = now;
+    for (int i = 0; i < WINDOW_SIZE; i++) {
+      changed = controller.record(start, start + millis(latencyMs), bytes, backlogged);
+    }
+    now = start + millis(latencyMs);
+    return changed;
+  }
+
+  private static long millis(long millis) {
+    return TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+}
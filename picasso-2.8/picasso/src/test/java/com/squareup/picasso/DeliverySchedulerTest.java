@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.widget.ImageView;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import static android.graphics.Bitmap.Config.ARGB_8888;
+import static com.google.common.truth.Truth.assertThat;
+import static com.squareup.picasso.DeliveryScheduler.FRAME_INTERVAL_NANOS;
+import static com.squareup.picasso.Picasso.LoadedFrom.MEMORY;
+import static com.squareup.picasso.TestUtils.URI_1;
+import static com.squareup.picasso.TestUtils.URI_KEY_1;
+import static com.squareup.picasso.TestUtils.makeBitmap;
+import static com.squareup.picasso.TestUtils.mockAction;
+import static com.squareup.picasso.TestUtils.mockCanceledAction;
+import static com.squareup.picasso.TestUtils.mockHunter;
+import static com.squareup.picasso.TestUtils.mockImageViewTarget;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class DeliverySchedulerTest {
+  @Mock Context context;
+  @Mock Dispatcher dispatcher;
+  @Mock Cache cache;
+  @Mock Picasso.Listener listener;
+  @Mock Stats stats;
+
+  private final Bitmap bitmap = makeBitmap();
+  private Picasso picasso;
+
+  @Before public void setUp() {
+    initMocks(this);
+    // Frames are driven by the tests.
+    Robolectric.getForegroundThreadScheduler().pause();
+  }
+
+  @Test public void deliversEverythingThatFitsInBudget() {
+    DeliveryScheduler scheduler = scheduler(Long.MAX_VALUE);
+    Action first = mockAction(URI_KEY_1, URI_1);
+    Action second = mockAction(URI_KEY_1, URI_1);
+    scheduler.deliver(Arrays.asList(hunter(first), hunter(second)));
+
+    verify(first).complete(bitmap, MEMORY);
+    verify(second).complete(bitmap, MEMORY);
+    assertThat(scheduler.pendingCount()).isEqualTo(0);
+    verify(dispatcher, never()).dispatchBatchDelivered();
+
+    scheduler.onFrame(System.nanoTime());
+    verify(dispatcher).dispatchBatchDelivered();
+  }
+
+  @Test public void spreadsDeliveriesOverFrames() {
+    DeliveryScheduler scheduler = scheduler(0);
+    Action first = mockAction(URI_KEY_1, URI_1);
+    Action second = mockAction(URI_KEY_1, URI_1);
+    Action third = mockAction(URI_KEY_1, URI_1);
+    scheduler.deliver(Arrays.asList(hunter(first), hunter(second), hunter(third)));
+
+    verify(first).complete(bitmap, MEMORY);
+    verify(second, never()).complete(bitmap, MEMORY);
+    assertThat(scheduler.pendingCount()).isEqualTo(2);
+
+    long frameTime = System.nanoTime();
+    scheduler.onFrame(frameTime);
+    verify(second).complete(bitmap, MEMORY);
+    verify(third, never()).complete(bitmap, MEMORY);
+    verify(dispatcher, never()).dispatchBatchDelivered();
+
+    scheduler.onFrame(frameTime + FRAME_INTERVAL_NANOS);
+    verify(third).complete(bitmap, MEMORY);
+    assertThat(scheduler.pendingCount()).isEqualTo(0);
+    verify(dispatcher, never()).dispatchBatchDelivered();
+
+    scheduler.onFrame(frameTime + 2 * FRAME_INTERVAL_NANOS);
+    verify(dispatcher).dispatchBatchDelivered();
+  }
+
+  @Test public void shownImageViewsGoFirst() {
+    DeliveryScheduler scheduler = scheduler(0);
+    Action fetch = mockAction(URI_KEY_1, URI_1);
+    Action hidden = imageViewAction(false);
+    Action shown = imageViewAction(true);
+    scheduler.deliver(Arrays.asList(hunter(fetch), hunter(hidden), hunter(shown)));
+    long frameTime = System.nanoTime();
+    scheduler.onFrame(frameTime);
+    scheduler.onFrame(frameTime + FRAME_INTERVAL_NANOS);
+
+    InOrder inOrder = inOrder(shown, hidden, fetch);
+    inOrder.verify(shown).complete(bitmap, MEMORY);
+    inOrder.verify(hidden).complete(bitmap, MEMORY);
+    inOrder.verify(fetch).complete(bitmap, MEMORY);
+  }
+
+  @Test public void cancelledActionsDoNotUseBudget() {
+    DeliveryScheduler scheduler = scheduler(0);
+    Action cancelled = mockCanceledAction();
+    Action action = mockAction(URI_KEY_1, URI_1);
+    BitmapHunter hunter = hunter(cancelled);
+    when(hunter.getActions()).thenReturn(Collections.singletonList(action));
+    scheduler.deliver(Collections.singletonList(hunter));
+
+    verify(cancelled, never()).complete(bitmap, MEMORY);
+    verify(action).complete(bitmap, MEMORY);
+    assertThat(scheduler.pendingCount()).isEqualTo(0);
+  }
+
+  @Test public void actionsCancelledWhileWaitingAreSkipped() {
+    DeliveryScheduler scheduler = scheduler(0);
+    Action first = mockAction(URI_KEY_1, URI_1);
+    Action second = mockAction(URI_KEY_1, URI_1);
+    scheduler.deliver(Arrays.asList(hunter(first), hunter(second)));
+    when(second.isCancelled()).thenReturn(true);
+
+    long frameTime = System.nanoTime();
+    scheduler.onFrame(frameTime);
+    verify(second, never()).complete(bitmap, MEMORY);
+    scheduler.onFrame(frameTime + FRAME_INTERVAL_NANOS);
+    verify(dispatcher).dispatchBatchDelivered();
+  }
+
+  @Test public void batchesArrivingWhileWaitingAreQueued() {
+    DeliveryScheduler scheduler = scheduler(0);
+    Action first = mockAction(URI_KEY_1, URI_1);
+    Action second = mockAction(URI_KEY_1, URI_1);
+    Action third = mockAction(URI_KEY_1, URI_1);
+    scheduler.deliver(Arrays.asList(hunter(first), hunter(second)));
+    scheduler.deliver(Collections.singletonList(hunter(third)));
+
+    verify(second, never()).complete(bitmap, MEMORY);
+    verify(third, never()).complete(bitmap, MEMORY);
+    assertThat(scheduler.pendingCount()).isEqualTo(2);
+
+    long frameTime = System.nanoTime();
+    scheduler.onFrame(frameTime);
+    scheduler.onFrame(frameTime + FRAME_INTERVAL_NANOS);
+    verify(third).complete(bitmap, MEMORY);
+    scheduler.onFrame(frameTime + 2 * FRAME_INTERVAL_NANOS);
+    verify(dispatcher, times(1)).dispatchBatchDelivered();
+  }
+
+  @Test public void skippedFramesAreCounted() {
+    DeliveryScheduler scheduler = scheduler(0);
+    long start = System.nanoTime();
+    scheduler.deliver(Arrays.asList(hunter(mockAction(URI_KEY_1, URI_1)),
+        hunter(mockAction(URI_KEY_1, URI_1)), hunter(mockAction(URI_KEY_1, URI_1))));
+
+    long frameTime = start + 4 * FRAME_INTERVAL_NANOS;
+    scheduler.onFrame(frameTime);
+    verify(stats).dispatchDeliveryFrame(3);
+    scheduler.onFrame(frameTime + FRAME_INTERVAL_NANOS);
+    verify(stats).dispatchDeliveryFrame(0);
+  }
+
+  @Test public void failuresAreReportedOncePerHunter() {
+    DeliveryScheduler scheduler = scheduler(Long.MAX_VALUE);
+    Exception exception = new Exception();
+    Action first = mockAction(URI_KEY_1, URI_1);
+    Action second = mockAction(URI_KEY_1, URI_1);
+    BitmapHunter hunter = mockHunter(URI_KEY_1, null, false, first);
+    when(hunter.getException()).thenReturn(exception);
+    when(hunter.getActions()).thenReturn(Collections.singletonList(second));
+    scheduler.deliver(Collections.singletonList(hunter));
+
+    verify(first).error(exception);
+    verify(second).error(exception);
+    verify(listener).onImageLoadFailed(picasso(), URI_1, exception);
+  }
+
+  @Test public void failuresAreReportedAfterTheLastActionIsDelivered() {
+    DeliveryScheduler scheduler = scheduler(0);
+    Exception exception = new Exception();
+    Action first = mockAction(URI_KEY_1, URI_1);
+    Action second = mockAction(URI_KEY_1, URI_1);
+    BitmapHunter hunter = mockHunter(URI_KEY_1, null, false, first);
+    when(hunter.getException()).thenReturn(exception);
+    when(hunter.getActions()).thenReturn(Collections.singletonList(second));
+    scheduler.deliver(Collections.singletonList(hunter));
+
+    verify(first).error(exception);
+    verify(listener, never()).onImageLoadFailed(picasso(), URI_1, exception);
+
+    scheduler.onFrame(System.nanoTime());
+    InOrder inOrder = inOrder(second, listener);
+    inOrder.verify(second).error(exception);
+    inOrder.verify(listener).onImageLoadFailed(picasso(), URI_1, exception);
+  }
+
+  @Test public void deliverInvokesSuccessOnAllSuccessfulRequests() {
+    Action action1 = mockAction(URI_KEY_1, URI_1, mockImageViewTarget());
+    Action action2 = mockCanceledAction();
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap, false);
+    when(hunter.getActions()).thenReturn(Arrays.asList(action1, action2));
+    when(hunter.getLoadedFrom()).thenReturn(MEMORY);
+    scheduler(Long.MAX_VALUE).deliver(Collections.singletonList(hunter));
+    verify(action1).complete(bitmap, MEMORY);
+    verify(action2, never()).complete(eq(bitmap), any(Picasso.LoadedFrom.class));
+  }
+
+  @Test public void deliverInvokesErrorOnAllFailedRequests() {
+    Action action1 = mockAction(URI_KEY_1, URI_1, mockImageViewTarget());
+    Action action2 = mockCanceledAction();
+    Exception exception = mock(Exception.class);
+    BitmapHunter hunter = mockHunter(URI_KEY_1, null, false);
+    when(hunter.getException()).thenReturn(exception);
+    when(hunter.getActions()).thenReturn(Arrays.asList(action1, action2));
+    scheduler(Long.MAX_VALUE).deliver(Collections.singletonList(hunter));
+    verify(action1).error(exception);
+    verify(action2, never()).error(exception);
+    verify(listener).onImageLoadFailed(picasso(), URI_1, exception);
+  }
+
+  @Test public void deliverDeliversToSingle() {
+    Action action = mockAction(URI_KEY_1, URI_1, mockImageViewTarget());
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap, false);
+    when(hunter.getLoadedFrom()).thenReturn(MEMORY);
+    when(hunter.getAction()).thenReturn(action);
+    when(hunter.getActions()).thenReturn(Collections.<Action>emptyList());
+    scheduler(Long.MAX_VALUE).deliver(Collections.singletonList(hunter));
+    verify(action).complete(bitmap, MEMORY);
+  }
+
+  @Test public void deliverWithReplayDoesNotRemove() {
+    Action action = mockAction(URI_KEY_1, URI_1, mockImageViewTarget());
+    when(action.willReplay()).thenReturn(true);
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap, false);
+    when(hunter.getLoadedFrom()).thenReturn(MEMORY);
+    when(hunter.getAction()).thenReturn(action);
+    picasso().enqueueAndSubmit(action);
+    assertThat(picasso().targetToAction).hasSize(1);
+    scheduler(Long.MAX_VALUE).deliver(Collections.singletonList(hunter));
+    assertThat(picasso().targetToAction).hasSize(1);
+    verify(action).complete(bitmap, MEMORY);
+  }
+
+  @Test public void deliverDeliversToSingleAndMultiple() {
+    Action action = mockAction(URI_KEY_1, URI_1, mockImageViewTarget());
+    Action action2 = mockAction(URI_KEY_1, URI_1, mockImageViewTarget());
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap, false);
+    when(hunter.getLoadedFrom()).thenReturn(MEMORY);
+    when(hunter.getAction()).thenReturn(action);
+    when(hunter.getActions()).thenReturn(Arrays.asList(action2));
+    scheduler(Long.MAX_VALUE).deliver(Collections.singletonList(hunter));
+    verify(action).complete(bitmap, MEMORY);
+    verify(action2).complete(bitmap, MEMORY);
+  }
+
+  @Test public void deliverSkipsIfNoActions() {
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap, false);
+    scheduler(Long.MAX_VALUE).deliver(Collections.singletonList(hunter));
+    verify(hunter).getAction();
+    verify(hunter).getActions();
+    verifyNoMoreInteractions(hunter);
+  }
+
+  @Test public void loadedFromIsNullThrows() {
+    Action action = mockAction(URI_KEY_1, URI_1, mockImageViewTarget());
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap, false);
+    when(hunter.getAction()).thenReturn(action);
+    try {
+      scheduler(Long.MAX_VALUE).deliver(Collections.singletonList(hunter));
+      fail("Delivering with null LoadedFrom should throw");
+    } catch (AssertionError expected) {
+    }
+  }
+
+  @Test public void shutdownDropsWaitingDeliveries() {
+    DeliveryScheduler scheduler = scheduler(0);
+    Action first = mockAction(URI_KEY_1, URI_1);
+    Action second = mockAction(URI_KEY_1, URI_1);
+    scheduler.deliver(Arrays.asList(hunter(first), hunter(second)));
+    scheduler.shutdown();
+
+    assertThat(scheduler.pendingCount()).isEqualTo(0);
+    verify(second, never()).complete(bitmap, MEMORY);
+  }
+
+  private Picasso picasso() {
+    if (picasso == null) {
+      picasso = new Picasso(context, dispatcher, cache, listener, null, null, stats, ARGB_8888,
+          false, false);
+    }
+    return picasso;
+  }
+
+  private DeliveryScheduler scheduler(long budgetNanos) {
+    return new DeliveryScheduler(picasso(), Picasso.HANDLER, budgetNanos);
+  }
+
+  private BitmapHunter hunter(Action action) {
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap, false, action);
+    when(hunter.getLoadedFrom()).thenReturn(MEMORY);
+    when(hunter.getActions()).thenReturn(Collections.<Action>emptyList());
+    return hunter;
+  }
+
+  private static Action imageViewAction(boolean shown) {
+    ImageView view = mock(ImageView.class);
+    when(view.isShown()).thenReturn(shown);
+    ImageViewAction action = mock(ImageViewAction.class);
+    when(action.getTarget()).thenReturn(view);
+    return action;
+  }
+}
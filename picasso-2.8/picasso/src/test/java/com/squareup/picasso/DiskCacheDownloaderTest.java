@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import java.io.File;
+import okhttp3.CacheControl;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.Buffer;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(
+    sdk = 23 // Works around https://github.com/robolectric/robolectric/issues/2566.
+)
+public class DiskCacheDownloaderTest {
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+  @Rule public MockWebServer server = new MockWebServer();
+
+  private DiskCacheDownloader downloader;
+
+  @Before public void setUp() throws Exception {
+    File http = temporaryFolder.newFolder("http");
+    File images = temporaryFolder.newFolder("images");
+    downloader = new DiskCacheDownloader(new OkHttp3Downloader(http, 1024 * 1024), images,
+        1024 * 1024, ".*/image/.*");
+  }
+
+  @Test public void immutableImageIsServedFromDiskAfterFirstLoad() throws Exception {
+    server.enqueue(new MockResponse().setBody("Hi").addHeader("Cache-Control", "no-cache"));
+    Request request = new Request.Builder().url(server.url("/image/1")).build();
+
+    Response first = downloader.load(request);
+    assertThat(first.body().string()).isEqualTo("Hi");
+    assertThat(first.cacheResponse()).isNull();
+
+    Response second = downloader.load(request);
+    assertThat(second.cacheResponse()).isNotNull();
+    assertThat(second.body().contentLength()).isEqualTo(2);
+    assertThat(second.body().string()).isEqualTo("Hi");
+    assertThat(server.getRequestCount()).isEqualTo(1);
+  }
+
+  @Test public void partlyReadImageIsCachedOnClose() throws Exception {
+    server.enqueue(new MockResponse().setBody("Hello"));
+    Request request = new Request.Builder().url(server.url("/image/1")).build();
+
+    Response first = downloader.load(request);
+    assertThat(first.body().source().readUtf8(2)).isEqualTo("He");
+    first.close();
+
+    assertThat(downloader.load(request).body().string()).isEqualTo("Hello");
+    assertThat(server.getRequestCount()).isEqualTo(1);
+  }
+
+  @Test public void otherUrlsGoToNetwork() throws Exception {
+    server.enqueue(new MockResponse().setBody("Hi").addHeader("Cache-Control", "no-store"));
+    server.enqueue(new MockResponse().setBody("Hi").addHeader("Cache-Control", "no-store"));
+    Request request = new Request.Builder().url(server.url("/avatar/1")).build();
+
+    assertThat(downloader.load(request).body().string()).isEqualTo("Hi");
+    assertThat(downloader.load(request).body().string()).isEqualTo("Hi");
+    assertThat(server.getRequestCount()).isEqualTo(2);
+  }
+
+  @Test public void noCacheSkipsCache() throws Exception {
+    server.enqueue(new MockResponse().setBody("Hi"));
+    server.enqueue(new MockResponse().setBody("Bye"));
+    Request request = new Request.Builder().url(server.url("/image/1")).build();
+    assertThat(downloader.load(request).body().string()).isEqualTo("Hi");
+
+    Request noCache = request.newBuilder().cacheControl(CacheControl.FORCE_NETWORK).build();
+    assertThat(downloader.load(noCache).body().string()).isEqualTo("Bye");
+    assertThat(downloader.load(request).body().string()).isEqualTo("Bye");
+    assertThat(server.getRequestCount()).isEqualTo(2);
+  }
+
+  @Test public void errorsAreNotCached() throws Exception {
+    server.enqueue(new MockResponse().setResponseCode(404).setBody("Nope"));
+    server.enqueue(new MockResponse().setBody("Hi"));
+    Request request = new Request.Builder().url(server.url("/image/1")).build();
+
+    assertThat(downloader.load(request).code()).isEqualTo(404);
+    assertThat(downloader.load(request).body().string()).isEqualTo("Hi");
+    assertThat(server.getRequestCount()).isEqualTo(2);
+  }
+
+  @Test public void largeImageIsNotCached() throws Exception {
+    Buffer body = new Buffer().write(new byte[200 * 1024]);
+    server.enqueue(new MockResponse().setBody(body.clone()).addHeader("Cache-Control", "no-store"));
+    server.enqueue(new MockResponse().setBody(body).addHeader("Cache-Control", "no-store"));
+    Request request = new Request.Builder().url(server.url("/image/1")).build();
+
+    assertThat(downloader.load(request).body().bytes()).hasLength(200 * 1024);
+    assertThat(downloader.load(request).body().bytes()).hasLength(200 * 1024);
+    assertThat(server.getRequestCount()).isEqualTo(2);
+  }
+}
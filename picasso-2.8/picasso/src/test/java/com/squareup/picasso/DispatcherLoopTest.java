@@ -0,0 +1,884 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.Message;
+import com.squareup.picasso.NetworkRequestHandler.ContentLengthException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.ParameterizedRobolectricTestRunner;
+import org.robolectric.Robolectric;
+import org.robolectric.util.Scheduler;
+
+import static android.content.Context.CONNECTIVITY_SERVICE;
+import static android.content.Intent.ACTION_AIRPLANE_MODE_CHANGED;
+import static android.content.pm.PackageManager.PERMISSION_DENIED;
+import static android.content.pm.PackageManager.PERMISSION_GRANTED;
+import static android.net.ConnectivityManager.CONNECTIVITY_ACTION;
+import static com.google.common.truth.Truth.assertThat;
+import static com.squareup.picasso.Dispatcher.NetworkBroadcastReceiver;
+import static com.squareup.picasso.Dispatcher.NetworkBroadcastReceiver.EXTRA_AIRPLANE_STATE;
+import static com.squareup.picasso.Picasso.LoadedFrom.MEMORY;
+import static com.squareup.picasso.TestUtils.URI_1;
+import static com.squareup.picasso.TestUtils.URI_2;
+import static com.squareup.picasso.TestUtils.URI_KEY_1;
+import static com.squareup.picasso.TestUtils.URI_KEY_2;
+import static com.squareup.picasso.TestUtils.makeBitmap;
+import static com.squareup.picasso.TestUtils.mockAction;
+import static com.squareup.picasso.TestUtils.mockCallback;
+import static com.squareup.picasso.TestUtils.mockHunter;
+import static com.squareup.picasso.TestUtils.mockNetworkInfo;
+import static com.squareup.picasso.TestUtils.mockPicasso;
+import static com.squareup.picasso.TestUtils.mockTarget;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(ParameterizedRobolectricTestRunner.class)
+public class DispatcherLoopTest {
+  @ParameterizedRobolectricTestRunner.Parameters(name = "{0}")
+  public static List<Object[]> parameters() {
+    return Arrays.asList(new Object[][] {
+        {"Handler", false},
+        {"lock-free queue", true},
+    });
+  }
+
+  @Mock Context context;
+  @Mock ConnectivityManager connectivityManager;
+  @Mock PicassoExecutorService service;
+  @Mock ExecutorService serviceMock;
+  @Mock Handler mainThreadHandler;
+  @Mock Downloader downloader;
+  @Mock Cache cache;
+  @Mock Stats stats;
+  @Mock MemoryGovernor governor;
+  private final boolean lockFreeQueue;
+  private Dispatcher dispatcher;
+
+  final Bitmap bitmap1 = makeBitmap();
+  final Bitmap bitmap2 = makeBitmap();
+
+  public DispatcherLoopTest(@SuppressWarnings("unused") String name, boolean lockFreeQueue) {
+    this.lockFreeQueue = lockFreeQueue;
+  }
+
+  @Before public void setUp() {
+    initMocks(this);
+    // Messages to the main thread's Looper, which runs a Handler loop, wait for drain or flush.
+    Robolectric.getForegroundThreadScheduler().pause();
+    dispatcher = createDispatcher();
+  }
+
+  @Test public void shutdownStopsService() {
+    dispatcher.shutdown();
+    verify(service).shutdown();
+  }
+
+  @Test public void shutdownStopsDownloader() {
+    dispatcher.shutdown();
+    verify(downloader).shutdown();
+  }
+
+  @Test public void shutdownUnregistersReceiver() {
+    dispatcher.shutdown();
+    flush(dispatcher);
+    verify(context).unregisterReceiver(dispatcher.receiver);
+  }
+
+  @Test public void dispatchSubmitWithNewRequestQueuesHunter() {
+    Action action = mockAction(URI_KEY_1, URI_1);
+    dispatcher.dispatchSubmit(action);
+    drain(dispatcher);
+    assertThat(dispatcher.hunterMap).hasSize(1);
+    verify(service).submit(any(BitmapHunter.class));
+  }
+
+  @Test public void dispatchSubmitWithTwoDifferentRequestsQueuesHunters() {
+    Action action1 = mockAction(URI_KEY_1, URI_1);
+    Action action2 = mockAction(URI_KEY_2, URI_2);
+    dispatcher.dispatchSubmit(action1);
+    dispatcher.dispatchSubmit(action2);
+    drain(dispatcher);
+    assertThat(dispatcher.hunterMap).hasSize(2);
+    verify(service, times(2)).submit(any(BitmapHunter.class));
+  }
+
+  @Test public void dispatchSubmitWithOtherSizeOfNetworkSourceJoinsHunter() {
+    Action action1 = mockNetworkAction(URI_KEY_1, new Request.Builder(URI_1).build());
+    Action action2 =
+        mockNetworkAction(URI_KEY_2, new Request.Builder(URI_1).resize(10, 10).build());
+    dispatcher.dispatchSubmit(action1);
+    dispatcher.dispatchSubmit(action2);
+    drain(dispatcher);
+    assertThat(dispatcher.hunterMap).hasSize(2);
+    assertThat(dispatcher.hunterMap.get(URI_KEY_2).source)
+        .isSameAs(dispatcher.hunterMap.get(URI_KEY_1));
+    verify(service).submit(any(BitmapHunter.class));
+  }
+
+  @Test public void dispatchSubmitWithOtherNetworkSourceQueuesHunter() {
+    dispatcher.dispatchSubmit(mockNetworkAction(URI_KEY_1, new Request.Builder(URI_1).build()));
+    dispatcher.dispatchSubmit(mockNetworkAction(URI_KEY_2, new Request.Builder(URI_2).build()));
+    drain(dispatcher);
+    assertThat(dispatcher.hunterMap.get(URI_KEY_2).source).isNull();
+    verify(service, times(2)).submit(any(BitmapHunter.class));
+  }
+
+  @Test public void dispatchCompleteCachesVariantsUnderTheirOwnKey() {
+    dispatcher.dispatchSubmit(mockNetworkAction(URI_KEY_1, new Request.Builder(URI_1).build()));
+    dispatcher.dispatchSubmit(
+        mockNetworkAction(URI_KEY_2, new Request.Builder(URI_1).resize(10, 10).build()));
+    drain(dispatcher);
+    BitmapHunter hunter = dispatcher.hunterMap.get(URI_KEY_1);
+    BitmapHunter variant = dispatcher.hunterMap.get(URI_KEY_2);
+    hunter.result = bitmap1;
+    variant.result = bitmap2;
+    dispatcher.deliveryInFlight = true;
+    dispatcher.dispatchComplete(hunter);
+    drain(dispatcher);
+    verify(cache).set(URI_KEY_1.toString(), bitmap1);
+    verify(cache).set(URI_KEY_2.toString(), bitmap2);
+    assertThat(dispatcher.hunterMap).isEmpty();
+    assertThat(dispatcher.sourceHunterMap).isEmpty();
+    assertThat(dispatcher.batch).containsExactly(hunter, variant);
+  }
+
+  @Test public void dispatchCompleteHuntsUndecodedVariantOnItsOwn() {
+    dispatcher.dispatchSubmit(mockNetworkAction(URI_KEY_1, new Request.Builder(URI_1).build()));
+    dispatcher.dispatchSubmit(
+        mockNetworkAction(URI_KEY_2, new Request.Builder(URI_1).resize(10, 10).build()));
+    drain(dispatcher);
+    BitmapHunter hunter = dispatcher.hunterMap.get(URI_KEY_1);
+    BitmapHunter variant = dispatcher.hunterMap.get(URI_KEY_2);
+    hunter.result = bitmap1;
+    dispatcher.dispatchComplete(hunter);
+    drain(dispatcher);
+    assertThat(variant.source).isNull();
+    assertThat(dispatcher.hunterMap).containsExactly(URI_KEY_2, variant);
+    verify(service).submit(variant);
+  }
+
+  @Test public void dispatchErrorFailsVariants() {
+    dispatcher.dispatchSubmit(mockNetworkAction(URI_KEY_1, new Request.Builder(URI_1).build()));
+    dispatcher.dispatchSubmit(
+        mockNetworkAction(URI_KEY_2, new Request.Builder(URI_1).resize(10, 10).build()));
+    drain(dispatcher);
+    BitmapHunter hunter = dispatcher.hunterMap.get(URI_KEY_1);
+    BitmapHunter variant = dispatcher.hunterMap.get(URI_KEY_2);
+    dispatcher.deliveryInFlight = true;
+    dispatcher.dispatchFailed(hunter);
+    drain(dispatcher);
+    assertThat(dispatcher.hunterMap).isEmpty();
+    assertThat(dispatcher.batch).containsExactly(hunter, variant);
+  }
+
+  @Test public void dispatchSubmitWithExistingRequestAttachesToHunter() {
+    Action action1 = mockAction(URI_KEY_1, URI_1);
+    Action action2 = mockAction(URI_KEY_1, URI_1);
+    dispatcher.dispatchSubmit(action1);
+    dispatcher.dispatchSubmit(action2);
+    drain(dispatcher);
+    assertThat(dispatcher.hunterMap).hasSize(1);
+    verify(service).submit(any(BitmapHunter.class));
+  }
+
+  @Test public void dispatchBatchSubmitSharesHunters() {
+    Action action1 = mockAction(URI_KEY_1, URI_1);
+    Action action2 = mockAction(URI_KEY_1, URI_1);
+    Action action3 = mockAction(URI_KEY_2, URI_2);
+    dispatcher.dispatchSubmit(Arrays.asList(action1, action2, action3));
+    drain(dispatcher);
+    assertThat(dispatcher.hunterMap).hasSize(2);
+    assertThat(dispatcher.hunterMap.get(URI_KEY_1).getActions()).containsExactly(action2);
+    verify(service, times(2)).submit(any(BitmapHunter.class));
+  }
+
+  @Test public void dispatchBatchSubmitSkipsCancelledActions() {
+    Action action = mockAction(URI_KEY_1, URI_1);
+    when(action.isCancelled()).thenReturn(true);
+    dispatcher.dispatchSubmit(Collections.singletonList(action));
+    drain(dispatcher);
+    assertThat(dispatcher.hunterMap).isEmpty();
+    verify(service, never()).submit(any(BitmapHunter.class));
+  }
+
+  @Test public void dispatchSubmitWithShutdownServiceIgnoresRequest() {
+    when(service.isShutdown()).thenReturn(true);
+    Action action = mockAction(URI_KEY_1, URI_1);
+    dispatcher.dispatchSubmit(action);
+    drain(dispatcher);
+    assertThat(dispatcher.hunterMap).isEmpty();
+    verify(service, never()).submit(any(BitmapHunter.class));
+  }
+
+  @Test public void dispatchSubmitWithShutdownAttachesRequest() {
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, false);
+    dispatcher.hunterMap.put(URI_KEY_1, hunter);
+    when(service.isShutdown()).thenReturn(true);
+    Action action = mockAction(URI_KEY_1, URI_1);
+    dispatcher.dispatchSubmit(action);
+    drain(dispatcher);
+    assertThat(dispatcher.hunterMap).hasSize(1);
+    verify(hunter).attach(action);
+    verify(service, never()).submit(any(BitmapHunter.class));
+  }
+
+  @Test public void dispatchSubmitWithFetchAction() {
+    String pausedTag = "pausedTag";
+    dispatcher.pausedTags.add(pausedTag);
+    assertThat(dispatcher.pausedActions).isEmpty();
+
+    FetchAction fetchAction1 =
+        new FetchAction(mockPicasso(), new Request.Builder(URI_1).build(), 0, 0, pausedTag,
+            URI_KEY_1, null);
+    FetchAction fetchAction2 =
+        new FetchAction(mockPicasso(), new Request.Builder(URI_1).build(), 0, 0, pausedTag,
+            URI_KEY_1, null);
+    dispatcher.dispatchSubmit(fetchAction1);
+    dispatcher.dispatchSubmit(fetchAction2);
+    drain(dispatcher);
+
+    assertThat(dispatcher.pausedActions).hasSize(2);
+  }
+
+  @Test public void dispatchSubmitWithFetchActionWithSuccessCompletionCallback() {
+    String pausedTag = "pausedTag";
+    Callback callback = mockCallback();
+
+    FetchAction fetchAction =
+        new FetchAction(mockPicasso(), new Request.Builder(URI_1).build(), 0, 0, pausedTag,
+            URI_KEY_1, callback);
+    dispatcher.dispatchSubmit(fetchAction);
+    drain(dispatcher);
+    fetchAction.complete(bitmap1, MEMORY);
+
+    verify(callback).onSuccess();
+  }
+
+  @Test public void dispatchSubmitWithFetchActionWithErrorCompletionCallback() {
+    String pausedTag = "pausedTag";
+    Callback callback = mockCallback();
+
+    FetchAction fetchAction =
+        new FetchAction(mockPicasso(), new Request.Builder(URI_1).build(), 0, 0, pausedTag,
+            URI_KEY_1, callback);
+    dispatcher.dispatchSubmit(fetchAction);
+    drain(dispatcher);
+    Exception e = new RuntimeException();
+    fetchAction.error(e);
+
+    verify(callback).onError(e);
+  }
+
+  @Test public void dispatchCancelWithFetchActionWithCallback() {
+    String pausedTag = "pausedTag";
+    dispatcher.pausedTags.add(pausedTag);
+    assertThat(dispatcher.pausedActions).isEmpty();
+    Callback callback = mockCallback();
+
+    FetchAction fetchAction1 =
+        new FetchAction(mockPicasso(), new Request.Builder(URI_1).build(), 0, 0, pausedTag,
+            URI_KEY_1, callback);
+    dispatcher.dispatchCancel(fetchAction1);
+    drain(dispatcher);
+    fetchAction1.cancel();
+    assertThat(dispatcher.pausedActions).isEmpty();
+  }
+
+  @Test public void dispatchCancelDetachesRequestAndCleansUp() {
+    Target target = mockTarget();
+    Action action = mockAction(URI_KEY_1, URI_1, target);
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, false);
+    hunter.attach(action);
+    when(hunter.cancel()).thenReturn(true);
+    dispatcher.hunterMap.put(URI_KEY_1, hunter);
+    dispatcher.failedActions.put(target, action);
+    dispatcher.dispatchCancel(action);
+    drain(dispatcher);
+    verify(hunter).detach(action);
+    verify(hunter).cancel();
+    assertThat(dispatcher.hunterMap).isEmpty();
+    assertThat(dispatcher.failedActions).isEmpty();
+  }
+
+  @Test public void dispatchCancelMultipleRequestsDetachesOnly() {
+    Action action1 = mockAction(URI_KEY_1, URI_1);
+    Action action2 = mockAction(URI_KEY_1, URI_1);
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, false);
+    hunter.attach(action1);
+    hunter.attach(action2);
+    dispatcher.hunterMap.put(URI_KEY_1, hunter);
+    dispatcher.dispatchCancel(action1);
+    drain(dispatcher);
+    verify(hunter).detach(action1);
+    verify(hunter).cancel();
+    verify(hunter).rerank();
+    assertThat(dispatcher.hunterMap).hasSize(1);
+  }
+
+  @Test public void dispatchAttachStateChangeReranksHunter() {
+    Action action = mockAction(URI_KEY_1, URI_1);
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, false, action);
+    dispatcher.hunterMap.put(URI_KEY_1, hunter);
+    dispatcher.dispatchAttachStateChange(action);
+    drain(dispatcher);
+    verify(hunter).rerank();
+  }
+
+  @Test public void dispatchCancelUnqueuesAndDetachesPausedRequest() {
+    Action action = mockAction(URI_KEY_1, URI_1, mockTarget(), "tag");
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, false, action);
+    dispatcher.hunterMap.put(URI_KEY_1, hunter);
+    dispatcher.pausedTags.add("tag");
+    dispatcher.pausedActions.put(action.getTarget(), action);
+    dispatcher.dispatchCancel(action);
+    drain(dispatcher);
+    assertThat(dispatcher.pausedTags).containsExactly("tag");
+    assertThat(dispatcher.pausedActions).isEmpty();
+    verify(hunter).detach(action);
+  }
+
+  @Test public void dispatchCompleteSetsResultInCache() {
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, 0, null);
+    dispatcher.dispatchComplete(hunter);
+    drain(dispatcher);
+    verify(cache).set(hunter.getKey().toString(), hunter.getResult());
+  }
+
+  @Test public void dispatchCompleteWithNoStoreMemoryPolicy() {
+    int memoryPolicy = 0;
+    memoryPolicy |= MemoryPolicy.NO_STORE.index;
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, memoryPolicy, null);
+    dispatcher.dispatchComplete(hunter);
+    drain(dispatcher);
+    assertThat(dispatcher.hunterMap).isEmpty();
+    verifyZeroInteractions(cache);
+  }
+
+  @Test public void dispatchCompleteCleansUpAndAddsToBatch() {
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, false);
+    dispatcher.deliveryInFlight = true;
+    dispatcher.dispatchComplete(hunter);
+    drain(dispatcher);
+    assertThat(dispatcher.hunterMap).isEmpty();
+    assertThat(dispatcher.batch).hasSize(1);
+  }
+
+  @Test public void dispatchCompleteCleansUpAndDoesNotAddToBatchIfCancelled() {
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, false);
+    when(hunter.isCancelled()).thenReturn(true);
+    dispatcher.dispatchComplete(hunter);
+    drain(dispatcher);
+    assertThat(dispatcher.hunterMap).isEmpty();
+    assertThat(dispatcher.batch).isEmpty();
+  }
+
+  @Test public void dispatchErrorCleansUpAndAddsToBatch() {
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, false);
+    dispatcher.deliveryInFlight = true;
+    dispatcher.hunterMap.put(hunter.getKey(), hunter);
+    dispatcher.dispatchFailed(hunter);
+    drain(dispatcher);
+    assertThat(dispatcher.hunterMap).isEmpty();
+    assertThat(dispatcher.batch).hasSize(1);
+  }
+
+  @Test public void dispatchErrorCleansUpAndDoesNotAddToBatchIfCancelled() {
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, false);
+    when(hunter.isCancelled()).thenReturn(true);
+    dispatcher.hunterMap.put(hunter.getKey(), hunter);
+    dispatcher.dispatchFailed(hunter);
+    drain(dispatcher);
+    assertThat(dispatcher.hunterMap).isEmpty();
+    assertThat(dispatcher.batch).isEmpty();
+  }
+
+  @Test public void dispatchBatchCompleteFlushesHunters() {
+    Dispatcher dispatcher = createBatchingDispatcher(false, Dispatcher.DEFAULT_MAX_BATCH_SIZE);
+    dispatcher.dispatchComplete(mockHunter(URI_KEY_1, bitmap1, false));
+    dispatcher.dispatchComplete(mockHunter(URI_KEY_2, bitmap2, false));
+    drain(dispatcher);
+    assertThat(dispatcher.batch).hasSize(2);
+    flush(dispatcher);
+    assertThat(dispatcher.batch).isEmpty();
+    assertThat(dispatcher.deliveryInFlight).isTrue();
+    verify(mainThreadHandler).sendMessage(any(Message.class));
+  }
+
+  @Test public void dispatchPreviewSendsActionsToMainThread() {
+    Action action1 = mockAction(URI_KEY_1, URI_1);
+    Action action2 = mockAction(URI_KEY_1, URI_1);
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, false, action1);
+    when(hunter.getActions()).thenReturn(Arrays.asList(action2));
+    dispatcher.dispatchPreview(hunter);
+    drain(dispatcher);
+    assertThat(hunter.previewActions).containsExactly(action1, action2);
+    verify(mainThreadHandler).sendMessage(any(Message.class));
+  }
+
+  @Test public void dispatchPreviewSkipsHunterWithoutActions() {
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, false);
+    dispatcher.dispatchPreview(hunter);
+    drain(dispatcher);
+    verify(mainThreadHandler, never()).sendMessage(any(Message.class));
+  }
+
+  @Test public void dispatchBatchCompleteSkipsEmptyBatch() {
+    dispatcher.loop.send(Dispatcher.HUNTER_DELAY_NEXT_BATCH, null, 0);
+    drain(dispatcher);
+    verify(mainThreadHandler, never()).sendMessage(any(Message.class));
+    assertThat(dispatcher.deliveryInFlight).isFalse();
+  }
+
+  @Test public void dispatchCompleteDeliversImmediatelyWhenIdle() {
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, false);
+    dispatcher.dispatchComplete(hunter);
+    drain(dispatcher);
+    assertThat(dispatcher.batch).isEmpty();
+    assertThat(dispatcher.deliveryInFlight).isTrue();
+    verify(mainThreadHandler).sendMessage(any(Message.class));
+  }
+
+  @Test public void dispatchCompleteHoldsBatchWhileDeliveryInFlight() {
+    dispatcher.dispatchComplete(mockHunter(URI_KEY_1, bitmap1, false));
+    dispatcher.dispatchComplete(mockHunter(URI_KEY_2, bitmap2, false));
+    drain(dispatcher);
+    assertThat(dispatcher.batch).hasSize(1);
+    verify(mainThreadHandler).sendMessage(any(Message.class));
+  }
+
+  @Test public void dispatchBatchFrameReleasesHeldBatch() {
+    dispatcher.deliveryInFlight = true;
+    dispatcher.dispatchComplete(mockHunter(URI_KEY_1, bitmap1, false));
+    drain(dispatcher);
+    assertThat(dispatcher.batch).hasSize(1);
+    dispatcher.dispatchBatchDelivered();
+    drain(dispatcher);
+    assertThat(dispatcher.batch).isEmpty();
+    assertThat(dispatcher.deliveryInFlight).isTrue();
+    verify(mainThreadHandler).sendMessage(any(Message.class));
+  }
+
+  @Test public void dispatchBatchFrameWithNothingHeldGoesIdle() {
+    dispatcher.deliveryInFlight = true;
+    dispatcher.dispatchBatchDelivered();
+    drain(dispatcher);
+    assertThat(dispatcher.deliveryInFlight).isFalse();
+    verify(mainThreadHandler, never()).sendMessage(any(Message.class));
+  }
+
+  @Test public void dispatchCompleteFlushesFullBatch() {
+    Dispatcher dispatcher = createBatchingDispatcher(true, 2);
+    dispatcher.deliveryInFlight = true;
+    dispatcher.dispatchComplete(mockHunter(URI_KEY_1, bitmap1, false));
+    drain(dispatcher);
+    assertThat(dispatcher.batch).hasSize(1);
+    dispatcher.dispatchComplete(mockHunter(URI_KEY_2, bitmap2, false));
+    drain(dispatcher);
+    assertThat(dispatcher.batch).isEmpty();
+    verify(mainThreadHandler).sendMessage(any(Message.class));
+  }
+
+  @Test public void dispatchCompleteWithoutAdaptiveBatchingWaitsForDelay() {
+    Dispatcher dispatcher = createBatchingDispatcher(false, Dispatcher.DEFAULT_MAX_BATCH_SIZE);
+    dispatcher.dispatchComplete(mockHunter(URI_KEY_1, bitmap1, false));
+    drain(dispatcher);
+    assertThat(dispatcher.batch).hasSize(1);
+    verify(mainThreadHandler, never()).sendMessage(any(Message.class));
+    flush(dispatcher);
+    assertThat(dispatcher.batch).isEmpty();
+    verify(mainThreadHandler).sendMessage(any(Message.class));
+  }
+
+  @Test public void dispatchRetrySkipsIfHunterIsCancelled() {
+    BitmapHunter hunter = mockHunter(URI_KEY_2, bitmap1, false);
+    when(hunter.isCancelled()).thenReturn(true);
+    dispatcher.dispatchRetry(hunter);
+    flush(dispatcher);
+    verifyZeroInteractions(service);
+    assertThat(dispatcher.hunterMap).isEmpty();
+    assertThat(dispatcher.failedActions).isEmpty();
+  }
+
+  @Test public void dispatchRetryForContentLengthResetsNetworkPolicy() {
+    NetworkInfo networkInfo = mockNetworkInfo(true);
+    BitmapHunter hunter = mockHunter(URI_KEY_2, bitmap1, false);
+    when(hunter.shouldRetry(anyBoolean(), any(NetworkInfo.class))).thenReturn(true);
+    when(hunter.getException()).thenReturn(new ContentLengthException("304 error"));
+    when(connectivityManager.getActiveNetworkInfo()).thenReturn(networkInfo);
+    dispatcher.dispatchRetry(hunter);
+    flush(dispatcher);
+    assertThat(NetworkPolicy.shouldReadFromDiskCache(hunter.networkPolicy)).isFalse();
+  }
+
+  @Test public void dispatchRetryDoesNotMarkForReplayIfNotSupported() {
+    NetworkInfo networkInfo = mockNetworkInfo(true);
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, false, mockAction(URI_KEY_1, URI_1));
+    when(hunter.supportsReplay()).thenReturn(false);
+    when(hunter.shouldRetry(anyBoolean(), any(NetworkInfo.class))).thenReturn(false);
+    when(connectivityManager.getActiveNetworkInfo()).thenReturn(networkInfo);
+    dispatcher.dispatchRetry(hunter);
+    flush(dispatcher);
+    assertThat(dispatcher.hunterMap).isEmpty();
+    assertThat(dispatcher.failedActions).isEmpty();
+    verify(service, never()).submit(hunter);
+  }
+
+  @Test public void dispatchRetryDoesNotMarkForReplayIfNoNetworkScanning() {
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, false, mockAction(URI_KEY_1, URI_1));
+    when(hunter.shouldRetry(anyBoolean(), any(NetworkInfo.class))).thenReturn(false);
+    when(hunter.supportsReplay()).thenReturn(true);
+    Dispatcher dispatcher = createDispatcher(false);
+    dispatcher.dispatchRetry(hunter);
+    flush(dispatcher);
+    assertThat(dispatcher.hunterMap).isEmpty();
+    assertThat(dispatcher.failedActions).isEmpty();
+    verify(service, never()).submit(hunter);
+  }
+
+  @Test public void dispatchRetryMarksForReplayIfSupportedScansNetworkChangesAndShouldNotRetry() {
+    NetworkInfo networkInfo = mockNetworkInfo(true);
+    Action action = mockAction(URI_KEY_1, URI_1, mockTarget());
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, false, action);
+    when(hunter.supportsReplay()).thenReturn(true);
+    when(hunter.shouldRetry(anyBoolean(), any(NetworkInfo.class))).thenReturn(false);
+    when(connectivityManager.getActiveNetworkInfo()).thenReturn(networkInfo);
+    dispatcher.dispatchRetry(hunter);
+    flush(dispatcher);
+    assertThat(dispatcher.hunterMap).isEmpty();
+    assertThat(dispatcher.failedActions).hasSize(1);
+    verify(service, never()).submit(hunter);
+  }
+
+  @Test public void dispatchRetryRetriesIfNoNetworkScanning() {
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, false, mockAction(URI_KEY_1, URI_1));
+    when(hunter.shouldRetry(anyBoolean(), any(NetworkInfo.class))).thenReturn(true);
+    Dispatcher dispatcher = createDispatcher(false);
+    dispatcher.dispatchRetry(hunter);
+    flush(dispatcher);
+    assertThat(dispatcher.hunterMap).isEmpty();
+    assertThat(dispatcher.failedActions).isEmpty();
+    verify(service).submit(hunter);
+  }
+
+  @Test public void dispatchRetryMarksForReplayIfSupportsReplayAndShouldNotRetry() {
+    Action action = mockAction(URI_KEY_1, URI_1, mockTarget());
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, false, action);
+    when(hunter.shouldRetry(anyBoolean(), any(NetworkInfo.class))).thenReturn(false);
+    when(hunter.supportsReplay()).thenReturn(true);
+    dispatcher.dispatchRetry(hunter);
+    flush(dispatcher);
+    assertThat(dispatcher.hunterMap).isEmpty();
+    assertThat(dispatcher.failedActions).hasSize(1);
+    verify(service, never()).submit(hunter);
+  }
+
+  @Test public void dispatchRetryRetriesIfShouldRetry() {
+    Action action = mockAction(URI_KEY_1, URI_1, mockTarget());
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, false, action);
+    when(hunter.shouldRetry(anyBoolean(), any(NetworkInfo.class))).thenReturn(true);
+    dispatcher.dispatchRetry(hunter);
+    flush(dispatcher);
+    assertThat(dispatcher.hunterMap).isEmpty();
+    assertThat(dispatcher.failedActions).isEmpty();
+    verify(service).submit(hunter);
+  }
+
+  @Test public void dispatchRetrySkipIfServiceShutdown() {
+    when(service.isShutdown()).thenReturn(true);
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, false);
+    dispatcher.dispatchRetry(hunter);
+    flush(dispatcher);
+    verify(service, never()).submit(hunter);
+    assertThat(dispatcher.hunterMap).isEmpty();
+    assertThat(dispatcher.failedActions).isEmpty();
+  }
+
+  @Test public void dispatchAirplaneModeChange() {
+    assertThat(dispatcher.airplaneMode).isFalse();
+    dispatcher.dispatchAirplaneModeChange(true);
+    drain(dispatcher);
+    assertThat(dispatcher.airplaneMode).isTrue();
+    dispatcher.dispatchAirplaneModeChange(false);
+    drain(dispatcher);
+    assertThat(dispatcher.airplaneMode).isFalse();
+  }
+
+  @Test public void dispatchNetworkStateChangeWithNullInfo() {
+    dispatcher.dispatchNetworkStateChange(null);
+    drain(dispatcher);
+    verify(service, times(1)).adjustThreadCount(null);
+  }
+
+  @Test public void dispatchNetworkStateChangeWithDisconnectedInfo() {
+    NetworkInfo info = mockNetworkInfo();
+    when(info.isConnectedOrConnecting()).thenReturn(false);
+    dispatcher.dispatchNetworkStateChange(info);
+    drain(dispatcher);
+    verify(service, times(1)).adjustThreadCount(info);
+  }
+
+  @Test public void dispatchNetworkStateChangeWithConnectedInfoDifferentInstance() {
+    NetworkInfo info = mockNetworkInfo(true);
+    dispatcher.dispatchNetworkStateChange(info);
+    drain(dispatcher);
+    verify(service, times(1)).adjustThreadCount(info);
+  }
+
+  @Test public void dispatchNetworkStateChangeWithNullInfoIgnores() {
+    Dispatcher dispatcher = createDispatcher(serviceMock);
+    dispatcher.dispatchNetworkStateChange(null);
+    drain(dispatcher);
+    verifyZeroInteractions(service);
+  }
+
+  @Test public void dispatchNetworkStateChangeWithDisconnectedInfoIgnores() {
+    Dispatcher dispatcher = createDispatcher(serviceMock);
+    NetworkInfo info = mockNetworkInfo();
+    when(info.isConnectedOrConnecting()).thenReturn(false);
+    dispatcher.dispatchNetworkStateChange(info);
+    drain(dispatcher);
+    verifyZeroInteractions(service);
+  }
+
+  @Test public void dispatchNetworkStateChangeWithConnectedInfoDifferentInstanceIgnores() {
+    Dispatcher dispatcher = createDispatcher(serviceMock);
+    NetworkInfo info = mockNetworkInfo(true);
+    dispatcher.dispatchNetworkStateChange(info);
+    drain(dispatcher);
+    verifyZeroInteractions(service);
+  }
+
+  @Test public void dispatchPauseAndResumeUpdatesListOfPausedTags() {
+    dispatcher.dispatchPauseTag("tag");
+    drain(dispatcher);
+    assertThat(dispatcher.pausedTags).containsExactly("tag");
+    dispatcher.dispatchResumeTag("tag");
+    drain(dispatcher);
+    assertThat(dispatcher.pausedTags).isEmpty();
+  }
+
+  @Test public void dispatchPauseTagIsIdempotent() {
+    Action action = mockAction(URI_KEY_1, URI_1, mockTarget(), "tag");
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, false, action);
+    dispatcher.hunterMap.put(URI_KEY_1, hunter);
+    dispatcher.pausedTags.add("tag");
+    dispatcher.dispatchPauseTag("tag");
+    drain(dispatcher);
+    verify(hunter, never()).getAction();
+  }
+
+  @Test public void dispatchPauseTagQueuesNewRequestDoesNotSubmit() {
+    dispatcher.dispatchPauseTag("tag");
+    drain(dispatcher);
+    Action action = mockAction(URI_KEY_1, URI_1, "tag");
+    dispatcher.dispatchSubmit(action);
+    drain(dispatcher);
+    assertThat(dispatcher.hunterMap).isEmpty();
+    assertThat(dispatcher.pausedActions).hasSize(1);
+    assertThat(dispatcher.pausedActions.containsValue(action)).isTrue();
+    verify(service, never()).submit(any(BitmapHunter.class));
+  }
+
+  @Test public void dispatchPauseTagDoesNotQueueUnrelatedRequest() {
+    dispatcher.dispatchPauseTag("tag");
+    drain(dispatcher);
+    Action action = mockAction(URI_KEY_1, URI_1, "anothertag");
+    dispatcher.dispatchSubmit(action);
+    drain(dispatcher);
+    assertThat(dispatcher.hunterMap).hasSize(1);
+    assertThat(dispatcher.pausedActions).isEmpty();
+    verify(service).submit(any(BitmapHunter.class));
+  }
+
+  @Test public void dispatchPauseDetachesRequestAndCancelsHunter() {
+    Action action = mockAction(URI_KEY_1, URI_1, "tag");
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, false, action);
+    when(hunter.cancel()).thenReturn(true);
+    dispatcher.hunterMap.put(URI_KEY_1, hunter);
+    dispatcher.dispatchPauseTag("tag");
+    drain(dispatcher);
+    assertThat(dispatcher.hunterMap).isEmpty();
+    assertThat(dispatcher.pausedActions).hasSize(1);
+    assertThat(dispatcher.pausedActions.containsValue(action)).isTrue();
+    verify(hunter).detach(action);
+    verify(hunter).cancel();
+  }
+
+  @Test public void dispatchPauseOnlyDetachesPausedRequest() {
+    Action action1 = mockAction(URI_KEY_1, URI_1, mockTarget(), "tag1");
+    Action action2 = mockAction(URI_KEY_1, URI_1, mockTarget(), "tag2");
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, false);
+    when(hunter.getActions()).thenReturn(Arrays.asList(action1, action2));
+    dispatcher.hunterMap.put(URI_KEY_1, hunter);
+    dispatcher.dispatchPauseTag("tag1");
+    drain(dispatcher);
+    assertThat(dispatcher.hunterMap).hasSize(1);
+    assertThat(dispatcher.hunterMap.containsValue(hunter)).isTrue();
+    assertThat(dispatcher.pausedActions).hasSize(1);
+    assertThat(dispatcher.pausedActions.containsValue(action1)).isTrue();
+    verify(hunter).detach(action1);
+    verify(hunter, never()).detach(action2);
+  }
+
+  @Test public void dispatchResumeTagIsIdempotent() {
+    dispatcher.dispatchResumeTag("tag");
+    drain(dispatcher);
+    verify(mainThreadHandler, never()).sendMessage(any(Message.class));
+  }
+
+  @Test
+  public void dispatchNetworkStateChangeWithConnectedInfoAndPicassoExecutorServiceAdjustsThreads() {
+    PicassoExecutorService service = mock(PicassoExecutorService.class);
+    NetworkInfo info = mockNetworkInfo(true);
+    Dispatcher dispatcher = createDispatcher(service);
+    dispatcher.dispatchNetworkStateChange(info);
+    drain(dispatcher);
+    verify(service).adjustThreadCount(info);
+    verifyZeroInteractions(service);
+  }
+
+  @Test public void dispatchNetworkStateChangeFlushesFailedHunters() {
+    PicassoExecutorService service = mock(PicassoExecutorService.class);
+    NetworkInfo info = mockNetworkInfo(true);
+    Dispatcher dispatcher = createDispatcher(service);
+    Action failedAction1 = mockAction(URI_KEY_1, URI_1);
+    Action failedAction2 = mockAction(URI_KEY_2, URI_2);
+    dispatcher.failedActions.put(URI_KEY_1, failedAction1);
+    dispatcher.failedActions.put(URI_KEY_2, failedAction2);
+    dispatcher.dispatchNetworkStateChange(info);
+    drain(dispatcher);
+    verify(service, times(2)).submit(any(BitmapHunter.class));
+    assertThat(dispatcher.failedActions).isEmpty();
+  }
+
+  @Test public void nullIntentOnReceiveDoesNothing() {
+    Dispatcher dispatcher = mock(Dispatcher.class);
+    NetworkBroadcastReceiver receiver = new NetworkBroadcastReceiver(dispatcher);
+    receiver.onReceive(context, null);
+    verifyZeroInteractions(dispatcher);
+  }
+
+  @Test public void nullExtrasOnReceiveConnectivityAreOk() {
+    ConnectivityManager connectivityManager = mock(ConnectivityManager.class);
+    NetworkInfo networkInfo = mockNetworkInfo();
+    when(connectivityManager.getActiveNetworkInfo()).thenReturn(networkInfo);
+    when(context.getSystemService(CONNECTIVITY_SERVICE)).thenReturn(connectivityManager);
+    Dispatcher dispatcher = mock(Dispatcher.class);
+    NetworkBroadcastReceiver receiver = new NetworkBroadcastReceiver(dispatcher);
+    receiver.onReceive(context, new Intent(CONNECTIVITY_ACTION));
+    verify(dispatcher).dispatchNetworkStateChange(networkInfo);
+  }
+
+  @Test public void nullExtrasOnReceiveAirplaneDoesNothing() {
+    Dispatcher dispatcher = mock(Dispatcher.class);
+    NetworkBroadcastReceiver receiver = new NetworkBroadcastReceiver(dispatcher);
+    receiver.onReceive(context, new Intent(ACTION_AIRPLANE_MODE_CHANGED));
+    verifyZeroInteractions(dispatcher);
+  }
+
+  @Test public void correctExtrasOnReceiveAirplaneDispatches() {
+    setAndVerifyAirplaneMode(false);
+    setAndVerifyAirplaneMode(true);
+  }
+
+  private void setAndVerifyAirplaneMode(boolean airplaneOn) {
+    Dispatcher dispatcher = mock(Dispatcher.class);
+    NetworkBroadcastReceiver receiver = new NetworkBroadcastReceiver(dispatcher);
+    final Intent intent = new Intent(ACTION_AIRPLANE_MODE_CHANGED);
+    intent.putExtra(EXTRA_AIRPLANE_STATE, airplaneOn);
+    receiver.onReceive(context, intent);
+    verify(dispatcher).dispatchAirplaneModeChange(airplaneOn);
+  }
+
+  private Action mockNetworkAction(RequestKey key, Request request) {
+    Action action = mockAction(key, request);
+    Picasso picasso = mockPicasso(new NetworkRequestHandler(downloader, stats));
+    when(action.getPicasso()).thenReturn(picasso);
+    return action;
+  }
+
+  private Dispatcher createDispatcher() {
+    return createDispatcher(service);
+  }
+
+  private Dispatcher createDispatcher(boolean scansNetworkChanges) {
+    return createDispatcher(service, scansNetworkChanges);
+  }
+
+  private Dispatcher createDispatcher(ExecutorService service) {
+    return createDispatcher(service, true);
+  }
+
+  private Dispatcher createDispatcher(ExecutorService service, boolean scansNetworkChanges) {
+    when(context.getSystemService(Context.CONNECTIVITY_SERVICE)).thenReturn(connectivityManager);
+    when(context.checkCallingOrSelfPermission(anyString())).thenReturn(
+        scansNetworkChanges ? PERMISSION_GRANTED : PERMISSION_DENIED);
+    return new Dispatcher(context, service, mainThreadHandler, downloader, cache, null, governor,
+        stats, true, Dispatcher.DEFAULT_MAX_BATCH_SIZE, Dispatcher.DEFAULT_BATCH_DELAY,
+        lockFreeQueue, false);
+  }
+
+  private Dispatcher createBatchingDispatcher(boolean adaptiveBatching, int maxBatchSize) {
+    return new Dispatcher(context, service, mainThreadHandler, downloader, cache, null, governor,
+        stats, adaptiveBatching, maxBatchSize, Dispatcher.DEFAULT_BATCH_DELAY, lockFreeQueue,
+        false);
+  }
+
+  /**
+   * Run the commands sent to {@code dispatcher} on this thread, which is its loop's, and the main
+   * thread's messages, until nothing is due.
+   */
+  private static void drain(Dispatcher dispatcher) {
+    run(dispatcher, false);
+  }
+
+  /** Like {@link #drain}, also running delayed commands and messages as if their time had come. */
+  private static void flush(Dispatcher dispatcher) {
+    run(dispatcher, true);
+  }
+
+  private static void run(Dispatcher dispatcher, boolean includeDelayed) {
+    Scheduler scheduler = Robolectric.getForegroundThreadScheduler();
+    boolean ran;
+    do {
+      if (dispatcher.loop instanceof MpscDispatcherLoop) {
+        ((MpscDispatcherLoop) dispatcher.loop).drain(includeDelayed);
+      }
+      ran = includeDelayed ? scheduler.advanceToLastPostedRunnable() : scheduler.advanceBy(0);
+    } while (ran);
+  }
+}
@@ -24,6 +24,7 @@ import android.os.Handler;
 import android.os.Message;
 import com.squareup.picasso.NetworkRequestHandler.ContentLengthException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.concurrent.ExecutorService;
 import org.junit.Before;
 import org.junit.Test;
@@ -73,6 +74,7 @@ public class DispatcherTest {
   @Mock Downloader downloader;
   @Mock Cache cache;
   @Mock Stats stats;
+  @Mock MemoryGovernor governor;
   private Dispatcher dispatcher;
 
   final Bitmap bitmap1 = makeBitmap();
@@ -114,6 +116,67 @@ public class DispatcherTest {
     verify(service, times(2)).submit(any(BitmapHunter.class));
   }
 
+  @Test public void performSubmitWithOtherSizeOfNetworkSourceJoinsHunter() {
+    Action action1 = mockNetworkAction(URI_KEY_1, new Request.Builder(URI_1).build());
+    Action action2 =
+        mockNetworkAction(URI_KEY_2, new Request.Builder(URI_1).resize(10, 10).build());
+    dispatcher.performSubmit(action1);
+    dispatcher.performSubmit(action2);
+    assertThat(dispatcher.hunterMap).hasSize(2);
+    assertThat(dispatcher.hunterMap.get(URI_KEY_2).source)
+        .isSameAs(dispatcher.hunterMap.get(URI_KEY_1));
+    verify(service).submit(any(BitmapHunter.class));
+  }
+
+  @Test public void performSubmitWithOtherNetworkSourceQueuesHunter() {
+    dispatcher.performSubmit(mockNetworkAction(URI_KEY_1, new Request.Builder(URI_1).build()));
+    dispatcher.performSubmit(mockNetworkAction(URI_KEY_2, new Request.Builder(URI_2).build()));
+    assertThat(dispatcher.hunterMap.get(URI_KEY_2).source).isNull();
+    verify(service, times(2)).submit(any(BitmapHunter.class));
+  }
+
+  @Test public void performCompleteCachesVariantsUnderTheirOwnKey() {
+    dispatcher.performSubmit(mockNetworkAction(URI_KEY_1, new Request.Builder(URI_1).build()));
+    dispatcher.performSubmit(
+        mockNetworkAction(URI_KEY_2, new Request.Builder(URI_1).resize(10, 10).build()));
+    BitmapHunter hunter = dispatcher.hunterMap.get(URI_KEY_1);
+    BitmapHunter variant = dispatcher.hunterMap.get(URI_KEY_2);
+    hunter.result = bitmap1;
+    variant.result = bitmap2;
+    dispatcher.deliveryInFlight = true;
+    dispatcher.performComplete(hunter);
+    verify(cache).set(URI_KEY_1.toString(), bitmap1);
+    verify(cache).set(URI_KEY_2.toString(), bitmap2);
+    assertThat(dispatcher.hunterMap).isEmpty();
+    assertThat(dispatcher.sourceHunterMap).isEmpty();
+    assertThat(dispatcher.batch).containsExactly(hunter, variant);
+  }
+
+  @Test public void performCompleteHuntsUndecodedVariantOnItsOwn() {
+    dispatcher.performSubmit(mockNetworkAction(URI_KEY_1, new Request.Builder(URI_1).build()));
+    dispatcher.performSubmit(
+        mockNetworkAction(URI_KEY_2, new Request.Builder(URI_1).resize(10, 10).build()));
+    BitmapHunter hunter = dispatcher.hunterMap.get(URI_KEY_1);
+    BitmapHunter variant = dispatcher.hunterMap.get(URI_KEY_2);
+    hunter.result = bitmap1;
+    dispatcher.performComplete(hunter);
+    assertThat(variant.source).isNull();
+    assertThat(dispatcher.hunterMap).containsExactly(URI_KEY_2, variant);
+    verify(service).submit(variant);
+  }
+
+  @Test public void performErrorFailsVariants() {
+    dispatcher.performSubmit(mockNetworkAction(URI_KEY_1, new Request.Builder(URI_1).build()));
+    dispatcher.performSubmit(
+        mockNetworkAction(URI_KEY_2, new Request.Builder(URI_1).resize(10, 10).build()));
+    BitmapHunter hunter = dispatcher.hunterMap.get(URI_KEY_1);
+    BitmapHunter variant = dispatcher.hunterMap.get(URI_KEY_2);
+    dispatcher.deliveryInFlight = true;
+    dispatcher.performError(hunter, false);
+    assertThat(dispatcher.hunterMap).isEmpty();
+    assertThat(dispatcher.batch).containsExactly(hunter, variant);
+  }
+
   @Test public void performSubmitWithExistingRequestAttachesToHunter() {
     Action action1 = mockAction(URI_KEY_1, URI_1);
     Action action2 = mockAction(URI_KEY_1, URI_1);
@@ -123,6 +186,24 @@ public class DispatcherTest {
     verify(service).submit(any(BitmapHunter.class));
   }
 
+  @Test public void performBatchSubmitSharesHunters() {
+    Action action1 = mockAction(URI_KEY_1, URI_1);
+    Action action2 = mockAction(URI_KEY_1, URI_1);
+    Action action3 = mockAction(URI_KEY_2, URI_2);
+    dispatcher.performBatchSubmit(Arrays.asList(action1, action2, action3));
+    assertThat(dispatcher.hunterMap).hasSize(2);
+    assertThat(dispatcher.hunterMap.get(URI_KEY_1).getActions()).containsExactly(action2);
+    verify(service, times(2)).submit(any(BitmapHunter.class));
+  }
+
+  @Test public void performBatchSubmitSkipsCancelledActions() {
+    Action action = mockAction(URI_KEY_1, URI_1);
+    when(action.isCancelled()).thenReturn(true);
+    dispatcher.performBatchSubmit(Collections.singletonList(action));
+    assertThat(dispatcher.hunterMap).isEmpty();
+    verify(service, never()).submit(any(BitmapHunter.class));
+  }
+
   @Test public void performSubmitWithShutdownServiceIgnoresRequest() {
     when(service.isShutdown()).thenReturn(true);
     Action action = mockAction(URI_KEY_1, URI_1);
@@ -225,9 +306,18 @@ public class DispatcherTest {
     dispatcher.performCancel(action1);
     verify(hunter).detach(action1);
     verify(hunter).cancel();
+    verify(hunter).rerank();
     assertThat(dispatcher.hunterMap).hasSize(1);
   }
 
+  @Test public void performAttachStateChangeReranksHunter() {
+    Action action = mockAction(URI_KEY_1, URI_1);
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, false, action);
+    dispatcher.hunterMap.put(URI_KEY_1, hunter);
+    dispatcher.performAttachStateChange(action);
+    verify(hunter).rerank();
+  }
+
   @Test public void performCancelUnqueuesAndDetachesPausedRequest() {
     Action action = mockAction(URI_KEY_1, URI_1, mockTarget(), "tag");
     BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, false, action);
@@ -243,7 +333,7 @@ public class DispatcherTest {
   @Test public void performCompleteSetsResultInCache() {
     BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, 0, null);
     dispatcher.performComplete(hunter);
-    verify(cache).set(hunter.getKey(), hunter.getResult());
+    verify(cache).set(hunter.getKey().toString(), hunter.getResult());
   }
 
   @Test public void performCompleteWithNoStoreMemoryPolicy() {
@@ -257,6 +347,7 @@ public class DispatcherTest {
 
   @Test public void performCompleteCleansUpAndAddsToBatch() {
     BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, false);
+    dispatcher.deliveryInFlight = true;
     dispatcher.performComplete(hunter);
     assertThat(dispatcher.hunterMap).isEmpty();
     assertThat(dispatcher.batch).hasSize(1);
@@ -272,6 +363,7 @@ public class DispatcherTest {
 
   @Test public void performErrorCleansUpAndAddsToBatch() {
     BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, false);
+    dispatcher.deliveryInFlight = true;
     dispatcher.hunterMap.put(hunter.getKey(), hunter);
     dispatcher.performError(hunter, false);
     assertThat(dispatcher.hunterMap).isEmpty();
@@ -294,6 +386,81 @@ public class DispatcherTest {
     dispatcher.batch.add(hunter2);
     dispatcher.performBatchComplete();
     assertThat(dispatcher.batch).isEmpty();
+    assertThat(dispatcher.deliveryInFlight).isTrue();
+  }
+
+  @Test public void performPreviewSendsActionsToMainThread() {
+    Action action1 = mockAction(URI_KEY_1, URI_1);
+    Action action2 = mockAction(URI_KEY_1, URI_1);
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, false, action1);
+    when(hunter.getActions()).thenReturn(Arrays.asList(action2));
+    dispatcher.performPreview(hunter);
+    assertThat(hunter.previewActions).containsExactly(action1, action2);
+    verify(mainThreadHandler).sendMessage(any(Message.class));
+  }
+
+  @Test public void performPreviewSkipsHunterWithoutActions() {
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, false);
+    dispatcher.performPreview(hunter);
+    verify(mainThreadHandler, never()).sendMessage(any(Message.class));
+  }
+
+  @Test public void performBatchCompleteSkipsEmptyBatch() {
+    dispatcher.performBatchComplete();
+    verify(mainThreadHandler, never()).sendMessage(any(Message.class));
+    assertThat(dispatcher.deliveryInFlight).isFalse();
+  }
+
+  @Test public void performCompleteDeliversImmediatelyWhenIdle() {
+    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap1, false);
+    dispatcher.performComplete(hunter);
+    assertThat(dispatcher.batch).isEmpty();
+    assertThat(dispatcher.deliveryInFlight).isTrue();
+    verify(mainThreadHandler).sendMessage(any(Message.class));
+  }
+
+  @Test public void performCompleteHoldsBatchWhileDeliveryInFlight() {
+    dispatcher.performComplete(mockHunter(URI_KEY_1, bitmap1, false));
+    dispatcher.performComplete(mockHunter(URI_KEY_2, bitmap2, false));
+    assertThat(dispatcher.batch).hasSize(1);
+    verify(mainThreadHandler).sendMessage(any(Message.class));
+  }
+
+  @Test public void performBatchFrameReleasesHeldBatch() {
+    dispatcher.deliveryInFlight = true;
+    dispatcher.performComplete(mockHunter(URI_KEY_1, bitmap1, false));
+    assertThat(dispatcher.batch).hasSize(1);
+    dispatcher.performBatchFrame();
+    assertThat(dispatcher.batch).isEmpty();
+    assertThat(dispatcher.deliveryInFlight).isTrue();
+    verify(mainThreadHandler).sendMessage(any(Message.class));
+  }
+
+  @Test public void performBatchFrameWithNothingHeldGoesIdle() {
+    dispatcher.deliveryInFlight = true;
+    dispatcher.performBatchFrame();
+    assertThat(dispatcher.deliveryInFlight).isFalse();
+    verify(mainThreadHandler, never()).sendMessage(any(Message.class));
+  }
+
+  @Test public void performCompleteFlushesFullBatch() {
+    Dispatcher dispatcher = new Dispatcher(context, service, mainThreadHandler, downloader, cache,
+        null, governor, stats, true, 2, Dispatcher.DEFAULT_BATCH_DELAY, false, true);
+    dispatcher.deliveryInFlight = true;
+    dispatcher.performComplete(mockHunter(URI_KEY_1, bitmap1, false));
+    assertThat(dispatcher.batch).hasSize(1);
+    dispatcher.performComplete(mockHunter(URI_KEY_2, bitmap2, false));
+    assertThat(dispatcher.batch).isEmpty();
+    verify(mainThreadHandler).sendMessage(any(Message.class));
+  }
+
+  @Test public void performCompleteWithoutAdaptiveBatchingWaitsForDelay() {
+    Dispatcher dispatcher = new Dispatcher(context, service, mainThreadHandler, downloader, cache,
+        null, governor, stats, false, Dispatcher.DEFAULT_MAX_BATCH_SIZE,
+        Dispatcher.DEFAULT_BATCH_DELAY, false, true);
+    dispatcher.performComplete(mockHunter(URI_KEY_1, bitmap1, false));
+    assertThat(dispatcher.batch).hasSize(1);
+    verify(mainThreadHandler, never()).sendMessage(any(Message.class));
   }
 
   @Test public void performRetrySkipsIfHunterIsCancelled() {
@@ -568,6 +735,13 @@ public class DispatcherTest {
     verify(dispatcher).dispatchAirplaneModeChange(airplaneOn);
   }
 
+  private Action mockNetworkAction(RequestKey key, Request request) {
+    Action action = mockAction(key, request);
+    Picasso picasso = mockPicasso(new NetworkRequestHandler(downloader, stats));
+    when(action.getPicasso()).thenReturn(picasso);
+    return action;
+  }
+
   private Dispatcher createDispatcher() {
     return createDispatcher(service);
   }
@@ -584,6 +758,8 @@ public class DispatcherTest {
     when(context.getSystemService(Context.CONNECTIVITY_SERVICE)).thenReturn(connectivityManager);
     when(context.checkCallingOrSelfPermission(anyString())).thenReturn(
         scansNetworkChanges ? PERMISSION_GRANTED : PERMISSION_DENIED);
-    return new Dispatcher(context, service, mainThreadHandler, downloader, cache, stats);
+    return new Dispatcher(context, service, mainThreadHandler, downloader, cache, null, governor,
+        stats, true, Dispatcher.DEFAULT_MAX_BATCH_SIZE, Dispatcher.DEFAULT_BATCH_DELAY,
+        false, true);
   }
 }
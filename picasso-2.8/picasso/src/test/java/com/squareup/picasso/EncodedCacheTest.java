@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import java.io.IOException;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Okio;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class EncodedCacheTest {
+  private final EncodedCache cache = new EncodedCache(800);
+
+  @Test public void setAndGet() {
+    cache.set("a", new byte[10], 6);
+    EncodedCache.Entry entry = cache.get("a");
+    assertThat(entry.bytes).hasLength(10);
+    assertThat(entry.exifOrientation).isEqualTo(6);
+    assertThat(cache.size()).isEqualTo(10);
+    assertThat(cache.get("b")).isNull();
+  }
+
+  @Test public void entryLargerThanAnEighthIsNotKept() {
+    cache.set("a", new byte[10], 0);
+    cache.set("a", new byte[101], 0);
+    assertThat(cache.get("a")).isNull();
+    assertThat(cache.size()).isEqualTo(0);
+  }
+
+  @Test public void evictsLeastRecentlyUsed() {
+    for (int i = 0; i < 9; i++) {
+      cache.set(String.valueOf(i), new byte[100], 0);
+    }
+    assertThat(cache.get("0")).isNull();
+    assertThat(cache.get("8")).isNotNull();
+    assertThat(cache.size()).isEqualTo(800);
+  }
+
+  @Test public void trimToSize() {
+    cache.set("a", new byte[100], 0);
+    cache.set("b", new byte[100], 0);
+    cache.trimToSize(150);
+    assertThat(cache.get("a")).isNull();
+    assertThat(cache.get("b")).isNotNull();
+  }
+
+  @Test public void captureKeepsBytesReadToTheEnd() throws IOException {
+    EncodedCache.Capture capture = cache.capture(new Buffer().write(new byte[] {1, 2, 3, 4}));
+    BufferedSource source = Okio.buffer(capture);
+    source.require(2);
+    assertThat(capture.bytes()).isNull();
+    source.readAll(Okio.blackhole());
+    assertThat(capture.bytes()).isEqualTo(new byte[] {1, 2, 3, 4});
+  }
+
+  @Test public void captureGivesUpPastEntryLimit() throws IOException {
+    EncodedCache.Capture capture = cache.capture(new Buffer().write(new byte[101]));
+    Okio.buffer(capture).readAll(Okio.blackhole());
+    assertThat(capture.capturing()).isFalse();
+    assertThat(capture.bytes()).isNull();
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.squareup.picasso.Picasso.Priority.HIGH;
+import static com.squareup.picasso.Picasso.Priority.LOW;
+import static com.squareup.picasso.Picasso.Priority.NORMAL;
+import static com.squareup.picasso.PicassoExecutorService.PicassoFutureTask;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+public class HunterQueueTest {
+  private final HunterQueue queue = new HunterQueue();
+  private int recency;
+
+  @Test public void higherPriorityFirst() {
+    PicassoFutureTask low = task(LOW);
+    PicassoFutureTask high = task(HIGH);
+    PicassoFutureTask normal = task(NORMAL);
+    queue.offer(low);
+    queue.offer(high);
+    queue.offer(normal);
+    assertThat(drain()).containsExactly(high, normal, low).inOrder();
+  }
+
+  @Test public void mostRecentFirstWithinPriority() {
+    PicassoFutureTask first = task(NORMAL);
+    PicassoFutureTask second = task(NORMAL);
+    PicassoFutureTask third = task(NORMAL);
+    queue.offer(first);
+    queue.offer(second);
+    queue.offer(third);
+    assertThat(drain()).containsExactly(third, second, first).inOrder();
+  }
+
+  @Test public void detachedRunAfterAttachedRegardlessOfPriority() {
+    PicassoFutureTask detached = task(HIGH);
+    when(detached.hunter.isDetached()).thenReturn(true);
+    PicassoFutureTask attached = task(LOW);
+    queue.offer(detached);
+    queue.offer(attached);
+    assertThat(drain()).containsExactly(attached, detached).inOrder();
+  }
+
+  @Test public void earliestDeadlineFirstAheadOfNoDeadline() {
+    PicassoFutureTask none = task(NORMAL);
+    PicassoFutureTask late = task(NORMAL);
+    when(late.hunter.getDeadlineNanos()).thenReturn(300L);
+    PicassoFutureTask early = task(NORMAL);
+    when(early.hunter.getDeadlineNanos()).thenReturn(200L);
+    queue.offer(none);
+    queue.offer(late);
+    queue.offer(early);
+    assertThat(drain()).containsExactly(early, late, none).inOrder();
+  }
+
+  @Test public void rerankMovesWaitingTask() throws InterruptedException {
+    PicassoFutureTask first = task(NORMAL);
+    PicassoFutureTask second = task(NORMAL);
+    queue.offer(first);
+    queue.offer(second);
+    // The most recent target scrolled away while both were waiting.
+    when(second.hunter.isDetached()).thenReturn(true);
+    second.rerank();
+    assertThat(queue.take()).isSameAs(first);
+    assertThat(queue.take()).isSameAs(second);
+  }
+
+  @Test public void equalRanksAreTakenInOrder() {
+    PicassoFutureTask first = task(NORMAL);
+    PicassoFutureTask second = task(NORMAL);
+    second.hunter.recency = first.hunter.recency;
+    queue.offer(first);
+    queue.offer(second);
+    assertThat(queue.size()).isEqualTo(2);
+    assertThat(drain()).containsExactly(first, second).inOrder();
+  }
+
+  @Test public void rerankOfTakenTaskIsIgnored() {
+    PicassoFutureTask task = task(NORMAL);
+    queue.offer(task);
+    assertThat(queue.poll()).isSameAs(task);
+    task.rerank();
+    assertThat(queue.isEmpty()).isTrue();
+  }
+
+  @Test public void cancelledTasksAreDropped() {
+    PicassoFutureTask cancelled = task(HIGH);
+    PicassoFutureTask live = task(NORMAL);
+    queue.offer(cancelled);
+    queue.offer(live);
+    cancelled.cancel(false);
+    assertThat(queue.size()).isEqualTo(1);
+    assertThat(queue.poll()).isSameAs(live);
+    assertThat(queue.isEmpty()).isTrue();
+  }
+
+  @Test public void pollTimesOutWhenEmpty() throws InterruptedException {
+    assertThat(queue.poll(1, TimeUnit.MILLISECONDS)).isNull();
+    assertThat(queue.poll()).isNull();
+    assertThat(queue.peek()).isNull();
+  }
+
+  @Test public void takeWaitsForOffer() throws InterruptedException {
+    final PicassoFutureTask task = task(NORMAL);
+    new Thread(new Runnable() {
+      @Override public void run() {
+        queue.offer(task);
+      }
+    }).start();
+    assertThat(queue.take()).isSameAs(task);
+  }
+
+  @Test public void iteratorRemoveRemovesFromQueue() {
+    PicassoFutureTask task = task(NORMAL);
+    queue.offer(task);
+    Iterator<Runnable> iterator = queue.iterator();
+    assertThat(iterator.next()).isSameAs(task);
+    iterator.remove();
+    assertThat(queue.size()).isEqualTo(0);
+  }
+
+  private List<Runnable> drain() {
+    List<Runnable> drained = new ArrayList<>();
+    queue.drainTo(drained);
+    return drained;
+  }
+
+  private PicassoFutureTask task(Picasso.Priority priority) {
+    BitmapHunter hunter = mock(BitmapHunter.class);
+    when(hunter.getPriority()).thenReturn(priority);
+    hunter.recency = ++recency;
+    return new PicassoFutureTask(hunter);
+  }
+}
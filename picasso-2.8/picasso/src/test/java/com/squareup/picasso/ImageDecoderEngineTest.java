@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.content.Context;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.squareup.picasso.TestUtils.CONTENT_1_URL;
+import static com.squareup.picasso.TestUtils.URI_1;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+public class ImageDecoderEngineTest {
+  @Test public void unavailableBeforeP() {
+    assertThat(ImageDecoderEngine.canDecode(new Request.Builder(URI_1).build())).isFalse();
+  }
+
+  @Test public void streamsOnlyBeforeP() throws IOException {
+    assertThat(loadContent().decoderSource).isNull();
+  }
+
+  @Config(sdk = 28)
+  @Test public void contentIsOpenedByTheDecoder() throws IOException {
+    RequestHandler.Result result = loadContent();
+    assertThat(result.decoderSource).isNotNull();
+    assertThat(result.decoderSource.create()).isNotNull();
+  }
+
+  @Test public void noSizeDecodesAtFullSize() {
+    Request request = new Request.Builder(URI_1).build();
+    assertThat(ImageDecoderEngine.decodeScale(request, 4000, 3000)).isEqualTo(1f);
+  }
+
+  @Test public void resizeCoversTarget() {
+    Request request = new Request.Builder(URI_1).resize(400, 400).build();
+    // 533x400: the height matches and the width is left for the matrix to stretch.
+    assertThat(ImageDecoderEngine.decodeScale(request, 4000, 3000)).isEqualTo(0.13333334f);
+  }
+
+  @Test public void centerCropCoversTarget() {
+    Request request = new Request.Builder(URI_1).resize(300, 100).centerCrop().build();
+    assertThat(ImageDecoderEngine.decodeScale(request, 4000, 3000)).isEqualTo(0.075f);
+  }
+
+  @Test public void centerInsideFitsTarget() {
+    Request request = new Request.Builder(URI_1).resize(400, 400).centerInside().build();
+    assertThat(ImageDecoderEngine.decodeScale(request, 4000, 3000)).isEqualTo(0.1f);
+  }
+
+  @Test public void zeroDimensionKeepsAspectRatio() {
+    Request request = new Request.Builder(URI_1).resize(0, 300).build();
+    assertThat(ImageDecoderEngine.decodeScale(request, 4000, 3000)).isEqualTo(0.1f);
+  }
+
+  @Test public void neverScalesUp() {
+    Request request = new Request.Builder(URI_1).resize(800, 800).build();
+    assertThat(ImageDecoderEngine.decodeScale(request, 400, 300)).isEqualTo(1f);
+  }
+
+  private static RequestHandler.Result loadContent() throws IOException {
+    Context context = RuntimeEnvironment.application;
+    shadowOf(context.getContentResolver())
+        .registerInputStream(CONTENT_1_URL, new ByteArrayInputStream(new byte[1]));
+    return new ContentStreamRequestHandler(context)
+        .load(new Request.Builder(CONTENT_1_URL).build(), 0);
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import okio.Buffer;
+import okio.Okio;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+public class ImageDiskCacheTest {
+  private static final String URL_A = "https://example.com/a.png";
+  private static final String URL_B = "https://example.com/b.png";
+  private static final String URL_C = "https://example.com/c.png";
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private File directory;
+  private ImageDiskCache cache;
+
+  @Before public void setUp() throws IOException {
+    directory = temporaryFolder.getRoot();
+    cache = ImageDiskCache.open(directory, 1000);
+  }
+
+  @Test public void writeAndRead() throws IOException {
+    put(cache, URL_A, "Hello");
+    assertThat(read(cache, URL_A)).isEqualTo("Hello");
+    assertThat(cache.get(URL_B)).isNull();
+    assertThat(cache.size()).isEqualTo(entrySize(URL_A, 5));
+    assertThat(cache.entryCount()).isEqualTo(1);
+  }
+
+  @Test public void writeLeavesBufferIntact() throws IOException {
+    Buffer buffer = new Buffer().writeUtf8("Hello");
+    ImageDiskCache.Editor editor = cache.edit(URL_A);
+    editor.write(buffer, 1, 3);
+    editor.commit();
+    assertThat(buffer.readUtf8()).isEqualTo("Hello");
+    assertThat(read(cache, URL_A)).isEqualTo("ell");
+  }
+
+  @Test public void entriesSurviveReopen() throws IOException {
+    put(cache, URL_A, "Hello");
+    put(cache, URL_B, "World");
+    assertThat(cache.remove(URL_B)).isTrue();
+    cache.close();
+
+    ImageDiskCache reopened = ImageDiskCache.open(directory, 1000);
+    assertThat(reopened.entryCount()).isEqualTo(1);
+    assertThat(reopened.size()).isEqualTo(entrySize(URL_A, 5));
+    assertThat(read(reopened, URL_A)).isEqualTo("Hello");
+    assertThat(reopened.get(URL_B)).isNull();
+  }
+
+  @Test public void evictsLeastRecentlyUsedBeyondMaxSize() throws IOException {
+    put(cache, URL_A, repeat('a', 400));
+    put(cache, URL_B, repeat('b', 400));
+    read(cache, URL_A);
+    put(cache, URL_C, repeat('c', 400));
+
+    assertThat(cache.size()).isEqualTo(entrySize(URL_A, 400) + entrySize(URL_C, 400));
+    assertThat(cache.get(URL_B)).isNull();
+    assertThat(read(cache, URL_A)).hasLength(400);
+    assertThat(read(cache, URL_C)).hasLength(400);
+    assertThat(directory.list()).asList().hasSize(3); // Two entries and the journal.
+  }
+
+  @Test public void abortedEditIsNotCached() throws IOException {
+    ImageDiskCache.Editor editor = cache.edit(URL_A);
+    editor.write(new Buffer().writeUtf8("Hello"), 0, 5);
+    editor.abort();
+    assertThat(cache.get(URL_A)).isNull();
+    assertThat(directory.list()).asList().containsExactly(ImageDiskCache.JOURNAL_FILE);
+  }
+
+  @Test public void concurrentEditIsRefused() throws IOException {
+    ImageDiskCache.Editor editor = cache.edit(URL_A);
+    assertThat(cache.edit(URL_A)).isNull();
+    editor.abort();
+    assertThat(cache.edit(URL_A)).isNotNull();
+  }
+
+  @Test public void corruptEntryFailsAtEndAndIsRemoved() throws IOException {
+    put(cache, URL_A, "Hello");
+    RandomAccessFile file = new RandomAccessFile(entryFile(URL_A), "rw");
+    file.seek(file.length() - 1);
+    file.write('O');
+    file.close();
+
+    ImageDiskCache.Snapshot snapshot = cache.get(URL_A);
+    try {
+      snapshot.source.readUtf8();
+      fail("Corrupt entry should throw.");
+    } catch (IOException ignored) {
+    }
+    assertThat(cache.get(URL_A)).isNull();
+    assertThat(cache.size()).isEqualTo(0);
+  }
+
+  @Test public void truncatedEntryIsAMiss() throws IOException {
+    put(cache, URL_A, "Hello");
+    RandomAccessFile file = new RandomAccessFile(entryFile(URL_A), "rw");
+    file.setLength(file.length() - 2);
+    file.close();
+
+    assertThat(cache.get(URL_A)).isNull();
+    assertThat(cache.entryCount()).isEqualTo(0);
+    assertThat(entryFile(URL_A).exists()).isFalse();
+  }
+
+  @Test public void tornJournalRecordIsIgnored() throws IOException {
+    put(cache, URL_A, "Hello");
+    cache.close();
+
+    // A record whose write was interrupted: its op is set but its check does not match.
+    RandomAccessFile journal =
+        new RandomAccessFile(new File(directory, ImageDiskCache.JOURNAL_FILE), "rw");
+    long position = 16;
+    journal.seek(position);
+    while (journal.readInt() != 0) {
+      position += 24;
+      journal.seek(position);
+    }
+    journal.seek(position);
+    journal.writeInt(3);
+    journal.writeLong(ImageDiskCache.key(URL_A));
+    journal.close();
+
+    ImageDiskCache reopened = ImageDiskCache.open(directory, 1000);
+    assertThat(read(reopened, URL_A)).isEqualTo("Hello");
+  }
+
+  @Test public void journalIsCompactedWhenFull() throws IOException {
+    cache.close();
+    ImageDiskCache small = ImageDiskCache.open(directory, 1000, 8);
+    put(small, URL_A, "Hello");
+    for (int i = 0; i < 50; i++) {
+      read(small, URL_A);
+    }
+    put(small, URL_B, "World");
+    small.close();
+
+    ImageDiskCache reopened = ImageDiskCache.open(directory, 1000, 8);
+    assertThat(reopened.entryCount()).isEqualTo(2);
+    assertThat(read(reopened, URL_A)).isEqualTo("Hello");
+    assertThat(read(reopened, URL_B)).isEqualTo("World");
+  }
+
+  @Test public void unknownFilesAreDeletedOnRebuild() throws IOException {
+    cache.close();
+    File stale = new File(directory, "0123abcd.tmp");
+    Okio.buffer(Okio.sink(stale)).writeUtf8("stale").close();
+    new File(directory, ImageDiskCache.JOURNAL_FILE).delete();
+
+    ImageDiskCache.open(directory, 1000);
+    assertThat(stale.exists()).isFalse();
+  }
+
+  private static long entrySize(String url, long length) {
+    return ImageDiskCache.headerSize(url.length()) + length;
+  }
+
+  private File entryFile(String url) {
+    return new File(directory, Long.toHexString(ImageDiskCache.key(url)));
+  }
+
+  private static void put(ImageDiskCache cache, String url, String value) throws IOException {
+    Buffer buffer = new Buffer().writeUtf8(value);
+    ImageDiskCache.Editor editor = cache.edit(url);
+    editor.write(buffer, 0, buffer.size());
+    editor.commit();
+  }
+
+  private static String read(ImageDiskCache cache, String url) throws IOException {
+    ImageDiskCache.Snapshot snapshot = cache.get(url);
+    try {
+      return snapshot.source.readUtf8();
+    } finally {
+      snapshot.source.close();
+    }
+  }
+
+  private static String repeat(char c, int count) {
+    char[] chars = new char[count];
+    Arrays.fill(chars, c);
+    return new String(chars);
+  }
+}
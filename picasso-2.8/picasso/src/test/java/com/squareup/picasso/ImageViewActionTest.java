@@ -18,14 +18,17 @@ package com.squareup.picasso;
 import android.graphics.Bitmap;
 import android.graphics.drawable.AnimationDrawable;
 import android.graphics.drawable.Drawable;
+import android.os.IBinder;
 import android.widget.ImageView;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
 
 import static com.google.common.truth.Truth.assertThat;
 import static com.squareup.picasso.Picasso.LoadedFrom.MEMORY;
+import static com.squareup.picasso.Picasso.LoadedFrom.NETWORK;
 import static com.squareup.picasso.Picasso.RequestTransformer.IDENTITY;
 import static com.squareup.picasso.TestUtils.RESOURCE_ID_1;
 import static com.squareup.picasso.TestUtils.URI_KEY_1;
@@ -34,6 +37,8 @@ import static com.squareup.picasso.TestUtils.mockCallback;
 import static com.squareup.picasso.TestUtils.mockImageViewTarget;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
@@ -58,12 +63,54 @@ public class ImageViewActionTest {
     ImageViewAction request =
         new ImageViewAction(picasso, target, null, 0, 0, 0, null, URI_KEY_1, null,
             callback, false);
+    // Forget the action starting to follow the target's window attachment.
+    reset(target);
     request.target.clear();
     request.complete(bitmap, MEMORY);
     verifyZeroInteractions(target);
     verifyZeroInteractions(callback);
   }
 
+  @Test
+  public void detachedFollowsWindowAttachment() {
+    Picasso picasso = mock(Picasso.class);
+    ImageView target = mockImageViewTarget();
+    ImageViewAction request =
+        new ImageViewAction(picasso, target, null, 0, 0, 0, null, URI_KEY_1, null, null, false);
+    verify(target).addOnAttachStateChangeListener(request);
+    assertThat(request.isDetached()).isTrue();
+    request.onViewAttachedToWindow(target);
+    assertThat(request.isDetached()).isFalse();
+    verify(picasso).attachStateChanged(request);
+    request.onViewAttachedToWindow(target);
+    verify(picasso).attachStateChanged(request);
+    request.onViewDetachedFromWindow(target);
+    assertThat(request.isDetached()).isTrue();
+    verify(picasso, times(2)).attachStateChanged(request);
+  }
+
+  @Test
+  public void detachedWhenTargetIsGone() {
+    ImageView target = mockImageViewTarget();
+    when(target.getWindowToken()).thenReturn(mock(IBinder.class));
+    ImageViewAction request =
+        new ImageViewAction(mock(Picasso.class), target, null, 0, 0, 0, null, URI_KEY_1, null,
+            null, false);
+    assertThat(request.isDetached()).isFalse();
+    request.target.clear();
+    assertThat(request.isDetached()).isTrue();
+  }
+
+  @Test
+  public void stopsFollowingWindowAttachmentOnceDone() {
+    ImageView target = mockImageViewTarget();
+    ImageViewAction request =
+        new ImageViewAction(mock(Picasso.class), target, null, 0, 0, 0, null, URI_KEY_1, null,
+            null, false);
+    request.cancel();
+    verify(target).removeOnAttachStateChangeListener(request);
+  }
+
   @Test
   public void returnsIfTargetIsNullOnError() throws Exception {
     Picasso picasso = mock(Picasso.class);
@@ -72,6 +119,8 @@ public class ImageViewActionTest {
     ImageViewAction request =
         new ImageViewAction(picasso, target, null, 0, 0, 0, null, URI_KEY_1, null,
             callback, false);
+    // Forget the action starting to follow the target's window attachment.
+    reset(target);
     request.target.clear();
     request.error(new RuntimeException());
     verifyZeroInteractions(target);
@@ -94,6 +143,37 @@ public class ImageViewActionTest {
     verify(callback).onSuccess();
   }
 
+  @Test
+  public void previewSetsDrawableWithoutInvokingCallback() throws Exception {
+    Picasso picasso =
+        new Picasso(RuntimeEnvironment.application, mock(Dispatcher.class), Cache.NONE, null, IDENTITY,
+            null, mock(Stats.class), Bitmap.Config.ARGB_8888, false, false);
+    ImageView target = mockImageViewTarget();
+    Callback callback = mockCallback();
+    ImageViewAction request =
+        new ImageViewAction(picasso, target, null, 0, 0, 0, null, URI_KEY_1, null,
+            callback, false);
+    request.preview(makeBitmap(), NETWORK);
+    verify(target).setImageDrawable(any(PicassoDrawable.class));
+    verifyZeroInteractions(callback);
+    assertThat(request.previewShown).isTrue();
+  }
+
+  @Test
+  public void completeAfterPreviewDoesNotFade() throws Exception {
+    Picasso picasso =
+        new Picasso(RuntimeEnvironment.application, mock(Dispatcher.class), Cache.NONE, null, IDENTITY,
+            null, mock(Stats.class), Bitmap.Config.ARGB_8888, false, false);
+    ImageView target = mockImageViewTarget();
+    ImageViewAction request =
+        new ImageViewAction(picasso, target, null, 0, 0, 0, null, URI_KEY_1, null, null, false);
+    request.preview(makeBitmap(), NETWORK);
+    request.complete(makeBitmap(), NETWORK);
+    ArgumentCaptor<Drawable> drawable = ArgumentCaptor.forClass(Drawable.class);
+    verify(target, times(2)).setImageDrawable(drawable.capture());
+    assertThat(((PicassoDrawable) drawable.getValue()).animating).isFalse();
+  }
+
   @Test
   public void invokesTargetAndCallbackErrorIfTargetIsNotNullWithErrorResourceId() throws Exception {
     ImageView target = mockImageViewTarget();
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.squareup.picasso.LatencyHistogram.BUCKET_COUNT;
+import static com.squareup.picasso.LatencyHistogram.MAX_VALUE;
+import static com.squareup.picasso.LatencyHistogram.SUB_BUCKETS;
+import static com.squareup.picasso.LatencyHistogram.bucketIndex;
+import static com.squareup.picasso.LatencyHistogram.highestValue;
+import static org.junit.Assert.fail;
+
+public class LatencyHistogramTest {
+  @Test public void smallValuesHaveExactBuckets() {
+    for (int value = 0; value < SUB_BUCKETS; value++) {
+      assertThat(bucketIndex(value)).isEqualTo(value);
+      assertThat(highestValue(value)).isEqualTo(value);
+    }
+  }
+
+  @Test public void bucketsAreContiguousAndBounded() {
+    long previousHighest = -1;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      long highest = highestValue(i);
+      assertThat(bucketIndex(previousHighest + 1)).isEqualTo(i);
+      assertThat(bucketIndex(highest)).isEqualTo(i);
+      // Relative error is bounded by the sub-bucket resolution.
+      assertThat(highest - previousHighest - 1).isAtMost((previousHighest + 1) / SUB_BUCKETS);
+      previousHighest = highest;
+    }
+    assertThat(previousHighest).isEqualTo(MAX_VALUE);
+  }
+
+  @Test public void emptySnapshot() {
+    StatsSnapshot.Latency latency = new LatencyHistogram().snapshot();
+    assertThat(latency.count).isEqualTo(0);
+    assertThat(latency.mean).isEqualTo(0);
+    assertThat(latency.max).isEqualTo(0);
+    assertThat(latency.percentile(99)).isEqualTo(0);
+  }
+
+  @Test public void percentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i);
+    }
+    StatsSnapshot.Latency latency = histogram.snapshot();
+    assertThat(latency.count).isEqualTo(1000);
+    assertThat(latency.mean).isEqualTo(500);
+    assertThat(latency.max).isEqualTo(1000);
+    assertThat(latency.percentile(0)).isEqualTo(1);
+    assertThat((double) latency.percentile(50)).isWithin(500 / SUB_BUCKETS).of(500);
+    assertThat((double) latency.percentile(90)).isWithin(900 / SUB_BUCKETS).of(900);
+    assertThat(latency.percentile(100)).isEqualTo(1000);
+  }
+
+  @Test public void recordNanosConvertsToMicros() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.recordNanos(5000);
+    assertThat(histogram.snapshot().max).isEqualTo(5);
+  }
+
+  @Test public void outOfRangeValuesAreClamped() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(-1);
+    histogram.record(Long.MAX_VALUE);
+    StatsSnapshot.Latency latency = histogram.snapshot();
+    assertThat(latency.percentile(0)).isEqualTo(0);
+    assertThat(latency.max).isEqualTo(MAX_VALUE);
+  }
+
+  @Test public void mergeCombinesDistributions() {
+    LatencyHistogram first = new LatencyHistogram();
+    first.record(10);
+    LatencyHistogram second = new LatencyHistogram();
+    second.record(30);
+    second.record(50);
+    StatsSnapshot.Latency merged = StatsSnapshot.Latency.merge(new StatsSnapshot.Latency[] {
+        first.snapshot(), second.snapshot(), StatsSnapshot.Latency.EMPTY
+    });
+    assertThat(merged.count).isEqualTo(3);
+    assertThat(merged.mean).isEqualTo(30);
+    assertThat(merged.max).isEqualTo(50);
+  }
+
+  @Test public void invalidPercentileThrows() {
+    try {
+      new LatencyHistogram().snapshot().percentile(101);
+      fail("Percentile above 100 should throw.");
+    } catch (IllegalArgumentException ignored) {
+    }
+  }
+}
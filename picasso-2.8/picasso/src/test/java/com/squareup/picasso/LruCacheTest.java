@@ -102,7 +102,7 @@ public class LruCacheTest {
   @Test public void cannotPutNullKey() {
     LruCache cache = new LruCache(3);
     try {
-      cache.set(null, A);
+      cache.set((String) null, A);
       fail();
     } catch (NullPointerException expected) {
     }
@@ -127,7 +127,7 @@ public class LruCacheTest {
   @Test public void throwsWithNullKey() {
     LruCache cache = new LruCache(1);
     try {
-      cache.get(null);
+      cache.get((String) null);
       fail("Expected NullPointerException");
     } catch (NullPointerException expected) {
     }
@@ -166,7 +166,35 @@ public class LruCacheTest {
 
     cache.clearKeyUri("Hello");
     assertThat(cache.cache.snapshot()).hasSize(1);
-    assertThat(cache.cache.snapshot()).containsKey("Hellos\nWorld!");
+    assertThat(cache.cache.snapshot()).containsKey(RequestKey.of("Hellos\nWorld!"));
+  }
+
+  @Test public void clearKeyUriOnlyRemovesVariantsOfUri() {
+    LruCache cache = new LruCache(5);
+    cache.set("Hello\nAlice!", A);
+    cache.set("Hello\nBob!", B);
+    cache.set("World\nAlice!", C);
+    cache.set("Hello\nBob!", D);
+    assertThat(cache.keysBySource.get("Hello")).hasSize(2);
+
+    cache.clearKeyUri("Hello");
+    assertThat(cache.size()).isEqualTo(1);
+    assertThat(cache.get("World\nAlice!")).isSameAs(C);
+    assertThat(cache.keysBySource).doesNotContainKey("Hello");
+  }
+
+  @Test public void indexFollowsEviction() {
+    LruCache cache = new LruCache(2);
+    cache.set("Hello\nAlice!", A);
+    cache.set("Hello\nBob!", B);
+    cache.set("World\nAlice!", C);
+    assertThat(cache.keysBySource.get("Hello")).containsExactly(RequestKey.of("Hello\nBob!"));
+
+    cache.trimToSize(0);
+    assertThat(cache.keysBySource).isEmpty();
+    cache.set("Hello\nAlice!", A);
+    cache.clear();
+    assertThat(cache.keysBySource).isEmpty();
   }
 
   @Test public void invalidate() {
@@ -196,6 +224,32 @@ public class LruCacheTest {
     assertThat(cache.size()).isEqualTo(16);
   }
 
+  @Test public void trimToSizeEvictsLeastRecentlyUsed() {
+    LruCache cache = new LruCache(3);
+    cache.set("a", A);
+    cache.set("b", B);
+    cache.set("c", C);
+    cache.get("a");
+    cache.trimToSize(1);
+    assertThat(cache.size()).isEqualTo(1);
+    assertThat(cache.get("a")).isSameAs(A);
+    assertThat(cache.maxSize()).isEqualTo(3);
+  }
+
+  @Test public void limitCapsSetsBelowMaxSize() {
+    LruCache cache = new LruCache(3);
+    cache.set("a", A);
+    cache.set("b", B);
+    cache.setLimit(1);
+    assertThat(cache.size()).isEqualTo(1);
+    cache.set("c", C);
+    assertThat(cache.size()).isEqualTo(1);
+    assertThat(cache.get("c")).isSameAs(C);
+    cache.setLimit(3);
+    cache.set("d", D);
+    assertThat(cache.size()).isEqualTo(2);
+  }
+
   @Test public void overMaxSizeRemovesExisting() {
     LruCache cache = new LruCache(20);
     Bitmap size4 = Bitmap.createBitmap(2, 2, ALPHA_8);
@@ -235,8 +289,8 @@ public class LruCacheTest {
 
   private void assertSnapshot(LruCache cache, Object... keysAndValues) {
     List<Object> actualKeysAndValues = new ArrayList<>();
-    for (Map.Entry<String, LruCache.BitmapAndSize> entry : cache.cache.snapshot().entrySet()) {
-      actualKeysAndValues.add(entry.getKey());
+    for (Map.Entry<RequestKey, LruCache.BitmapAndSize> entry : cache.cache.snapshot().entrySet()) {
+      actualKeysAndValues.add(entry.getKey().toString());
       actualKeysAndValues.add(entry.getValue().bitmap);
     }
 
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.graphics.Bitmap;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_BACKGROUND;
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_COMPLETE;
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_MODERATE;
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL;
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW;
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE;
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN;
+import static android.graphics.Bitmap.Config.ALPHA_8;
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+public class MemoryGovernorTest {
+  private final LruCache cache = new LruCache(100);
+  private final MemoryGovernor governor = new MemoryGovernor(cache);
+
+  @Test public void budgetIsCacheMaxSize() {
+    assertThat(governor.budget).isEqualTo(100);
+  }
+
+  @Test public void reservationsShrinkCacheUntilReleased() {
+    fill(10, 10);
+    assertThat(cache.size()).isEqualTo(100);
+
+    governor.reserve(30);
+    assertThat(governor.inFlightBytes()).isEqualTo(30);
+    assertThat(cache.size()).isEqualTo(70);
+    // The least recently used entries went first.
+    assertThat(cache.get("0")).isNull();
+    assertThat(cache.get("3")).isNotNull();
+
+    // Sets cannot grow the cache past what the reservations leave.
+    cache.set("a", Bitmap.createBitmap(10, 1, ALPHA_8));
+    assertThat(cache.size()).isEqualTo(70);
+
+    governor.release(30);
+    assertThat(governor.inFlightBytes()).isEqualTo(0);
+    cache.set("b", Bitmap.createBitmap(10, 1, ALPHA_8));
+    assertThat(cache.size()).isEqualTo(80);
+  }
+
+  @Test public void reservationsBeyondBudgetEmptyCache() {
+    fill(10, 10);
+    governor.reserve(150);
+    assertThat(cache.size()).isEqualTo(0);
+    governor.release(150);
+    assertThat(governor.inFlightBytes()).isEqualTo(0);
+  }
+
+  @Test public void trimMemoryTrimsProgressively() {
+    fill(10, 10);
+    governor.onTrimMemory(TRIM_MEMORY_RUNNING_MODERATE);
+    assertThat(cache.size()).isEqualTo(70);
+    assertThat(governor.trimLevel()).isEqualTo(TRIM_MEMORY_RUNNING_MODERATE);
+
+    governor.onTrimMemory(TRIM_MEMORY_RUNNING_LOW);
+    assertThat(cache.size()).isEqualTo(50);
+
+    governor.onTrimMemory(TRIM_MEMORY_RUNNING_CRITICAL);
+    assertThat(cache.size()).isEqualTo(20);
+
+    governor.onTrimMemory(TRIM_MEMORY_COMPLETE);
+    assertThat(cache.size()).isEqualTo(0);
+  }
+
+  @Test public void trimLevelCapsCacheUntilLowerLevelOrVisible() {
+    fill(10, 10);
+    governor.onTrimMemory(TRIM_MEMORY_RUNNING_LOW);
+    assertThat(cache.size()).isEqualTo(50);
+
+    // Reservations coming and going do not let the cache grow back.
+    governor.reserve(10);
+    governor.release(10);
+    fill(10, 10);
+    assertThat(cache.size()).isEqualTo(50);
+
+    governor.onTrimMemory(TRIM_MEMORY_RUNNING_MODERATE);
+    fill(10, 10);
+    assertThat(cache.size()).isEqualTo(70);
+
+    governor.onTrimMemory(TRIM_MEMORY_UI_HIDDEN);
+    assertThat(cache.size()).isEqualTo(50);
+    governor.onActivityStarted(null);
+    assertThat(governor.trimLevel()).isEqualTo(0);
+    fill(10, 10);
+    assertThat(cache.size()).isEqualTo(100);
+  }
+
+  @Test public void startedActivityDoesNotLiftRunningLevel() {
+    governor.onTrimMemory(TRIM_MEMORY_RUNNING_CRITICAL);
+    governor.onActivityStarted(null);
+    fill(10, 10);
+    assertThat(cache.size()).isEqualTo(20);
+  }
+
+  @Test public void retainedSizeByLevel() {
+    assertThat(MemoryGovernor.retainedSize(100, 0)).isEqualTo(100);
+    assertThat(MemoryGovernor.retainedSize(100, TRIM_MEMORY_RUNNING_MODERATE)).isEqualTo(75);
+    assertThat(MemoryGovernor.retainedSize(100, TRIM_MEMORY_RUNNING_LOW)).isEqualTo(50);
+    assertThat(MemoryGovernor.retainedSize(100, TRIM_MEMORY_RUNNING_CRITICAL)).isEqualTo(25);
+    assertThat(MemoryGovernor.retainedSize(100, TRIM_MEMORY_UI_HIDDEN)).isEqualTo(50);
+    assertThat(MemoryGovernor.retainedSize(100, TRIM_MEMORY_BACKGROUND)).isEqualTo(50);
+    assertThat(MemoryGovernor.retainedSize(100, TRIM_MEMORY_MODERATE)).isEqualTo(25);
+    assertThat(MemoryGovernor.retainedSize(100, TRIM_MEMORY_COMPLETE)).isEqualTo(0);
+  }
+
+  @Test public void lowMemoryClearsCache() {
+    fill(10, 10);
+    governor.onLowMemory();
+    assertThat(cache.size()).isEqualTo(0);
+    assertThat(governor.trimLevel()).isEqualTo(TRIM_MEMORY_COMPLETE);
+  }
+
+  @Test public void customCacheIsOnlyClearedAtCompleteLevel() {
+    Cache custom = mock(Cache.class);
+    when(custom.maxSize()).thenReturn(100);
+    MemoryGovernor governor = new MemoryGovernor(custom);
+
+    governor.reserve(50);
+    governor.onTrimMemory(TRIM_MEMORY_MODERATE);
+    verify(custom, never()).clear();
+
+    governor.onTrimMemory(TRIM_MEMORY_COMPLETE);
+    verify(custom).clear();
+  }
+
+  @Test public void outOfMemoryClearsCacheAndReportsWhetherAnythingWasFreed() {
+    fill(2, 10);
+    assertThat(governor.onOutOfMemory()).isTrue();
+    assertThat(cache.size()).isEqualTo(0);
+    assertThat(governor.onOutOfMemory()).isFalse();
+    assertThat(governor.outOfMemoryCount()).isEqualTo(2);
+  }
+
+  @Test public void encodedTierIsTrimmedInProportionAndCleared() {
+    EncodedCache encoded = new EncodedCache(800);
+    MemoryGovernor governor = new MemoryGovernor(cache, encoded);
+    for (int i = 0; i < 8; i++) {
+      encoded.set(String.valueOf(i), new byte[100], 0);
+    }
+
+    governor.onTrimMemory(TRIM_MEMORY_RUNNING_LOW);
+    assertThat(encoded.size()).isEqualTo(400);
+    assertThat(encoded.get("7")).isNotNull();
+
+    assertThat(governor.onOutOfMemory()).isTrue();
+    assertThat(encoded.size()).isEqualTo(0);
+  }
+
+  private void fill(int count, int size) {
+    for (int i = 0; i < count; i++) {
+      cache.set(String.valueOf(i), Bitmap.createBitmap(size, 1, ALPHA_8));
+    }
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.os.Handler;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.squareup.picasso.TestUtils.URI_1;
+import static com.squareup.picasso.TestUtils.URI_KEY_1;
+import static com.squareup.picasso.TestUtils.mockAction;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+@RunWith(RobolectricTestRunner.class)
+public class MpscDispatcherLoopTest {
+  private final List<Object> handled = Collections.synchronizedList(new ArrayList<>());
+  private Dispatcher dispatcher;
+  private MpscDispatcherLoop loop;
+  private volatile Runnable onHandle;
+
+  @Before public void setUp() {
+    dispatcher = mock(Dispatcher.class);
+    doAnswer(new Answer<Void>() {
+      @Override public Void answer(InvocationOnMock invocation) {
+        Object[] arguments = invocation.getArguments();
+        handled.add(arguments[1]);
+        Runnable runnable = onHandle;
+        if (runnable != null) {
+          runnable.run();
+        }
+        return null;
+      }
+    }).when(dispatcher).handle(anyInt(), any(), anyInt());
+    loop = new MpscDispatcherLoop(dispatcher);
+  }
+
+  @After public void tearDown() {
+    loop.quit();
+  }
+
+  @Test public void commandsFromEachProducerRunInOrder() throws InterruptedException {
+    final int producers = 4;
+    final int perProducer = 1000;
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<>();
+    for (int p = 0; p < producers; p++) {
+      final int producer = p;
+      Thread thread = new Thread() {
+        @Override public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            throw new AssertionError(e);
+          }
+          for (int i = 0; i < perProducer; i++) {
+            loop.send(Dispatcher.REQUEST_SUBMIT, new int[] { producer, i }, 0);
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    awaitHandled(producers * perProducer);
+
+    int[] next = new int[producers];
+    synchronized (handled) {
+      for (Object obj : handled) {
+        int[] command = (int[]) obj;
+        assertThat(command[1]).isEqualTo(next[command[0]]++);
+      }
+    }
+    for (int count : next) {
+      assertThat(count).isEqualTo(perProducer);
+    }
+  }
+
+  @Test public void delayedCommandsRunInDueOrderAfterTheirDelay() throws InterruptedException {
+    long start = System.nanoTime();
+    loop.sendDelayed(Dispatcher.HUNTER_RETRY, "late", 200);
+    loop.sendDelayed(Dispatcher.HUNTER_RETRY, "early", 50);
+    loop.send(Dispatcher.REQUEST_SUBMIT, "now", 0);
+    awaitHandled(3);
+    assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isAtLeast(200L);
+    assertThat(handled).containsExactly("now", "early", "late").inOrder();
+  }
+
+  @Test public void pendingCommandsCanBeFoundAndRemovedFromTheLoop() throws InterruptedException {
+    final CountDownLatch checked = new CountDownLatch(1);
+    final boolean[] pending = new boolean[2];
+    onHandle = new Runnable() {
+      @Override public void run() {
+        if (checked.getCount() == 0) {
+          return;
+        }
+        pending[0] = loop.hasPending(Dispatcher.HUNTER_DELAY_NEXT_BATCH);
+        loop.remove(Dispatcher.HUNTER_DELAY_NEXT_BATCH);
+        pending[1] = loop.hasPending(Dispatcher.HUNTER_DELAY_NEXT_BATCH);
+        checked.countDown();
+      }
+    };
+    loop.sendDelayed(Dispatcher.HUNTER_DELAY_NEXT_BATCH, "removed", 100);
+    loop.send(Dispatcher.REQUEST_SUBMIT, "first", 0);
+    assertThat(checked.await(1, TimeUnit.SECONDS)).isTrue();
+    sleep(200);
+    assertThat(pending[0]).isTrue();
+    assertThat(pending[1]).isFalse();
+    assertThat(handled).containsExactly("first");
+  }
+
+  @Test public void quitStopsRunningCommands() throws InterruptedException {
+    loop.send(Dispatcher.REQUEST_SUBMIT, "before", 0);
+    awaitHandled(1);
+    loop.sendDelayed(Dispatcher.HUNTER_RETRY, "after", 50);
+    loop.quit();
+    sleep(150);
+    assertThat(handled).containsExactly("before");
+  }
+
+  @Test public void dispatcherSubmitReachesExecutor() {
+    ExecutorService service = mock(ExecutorService.class);
+    Dispatcher real = new Dispatcher(RuntimeEnvironment.application, service, new Handler(),
+        mock(Downloader.class), Cache.NONE, null, new MemoryGovernor(Cache.NONE),
+        mock(Stats.class), false, Dispatcher.DEFAULT_MAX_BATCH_SIZE,
+        Dispatcher.DEFAULT_BATCH_DELAY, true, true);
+    try {
+      real.dispatchSubmit(mockAction(URI_KEY_1, URI_1));
+      verify(service, timeout(1000)).submit(any(BitmapHunter.class));
+    } finally {
+      real.shutdown();
+    }
+  }
+
+  private void awaitHandled(int count) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (handled.size() < count && System.nanoTime() < deadline) {
+      sleep(5);
+    }
+    assertThat(handled).hasSize(count);
+  }
+
+  private static void sleep(long millis) throws InterruptedException {
+    Thread.sleep(millis);
+  }
+}
@@ -69,6 +69,7 @@ public class NetworkRequestHandlerTest {
   @Mock Picasso picasso;
   @Mock Cache cache;
   @Mock Stats stats;
+  @Mock MemoryGovernor governor;
   @Mock Dispatcher dispatcher;
   @Captor ArgumentCaptor<okhttp3.Request> requestCaptor;
 
@@ -89,7 +90,8 @@ public class NetworkRequestHandlerTest {
   @Test public void withZeroRetryCountForcesLocalCacheOnly() throws Exception {
     responses.add(responseOf(ResponseBody.create(null, new byte[10])));
     Action action = TestUtils.mockAction(URI_KEY_1, URI_1);
-    BitmapHunter hunter = new BitmapHunter(picasso, dispatcher, cache, stats, action, networkHandler);
+    BitmapHunter hunter = new BitmapHunter(picasso, dispatcher, cache, null, governor, stats, action,
+        networkHandler);
     hunter.retryCount = 0;
     hunter.hunt();
     assertThat(requests.takeFirst().cacheControl().toString()).isEqualTo(CacheControl.FORCE_CACHE.toString());
@@ -97,7 +99,8 @@ public class NetworkRequestHandlerTest {
 
   @Test public void shouldRetryTwiceWithAirplaneModeOffAndNoNetworkInfo() throws Exception {
     Action action = TestUtils.mockAction(URI_KEY_1, URI_1);
-    BitmapHunter hunter = new BitmapHunter(picasso, dispatcher, cache, stats, action, networkHandler);
+    BitmapHunter hunter = new BitmapHunter(picasso, dispatcher, cache, null, governor, stats, action,
+        networkHandler);
     assertThat(hunter.shouldRetry(false, null)).isTrue();
     assertThat(hunter.shouldRetry(false, null)).isTrue();
     assertThat(hunter.shouldRetry(false, null)).isFalse();
@@ -164,6 +167,56 @@ public class NetworkRequestHandlerTest {
     verifyZeroInteractions(stats);
   }
 
+  @Test public void immutableUrlIsServedFromCacheWithoutNetwork() throws Exception {
+    networkHandler = new NetworkRequestHandler(downloader, stats,
+        new ImmutableUrlPolicy("http://example\\.com/.*"));
+    responses.add(responseOf(ResponseBody.create(null, new byte[10]))
+        .newBuilder()
+        .cacheResponse(responseOf(null))
+        .build());
+    Action action = TestUtils.mockAction(URI_KEY_1, URI_1);
+    RequestHandler.Result result = networkHandler.load(action.getRequest(), 0);
+    assertThat(result.getLoadedFrom()).isEqualTo(Picasso.LoadedFrom.DISK);
+    assertThat(requests.takeFirst().cacheControl().toString())
+        .isEqualTo(CacheControl.FORCE_CACHE.toString());
+    assertThat(requests).isEmpty();
+  }
+
+  @Test public void immutableUrlMissGoesToNetwork() throws Exception {
+    networkHandler = new NetworkRequestHandler(downloader, stats,
+        new ImmutableUrlPolicy("http://example\\.com/.*"));
+    responses.add(responseOf(ResponseBody.create(null, new byte[0])).newBuilder()
+        .code(504)
+        .message("Unsatisfiable Request (only-if-cached)")
+        .build());
+    responses.add(responseOf(ResponseBody.create(null, new byte[10])));
+    Action action = TestUtils.mockAction(URI_KEY_1, URI_1);
+    RequestHandler.Result result = networkHandler.load(action.getRequest(), 0);
+    assertThat(result.getLoadedFrom()).isEqualTo(Picasso.LoadedFrom.NETWORK);
+    assertThat(requests.takeFirst().cacheControl().onlyIfCached()).isTrue();
+    assertThat(requests.takeFirst().cacheControl().toString()).isEmpty();
+  }
+
+  @Test public void immutableUrlWithNoCacheGoesToNetwork() throws Exception {
+    networkHandler = new NetworkRequestHandler(downloader, stats,
+        new ImmutableUrlPolicy("http://example\\.com/.*"));
+    responses.add(responseOf(ResponseBody.create(null, new byte[10])));
+    Action action = TestUtils.mockAction(URI_KEY_1, URI_1);
+    networkHandler.load(action.getRequest(), NetworkPolicy.NO_CACHE.index);
+    assertThat(requests.takeFirst().cacheControl().noCache()).isTrue();
+    assertThat(requests).isEmpty();
+  }
+
+  @Test public void otherUrlsAreNotForcedFromCache() throws Exception {
+    networkHandler = new NetworkRequestHandler(downloader, stats,
+        new ImmutableUrlPolicy("https://i\\.scdn\\.co/image/.*"));
+    responses.add(responseOf(ResponseBody.create(null, new byte[10])));
+    Action action = TestUtils.mockAction(URI_KEY_1, URI_1);
+    networkHandler.load(action.getRequest(), 0);
+    assertThat(requests.takeFirst().cacheControl().toString()).isEmpty();
+    assertThat(requests).isEmpty();
+  }
+
   private static Response responseOf(ResponseBody body) {
     return new Response.Builder()
         .code(200)
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class PicassoFutureTest {
+  /** Runs commands when {@link #runAll()} is called, to check which executor was used. */
+  private final QueueExecutor executor = new QueueExecutor();
+
+  @Test public void thenRunsFunctionOnExecutor() throws Exception {
+    PicassoFuture<String> source = new PicassoFuture<>(null);
+    PicassoFuture<Integer> length = source.then(new LengthFunction(), executor);
+
+    source.set("picasso");
+    assertThat(length.isDone()).isFalse();
+    executor.runAll();
+    assertThat(length.get()).isEqualTo(7);
+  }
+
+  @Test public void thenOnCompletedFutureRunsRightAway() throws Exception {
+    PicassoFuture<Integer> length =
+        PicassoFuture.immediate("picasso").then(new LengthFunction(), executor);
+    executor.runAll();
+    assertThat(length.get()).isEqualTo(7);
+  }
+
+  @Test public void failurePropagatesThroughThen() throws InterruptedException {
+    PicassoFuture<String> source = new PicassoFuture<>(null);
+    PicassoFuture<Integer> length = source.then(new LengthFunction(), executor);
+    IOException exception = new IOException("boom");
+    source.setException(exception);
+    executor.runAll();
+    assertFailedWith(length, exception);
+  }
+
+  @Test public void throwingFunctionFailsChainedFuture() throws InterruptedException {
+    final IOException exception = new IOException("boom");
+    PicassoFuture<Integer> failed = PicassoFuture.immediate("picasso").then(
+        new PicassoFuture.Function<String, Integer>() {
+          @Override public Integer apply(String input) throws IOException {
+            throw exception;
+          }
+        }, executor);
+    executor.runAll();
+    assertFailedWith(failed, exception);
+  }
+
+  @Test public void cancellingChainedFutureCancelsSource() {
+    final AtomicBoolean cancelled = new AtomicBoolean();
+    PicassoFuture<String> source = new PicassoFuture<>(new Runnable() {
+      @Override public void run() {
+        cancelled.set(true);
+      }
+    });
+    PicassoFuture<Integer> length = source.then(new LengthFunction(), executor);
+
+    assertThat(length.cancel(false)).isTrue();
+    assertThat(source.isCancelled()).isTrue();
+    assertThat(cancelled.get()).isTrue();
+    assertThat(source.set("late")).isFalse();
+    assertThat(length.cancel(false)).isFalse();
+  }
+
+  @Test public void cancelledSourceFailsChainedFutureWithCancellation()
+      throws InterruptedException {
+    PicassoFuture<String> source = new PicassoFuture<>(null);
+    PicassoFuture<Integer> length = source.then(new LengthFunction(), executor);
+    source.cancel(false);
+    executor.runAll();
+    try {
+      length.get();
+      fail("Chained future of a cancelled future should fail.");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(CancellationException.class);
+    }
+  }
+
+  @Test public void listenerIsNotifiedOnExecutor() {
+    final List<Object> results = new ArrayList<>();
+    PicassoFuture.Listener<String> listener = new PicassoFuture.Listener<String>() {
+      @Override public void onSuccess(String result) {
+        results.add(result);
+      }
+
+      @Override public void onError(Exception e) {
+        results.add(e);
+      }
+    };
+    PicassoFuture<String> succeeding = new PicassoFuture<>(null);
+    PicassoFuture<String> cancelled = new PicassoFuture<>(null);
+    succeeding.addListener(listener, executor);
+    cancelled.addListener(listener, executor);
+    succeeding.set("picasso");
+    cancelled.cancel(true);
+    assertThat(results).isEmpty();
+
+    executor.runAll();
+    assertThat(results).hasSize(2);
+    assertThat(results.get(0)).isEqualTo("picasso");
+    assertThat(results.get(1)).isInstanceOf(CancellationException.class);
+  }
+
+  @Test public void allOfKeepsOrder() throws Exception {
+    PicassoFuture<String> first = new PicassoFuture<>(null);
+    PicassoFuture<String> second = new PicassoFuture<>(null);
+    PicassoFuture<List<String>> all = PicassoFuture.allOf(Arrays.asList(first, second));
+
+    second.set("b");
+    assertThat(all.isDone()).isFalse();
+    first.set("a");
+    assertThat(all.get()).containsExactly("a", "b").inOrder();
+  }
+
+  @Test public void allOfEmptyCompletesRightAway() throws Exception {
+    PicassoFuture<List<String>> all =
+        PicassoFuture.allOf(new ArrayList<PicassoFuture<String>>());
+    assertThat(all.get()).isEmpty();
+  }
+
+  @Test public void allOfFailsWithFirstFailure() throws InterruptedException {
+    PicassoFuture<String> first = new PicassoFuture<>(null);
+    PicassoFuture<String> second = new PicassoFuture<>(null);
+    PicassoFuture<List<String>> all = PicassoFuture.allOf(Arrays.asList(first, second));
+    IOException exception = new IOException("boom");
+    second.setException(exception);
+    assertFailedWith(all, exception);
+    assertThat(first.isCancelled()).isFalse();
+  }
+
+  @Test public void cancellingAllOfCancelsEveryInput() {
+    PicassoFuture<String> first = new PicassoFuture<>(null);
+    PicassoFuture<String> second = PicassoFuture.immediate("b");
+    PicassoFuture<List<String>> all = PicassoFuture.allOf(Arrays.asList(first, second));
+    assertThat(all.cancel(false)).isTrue();
+    assertThat(first.isCancelled()).isTrue();
+    assertThat(second.isCancelled()).isFalse();
+  }
+
+  @Test public void getOnMainThreadWhilePendingThrows() throws Exception {
+    PicassoFuture<String> future = new PicassoFuture<>(null);
+    try {
+      future.get();
+      fail("Waiting on the main thread should throw.");
+    } catch (IllegalStateException ignored) {
+    }
+    future.set("picasso");
+    assertThat(future.get()).isEqualTo("picasso");
+  }
+
+  @Test public void getWaitsForResultOnOtherThread() throws Exception {
+    final PicassoFuture<String> future = new PicassoFuture<>(null);
+    final Object[] result = new Object[2];
+    Thread thread = new Thread() {
+      @Override public void run() {
+        try {
+          try {
+            future.get(10, TimeUnit.MILLISECONDS);
+          } catch (TimeoutException e) {
+            result[0] = e;
+          }
+          result[1] = future.get();
+        } catch (Exception e) {
+          result[1] = e;
+        }
+      }
+    };
+    thread.start();
+    Thread.sleep(100);
+    future.set("picasso");
+    thread.join(1000);
+    assertThat(result[0]).isInstanceOf(TimeoutException.class);
+    assertThat(result[1]).isEqualTo("picasso");
+  }
+
+  private static void assertFailedWith(PicassoFuture<?> future, Exception exception)
+      throws InterruptedException {
+    try {
+      future.get();
+      fail("Future should have failed.");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isSameAs(exception);
+    }
+  }
+
+  static final class LengthFunction implements PicassoFuture.Function<String, Integer> {
+    @Override public Integer apply(String input) {
+      return input.length();
+    }
+  }
+
+  static final class QueueExecutor implements Executor {
+    private final List<Runnable> commands = new ArrayList<>();
+
+    @Override public void execute(Runnable command) {
+      commands.add(command);
+    }
+
+    void runAll() {
+      while (!commands.isEmpty()) {
+        commands.remove(0).run();
+      }
+    }
+  }
+}
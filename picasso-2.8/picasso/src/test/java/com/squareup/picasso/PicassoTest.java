@@ -21,9 +21,8 @@ import android.net.Uri;
 import android.widget.ImageView;
 import android.widget.RemoteViews;
 import java.io.File;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -41,18 +40,14 @@ import static com.squareup.picasso.TestUtils.URI_1;
 import static com.squareup.picasso.TestUtils.URI_KEY_1;
 import static com.squareup.picasso.TestUtils.makeBitmap;
 import static com.squareup.picasso.TestUtils.mockAction;
-import static com.squareup.picasso.TestUtils.mockCanceledAction;
 import static com.squareup.picasso.TestUtils.mockDeferredRequestCreator;
-import static com.squareup.picasso.TestUtils.mockHunter;
 import static com.squareup.picasso.TestUtils.mockImageViewTarget;
 import static com.squareup.picasso.TestUtils.mockTarget;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
-import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
-import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
@@ -106,7 +101,7 @@ public class PicassoTest {
   }
 
   @Test public void quickMemoryCheckReturnsBitmapIfInCache() {
-    when(cache.get(URI_KEY_1)).thenReturn(bitmap);
+    when(cache.get(URI_KEY_1.toString())).thenReturn(bitmap);
     Bitmap cached = picasso.quickMemoryCacheCheck(URI_KEY_1);
     assertThat(cached).isEqualTo(bitmap);
     verify(stats).dispatchCacheHit();
@@ -118,84 +113,6 @@ public class PicassoTest {
     verify(stats).dispatchCacheMiss();
   }
 
-  @Test public void completeInvokesSuccessOnAllSuccessfulRequests() {
-    Action action1 = mockAction(URI_KEY_1, URI_1, mockImageViewTarget());
-    Action action2 = mockCanceledAction();
-    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap, false);
-    when(hunter.getActions()).thenReturn(Arrays.asList(action1, action2));
-    when(hunter.getLoadedFrom()).thenReturn(MEMORY);
-    picasso.complete(hunter);
-    verify(action1).complete(bitmap, MEMORY);
-    verify(action2, never()).complete(eq(bitmap), any(Picasso.LoadedFrom.class));
-  }
-
-  @Test public void completeInvokesErrorOnAllFailedRequests() {
-    Action action1 = mockAction(URI_KEY_1, URI_1, mockImageViewTarget());
-    Action action2 = mockCanceledAction();
-    Exception exception = mock(Exception.class);
-    BitmapHunter hunter = mockHunter(URI_KEY_1, null, false);
-    when(hunter.getException()).thenReturn(exception);
-    when(hunter.getActions()).thenReturn(Arrays.asList(action1, action2));
-    picasso.complete(hunter);
-    verify(action1).error(exception);
-    verify(action2, never()).error(exception);
-    verify(listener).onImageLoadFailed(picasso, URI_1, exception);
-  }
-
-  @Test public void completeDeliversToSingle() {
-    Action action = mockAction(URI_KEY_1, URI_1, mockImageViewTarget());
-    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap, false);
-    when(hunter.getLoadedFrom()).thenReturn(MEMORY);
-    when(hunter.getAction()).thenReturn(action);
-    when(hunter.getActions()).thenReturn(Collections.<Action>emptyList());
-    picasso.complete(hunter);
-    verify(action).complete(bitmap, MEMORY);
-  }
-
-  @Test public void completeWithReplayDoesNotRemove() {
-    Action action = mockAction(URI_KEY_1, URI_1, mockImageViewTarget());
-    when(action.willReplay()).thenReturn(true);
-    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap, false);
-    when(hunter.getLoadedFrom()).thenReturn(MEMORY);
-    when(hunter.getAction()).thenReturn(action);
-    picasso.enqueueAndSubmit(action);
-    assertThat(picasso.targetToAction).hasSize(1);
-    picasso.complete(hunter);
-    assertThat(picasso.targetToAction).hasSize(1);
-    verify(action).complete(bitmap, MEMORY);
-  }
-
-  @Test public void completeDeliversToSingleAndMultiple() {
-    Action action = mockAction(URI_KEY_1, URI_1, mockImageViewTarget());
-    Action action2 = mockAction(URI_KEY_1, URI_1, mockImageViewTarget());
-    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap, false);
-    when(hunter.getLoadedFrom()).thenReturn(MEMORY);
-    when(hunter.getAction()).thenReturn(action);
-    when(hunter.getActions()).thenReturn(Arrays.asList(action2));
-    picasso.complete(hunter);
-    verify(action).complete(bitmap, MEMORY);
-    verify(action2).complete(bitmap, MEMORY);
-  }
-
-  @Test public void completeSkipsIfNoActions() {
-    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap, false);
-    picasso.complete(hunter);
-    verify(hunter).getAction();
-    verify(hunter).getActions();
-    verifyNoMoreInteractions(hunter);
-  }
-
-  @Test public void loadedFromIsNullThrows() {
-    Action action = mockAction(URI_KEY_1, URI_1, mockImageViewTarget());
-    BitmapHunter hunter = mockHunter(URI_KEY_1, bitmap, false);
-    when(hunter.getAction()).thenReturn(action);
-    try {
-      picasso.complete(hunter);
-      fail("Calling complete() with null LoadedFrom should throw");
-    } catch (AssertionError expected) {
-    }
-  }
-
   @Test public void resumeActionTriggersSubmitOnPausedAction() {
     Action action = mockAction(URI_KEY_1, URI_1);
     picasso.resumeAction(action);
@@ -203,7 +120,7 @@ public class PicassoTest {
   }
 
   @Test public void resumeActionImmediatelyCompletesCachedRequest() {
-    when(cache.get(URI_KEY_1)).thenReturn(bitmap);
+    when(cache.get(URI_KEY_1.toString())).thenReturn(bitmap);
     Action action = mockAction(URI_KEY_1, URI_1);
     picasso.resumeAction(action);
     verify(action).complete(bitmap, MEMORY);
@@ -506,6 +423,37 @@ public class PicassoTest {
     }
   }
 
+  @Test public void builderInvalidBatching() {
+    try {
+      new Picasso.Builder(context).maxBatchSize(0);
+      fail("Zero batch size should throw exception.");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new Picasso.Builder(context).maxBatchDelay(-1, TimeUnit.MILLISECONDS);
+      fail("Negative batch delay should throw exception.");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new Picasso.Builder(context).maxBatchDelay(1, null);
+      fail("Null TimeUnit should throw exception.");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test public void builderInvalidDeliveryBudget() {
+    try {
+      new Picasso.Builder(context).deliveryBudget(-1, TimeUnit.MILLISECONDS);
+      fail("Negative delivery budget should throw exception.");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new Picasso.Builder(context).deliveryBudget(1, null);
+      fail("Null TimeUnit should throw exception.");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
   @Test public void builderInvalidCache() {
     try {
       new Picasso.Builder(context).memoryCache(null);
@@ -519,6 +467,45 @@ public class PicassoTest {
     }
   }
 
+  @Test public void builderInvalidEncodedCacheRatio() {
+    try {
+      new Picasso.Builder(context).encodedMemoryCache(-0.1f);
+      fail("Negative ratio should throw exception.");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new Picasso.Builder(context).encodedMemoryCache(1);
+      fail("Ratio of 1 should throw exception.");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test public void builderInvalidImmutableUrls() {
+    try {
+      new Picasso.Builder(context).immutableUrls((String[]) null);
+      fail("Null patterns should throw exception.");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new Picasso.Builder(context).immutableUrls("https://example\\.com/.*", null);
+      fail("Null pattern should throw exception.");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test public void builderSplitsMemoryBudgetWithEncodedCache() {
+    Picasso picasso = new Picasso.Builder(RuntimeEnvironment.application)
+        .memoryCache(new LruCache(900))
+        .encodedMemoryCache(0.1f)
+        .build();
+    assertThat(picasso.dispatcher.encodedCache.maxSize()).isEqualTo(100);
+
+    picasso.dispatcher.encodedCache.set(URI_1.toString(), new byte[10], 0);
+    picasso.invalidate(URI_1);
+    assertThat(picasso.dispatcher.encodedCache.get(URI_1.toString())).isNull();
+    picasso.shutdown();
+  }
+
   @Test public void builderInvalidRequestTransformer() {
     try {
       new Picasso.Builder(context).requestTransformer(null);
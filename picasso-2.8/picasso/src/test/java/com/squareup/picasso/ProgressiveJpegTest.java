@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+import okio.Buffer;
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.squareup.picasso.TestUtils.jpeg;
+
+public class ProgressiveJpegTest {
+  @Test public void findsEndOfFirstScan() throws IOException {
+    byte[] jpeg = jpeg(640, 480, true);
+    long end = new ProgressiveJpeg().firstScanEnd(new Buffer().write(jpeg));
+
+    assertThat(end).isGreaterThan(0L);
+    assertThat(end).isLessThan(jpeg.length / 2L);
+    assertThat(jpeg[(int) end] & 0xFF).isEqualTo(0xFF);
+
+    // The first scan alone is a complete image.
+    Buffer firstScan = new Buffer().write(jpeg, 0, (int) end).writeByte(0xFF).writeByte(0xD9);
+    BufferedImage preview = ImageIO.read(new ByteArrayInputStream(firstScan.readByteArray()));
+    assertThat(preview.getWidth()).isEqualTo(640);
+    assertThat(preview.getHeight()).isEqualTo(480);
+  }
+
+  @Test public void findsEndOfFirstScanAsBytesArrive() throws IOException {
+    byte[] jpeg = jpeg(640, 480, true);
+    long expected = new ProgressiveJpeg().firstScanEnd(new Buffer().write(jpeg));
+
+    ProgressiveJpeg progressive = new ProgressiveJpeg();
+    Buffer buffer = new Buffer();
+    long end = ProgressiveJpeg.MORE;
+    for (int i = 0; i < jpeg.length && end == ProgressiveJpeg.MORE; i++) {
+      buffer.writeByte(jpeg[i]);
+      end = progressive.firstScanEnd(buffer);
+    }
+    assertThat(end).isEqualTo(expected);
+    assertThat(buffer.size()).isLessThan((long) jpeg.length);
+  }
+
+  @Test public void baselineHasNoFirstScan() throws IOException {
+    byte[] jpeg = jpeg(640, 480, false);
+    ProgressiveJpeg progressive = new ProgressiveJpeg();
+    Buffer buffer = new Buffer();
+    long end = ProgressiveJpeg.MORE;
+    for (int i = 0; i < jpeg.length && end == ProgressiveJpeg.MORE; i++) {
+      buffer.writeByte(jpeg[i]);
+      end = progressive.firstScanEnd(buffer);
+    }
+    assertThat(end).isEqualTo(ProgressiveJpeg.NONE);
+    // The frame header tells, long before the image data.
+    assertThat(buffer.size()).isLessThan(1024L);
+  }
+
+  @Test public void otherFormatsHaveNoFirstScan() {
+    Buffer png = new Buffer().writeByte(0x89).writeUtf8("PNG\r\n");
+    assertThat(new ProgressiveJpeg().firstScanEnd(png)).isEqualTo(ProgressiveJpeg.NONE);
+  }
+
+  @Test public void waitsForMoreBytes() {
+    Buffer buffer = new Buffer().writeByte(0xFF);
+    ProgressiveJpeg progressive = new ProgressiveJpeg();
+    assertThat(progressive.firstScanEnd(buffer)).isEqualTo(ProgressiveJpeg.MORE);
+    buffer.writeByte(0xD8).writeByte(0xFF);
+    assertThat(progressive.firstScanEnd(buffer)).isEqualTo(ProgressiveJpeg.MORE);
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.graphics.BitmapRegionDecoder;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.squareup.picasso.Picasso.LoadedFrom.DISK;
+import static com.squareup.picasso.Picasso.LoadedFrom.NETWORK;
+
+@RunWith(RobolectricTestRunner.class)
+public class RegionDecoderPoolTest {
+  private final RegionDecoderPool pool = new RegionDecoderPool(2);
+
+  @Test public void acquireMissReturnsNull() {
+    assertThat(pool.acquire("a")).isNull();
+  }
+
+  @Test public void putDecoderIsAcquired() throws IOException {
+    BitmapRegionDecoder decoder = decoder();
+    RegionDecoderPool.Entry put = pool.put("a", decoder, NETWORK);
+    pool.release(put);
+
+    RegionDecoderPool.Entry entry = pool.acquire("a");
+    assertThat(entry).isSameAs(put);
+    assertThat(entry.decoder).isSameAs(decoder);
+    assertThat(entry.loadedFrom).isEqualTo(NETWORK);
+    pool.release(entry);
+    assertThat(decoder.isRecycled()).isFalse();
+  }
+
+  @Test public void duplicatePutRecyclesNewDecoder() throws IOException {
+    BitmapRegionDecoder first = decoder();
+    BitmapRegionDecoder second = decoder();
+    RegionDecoderPool.Entry entry = pool.put("a", first, NETWORK);
+    assertThat(pool.put("a", second, DISK)).isSameAs(entry);
+    assertThat(second.isRecycled()).isTrue();
+    assertThat(first.isRecycled()).isFalse();
+    assertThat(entry.users).isEqualTo(2);
+  }
+
+  @Test public void eldestIsEvictedOverCapacity() throws IOException {
+    BitmapRegionDecoder a = decoder();
+    BitmapRegionDecoder b = decoder();
+    pool.release(pool.put("a", a, DISK));
+    pool.release(pool.put("b", b, DISK));
+    // Touch a so that b is the eldest.
+    pool.release(pool.acquire("a"));
+    pool.release(pool.put("c", decoder(), DISK));
+
+    assertThat(pool.size()).isEqualTo(2);
+    assertThat(pool.acquire("b")).isNull();
+    assertThat(b.isRecycled()).isTrue();
+    assertThat(a.isRecycled()).isFalse();
+  }
+
+  @Test public void inUseDecoderIsRecycledOnRelease() throws IOException {
+    BitmapRegionDecoder decoder = decoder();
+    RegionDecoderPool.Entry entry = pool.put("a", decoder, DISK);
+    pool.evict("a");
+    assertThat(pool.size()).isEqualTo(0);
+    assertThat(decoder.isRecycled()).isFalse();
+
+    pool.release(entry);
+    assertThat(decoder.isRecycled()).isTrue();
+  }
+
+  @Test public void evictAllRecyclesUnusedDecoders() throws IOException {
+    BitmapRegionDecoder a = decoder();
+    BitmapRegionDecoder b = decoder();
+    pool.release(pool.put("a", a, DISK));
+    pool.release(pool.put("b", b, DISK));
+    pool.evictAll();
+    assertThat(pool.size()).isEqualTo(0);
+    assertThat(a.isRecycled()).isTrue();
+    assertThat(b.isRecycled()).isTrue();
+  }
+
+  private static BitmapRegionDecoder decoder() throws IOException {
+    return BitmapRegionDecoder.newInstance(new ByteArrayInputStream(new byte[] {0}), false);
+  }
+}
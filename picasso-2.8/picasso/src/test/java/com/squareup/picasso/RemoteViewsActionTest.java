@@ -101,7 +101,7 @@ public class RemoteViewsActionTest {
 
   static class TestableRemoteViewsAction extends RemoteViewsAction {
     TestableRemoteViewsAction(Picasso picasso, Request data, RemoteViews remoteViews, int viewId,
-        int errorResId, int memoryPolicy, int networkPolicy, String tag, String key,
+        int errorResId, int memoryPolicy, int networkPolicy, String tag, RequestKey key,
         Callback callback) {
       super(picasso, data, remoteViews, viewId, errorResId, memoryPolicy, networkPolicy, tag, key,
           callback);
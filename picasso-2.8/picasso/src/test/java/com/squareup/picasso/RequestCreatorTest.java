@@ -16,6 +16,7 @@
 package com.squareup.picasso;
 
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.widget.ImageView;
@@ -24,6 +25,7 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -56,7 +58,6 @@ import static com.squareup.picasso.TestUtils.mockRemoteViews;
 import static com.squareup.picasso.TestUtils.mockTarget;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
-import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doCallRealMethod;
 import static org.mockito.Mockito.doReturn;
@@ -128,6 +129,21 @@ public class RequestCreatorTest {
     assertThat(actionCaptor.getValue()).isInstanceOf(FetchAction.class);
   }
 
+  @Test public void fetchWithDeadlineSetsActionDeadline() {
+    long before = System.nanoTime();
+    new RequestCreator(picasso, URI_1, 0).deadline(2, TimeUnit.SECONDS).fetch();
+    verify(picasso).submit(actionCaptor.capture());
+    long deadline = actionCaptor.getValue().deadlineNanos;
+    assertThat(deadline - before).isAtLeast(TimeUnit.SECONDS.toNanos(2));
+    assertThat(deadline - System.nanoTime()).isAtMost(TimeUnit.SECONDS.toNanos(2));
+  }
+
+  @Test public void fetchWithoutDeadline() {
+    new RequestCreator(picasso, URI_1, 0).fetch();
+    verify(picasso).submit(actionCaptor.capture());
+    assertThat(actionCaptor.getValue().deadlineNanos).isEqualTo(0);
+  }
+
   @Test public void fetchWithFitThrows() {
     try {
       new RequestCreator(picasso, URI_1, 0).fit().fetch();
@@ -160,6 +176,51 @@ public class RequestCreatorTest {
     verify(picasso).submit(actionCaptor.capture());
   }
 
+  @Test public void submitSubmitsFutureAction() {
+    PicassoFuture<Bitmap> future = new RequestCreator(picasso, URI_1, 0).submit();
+    verify(picasso).submit(actionCaptor.capture());
+    Action action = actionCaptor.getValue();
+    assertThat(action).isInstanceOf(FutureAction.class);
+    assertThat(action.getPriority()).isEqualTo(NORMAL);
+    assertThat(action.getTarget()).isSameAs(future);
+    assertThat(future.isDone()).isFalse();
+  }
+
+  @Test public void submitWithCacheCompletesRightAway() throws Exception {
+    when(picasso.quickMemoryCacheCheck(URI_KEY_1)).thenReturn(bitmap);
+    PicassoFuture<Bitmap> future = new RequestCreator(picasso, URI_1, 0).submit();
+    verify(picasso, never()).submit(any(Action.class));
+    assertThat(future.get()).isSameAs(bitmap);
+  }
+
+  @Test public void submitWithoutImageCompletesWithNull() throws Exception {
+    PicassoFuture<Bitmap> future = new RequestCreator(picasso, null, 0).submit();
+    assertThat(future.get()).isNull();
+    verifyZeroInteractions(picasso);
+  }
+
+  @Test public void submitWithFitThrows() {
+    try {
+      new RequestCreator(picasso, URI_1, 0).fit().submit();
+      fail("Calling submit() with fit() should throw an exception");
+    } catch (IllegalStateException ignored) {
+    }
+  }
+
+  @Test public void submitCompletesFutureWithResult() throws Exception {
+    PicassoFuture<Bitmap> future = new RequestCreator(picasso, URI_1, 0).submit();
+    verify(picasso).submit(actionCaptor.capture());
+    actionCaptor.getValue().complete(bitmap, MEMORY);
+    assertThat(future.get()).isSameAs(bitmap);
+  }
+
+  @Test public void cancellingSubmittedFutureCancelsAction() {
+    PicassoFuture<Bitmap> future = new RequestCreator(picasso, URI_1, 0).submit();
+    verify(picasso).submit(actionCaptor.capture());
+    assertThat(future.cancel(false)).isTrue();
+    verify(picasso).cancelAction(actionCaptor.getValue());
+  }
+
   @Test
   public void intoTargetWithNullThrows() {
     try {
@@ -260,7 +321,7 @@ public class RequestCreatorTest {
     ImageView target = mockImageViewTarget();
     new RequestCreator(picasso, null, 0).into(target);
     verify(picasso).cancelRequest(target);
-    verify(picasso, never()).quickMemoryCacheCheck(anyString());
+    verify(picasso, never()).quickMemoryCacheCheck(any(RequestKey.class));
     verify(picasso, never()).enqueueAndSubmit(any(Action.class));
   }
 
@@ -299,9 +360,12 @@ public class RequestCreatorTest {
             null, mock(Stats.class), ARGB_8888, false, false));
     ImageView target = mockImageViewTarget();
     new RequestCreator(picasso, URI_1, 0).noPlaceholder().into(target);
-    verifyNoMoreInteractions(target);
     verify(picasso).enqueueAndSubmit(actionCaptor.capture());
     assertThat(actionCaptor.getValue()).isInstanceOf(ImageViewAction.class);
+    // Only the action following the target's window attachment touched it.
+    verify(target).getWindowToken();
+    verify(target).addOnAttachStateChangeListener((ImageViewAction) actionCaptor.getValue());
+    verifyNoMoreInteractions(target);
   }
 
   @Test
@@ -400,6 +464,34 @@ public class RequestCreatorTest {
     }
   }
 
+  @Test public void invalidRegion() {
+    try {
+      new RequestCreator(picasso, URI_1, 0).region(-1, 0, 10, 10);
+      fail("Negative region start should throw exception.");
+    } catch (IllegalArgumentException ignored) {
+    }
+    try {
+      new RequestCreator(picasso, URI_1, 0).region(10, 0, 10, 10);
+      fail("Empty region should throw exception.");
+    } catch (IllegalArgumentException ignored) {
+    }
+    try {
+      new Request.Builder(URI_1).region(0, 0, 10, 10).progressive().build();
+      fail("Progressive region should throw exception.");
+    } catch (IllegalStateException ignored) {
+    }
+  }
+
+  @Test public void regionIsNotSharedBetweenRequests() {
+    Request request = new Request.Builder(URI_1).region(0, 0, 10, 10).build();
+    request.getRegion().offset(5, 5);
+    assertThat(request.region).isEqualTo(new Rect(0, 0, 10, 10));
+
+    Request resized = request.buildUpon().resize(5, 5).build();
+    assertThat(resized.region).isEqualTo(request.region);
+    assertThat(resized.region).isNotSameAs(request.region);
+  }
+
   @Test public void imageViewActionWithDefaultPriority() {
     new RequestCreator(picasso, URI_1, 0).into(mockImageViewTarget());
     verify(picasso).enqueueAndSubmit(actionCaptor.capture());
@@ -758,6 +850,19 @@ public class RequestCreatorTest {
   }
 
 
+  @Test public void invalidDeadline() {
+    try {
+      new RequestCreator().deadline(0, TimeUnit.SECONDS);
+      fail("Zero deadline should throw exception.");
+    } catch (IllegalArgumentException ignored) {
+    }
+    try {
+      new RequestCreator().deadline(1, null);
+      fail("Null TimeUnit should throw exception.");
+    } catch (IllegalArgumentException ignored) {
+    }
+  }
+
   @Test public void invalidTag() {
     try {
       new RequestCreator().tag(null);
@@ -852,4 +957,13 @@ public class RequestCreatorTest {
     verify(picasso).enqueueAndSubmit(actionCaptor.capture());
     assertThat(actionCaptor.getValue().getRequest().purgeable).isTrue();
   }
+
+  @Test public void progressive() {
+    new RequestCreator(picasso, URI_1, 0).progressive().into(mockImageViewTarget());
+    verify(picasso).enqueueAndSubmit(actionCaptor.capture());
+    Request request = actionCaptor.getValue().getRequest();
+    assertThat(request.progressive).isTrue();
+    // A preview does not change the final image, so it shares the non-progressive cache key.
+    assertThat(actionCaptor.getValue().getKey()).isEqualTo(URI_KEY_1);
+  }
 }
@@ -23,6 +23,7 @@ import org.robolectric.RobolectricTestRunner;
 
 import static android.graphics.Bitmap.Config.RGB_565;
 import static com.google.common.truth.Truth.assertThat;
+import static com.squareup.picasso.RequestHandler.calculateDensityScale;
 import static com.squareup.picasso.RequestHandler.calculateInSampleSize;
 import static com.squareup.picasso.RequestHandler.createBitmapOptions;
 import static com.squareup.picasso.RequestHandler.requiresInSampleSize;
@@ -85,6 +86,91 @@ public class RequestHandlerTest {
     assertThat(options.inSampleSize).isEqualTo(2);
   }
 
+  @Test public void densityScaleDecodesExactWidth() {
+    Request data = new Request.Builder(URI_1).resize(300, 0).build();
+    BitmapFactory.Options options = boundsOptions(640, 480);
+    calculateInSampleSize(data.targetWidth, data.targetHeight, options, data);
+    assertThat(calculateDensityScale(data, options)).isTrue();
+    assertThat(options.inSampleSize).isEqualTo(2);
+    assertThat(options.inDensity).isEqualTo(320);
+    assertThat(options.inTargetDensity).isEqualTo(300);
+  }
+
+  @Test public void densityScaleRoundsSampleSizeDownToPowerOfTwo() {
+    Request data = new Request.Builder(URI_1).resize(100, 0).build();
+    BitmapFactory.Options options = boundsOptions(700, 700);
+    calculateInSampleSize(data.targetWidth, data.targetHeight, options, data);
+    assertThat(options.inSampleSize).isEqualTo(7);
+    assertThat(calculateDensityScale(data, options)).isTrue();
+    assertThat(options.inSampleSize).isEqualTo(4);
+    assertThat(options.inDensity).isEqualTo(175);
+    assertThat(options.inTargetDensity).isEqualTo(100);
+  }
+
+  @Test public void densityScaleCenterCropOfSameAspectRatio() {
+    Request data = new Request.Builder(URI_1).resize(300, 225).centerCrop().build();
+    BitmapFactory.Options options = boundsOptions(1024, 768);
+    calculateInSampleSize(data.targetWidth, data.targetHeight, options, data);
+    assertThat(calculateDensityScale(data, options)).isTrue();
+    assertThat(options.inSampleSize).isEqualTo(2);
+    assertThat(options.inDensity).isEqualTo(512);
+    assertThat(options.inTargetDensity).isEqualTo(300);
+  }
+
+  @Test public void noDensityScaleWhenCropOrStretchFollows() {
+    Request crop = new Request.Builder(URI_1).resize(300, 300).centerCrop().build();
+    BitmapFactory.Options options = boundsOptions(640, 480);
+    calculateInSampleSize(crop.targetWidth, crop.targetHeight, options, crop);
+    assertThat(calculateDensityScale(crop, options)).isFalse();
+
+    Request stretch = new Request.Builder(URI_1).resize(300, 300).build();
+    options = boundsOptions(640, 480);
+    calculateInSampleSize(stretch.targetWidth, stretch.targetHeight, options, stretch);
+    assertThat(calculateDensityScale(stretch, options)).isFalse();
+    assertThat(options.inDensity).isEqualTo(0);
+  }
+
+  @Test public void densityScaleCenterInsideFitsWithDecidingDimension() {
+    Request data = new Request.Builder(URI_1).resize(300, 300).centerInside().build();
+    BitmapFactory.Options options = boundsOptions(640, 480);
+    calculateInSampleSize(data.targetWidth, data.targetHeight, options, data);
+    assertThat(calculateDensityScale(data, options)).isTrue();
+    assertThat(options.inSampleSize).isEqualTo(2);
+    assertThat(options.inDensity).isEqualTo(320);
+    assertThat(options.inTargetDensity).isEqualTo(300);
+  }
+
+  @Test public void noDensityScaleWhenSamplingIsExact() {
+    Request data = new Request.Builder(URI_1).resize(320, 0).build();
+    BitmapFactory.Options options = boundsOptions(640, 480);
+    calculateInSampleSize(data.targetWidth, data.targetHeight, options, data);
+    assertThat(calculateDensityScale(data, options)).isFalse();
+    assertThat(options.inSampleSize).isEqualTo(2);
+    assertThat(options.inDensity).isEqualTo(0);
+  }
+
+  @Test public void noDensityScaleWhenTargetIsLarger() {
+    Request data = new Request.Builder(URI_1).resize(800, 600).build();
+    BitmapFactory.Options options = boundsOptions(640, 480);
+    calculateInSampleSize(data.targetWidth, data.targetHeight, options, data);
+    assertThat(calculateDensityScale(data, options)).isFalse();
+    assertThat(options.inDensity).isEqualTo(0);
+  }
+
+  @Test public void noDensityScaleWhenPurgeable() {
+    Request data = new Request.Builder(URI_1).resize(300, 0).purgeable().build();
+    BitmapFactory.Options options = boundsOptions(640, 480);
+    calculateInSampleSize(data.targetWidth, data.targetHeight, options, data);
+    assertThat(calculateDensityScale(data, options)).isFalse();
+  }
+
+  private static BitmapFactory.Options boundsOptions(int width, int height) {
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.outWidth = width;
+    options.outHeight = height;
+    return options;
+  }
+
   @Test public void nullBitmapOptionsIfNoResizingOrPurgeable() {
     // No resize must return no bitmap options
     final Request noResize = new Request.Builder(URI_1).build();
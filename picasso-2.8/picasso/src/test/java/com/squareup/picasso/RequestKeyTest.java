@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import java.lang.reflect.Field;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static android.view.Gravity.LEFT;
+import static com.google.common.truth.Truth.assertThat;
+import static com.squareup.picasso.TestUtils.RESOURCE_ID_1;
+import static com.squareup.picasso.TestUtils.URI_1;
+import static com.squareup.picasso.TestUtils.URI_2;
+
+@RunWith(RobolectricTestRunner.class)
+public class RequestKeyTest {
+  @Test public void hashMatchesStringForm() {
+    Request[] requests = {
+        new Request.Builder(URI_1).build(),
+        new Request.Builder(URI_1).stableKey("stable").build(),
+        new Request.Builder(RESOURCE_ID_1).build(),
+        new Request.Builder(-7).build(),
+        new Request.Builder(Integer.MIN_VALUE).build(),
+        new Request.Builder(URI_1).rotate(-90.5f).build(),
+        new Request.Builder(URI_1).rotate(45, 10.25f, 0.5f).build(),
+        new Request.Builder(URI_1).resize(1024, 768).centerCrop(LEFT).build(),
+        new Request.Builder(URI_1).resize(100, 0).centerInside().build(),
+        new Request.Builder(URI_1).transform(new TestTransformation("foo", null))
+            .transform(new TestTransformation("b\u00e4r", null)).build(),
+        new Request.Builder(URI_1).region(0, 256, 512, 512).resize(256, 128).build(),
+    };
+    for (Request request : requests) {
+      RequestKey key = RequestKey.of(request);
+      String string = Utils.createKey(request, new StringBuilder());
+      RequestKey stringKey = RequestKey.of(string);
+      assertThat(key.hash).isEqualTo(stringKey.hash);
+      assertThat(key).isEqualTo(stringKey);
+      assertThat(stringKey).isEqualTo(key);
+      assertThat(key.hashCode()).isEqualTo(stringKey.hashCode());
+      assertThat(key.toString()).isEqualTo(string);
+    }
+  }
+
+  @Test public void structuredKeysCompareFields() {
+    RequestKey resized = RequestKey.of(new Request.Builder(URI_1).resize(10, 10).build());
+    assertThat(resized).isEqualTo(RequestKey.of(new Request.Builder(URI_1).resize(10, 10).build()));
+    assertThat(resized).isNotEqualTo(RequestKey.of(new Request.Builder(URI_1).build()));
+    assertThat(resized).isNotEqualTo(
+        RequestKey.of(new Request.Builder(URI_2).resize(10, 10).build()));
+    assertThat(resized).isNotEqualTo(
+        RequestKey.of(new Request.Builder(URI_1).resize(10, 11).build()));
+    assertThat(resized).isNotEqualTo(
+        RequestKey.of(new Request.Builder(URI_1).resize(10, 10).centerInside().build()));
+  }
+
+  @Test public void regionsHaveTheirOwnKeys() {
+    RequestKey region = RequestKey.of(new Request.Builder(URI_1).region(0, 0, 10, 10).build());
+    assertThat(region).isEqualTo(
+        RequestKey.of(new Request.Builder(URI_1).region(0, 0, 10, 10).build()));
+    assertThat(region).isNotEqualTo(RequestKey.of(new Request.Builder(URI_1).build()));
+    assertThat(region).isNotEqualTo(
+        RequestKey.of(new Request.Builder(URI_1).region(10, 0, 20, 10).build()));
+    assertThat(region.source()).isEqualTo(URI_1.toString());
+  }
+
+  @Test public void stableKeyMatchesEquivalentUri() {
+    // The string keys of both are the same, so the structured keys must be too.
+    RequestKey stable =
+        RequestKey.of(new Request.Builder(URI_2).stableKey(URI_1.toString()).build());
+    assertThat(stable).isEqualTo(RequestKey.of(new Request.Builder(URI_1).build()));
+  }
+
+  @Test public void source() {
+    RequestKey key = RequestKey.of(new Request.Builder(URI_1).resize(10, 10).build());
+    assertThat(key.source()).isEqualTo(URI_1.toString());
+    assertThat(RequestKey.of(new Request.Builder(RESOURCE_ID_1).build()).source())
+        .isEqualTo(String.valueOf(RESOURCE_ID_1));
+    assertThat(RequestKey.of("Hello\nAlice!").source()).isEqualTo("Hello");
+    assertThat(RequestKey.of("Hello").source()).isNull();
+  }
+
+  @Test public void doesNotRetainRequestOrTransformations() {
+    for (Field field : RequestKey.class.getDeclaredFields()) {
+      assertThat(field.getType()).isNotEqualTo(Request.class);
+      assertThat(Transformation.class.isAssignableFrom(field.getType())).isFalse();
+      assertThat(field.getType()).isNotEqualTo(List.class);
+    }
+    TestTransformation transformation = new TestTransformation("foo", null);
+    RequestKey key = RequestKey.of(new Request.Builder(URI_1).transform(transformation).build());
+    assertThat(key.toString()).isEqualTo(URI_1 + "\nfoo\n");
+  }
+
+}
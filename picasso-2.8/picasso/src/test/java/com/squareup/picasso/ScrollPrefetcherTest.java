@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.net.Uri;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.squareup.picasso.Picasso.LoadedFrom.NETWORK;
+import static com.squareup.picasso.Picasso.Priority.LOW;
+import static com.squareup.picasso.TestUtils.TRANSFORM_REQUEST_ANSWER;
+import static com.squareup.picasso.TestUtils.makeBitmap;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class ScrollPrefetcherTest {
+  private static final int ITEM_BYTES = 100 * 100 * 4;
+
+  @Mock Picasso picasso;
+  private final ScrollPrefetcher.Source source = new ScrollPrefetcher.Source() {
+    @Override public int getCount() {
+      return 100;
+    }
+
+    @Override public RequestCreator getRequest(int position) {
+      return new RequestCreator(picasso, uri(position), 0);
+    }
+  };
+
+  @Before public void setUp() {
+    initMocks(this);
+    when(picasso.transformRequest(any(Request.class))).thenAnswer(TRANSFORM_REQUEST_ANSWER);
+  }
+
+  @Test public void nothingPrefetchedWithoutItemSize() {
+    ScrollPrefetcher prefetcher = new ScrollPrefetcher.Builder(picasso, source).build();
+    prefetcher.onScroll(0, 9);
+    scroll(prefetcher, 100, 3, 9);
+    verify(picasso, never()).submit(any(Action.class));
+  }
+
+  @Test public void fastScrollPrefetchesUpToMaxRows() {
+    ScrollPrefetcher prefetcher = new ScrollPrefetcher.Builder(picasso, source).build();
+    prefetcher.setItemLayout(3, 100, 100);
+    prefetcher.onScroll(0, 9);
+    // 30 items per second is 5 rows in the lookahead, capped at 4.
+    scroll(prefetcher, 100, 3, 9);
+
+    List<Action> actions = submitted(12);
+    for (int i = 0; i < 12; i++) {
+      Request request = actions.get(i).getRequest();
+      assertThat(request.uri).isEqualTo(uri(12 + i));
+      assertThat(request.targetWidth).isEqualTo(100);
+      assertThat(request.targetHeight).isEqualTo(100);
+      assertThat(request.priority).isEqualTo(LOW);
+    }
+    assertThat(prefetcher.getPrefetchCount()).isEqualTo(12);
+    assertThat(prefetcher.getInFlightBytes()).isEqualTo(12 * ITEM_BYTES);
+  }
+
+  @Test public void slowScrollPrefetchesOneRow() {
+    ScrollPrefetcher prefetcher = new ScrollPrefetcher.Builder(picasso, source).build();
+    prefetcher.setItemLayout(3, 100, 100);
+    prefetcher.onScroll(0, 9);
+    scroll(prefetcher, 1000, 3, 9);
+
+    List<Action> actions = submitted(3);
+    assertThat(actions.get(0).getRequest().uri).isEqualTo(uri(12));
+    assertThat(actions.get(2).getRequest().uri).isEqualTo(uri(14));
+  }
+
+  @Test public void scrollingUpPrefetchesAbove() {
+    ScrollPrefetcher prefetcher = new ScrollPrefetcher.Builder(picasso, source).build();
+    prefetcher.setItemLayout(1, 100, 100);
+    prefetcher.onScroll(50, 5);
+    scroll(prefetcher, 1000, 49, 5);
+
+    assertThat(submitted(1).get(0).getRequest().uri).isEqualTo(uri(48));
+  }
+
+  @Test public void shownPrefetchesAreHits() {
+    ScrollPrefetcher prefetcher = new ScrollPrefetcher.Builder(picasso, source).build();
+    prefetcher.setItemLayout(3, 100, 100);
+    prefetcher.onScroll(0, 9);
+    scroll(prefetcher, 1000, 3, 9);
+    scroll(prefetcher, 1000, 6, 9);
+
+    assertThat(prefetcher.getHitCount()).isEqualTo(3);
+    assertThat(prefetcher.getWastedCount()).isEqualTo(0);
+    // The shown fetches keep running for their views but no longer count against the cap.
+    verify(picasso, never()).cancelAction(any(Action.class));
+    assertThat(prefetcher.getInFlightBytes()).isEqualTo(3 * ITEM_BYTES);
+  }
+
+  @Test public void directionChangeCancelsPrefetches() {
+    ScrollPrefetcher prefetcher = new ScrollPrefetcher.Builder(picasso, source).build();
+    prefetcher.setItemLayout(3, 100, 100);
+    prefetcher.onScroll(30, 9);
+    scroll(prefetcher, 1000, 33, 9);
+    List<Action> below = submitted(3);
+
+    scroll(prefetcher, 1000, 30, 9);
+    for (Action action : below) {
+      verify(picasso).cancelAction(action);
+    }
+    assertThat(prefetcher.getWastedCount()).isEqualTo(3);
+    List<Action> actions = submitted(6);
+    assertThat(actions.get(3).getRequest().uri).isEqualTo(uri(29));
+  }
+
+  @Test public void scrolledPastPrefetchesAreWasted() {
+    ScrollPrefetcher prefetcher = new ScrollPrefetcher.Builder(picasso, source).build();
+    prefetcher.setItemLayout(1, 100, 100);
+    prefetcher.onScroll(0, 5);
+    scroll(prefetcher, 1000, 1, 5);
+    Action action = submitted(1).get(0);
+
+    // A jump skips the prefetched item without showing it.
+    scroll(prefetcher, 1000, 20, 5);
+    verify(picasso).cancelAction(action);
+    assertThat(prefetcher.getWastedCount()).isEqualTo(1);
+    assertThat(prefetcher.getHitCount()).isEqualTo(0);
+  }
+
+  @Test public void inFlightBytesAreCapped() throws Exception {
+    ScrollPrefetcher prefetcher = new ScrollPrefetcher.Builder(picasso, source)
+        .maxInFlightBytes(2 * ITEM_BYTES)
+        .build();
+    prefetcher.setItemLayout(3, 100, 100);
+    prefetcher.onScroll(0, 9);
+    scroll(prefetcher, 100, 3, 9);
+    List<Action> actions = submitted(2);
+    assertThat(prefetcher.getInFlightBytes()).isEqualTo(2 * ITEM_BYTES);
+
+    actions.get(0).complete(makeBitmap(), NETWORK);
+    assertThat(prefetcher.getInFlightBytes()).isEqualTo(ITEM_BYTES);
+    scroll(prefetcher, 100, 3, 9);
+    assertThat(submitted(3).get(2).getRequest().uri).isEqualTo(uri(14));
+  }
+
+  @Test public void cancelCancelsUnfinishedPrefetches() throws Exception {
+    ScrollPrefetcher prefetcher = new ScrollPrefetcher.Builder(picasso, source).build();
+    prefetcher.setItemLayout(1, 100, 100);
+    prefetcher.onScroll(0, 5);
+    scroll(prefetcher, 500, 1, 5);
+    List<Action> actions = submitted(1);
+
+    prefetcher.cancel();
+    verify(picasso).cancelAction(actions.get(0));
+    assertThat(prefetcher.getInFlightBytes()).isEqualTo(0);
+  }
+
+  @Test public void invalidBuilderArguments() {
+    try {
+      new ScrollPrefetcher.Builder(null, source);
+      fail("Null Picasso should throw exception.");
+    } catch (IllegalArgumentException ignored) {
+    }
+    try {
+      new ScrollPrefetcher.Builder(picasso, null);
+      fail("Null source should throw exception.");
+    } catch (IllegalArgumentException ignored) {
+    }
+    try {
+      new ScrollPrefetcher.Builder(picasso, source).maxRows(0);
+      fail("Zero rows should throw exception.");
+    } catch (IllegalArgumentException ignored) {
+    }
+    try {
+      new ScrollPrefetcher.Builder(picasso, source).maxInFlightBytes(0);
+      fail("Zero bytes should throw exception.");
+    } catch (IllegalArgumentException ignored) {
+    }
+  }
+
+  @Test public void invalidItemLayout() {
+    ScrollPrefetcher prefetcher = new ScrollPrefetcher.Builder(picasso, source).build();
+    try {
+      prefetcher.setItemLayout(0, 100, 100);
+      fail("Zero columns should throw exception.");
+    } catch (IllegalArgumentException ignored) {
+    }
+    try {
+      prefetcher.setItemLayout(1, -1, 100);
+      fail("Negative width should throw exception.");
+    } catch (IllegalArgumentException ignored) {
+    }
+  }
+
+  private static void scroll(ScrollPrefetcher prefetcher, long afterMillis, int firstVisible,
+      int visibleCount) {
+    Robolectric.getForegroundThreadScheduler().advanceBy(afterMillis, MILLISECONDS);
+    prefetcher.onScroll(firstVisible, visibleCount);
+  }
+
+  private List<Action> submitted(int count) {
+    ArgumentCaptor<Action> actionCaptor = ArgumentCaptor.forClass(Action.class);
+    verify(picasso, times(count)).submit(actionCaptor.capture());
+    return actionCaptor.getAllValues();
+  }
+
+  private static Uri uri(int position) {
+    return Uri.parse("http://example.com/" + position + ".png");
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.squareup.picasso.Picasso.LoadedFrom.DISK;
+import static com.squareup.picasso.Picasso.LoadedFrom.MEMORY;
+import static com.squareup.picasso.Picasso.LoadedFrom.NETWORK;
+import static com.squareup.picasso.StatsSnapshot.Stage.DECODE;
+import static com.squareup.picasso.StatsSnapshot.Stage.DELIVERY;
+import static com.squareup.picasso.StatsSnapshot.Stage.DOWNLOAD;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class StatsTest {
+  private final Cache cache = mock(Cache.class);
+  private final Stats stats = new Stats(cache);
+
+  @Test public void countersAppearInSnapshot() {
+    when(cache.maxSize()).thenReturn(100);
+    when(cache.size()).thenReturn(25);
+    stats.dispatchCacheHit();
+    stats.dispatchCacheHit();
+    stats.dispatchCacheMiss();
+    stats.dispatchDownloadFinished(100);
+    stats.dispatchDownloadFinished(300);
+    stats.dispatchThreadCountChanged(4, "because");
+
+    StatsSnapshot snapshot = stats.createSnapshot();
+    assertThat(snapshot.maxSize).isEqualTo(100);
+    assertThat(snapshot.size).isEqualTo(25);
+    assertThat(snapshot.cacheHits).isEqualTo(2);
+    assertThat(snapshot.cacheMisses).isEqualTo(1);
+    assertThat(snapshot.downloadCount).isEqualTo(2);
+    assertThat(snapshot.totalDownloadSize).isEqualTo(400);
+    assertThat(snapshot.averageDownloadSize).isEqualTo(200);
+    assertThat(snapshot.averageOriginalBitmapSize).isEqualTo(0);
+    assertThat(snapshot.threadCount).isEqualTo(4);
+    assertThat(snapshot.threadCountReason).isEqualTo("because");
+  }
+
+  @Test public void latenciesAreKeptPerStageAndSource() {
+    stats.dispatchLatency(DOWNLOAD, NETWORK, MILLISECONDS.toNanos(200));
+    stats.dispatchLatency(DOWNLOAD, DISK, MILLISECONDS.toNanos(2));
+    stats.dispatchLatency(DECODE, NETWORK, MILLISECONDS.toNanos(10));
+
+    StatsSnapshot snapshot = stats.createSnapshot();
+    assertThat(snapshot.latency(DOWNLOAD, NETWORK).count).isEqualTo(1);
+    assertThat(snapshot.latency(DOWNLOAD, NETWORK).max).isEqualTo(200000);
+    assertThat(snapshot.latency(DOWNLOAD, DISK).max).isEqualTo(2000);
+    assertThat(snapshot.latency(DOWNLOAD, MEMORY).count).isEqualTo(0);
+    assertThat(snapshot.latency(DOWNLOAD).count).isEqualTo(2);
+    assertThat(snapshot.latency(DOWNLOAD).max).isEqualTo(200000);
+    assertThat(snapshot.latency(DECODE).count).isEqualTo(1);
+  }
+
+  @Test public void deliveryLatencyFeedsDeliveryStats() {
+    stats.dispatchLatency(DELIVERY, MEMORY, MILLISECONDS.toNanos(4));
+    stats.dispatchLatency(DELIVERY, NETWORK, MILLISECONDS.toNanos(8));
+
+    StatsSnapshot snapshot = stats.createSnapshot();
+    assertThat(snapshot.deliveryCount).isEqualTo(2);
+    assertThat(snapshot.averageDeliveryDelay).isEqualTo(6);
+    assertThat(snapshot.maxDeliveryDelay).isEqualTo(8);
+  }
+
+  @Test public void deliveryFramesAreCounted() {
+    stats.dispatchDeliveryFrame(0);
+    stats.dispatchDeliveryFrame(3);
+
+    StatsSnapshot snapshot = stats.createSnapshot();
+    assertThat(snapshot.deliveryFrameCount).isEqualTo(2);
+    assertThat(snapshot.droppedDeliveryFrameCount).isEqualTo(3);
+  }
+
+  @Test public void concurrentRecordingIsNotLost() throws InterruptedException {
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new Runnable() {
+        @Override public void run() {
+          for (int j = 0; j < 10000; j++) {
+            stats.dispatchCacheHit();
+            stats.dispatchLatency(DECODE, DISK, 1000);
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    StatsSnapshot snapshot = stats.createSnapshot();
+    assertThat(snapshot.cacheHits).isEqualTo(80000);
+    assertThat(snapshot.latency(DECODE, DISK).count).isEqualTo(80000);
+  }
+
+  @Test public void dumpMetricsIsScrapeable() {
+    stats.dispatchCacheHit();
+    stats.dispatchLatency(DECODE, NETWORK, MILLISECONDS.toNanos(10));
+
+    StringWriter writer = new StringWriter();
+    stats.createSnapshot().dumpMetrics(new PrintWriter(writer));
+    String metrics = writer.toString();
+    assertThat(metrics).contains(
+        "# TYPE picasso_cache_hits_total counter\npicasso_cache_hits_total 1\n");
+    assertThat(metrics).contains("picasso_latency_microseconds"
+        + "{stage=\"decode\",source=\"network\",quantile=\"0.5\"} 10000\n");
+    assertThat(metrics).contains(
+        "picasso_latency_microseconds_count{stage=\"decode\",source=\"network\"} 1\n");
+    assertThat(metrics).contains(
+        "picasso_latency_microseconds_sum{stage=\"decode\",source=\"network\"} 10000\n");
+  }
+}
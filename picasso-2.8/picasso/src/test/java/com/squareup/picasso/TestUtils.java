@@ -26,10 +26,17 @@ import android.os.IBinder;
 import android.view.ViewTreeObserver;
 import android.widget.ImageView;
 import android.widget.RemoteViews;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
@@ -55,28 +62,28 @@ class TestUtils {
   static final Uri URI_1 = Uri.parse("http://example.com/1.png");
   static final Uri URI_2 = Uri.parse("http://example.com/2.png");
   static final String STABLE_1 = "stableExampleKey1";
-  static final String URI_KEY_1 = createKey(new Request.Builder(URI_1).build());
-  static final String URI_KEY_2 = createKey(new Request.Builder(URI_2).build());
-  static final String STABLE_URI_KEY_1 = createKey(new Request.Builder(URI_1).stableKey(STABLE_1).build());
+  static final RequestKey URI_KEY_1 = createKey(new Request.Builder(URI_1).build());
+  static final RequestKey URI_KEY_2 = createKey(new Request.Builder(URI_2).build());
+  static final RequestKey STABLE_URI_KEY_1 = createKey(new Request.Builder(URI_1).stableKey(STABLE_1).build());
   static final File FILE_1 = new File("C:\\windows\\system32\\logo.exe");
-  static final String FILE_KEY_1 = createKey(new Request.Builder(Uri.fromFile(FILE_1)).build());
+  static final RequestKey FILE_KEY_1 = createKey(new Request.Builder(Uri.fromFile(FILE_1)).build());
   static final Uri FILE_1_URL = Uri.parse("file:///" + FILE_1.getPath());
   static final Uri FILE_1_URL_NO_AUTHORITY = Uri.parse("file:/" + FILE_1.getParent());
   static final Uri MEDIA_STORE_CONTENT_1_URL = Uri.parse("content://media/external/images/media/1");
-  static final String MEDIA_STORE_CONTENT_KEY_1 =
+  static final RequestKey MEDIA_STORE_CONTENT_KEY_1 =
       createKey(new Request.Builder(MEDIA_STORE_CONTENT_1_URL).build());
   static final Uri CONTENT_1_URL = Uri.parse("content://zip/zap/zoop.jpg");
-  static final String CONTENT_KEY_1 = createKey(new Request.Builder(CONTENT_1_URL).build());
+  static final RequestKey CONTENT_KEY_1 = createKey(new Request.Builder(CONTENT_1_URL).build());
   static final Uri CONTACT_URI_1 = CONTENT_URI.buildUpon().appendPath("1234").build();
-  static final String CONTACT_KEY_1 = createKey(new Request.Builder(CONTACT_URI_1).build());
+  static final RequestKey CONTACT_KEY_1 = createKey(new Request.Builder(CONTACT_URI_1).build());
   static final Uri CONTACT_PHOTO_URI_1 =
       CONTENT_URI.buildUpon().appendPath("1234").appendPath(CONTENT_DIRECTORY).build();
-  static final String CONTACT_PHOTO_KEY_1 =
+  static final RequestKey CONTACT_PHOTO_KEY_1 =
       createKey(new Request.Builder(CONTACT_PHOTO_URI_1).build());
   static final int RESOURCE_ID_1 = 1;
-  static final String RESOURCE_ID_KEY_1 = createKey(new Request.Builder(RESOURCE_ID_1).build());
+  static final RequestKey RESOURCE_ID_KEY_1 = createKey(new Request.Builder(RESOURCE_ID_1).build());
   static final Uri ASSET_URI_1 = Uri.parse("file:///android_asset/foo/bar.png");
-  static final String ASSET_KEY_1 = createKey(new Request.Builder(ASSET_URI_1).build());
+  static final RequestKey ASSET_KEY_1 = createKey(new Request.Builder(ASSET_URI_1).build());
   static final String RESOURCE_PACKAGE = "com.squareup.picasso";
   static final String RESOURCE_TYPE = "drawable";
   static final String RESOURCE_NAME = "foo";
@@ -84,16 +91,16 @@ class TestUtils {
       .authority(RESOURCE_PACKAGE)
       .appendPath(Integer.toString(RESOURCE_ID_1))
       .build();
-  static final String RESOURCE_ID_URI_KEY = createKey(new Request.Builder(RESOURCE_ID_URI).build());
+  static final RequestKey RESOURCE_ID_URI_KEY = createKey(new Request.Builder(RESOURCE_ID_URI).build());
   static final Uri RESOURCE_TYPE_URI = new Uri.Builder().scheme(SCHEME_ANDROID_RESOURCE)
       .authority(RESOURCE_PACKAGE)
       .appendPath(RESOURCE_TYPE)
       .appendPath(RESOURCE_NAME)
       .build();
-  static final String RESOURCE_TYPE_URI_KEY =
+  static final RequestKey RESOURCE_TYPE_URI_KEY =
       createKey(new Request.Builder(RESOURCE_TYPE_URI).build());
   static final Uri CUSTOM_URI = Uri.parse("foo://bar");
-  static final String CUSTOM_URI_KEY = createKey(new Request.Builder(CUSTOM_URI).build());
+  static final RequestKey CUSTOM_URI_KEY = createKey(new Request.Builder(CUSTOM_URI).build());
 
   static Context mockPackageResourceContext() {
     Context context = mock(Context.class);
@@ -110,41 +117,41 @@ class TestUtils {
     return context;
   }
 
-  static Action mockAction(String key, Uri uri) {
+  static Action mockAction(RequestKey key, Uri uri) {
     return mockAction(key, uri, null, 0, null, null);
   }
 
-  static Action mockAction(String key, Uri uri, Object target) {
+  static Action mockAction(RequestKey key, Uri uri, Object target) {
     return mockAction(key, uri, target, 0, null, null);
   }
 
-  static Action mockAction(String key, Uri uri, Priority priority) {
+  static Action mockAction(RequestKey key, Uri uri, Priority priority) {
     return mockAction(key, uri, null, 0, priority, null);
   }
 
-  static Action mockAction(String key, Uri uri, String tag) {
+  static Action mockAction(RequestKey key, Uri uri, String tag) {
     return mockAction(key, uri, null, 0, null, tag);
   }
 
-  static Action mockAction(String key, Uri uri, Object target, String tag) {
+  static Action mockAction(RequestKey key, Uri uri, Object target, String tag) {
     return mockAction(key, uri, target, 0, null, tag);
   }
 
-  static Action mockAction(String key, Uri uri, Object target, int resourceId) {
+  static Action mockAction(RequestKey key, Uri uri, Object target, int resourceId) {
     return mockAction(key, uri, target, resourceId, null, null);
   }
 
-  static Action mockAction(String key, Uri uri, Object target, int resourceId, Priority priority,
+  static Action mockAction(RequestKey key, Uri uri, Object target, int resourceId, Priority priority,
                            String tag) {
     Request request = new Request.Builder(uri, resourceId, ARGB_8888).build();
     return mockAction(key, request, target, priority, tag);
   }
 
-  static Action mockAction(String key, Request request) {
+  static Action mockAction(RequestKey key, Request request) {
     return mockAction(key, request, null, null, null);
   }
 
-  static Action mockAction(String key, Request request, Object target, Priority priority,
+  static Action mockAction(RequestKey key, Request request, Object target, Priority priority,
                            String tag) {
     Action action = mock(Action.class);
     when(action.getKey()).thenReturn(key);
@@ -218,16 +225,16 @@ class TestUtils {
     return mock(InputStream.class);
   }
 
-  static BitmapHunter mockHunter(String key, Bitmap result, boolean skipCache) {
+  static BitmapHunter mockHunter(RequestKey key, Bitmap result, boolean skipCache) {
     return mockHunter(key, result, skipCache, null);
   }
 
-  static BitmapHunter mockHunter(String key, Bitmap result, boolean skipCache, Action action) {
+  static BitmapHunter mockHunter(RequestKey key, Bitmap result, boolean skipCache, Action action) {
     int memoryPolicy = skipCache ? MemoryPolicy.NO_STORE.index | MemoryPolicy.NO_CACHE.index : 0;
     return mockHunter(key, result, memoryPolicy, action);
   }
 
-  static BitmapHunter mockHunter(String key, Bitmap result, int memoryPolicy, Action action) {
+  static BitmapHunter mockHunter(RequestKey key, Bitmap result, int memoryPolicy, Action action) {
     Request data = new Request.Builder(URI_1).build();
     BitmapHunter hunter = mock(BitmapHunter.class);
     when(hunter.getKey()).thenReturn(key);
@@ -267,7 +274,29 @@ class TestUtils {
   }
 
   static Bitmap makeBitmap(int width, int height) {
-    return Bitmap.createBitmap(width, height, null);
+    return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+  }
+
+  /** Encodes a noisy image, whose scans are large enough to arrive over many reads. */
+  static byte[] jpeg(int width, int height, boolean progressive) throws IOException {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        image.setRGB(x, y, (x * 31 + y * 17) * 0x010101 ^ (x * y));
+      }
+    }
+    ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+    ImageWriteParam param = writer.getDefaultWriteParam();
+    if (progressive) {
+      param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageOutputStream stream = ImageIO.createImageOutputStream(out);
+    writer.setOutput(stream);
+    writer.write(null, new IIOImage(image, null, null), param);
+    stream.close();
+    writer.dispose();
+    return out.toByteArray();
   }
 
   private TestUtils() {
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.graphics.Rect;
+import android.net.Uri;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.squareup.picasso.Picasso.LoadedFrom.DISK;
+import static com.squareup.picasso.TestUtils.TRANSFORM_REQUEST_ANSWER;
+import static com.squareup.picasso.TestUtils.URI_1;
+import static com.squareup.picasso.TestUtils.makeBitmap;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class TiledImageTest {
+  @Mock Picasso picasso;
+
+  @Before public void setUp() {
+    initMocks(this);
+    when(picasso.transformRequest(any(Request.class))).thenAnswer(TRANSFORM_REQUEST_ANSWER);
+    when(picasso.load(URI_1)).thenAnswer(new Answer<RequestCreator>() {
+      @Override public RequestCreator answer(InvocationOnMock invocation) {
+        return new RequestCreator(picasso, URI_1, 0);
+      }
+    });
+  }
+
+  @Test public void sampleSizeKeepsOnePixelPerScreenPixel() {
+    assertThat(TiledImage.sampleSize(2f)).isEqualTo(1);
+    assertThat(TiledImage.sampleSize(1f)).isEqualTo(1);
+    assertThat(TiledImage.sampleSize(0.6f)).isEqualTo(1);
+    assertThat(TiledImage.sampleSize(0.5f)).isEqualTo(2);
+    assertThat(TiledImage.sampleSize(0.3f)).isEqualTo(2);
+    assertThat(TiledImage.sampleSize(0.1f)).isEqualTo(8);
+  }
+
+  @Test public void viewportLoadsVisibleTiles() {
+    TiledImage image = new TiledImage.Builder(picasso, URI_1, 2048, 1000).build();
+    image.setViewport(new Rect(0, 0, 1000, 600), 1f);
+
+    List<Action> actions = enqueued(4);
+    assertThat(actions.get(0).getRequest().region).isEqualTo(new Rect(0, 0, 512, 512));
+    assertThat(actions.get(1).getRequest().region).isEqualTo(new Rect(512, 0, 1024, 512));
+    assertThat(actions.get(2).getRequest().region).isEqualTo(new Rect(0, 512, 512, 1000));
+    Request last = actions.get(3).getRequest();
+    assertThat(last.region).isEqualTo(new Rect(512, 512, 1024, 1000));
+    assertThat(last.targetWidth).isEqualTo(512);
+    assertThat(last.targetHeight).isEqualTo(488);
+    assertThat(image.getTiles()).hasSize(4);
+  }
+
+  @Test public void panningCancelsTilesThatLeave() {
+    TiledImage image = new TiledImage.Builder(picasso, URI_1, 2048, 1024).build();
+    image.setViewport(new Rect(0, 0, 1000, 512), 1f);
+    List<Action> first = enqueued(2);
+
+    image.setViewport(new Rect(600, 0, 1600, 512), 1f);
+    verify(picasso).cancelRequest(((TargetAction) first.get(0)).getTarget());
+    verify(picasso, never()).cancelRequest(((TargetAction) first.get(1)).getTarget());
+    List<Action> actions = enqueued(4);
+    assertThat(actions.get(2).getRequest().region).isEqualTo(new Rect(1024, 0, 1536, 512));
+    assertThat(actions.get(3).getRequest().region).isEqualTo(new Rect(1536, 0, 2048, 512));
+    assertThat(image.getTiles()).hasSize(3);
+  }
+
+  @Test public void zoomingOutReplacesTiles() {
+    TiledImage image = new TiledImage.Builder(picasso, URI_1, 2048, 1024).build();
+    image.setViewport(new Rect(0, 0, 1024, 512), 1f);
+    List<Action> first = enqueued(2);
+
+    image.setViewport(new Rect(0, 0, 2048, 1024), 0.4f);
+    for (Action action : first) {
+      verify(picasso).cancelRequest(((TargetAction) action).getTarget());
+    }
+    List<Action> actions = enqueued(4);
+    Request request = actions.get(2).getRequest();
+    assertThat(request.region).isEqualTo(new Rect(0, 0, 1024, 1024));
+    assertThat(request.targetWidth).isEqualTo(512);
+    assertThat(request.targetHeight).isEqualTo(512);
+    assertThat(image.getTiles().get(0).getSampleSize()).isEqualTo(2);
+  }
+
+  @Test public void loadedTilesAreReported() {
+    TiledImage.Listener listener = mock(TiledImage.Listener.class);
+    TiledImage image =
+        new TiledImage.Builder(picasso, URI_1, 512, 512).listener(listener).build();
+    image.setViewport(new Rect(0, 0, 512, 512), 1f);
+    TiledImage.Tile tile = image.getTiles().get(0);
+    assertThat(tile.getBitmap()).isNull();
+
+    enqueued(1).get(0).complete(makeBitmap(), DISK);
+    assertThat(tile.getBitmap()).isNotNull();
+    verify(listener).onTileLoaded(tile);
+  }
+
+  @Test public void cancelCancelsAllTiles() {
+    TiledImage image = new TiledImage.Builder(picasso, URI_1, 1024, 512).build();
+    image.setViewport(new Rect(0, 0, 1024, 512), 1f);
+    image.cancel();
+    verify(picasso, times(2)).cancelRequest(any(Target.class));
+    assertThat(image.getTiles()).isEmpty();
+  }
+
+  private List<Action> enqueued(int count) {
+    ArgumentCaptor<Action> actionCaptor = ArgumentCaptor.forClass(Action.class);
+    verify(picasso, times(count)).enqueueAndSubmit(actionCaptor.capture());
+    return actionCaptor.getAllValues();
+  }
+}
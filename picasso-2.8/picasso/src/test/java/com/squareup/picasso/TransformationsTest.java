@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2018 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.picasso;
+
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.graphics.Path;
+import android.graphics.Rect;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static android.graphics.Bitmap.Config.ARGB_8888;
+import static com.google.common.truth.Truth.assertThat;
+import static com.squareup.picasso.PixelTransformation.alpha;
+import static com.squareup.picasso.PixelTransformation.argb;
+import static com.squareup.picasso.PixelTransformation.blue;
+import static com.squareup.picasso.PixelTransformation.green;
+import static com.squareup.picasso.PixelTransformation.red;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class TransformationsTest {
+  private static final int PARALLELISM = PixelTransformation.parallelism;
+
+  private final Random random = new Random(42);
+
+  @After public void tearDown() {
+    PixelTransformation.parallelism = PARALLELISM;
+  }
+
+  @Test public void grayscaleMatchesReference() {
+    int[] pixels = randomPixels(37, 23);
+    int[] actual = filter(Transformations.grayscale(), pixels, 37, 23);
+    for (int i = 0; i < pixels.length; i++) {
+      int pixel = pixels[i];
+      int gray = Math.round(0.213f * red(pixel) + 0.715f * green(pixel) + 0.072f * blue(pixel));
+      assertClose(actual[i], argb(alpha(pixel), gray, gray, gray), 1);
+    }
+  }
+
+  @Test public void tintMatchesReference() {
+    int color = 0x80336699;
+    int[] pixels = randomPixels(37, 23);
+    int[] actual = filter(Transformations.tint(color), pixels, 37, 23);
+    float strength = alpha(color) / 255f;
+    for (int i = 0; i < pixels.length; i++) {
+      int pixel = pixels[i];
+      int expected = argb(alpha(pixel),
+          Math.round(red(pixel) * (1 - strength) + red(color) * strength),
+          Math.round(green(pixel) * (1 - strength) + green(color) * strength),
+          Math.round(blue(pixel) * (1 - strength) + blue(color) * strength));
+      assertClose(actual[i], expected, 1);
+    }
+  }
+
+  @Test public void roundedCornersMatchesReference() {
+    int[] pixels = randomPixels(37, 23);
+    int[] actual = filter(Transformations.roundedCorners(8.5f), pixels, 37, 23);
+    for (int y = 0; y < 23; y++) {
+      for (int x = 0; x < 37; x++) {
+        int pixel = pixels[y * 37 + x];
+        float dx = Math.max(0, Math.max(8.5f - (x + 0.5f), x + 0.5f - (37 - 8.5f)));
+        float dy = Math.max(0, Math.max(8.5f - (y + 0.5f), y + 0.5f - (23 - 8.5f)));
+        float coverage = Math.max(0, Math.min(1, 9 - (float) Math.sqrt(dx * dx + dy * dy)));
+        int expected = argb(Math.round(alpha(pixel) * coverage), red(pixel), green(pixel),
+            blue(pixel));
+        assertClose(actual[y * 37 + x], expected, 1);
+      }
+    }
+    assertThat(alpha(actual[0])).isEqualTo(0);
+    assertThat(actual[11 * 37 + 18]).isEqualTo(pixels[11 * 37 + 18]);
+  }
+
+  @Test public void roundedCornersRadiusIsClamped() {
+    int[] pixels = randomPixels(10, 4);
+    int[] clamped = filter(Transformations.roundedCorners(2), pixels, 10, 4);
+    assertThat(filter(Transformations.roundedCorners(50), pixels, 10, 4)).isEqualTo(clamped);
+  }
+
+  @Test public void rowsFilteredInChunksMatchWholeImage() {
+    int[] pixels = randomPixels(37, 23);
+    Transformation[] transformations = {
+        Transformations.grayscale(),
+        Transformations.tint(0x40FF0000),
+        Transformations.roundedCorners(6),
+    };
+    for (Transformation transformation : transformations) {
+      PixelTransformation pixelTransformation = (PixelTransformation) transformation;
+      int[] expected = filter(transformation, pixels, 37, 23);
+      int[] actual = pixels.clone();
+      for (int top = 0; top < 23; top += 5) {
+        int rows = Math.min(5, 23 - top);
+        int[] chunk = Arrays.copyOfRange(actual, top * 37, (top + rows) * 37);
+        pixelTransformation.filter(chunk, 37, top, rows, 23);
+        System.arraycopy(chunk, 0, actual, top * 37, chunk.length);
+      }
+      assertThat(actual).isEqualTo(expected);
+    }
+  }
+
+  @Test public void blurMatchesReference() {
+    int[] pixels = randomPixels(37, 23);
+    int[] actual = transform(Transformations.blur(4), pixels, 37, 23);
+    assertThat(actual).isEqualTo(blur(pixels, 37, 23, 4));
+  }
+
+  @Test public void blurRadiusLargerThanImage() {
+    int[] pixels = randomPixels(3, 2);
+    int[] actual = transform(Transformations.blur(10), pixels, 3, 2);
+    assertThat(actual).isEqualTo(blur(pixels, 3, 2, 10));
+  }
+
+  @Test public void blurOnSeveralThreadsMatchesOneThread() {
+    int[] pixels = randomPixels(300, 260);
+    PixelTransformation.parallelism = 1;
+    int[] expected = transform(Transformations.blur(3), pixels, 300, 260);
+    PixelTransformation.parallelism = 4;
+    assertThat(transform(Transformations.blur(3), pixels, 300, 260)).isEqualTo(expected);
+  }
+
+  @Test public void blurRecyclesImmutableSource() {
+    Bitmap source = bitmap(randomPixels(5, 5), 5, 5);
+    Bitmap result = Transformations.blur(1).transform(source);
+    assertThat(result).isNotSameAs(source);
+    assertThat(source.isRecycled()).isTrue();
+
+    Bitmap mutable = Bitmap.createBitmap(5, 5, ARGB_8888);
+    assertThat(Transformations.blur(1).transform(mutable)).isSameAs(mutable);
+  }
+
+  @Test public void downscaleAverageMatchesReference() {
+    int[] pixels = randomPixels(37, 23);
+    for (int top = 0; top + 4 <= 23; top += 4) {
+      for (int left = 0; left + 3 <= 37; left += 3) {
+        long[] sums = new long[4];
+        for (int y = top; y < top + 4; y++) {
+          for (int x = left; x < left + 3; x++) {
+            int pixel = pixels[y * 37 + x];
+            sums[0] += alpha(pixel);
+            sums[1] += red(pixel);
+            sums[2] += green(pixel);
+            sums[3] += blue(pixel);
+          }
+        }
+        int expected = argb((int) Math.round(sums[0] / 12d), (int) Math.round(sums[1] / 12d),
+            (int) Math.round(sums[2] / 12d), (int) Math.round(sums[3] / 12d));
+        int[] rows = Arrays.copyOfRange(pixels, top * 37, (top + 4) * 37);
+        assertClose(DownscaleTransformation.average(rows, 37, left, 3, 4), expected, 0);
+      }
+    }
+  }
+
+  @Test public void downscaleLeavesSmallImage() {
+    Bitmap source = bitmap(randomPixels(10, 6), 10, 6);
+    assertThat(Transformations.downscale(10).transform(source)).isSameAs(source);
+  }
+
+  @Test public void chunksAreSharedAmongThreads() {
+    PixelTransformation.parallelism = 4;
+    final int[] runs = new int[64];
+    final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+    PixelTransformation.forEachChunk(runs.length, 16, PixelTransformation.PARALLEL_THRESHOLD,
+        new PixelTransformation.ChunkTask() {
+          @Override public void run(int chunk, int[] buffer) {
+            assertThat(buffer.length).isAtLeast(16);
+            runs[chunk]++;
+            threads.add(Thread.currentThread());
+            sleep();
+          }
+        });
+    int[] once = new int[64];
+    Arrays.fill(once, 1);
+    assertThat(runs).isEqualTo(once);
+    assertThat(threads.size()).isGreaterThan(1);
+  }
+
+  @Test public void smallOperationsStayOnCallingThread() {
+    PixelTransformation.parallelism = 4;
+    final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+    PixelTransformation.forEachChunk(64, 16, PixelTransformation.PARALLEL_THRESHOLD - 1,
+        new PixelTransformation.ChunkTask() {
+          @Override public void run(int chunk, int[] buffer) {
+            threads.add(Thread.currentThread());
+          }
+        });
+    assertThat(threads).containsExactly(Thread.currentThread());
+  }
+
+  @Test public void chunkFailureIsRethrown() {
+    PixelTransformation.parallelism = 4;
+    final Thread caller = Thread.currentThread();
+    try {
+      PixelTransformation.forEachChunk(64, 16, PixelTransformation.PARALLEL_THRESHOLD,
+          new PixelTransformation.ChunkTask() {
+            @Override public void run(int chunk, int[] buffer) {
+              if (Thread.currentThread() != caller) {
+                throw new IllegalStateException("Broken chunk " + chunk);
+              }
+              sleep();
+            }
+          });
+      fail("Failing chunk should throw.");
+    } catch (IllegalStateException e) {
+      assertThat(e.getMessage()).startsWith("Broken chunk");
+    }
+  }
+
+  @Test public void keys() {
+    assertThat(Transformations.grayscale().key()).isEqualTo("grayscale()");
+    assertThat(Transformations.tint(0x80336699).key()).isEqualTo("tint(#80336699)");
+    assertThat(Transformations.blur(5).key()).isEqualTo("blur(5)");
+    assertThat(Transformations.roundedCorners(4).key()).isEqualTo("roundedCorners(4.0)");
+    assertThat(Transformations.downscale(64).key()).isEqualTo("downscale(64)");
+    assertThat(Transformations.tint(0x80336699).key())
+        .isEqualTo(Transformations.tint(0x80336699).key());
+  }
+
+  @Test public void invalidArgumentsThrow() {
+    try {
+      Transformations.blur(0);
+      fail("Zero blur radius should throw.");
+    } catch (IllegalArgumentException ignored) {
+    }
+    try {
+      Transformations.roundedCorners(-1);
+      fail("Negative corner radius should throw.");
+    } catch (IllegalArgumentException ignored) {
+    }
+    try {
+      Transformations.downscale(0);
+      fail("Zero max size should throw.");
+    } catch (IllegalArgumentException ignored) {
+    }
+  }
+
+  @Test public void downscaleFusesModestScales() {
+    Bitmap source = Bitmap.createBitmap(100, 50, ARGB_8888);
+    DrawPass pass = new DrawPass(source, new Rect(0, 0, 100, 50), new Matrix());
+    FusedTransformation downscale = (FusedTransformation) Transformations.downscale(60);
+    assertThat(downscale.fuse(pass)).isTrue();
+    assertThat(pass.getWidth()).isEqualTo(60);
+    assertThat(pass.getHeight()).isEqualTo(30);
+
+    pass = new DrawPass(source, new Rect(0, 0, 100, 50), new Matrix());
+    downscale = (FusedTransformation) Transformations.downscale(20);
+    assertThat(downscale.fuse(pass)).isFalse();
+    assertThat(pass.getWidth()).isEqualTo(100);
+  }
+
+  @Test public void roundedCornersDoNotFuseClippedPass() {
+    Bitmap source = Bitmap.createBitmap(100, 50, ARGB_8888);
+    DrawPass pass = new DrawPass(source, new Rect(0, 0, 100, 50), new Matrix());
+    FusedTransformation corners = (FusedTransformation) Transformations.roundedCorners(5);
+    assertThat(corners.fuse(pass)).isTrue();
+    assertThat(pass.hasClip()).isTrue();
+    assertThat(corners.fuse(pass)).isFalse();
+
+    pass = new DrawPass(source, new Rect(0, 0, 100, 50), new Matrix());
+    pass.clip(new Path());
+    assertThat(corners.fuse(pass)).isFalse();
+  }
+
+  private int[] randomPixels(int width, int height) {
+    int[] pixels = new int[width * height];
+    for (int i = 0; i < pixels.length; i++) {
+      pixels[i] = random.nextInt();
+    }
+    return pixels;
+  }
+
+  private static Bitmap bitmap(int[] pixels, int width, int height) {
+    return Bitmap.createBitmap(pixels, width, height, ARGB_8888);
+  }
+
+  private static int[] pixels(Bitmap bitmap) {
+    int[] pixels = new int[bitmap.getWidth() * bitmap.getHeight()];
+    bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+    return pixels;
+  }
+
+  private static int[] transform(Transformation transformation, int[] pixels, int width,
+      int height) {
+    return pixels(transformation.transform(bitmap(pixels, width, height)));
+  }
+
+  private static int[] filter(Transformation transformation, int[] pixels, int width,
+      int height) {
+    int[] result = pixels.clone();
+    ((PixelTransformation) transformation).filter(result, width, 0, height, height);
+    return result;
+  }
+
+  private static int[] blur(int[] pixels, int width, int height, int radius) {
+    int[] result = pixels;
+    for (int pass = 0; pass < 3; pass++) {
+      result = boxBlur(result, width, height, radius, 1, 0);
+      result = boxBlur(result, width, height, radius, 0, 1);
+    }
+    return result;
+  }
+
+  /** Box blur along x when {@code dx} is 1 or along y when {@code dy} is 1, one pixel at a time. */
+  private static int[] boxBlur(int[] pixels, int width, int height, int radius, int dx, int dy) {
+    int[] result = new int[pixels.length];
+    int size = 2 * radius + 1;
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int[] sums = new int[4];
+        for (int i = -radius; i <= radius; i++) {
+          int sx = Math.max(0, Math.min(width - 1, x + i * dx));
+          int sy = Math.max(0, Math.min(height - 1, y + i * dy));
+          int pixel = pixels[sy * width + sx];
+          sums[0] += alpha(pixel);
+          sums[1] += red(pixel);
+          sums[2] += green(pixel);
+          sums[3] += blue(pixel);
+        }
+        result[y * width + x] = argb((sums[0] + size / 2) / size, (sums[1] + size / 2) / size,
+            (sums[2] + size / 2) / size, (sums[3] + size / 2) / size);
+      }
+    }
+    return result;
+  }
+
+  private static void sleep() {
+    try {
+      Thread.sleep(1);
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static void assertClose(int actual, int expected, int tolerance) {
+    String message = String.format("#%08X vs #%08X", actual, expected);
+    assertThat(Math.abs(alpha(actual) - alpha(expected))).named(message).isAtMost(tolerance);
+    assertThat(Math.abs(red(actual) - red(expected))).named(message).isAtMost(tolerance);
+    assertThat(Math.abs(green(actual) - green(expected))).named(message).isAtMost(tolerance);
+    assertThat(Math.abs(blue(actual) - blue(expected))).named(message).isAtMost(tolerance);
+  }
+}
@@ -36,8 +36,8 @@ public class UtilsTest {
 
   @Test public void matchingRequestsHaveSameKey() throws Exception {
     Request request = new Request.Builder(URI_1).build();
-    String key1 = createKey(request);
-    String key2 = createKey(request);
+    RequestKey key1 = createKey(request);
+    RequestKey key2 = createKey(request);
     assertThat(key1).isEqualTo(key2);
 
     Transformation t1 = new TestTransformation("foo", null);
@@ -46,8 +46,8 @@ public class UtilsTest {
     Request requestTransform1 = new Request.Builder(URI_1).transform(t1).build();
     Request requestTransform2 = new Request.Builder(URI_1).transform(t2).build();
 
-    String single1 = createKey(requestTransform1);
-    String single2 = createKey(requestTransform2);
+    RequestKey single1 = createKey(requestTransform1);
+    RequestKey single2 = createKey(requestTransform2);
     assertThat(single1).isEqualTo(single2);
 
     Transformation t3 = new TestTransformation("foo", null);
@@ -56,8 +56,8 @@ public class UtilsTest {
     Request requestTransform3 = new Request.Builder(URI_1).transform(t3).transform(t4).build();
     Request requestTransform4 = new Request.Builder(URI_1).transform(t3).transform(t4).build();
 
-    String double1 = createKey(requestTransform3);
-    String double2 = createKey(requestTransform4);
+    RequestKey double1 = createKey(requestTransform3);
+    RequestKey double2 = createKey(requestTransform4);
     assertThat(double1).isEqualTo(double2);
 
     Transformation t5 = new TestTransformation("foo", null);
@@ -66,8 +66,8 @@ public class UtilsTest {
     Request requestTransform5 = new Request.Builder(URI_1).transform(t5).transform(t6).build();
     Request requestTransform6 = new Request.Builder(URI_1).transform(t6).transform(t5).build();
 
-    String order1 = createKey(requestTransform5);
-    String order2 = createKey(requestTransform6);
+    RequestKey order1 = createKey(requestTransform5);
+    RequestKey order2 = createKey(requestTransform6);
     assertThat(order1).isNotEqualTo(order2);
   }
 
@@ -79,15 +79,6 @@ public class UtilsTest {
     assertThat(isWebPFile(new Buffer().writeUtf8("RIFFxxWEBP"))).isFalse();
   }
 
-  @Test public void ensureBuilderIsCleared() throws Exception {
-    Request request1 = new Request.Builder(RESOURCE_ID_URI).build();
-    Request request2 = new Request.Builder(URI_1).build();
-    Utils.createKey(request1);
-    assertThat(Utils.MAIN_THREAD_KEY_BUILDER.length()).isEqualTo(0);
-    Utils.createKey(request2);
-    assertThat(Utils.MAIN_THREAD_KEY_BUILDER.length()).isEqualTo(0);
-  }
-
   @Test public void getResourceById() throws IOException {
     Request request = new Request.Builder(RESOURCE_ID_URI).build();
     Resources res = Utils.getResources(mockPackageResourceContext(), request);